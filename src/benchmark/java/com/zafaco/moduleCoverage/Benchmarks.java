@@ -0,0 +1,63 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * Runs JMH benchmarks from the unit test task, the forks inherit the test classpath
+ * <p>
+ * android.util.Log, and with it the Log of moduleCommon, is the no-op stub of the unit test android.jar (returnDefaultValues), org.json is the
+ * reference implementation. Results are written to build/reports/jmh as JSON.
+ */
+final class Benchmarks
+{
+    static final String PROPERTY = "coverage.benchmark";
+
+    private Benchmarks()
+    {
+    }
+
+    static boolean isEnabled()
+    {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * Runs all benchmarks of the class with the GC profiler, the equivalent of -prof gc
+     */
+    static Collection<RunResult> run(Class<?> benchmark) throws RunnerException
+    {
+        File directory = new File("build/reports/jmh");
+        directory.mkdirs();
+
+        return new Runner(new OptionsBuilder()
+                .include(benchmark.getName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(directory, benchmark.getSimpleName() + ".json").getPath())
+                .build()).run();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-fix ingest path of Coverage: network and wireless states, merge, filter chain, category, counters and persistence
+ * <p>
+ * Run with {@link IngestBenchmarkTest}, persist=false leaves out the SQLite insert to separate the in-memory cost.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark
+{
+    private static final int FIXES = 4096;
+    private static final int NETWORK_INTERVAL = 60;
+    private static final int WIRELESS_INTERVAL = 10;
+
+    @Param({"true", "false"})
+    public boolean persist;
+
+    private final JSONObject[] fixes = new JSONObject[FIXES];
+    private final JSONObject[] networks = new JSONObject[FIXES / NETWORK_INTERVAL + 1];
+    private final JSONObject[] wireless = new JSONObject[FIXES / WIRELESS_INTERVAL + 1];
+
+    private File mFile;
+    private JdbcCoverageStore mStore;
+    private CoverageIngest mCoverageIngest;
+    private CoverageCounter counter;
+    private TrackStatistics mTrackStatistics;
+
+    private long now = SyntheticDrive.START;
+    private int index = 0;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException, SQLException
+    {
+        SyntheticDrive drive = new SyntheticDrive(1);
+
+        for (int i = 0; i < FIXES; i++)
+        {
+            fixes[i] = drive.nextGeo();
+
+            if (i % NETWORK_INTERVAL == 0)
+                networks[i / NETWORK_INTERVAL] = drive.network();
+
+            if (i % WIRELESS_INTERVAL == 0)
+                wireless[i / WIRELESS_INTERVAL] = drive.wireless();
+        }
+
+        mCoverageIngest = SyntheticDrive.createIngest(new CoverageIngest.Clock()
+        {
+            @Override
+            public long currentTimeMillis()
+            {
+                return now;
+            }
+        });
+
+        counter = new CoverageCounter();
+        mTrackStatistics = new TrackStatistics(SyntheticDrive.createHeader().trackId, counter);
+
+        mFile = File.createTempFile("ingest", ".db");
+        mStore = persist ? new JdbcCoverageStore(mFile) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (mStore != null)
+            mStore.close();
+
+        mFile.delete();
+        new File(mFile.getPath() + "-wal").delete();
+        new File(mFile.getPath() + "-shm").delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean throughput() throws JSONException, SQLException
+    {
+        return ingest();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean latency() throws JSONException, SQLException
+    {
+        return ingest();
+    }
+
+    private boolean ingest() throws JSONException, SQLException
+    {
+        int i = index++ % FIXES;
+        now += SyntheticDrive.FIX_INTERVAL_MS;
+
+        if (i % NETWORK_INTERVAL == 0)
+            mCoverageIngest.onNetwork(networks[i / NETWORK_INTERVAL]);
+
+        if (i % WIRELESS_INTERVAL == 0)
+            mCoverageIngest.onWireless(wireless[i / WIRELESS_INTERVAL]);
+
+        CoverageSample sample = mCoverageIngest.onGeo(fixes[i]);
+
+        if (sample == null)
+            return false;
+
+        AccessCategory category = AccessCategory.fromLabel(sample.accessCategory);
+
+        counter.add(category, sample.geoTimestamp, sample.distance);
+        mTrackStatistics.add(category, sample);
+
+        if (mStore != null)
+            mStore.insert(sample);
+
+        sample.recycle();
+
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * On-disk SQLite through JDBC in place of android.database.sqlite, writes rows like {@link CoverageSchema} and {@link CoverageWriter}
+ * <p>
+ * Columns are TEXT and added on first sight, rows are committed in batches of the writer's default size with WAL and synchronous=NORMAL as on the device.
+ */
+final class JdbcCoverageStore implements Closeable
+{
+    static final int BATCH_SIZE = 50;
+
+    private final Connection mConnection;
+    private final Set<String> mColumns = new LinkedHashSet<>();
+    private final Set<String> mRowColumns = new LinkedHashSet<>();
+    private final List<String> mColumnList = new ArrayList<>();
+
+    private PreparedStatement mInsertStatement = null;
+    private int pending = 0;
+    private long rows = 0;
+
+
+    JdbcCoverageStore(File file) throws SQLException
+    {
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+
+        Statement statement = mConnection.createStatement();
+        try
+        {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " (" + CoverageSchema.quote("timestamp") + " TEXT)");
+        } finally
+        {
+            statement.close();
+        }
+
+        mColumns.add("timestamp");
+        mColumnList.add("timestamp");
+
+        mConnection.setAutoCommit(false);
+    }
+
+    /**
+     * Adds the row to the current batch and commits the batch when it is full, the row is not recycled
+     */
+    void insert(CoverageRow row) throws SQLException
+    {
+        mRowColumns.clear();
+        row.collectColumns(mRowColumns);
+
+        if (!mColumns.containsAll(mRowColumns))
+            ensureColumns();
+
+        if (mInsertStatement == null)
+            mInsertStatement = compileInsert();
+
+        for (int i = 0; i < mColumnList.size(); i++)
+        {
+            mInsertStatement.setString(i + 1, row.getString(mColumnList.get(i)));
+        }
+
+        mInsertStatement.executeUpdate();
+        rows++;
+
+        if (++pending >= BATCH_SIZE)
+            commit();
+    }
+
+    void commit() throws SQLException
+    {
+        if (pending == 0)
+            return;
+
+        mConnection.commit();
+        pending = 0;
+    }
+
+    long getRows()
+    {
+        return rows;
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            commit();
+
+            if (mInsertStatement != null)
+                mInsertStatement.close();
+
+            mConnection.close();
+        } catch (SQLException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void ensureColumns() throws SQLException
+    {
+        commit();
+
+        Statement statement = mConnection.createStatement();
+        try
+        {
+            for (String column : mRowColumns)
+            {
+                if (mColumns.add(column))
+                {
+                    statement.execute("ALTER TABLE " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " ADD COLUMN " + CoverageSchema.quote(column) + " TEXT");
+                    mColumnList.add(column);
+                }
+            }
+        } finally
+        {
+            statement.close();
+        }
+
+        mConnection.commit();
+
+        if (mInsertStatement != null)
+            mInsertStatement.close();
+
+        mInsertStatement = null;
+    }
+
+    private PreparedStatement compileInsert() throws SQLException
+    {
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+
+        for (int i = 0; i < mColumnList.size(); i++)
+        {
+            if (i > 0)
+            {
+                names.append(", ");
+                values.append(", ");
+            }
+
+            names.append(CoverageSchema.quote(mColumnList.get(i)));
+            values.append("?");
+        }
+
+        return mConnection.prepareStatement("INSERT INTO " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " (" + names + ") VALUES (" + values + ")");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording into {@link CoverageMetrics} as the geo listener callback does it for every fix
+ * <p>
+ * Run with {@link MetricsBenchmarkTest}, gc.alloc.rate.norm is expected to be zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark
+{
+    private CoverageMetrics.Counter mFixesDelivered;
+    private CoverageMetrics.Counter mFixesAccepted;
+    private CoverageMetrics.Counter mRejected;
+    private CoverageMetrics.Histogram mIngestLatency;
+    private CoverageMetrics.Histogram mPublishLatency;
+
+    private long value = 0;
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        CoverageMetrics metrics = new CoverageMetrics();
+
+        mFixesDelivered = metrics.counter(CoverageMetrics.FIXES_DELIVERED);
+        mFixesAccepted = metrics.counter(CoverageMetrics.FIXES_ACCEPTED);
+        mRejected = metrics.rejected("accuracy");
+        mIngestLatency = metrics.histogram(CoverageMetrics.INGEST_LATENCY);
+        mPublishLatency = metrics.histogram(CoverageMetrics.PUBLISH_LATENCY);
+    }
+
+    @Benchmark
+    public void counter()
+    {
+        mFixesDelivered.increment();
+    }
+
+    @Benchmark
+    public void histogram()
+    {
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        mPublishLatency.record(value >>> 44);
+    }
+
+    /**
+     * Delivered and accepted counters, ingest latency and a rejection every eighth fix
+     */
+    @Benchmark
+    public void fix()
+    {
+        long received = System.nanoTime();
+
+        mFixesDelivered.increment();
+        mIngestLatency.recordSince(received);
+
+        if ((++value & 7) == 0)
+            mRejected.increment();
+        else
+            mFixesAccepted.increment();
+    }
+}
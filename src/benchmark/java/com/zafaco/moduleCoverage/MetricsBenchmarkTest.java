@@ -0,0 +1,44 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with -Pbenchmark=true only
+ */
+public class MetricsBenchmarkTest
+{
+    @Test
+    public void recordingDoesNotAllocate() throws Exception
+    {
+        Assume.assumeTrue(Benchmarks.isEnabled());
+
+        for (RunResult result : Benchmarks.run(MetricsBenchmark.class))
+        {
+            double allocated = result.getSecondaryResults().get("gc.alloc.rate.norm").getScore();
+
+            System.out.println("Metrics: " + result.getParams().getBenchmark() + " ns[" + result.getPrimaryResult().getScore() + "] - bytes[" + allocated + "]");
+
+            assertTrue(allocated < 1.0);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation per fix of the typed {@link CoverageSample} against the JSONObject merging it replaced
+ * <p>
+ * Both variants build the listener output of the fix like ListenerGeoLocation does, so the difference is the enrichment, merge and filter part
+ * of the path. Run with {@link SampleAllocationBenchmarkTest}, the result of interest is gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleAllocationBenchmark
+{
+    private static final int FIXES = 4096;
+
+    private final double[][] fixes = new double[FIXES][];
+
+    private JSONObject dataNetwork;
+    private JSONObject dataWireless;
+
+    private TrackHeader header;
+    private CoverageIngest mCoverageIngest;
+    private final ConcurrentHashMap<String, AtomicLong> counter = new ConcurrentHashMap<>();
+
+    private long now = SyntheticDrive.START;
+    private int index = 0;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException
+    {
+        SyntheticDrive drive = new SyntheticDrive(1);
+
+        for (int i = 0; i < FIXES; i++)
+        {
+            JSONObject geo = drive.nextGeo();
+            fixes[i] = new double[]{geo.getDouble("app_latitude"), geo.getDouble("app_longitude"), geo.getDouble("app_accuracy"), geo.getDouble("app_altitude"), geo.getDouble("app_velocity"), geo.getLong("app_location_age_ns")};
+        }
+
+        dataNetwork = drive.network();
+        dataNetwork.put("app_access_category", "4G");
+        dataWireless = drive.wireless();
+
+        header = SyntheticDrive.createHeader();
+
+        mCoverageIngest = SyntheticDrive.createIngest(new CoverageIngest.Clock()
+        {
+            @Override
+            public long currentTimeMillis()
+            {
+                return now;
+            }
+        });
+        mCoverageIngest.onNetwork(drive.network());
+        mCoverageIngest.onWireless(dataWireless);
+    }
+
+    /**
+     * The geo listener callback before CoverageSample: constants put into the fix, network and wireless merged in, filters read back from JSON
+     */
+    @Benchmark
+    public JSONObject jsonMerge() throws JSONException
+    {
+        JSONObject message = nextGeo();
+        now += SyntheticDrive.FIX_INTERVAL_MS;
+
+        double accuracy = message.getDouble("app_accuracy");
+        double locationAgeMs = message.getLong("app_location_age_ns") / 1e6;
+
+        message.put("timestamp", header.trackId);
+
+        message.put("client_os", header.clientOs);
+        message.put("client_os_version", header.clientOsVersion);
+
+        message.put("app_manufacturer", header.manufacturer);
+        message.put("app_manufacturer_id", header.manufacturerId);
+        message.put("app_manufacturer_version", header.manufacturerVersion);
+
+        message.put("app_version", header.appVersion);
+        message.put("app_library_version", header.libraryVersion);
+
+        message.put("app_geo_timestamp", now);
+        message.put("app_geo_timezone", header.timezone);
+
+        message.put("track_id", header.trackId);
+
+        merge(message, dataNetwork);
+        merge(message, dataWireless);
+
+        message.put("sent", false);
+        message.put("app_distance", 15.0);
+
+        if (message.getDouble("app_distance") < 1.0 || accuracy > 50 || message.getInt("app_access_id") == 18 || locationAgeMs > 1000)
+            return null;
+
+        if (message.getString("app_mode").equals("WIFI"))
+            message.put("app_mode", "WWAN");
+
+        if (message.optBoolean("app_emergency_only"))
+        {
+            message.put("app_access_id", 0);
+            message.put("app_access", "unknown");
+        }
+
+        String accessCategory = message.getString("app_access_category");
+        message.put("app_access_category", accessCategory);
+
+        counter.putIfAbsent(accessCategory, new AtomicLong(0));
+        counter.get(accessCategory).incrementAndGet();
+
+        return message;
+    }
+
+    @Benchmark
+    public boolean typedSample() throws JSONException
+    {
+        JSONObject message = nextGeo();
+        now += SyntheticDrive.FIX_INTERVAL_MS;
+
+        CoverageSample sample = mCoverageIngest.onGeo(message);
+
+        if (sample == null)
+            return false;
+
+        sample.recycle();
+
+        return true;
+    }
+
+    private JSONObject nextGeo() throws JSONException
+    {
+        double[] fix = fixes[index++ % FIXES];
+
+        JSONObject geo = new JSONObject();
+        geo.put("app_latitude", fix[0]);
+        geo.put("app_longitude", fix[1]);
+        geo.put("app_accuracy", fix[2]);
+        geo.put("app_altitude", fix[3]);
+        geo.put("app_velocity", fix[4]);
+        geo.put("app_location_age_ns", (long) fix[5]);
+
+        return geo;
+    }
+
+    /**
+     * Tool.mergeJSON: copies all keys of the source into the target
+     */
+    private static void merge(JSONObject target, JSONObject source) throws JSONException
+    {
+        Iterator<String> keys = source.keys();
+        while (keys.hasNext())
+        {
+            String key = keys.next();
+            target.put(key, source.get(key));
+        }
+    }
+}
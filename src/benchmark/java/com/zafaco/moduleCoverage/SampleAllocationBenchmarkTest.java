@@ -0,0 +1,51 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with -Pbenchmark=true only
+ */
+public class SampleAllocationBenchmarkTest
+{
+    @Test
+    public void typedSampleAllocatesLess() throws Exception
+    {
+        Assume.assumeTrue(Benchmarks.isEnabled());
+
+        Map<String, Double> allocation = new HashMap<>();
+        for (RunResult result : Benchmarks.run(SampleAllocationBenchmark.class))
+        {
+            allocation.put(result.getParams().getBenchmark(), result.getSecondaryResults().get("gc.alloc.rate.norm").getScore());
+        }
+
+        double json = allocation.get(SampleAllocationBenchmark.class.getName() + ".jsonMerge");
+        double typed = allocation.get(SampleAllocationBenchmark.class.getName() + ".typedSample");
+
+        System.out.println("SampleAllocation: bytes per fix json[" + json + "] - typed[" + typed + "]");
+
+        assertTrue(typed < json / 2);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synthetic listener outputs of a drive around Vienna, one fix per second at about 15 m/s with a cell change every minute
+ * <p>
+ * The messages carry the keys written by ListenerGeoLocation, ListenerNetwork/ListenerTelephony and ListenerWireless.
+ */
+final class SyntheticDrive implements CoverageIngest.Clock
+{
+    static final long START = 1700000000000L;
+    static final long FIX_INTERVAL_MS = 1000;
+
+    private static final int[] ACCESS_IDS = {13, 13, 13, 20, 3, 13, 1};
+    private static final String[] ACCESS = {"LTE", "LTE", "LTE", "NR", "UMTS", "LTE", "GPRS"};
+
+    private final Random random;
+
+    private double latitude = 48.2;
+    private double longitude = 16.37;
+    private double bearing = 0.0;
+    private int fix = 0;
+    private long now = START;
+
+
+    SyntheticDrive(long seed)
+    {
+        random = new Random(seed);
+    }
+
+    static TrackHeader createHeader()
+    {
+        return new TrackHeader("1700000000000", "Android", "14", "Google", "google", "Pixel 8", "1.0.0", "1.0.0", 3600);
+    }
+
+    static CoverageIngest.CategoryResolver createCategoryResolver()
+    {
+        return new CoverageIngest.CategoryResolver()
+        {
+            @Override
+            public String getCategory(int accessId)
+            {
+                switch (accessId)
+                {
+                    case 1:
+                        return "2G";
+                    case 3:
+                        return "3G";
+                    case 13:
+                        return "4G";
+                    case 20:
+                        return "5G";
+                    default:
+                        return "unknown";
+                }
+            }
+        };
+    }
+
+    /**
+     * Ingest as set up by Coverage.onStartCommand with the default thresholds, the device state admits all samples
+     */
+    static CoverageIngest createIngest(CoverageIngest.Clock clock)
+    {
+        final DeviceState deviceState = new DeviceState(false, false, 5, 1, START);
+
+        DeviceState.Source deviceStateSource = new DeviceState.Source()
+        {
+            @Override
+            public DeviceState get()
+            {
+                return deviceState;
+            }
+        };
+
+        return new CoverageIngest(createHeader(), 50, 1000, "unknown", deviceStateSource, createCategoryResolver(), clock);
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return now;
+    }
+
+    /**
+     * Feeds the next second of the drive into an ingest created with this drive as clock, network and wireless states change at their own intervals
+     *
+     * @return the admitted sample, or null if the ingest rejected the fix
+     */
+    CoverageSample nextSample(CoverageIngest ingest) throws JSONException
+    {
+        now += FIX_INTERVAL_MS;
+
+        if (fix % 60 == 0)
+            ingest.onNetwork(network());
+
+        if (fix % 10 == 0)
+            ingest.onWireless(wireless());
+
+        return ingest.onGeo(nextGeo());
+    }
+
+    /**
+     * Writes the next fixes of the drive as a {@link TraceRecorder} trace with the offsets of the simulated clock, for {@link TraceReplayer}
+     * <p>
+     * The header is written by TraceRecorder, the other records are written here because the recorder stamps real time offsets.
+     */
+    void writeTrace(File file, int fixes) throws IOException, JSONException
+    {
+        File headerFile = File.createTempFile("header", TraceRecorder.TRACE_SUFFIX);
+        String header;
+
+        try
+        {
+            TraceRecorder recorder = new TraceRecorder(headerFile);
+            recorder.recordHeader(createHeader(), now, 50, 1000, 0, false, "unknown", createCategoryResolver());
+            recorder.close();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(headerFile)), TraceRecorder.CHARSET));
+            try
+            {
+                header = reader.readLine();
+            } finally
+            {
+                reader.close();
+            }
+        } finally
+        {
+            headerFile.delete();
+        }
+
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file), 65536), TraceRecorder.CHARSET);
+
+        try
+        {
+            writer.write(header);
+            writer.write('\n');
+
+            long start = now;
+
+            for (int i = 0; i < fixes; i++)
+            {
+                now += FIX_INTERVAL_MS;
+
+                if (fix % 60 == 0)
+                    write(writer, now - start, TraceRecorder.TYPE_NETWORK, network());
+
+                if (fix % 10 == 0)
+                    write(writer, now - start, TraceRecorder.TYPE_WIRELESS, wireless());
+
+                write(writer, now - start, TraceRecorder.TYPE_GEO, nextGeo());
+            }
+        } finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Next fix of the drive
+     */
+    JSONObject nextGeo() throws JSONException
+    {
+        bearing += (random.nextDouble() - 0.5) * 0.2;
+
+        double velocity = 12.0 + random.nextDouble() * 6.0;
+        latitude += Math.cos(bearing) * velocity / 111320.0;
+        longitude += Math.sin(bearing) * velocity / (111320.0 * Math.cos(Math.toRadians(latitude)));
+
+        JSONObject geo = new JSONObject();
+        geo.put("app_latitude", latitude);
+        geo.put("app_longitude", longitude);
+        geo.put("app_accuracy", 3.0 + random.nextDouble() * 10.0);
+        geo.put("app_altitude", 180.0 + random.nextDouble() * 20.0);
+        geo.put("app_velocity", velocity);
+        geo.put("app_location_age_ns", random.nextInt(200) * 1000000L);
+
+        fix++;
+
+        return geo;
+    }
+
+    /**
+     * Network state at the current fix, the serving cell changes every 60 fixes
+     */
+    JSONObject network() throws JSONException
+    {
+        int cell = fix / 60;
+        int technology = cell % ACCESS_IDS.length;
+
+        JSONObject network = new JSONObject();
+        network.put("app_access_id", ACCESS_IDS[technology]);
+        network.put("app_access", ACCESS[technology]);
+        network.put("app_mode", "MOBILE");
+        network.put("app_call_state", 0);
+        network.put("app_voice_id", 13);
+        network.put("app_operator_net_mcc", "232");
+        network.put("app_operator_net_mnc", "01");
+        network.put("app_cellid", Integer.toString(1000000 + cell));
+        network.put("app_celllac", Integer.toString(4000 + cell / 10));
+        network.put("app_rssi", Integer.toString(-70 - random.nextInt(40)));
+
+        return network;
+    }
+
+    JSONObject wireless() throws JSONException
+    {
+        JSONObject wireless = new JSONObject();
+        wireless.put("app_wifi_enabled", false);
+        wireless.put("app_bluetooth_enabled", random.nextBoolean());
+
+        return wireless;
+    }
+
+    private static void write(Writer writer, long offset, char type, JSONObject message) throws IOException
+    {
+        writer.write(Long.toString(offset));
+        writer.write('\t');
+        writer.write(type);
+        writer.write('\t');
+        writer.write(message.toString());
+        writer.write('\n');
+    }
+}
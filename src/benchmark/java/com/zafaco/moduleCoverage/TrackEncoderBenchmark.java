@@ -0,0 +1,212 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing one track in the {@link TrackEncoder} format against reading it from the coverage table
+ * <p>
+ * The track is a synthetic drive of {@link #ROWS} admitted samples stored through {@link JdbcCoverageStore}. One operation covers the whole track.
+ * Run with {@link TrackEncoderBenchmarkTest}, which also compares the encoded size with the size of the database file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackEncoderBenchmark
+{
+    static final int ROWS = 10000;
+
+    private File mFile;
+    private Connection mConnection;
+
+    String trackId;
+    List<String> columns;
+    final List<String[]> rows = new ArrayList<>(ROWS);
+
+    long databaseBytes;
+    byte[] encoded;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException, SQLException
+    {
+        mFile = File.createTempFile("track", ".db");
+
+        SyntheticDrive drive = new SyntheticDrive(1);
+        CoverageIngest ingest = SyntheticDrive.createIngest(drive);
+
+        JdbcCoverageStore store = new JdbcCoverageStore(mFile);
+        try
+        {
+            while (store.getRows() < ROWS)
+            {
+                CoverageSample sample = drive.nextSample(ingest);
+
+                if (sample != null)
+                {
+                    store.insert(sample);
+                    sample.recycle();
+                }
+            }
+        } finally
+        {
+            store.close();
+        }
+
+        // the last connection checkpoints the WAL into the database file on close
+        databaseBytes = mFile.length();
+
+        trackId = SyntheticDrive.createHeader().trackId;
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getPath());
+
+        columns = new ArrayList<>();
+        ResultSet result = query();
+        try
+        {
+            ResultSetMetaData metaData = result.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++)
+            {
+                columns.add(metaData.getColumnName(i));
+            }
+
+            while (result.next())
+            {
+                String[] row = new String[columns.size()];
+                for (int i = 0; i < row.length; i++)
+                {
+                    row[i] = result.getString(i + 1);
+                }
+                rows.add(row);
+            }
+        } finally
+        {
+            result.getStatement().close();
+        }
+
+        encoded = encode();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException
+    {
+        mConnection.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int encode_track() throws IOException
+    {
+        return encode().length;
+    }
+
+    @Benchmark
+    public long decode_track() throws IOException
+    {
+        TrackDecoder decoder = new TrackDecoder(new ByteArrayInputStream(encoded));
+        long length = 0;
+
+        for (String[] row = decoder.readRow(); row != null; row = decoder.readRow())
+        {
+            length += row.length;
+        }
+
+        return length;
+    }
+
+    /**
+     * The current representation: all columns of the track as strings, in insertion order as TrackEncoder.encode reads them
+     */
+    @Benchmark
+    public long query_track() throws SQLException
+    {
+        ResultSet result = query();
+        long length = 0;
+
+        try
+        {
+            int columnCount = columns.size();
+
+            while (result.next())
+            {
+                for (int i = 1; i <= columnCount; i++)
+                {
+                    if (result.getString(i) != null)
+                        length++;
+                }
+            }
+        } finally
+        {
+            result.getStatement().close();
+        }
+
+        return length;
+    }
+
+    private byte[] encode() throws IOException
+    {
+        output.reset();
+
+        TrackEncoder encoder = new TrackEncoder(output, trackId, columns);
+        for (String[] row : rows)
+        {
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+
+        return output.toByteArray();
+    }
+
+    private ResultSet query() throws SQLException
+    {
+        PreparedStatement statement = mConnection.prepareStatement("SELECT * FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " WHERE track_id = ? ORDER BY rowid");
+        statement.setString(1, trackId);
+
+        return statement.executeQuery();
+    }
+}
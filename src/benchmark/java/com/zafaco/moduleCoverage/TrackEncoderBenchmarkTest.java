@@ -0,0 +1,68 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with -Pbenchmark=true only
+ */
+public class TrackEncoderBenchmarkTest
+{
+    @Test
+    public void encodedTrackIsSmallerAndFasterToRead() throws Exception
+    {
+        Assume.assumeTrue(Benchmarks.isEnabled());
+
+        TrackEncoderBenchmark track = new TrackEncoderBenchmark();
+        track.setUp();
+
+        long databaseBytes;
+        int encodedBytes;
+
+        try
+        {
+            assertEquals(TrackEncoderBenchmark.ROWS, track.rows.size());
+
+            databaseBytes = track.databaseBytes;
+            encodedBytes = track.encoded.length;
+        } finally
+        {
+            track.tearDown();
+        }
+
+        Map<String, Double> scores = new HashMap<>();
+        for (RunResult result : Benchmarks.run(TrackEncoderBenchmark.class))
+        {
+            String benchmark = result.getParams().getBenchmark();
+            scores.put(benchmark.substring(benchmark.lastIndexOf('.') + 1), result.getPrimaryResult().getScore());
+        }
+
+        System.out.println("TrackEncoder: rows[" + TrackEncoderBenchmark.ROWS + "] - database[" + databaseBytes + "] - encoded[" + encodedBytes + "] - ms per track " + scores);
+
+        assertTrue(encodedBytes * 2L < databaseBytes);
+        assertTrue(scores.get("decode_track") < scores.get("query_track"));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TrackSimplifier} on the admitted samples of a replayed trace, alone and together with the replay
+ * <p>
+ * The trace is a synthetic drive of {@link #FIXES} fixes, one operation covers the whole trace. Run with {@link TrackSimplifierBenchmarkTest},
+ * which also reports the compression ratio and the maximum error per tolerance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackSimplifierBenchmark
+{
+    static final int FIXES = 30000;
+
+    private static final TrackSimplifier.Listener<Object> IGNORE = new TrackSimplifier.Listener<Object>()
+    {
+        @Override
+        public void onKept(Object item)
+        {
+        }
+
+        @Override
+        public void onDropped(Object item)
+        {
+        }
+    };
+
+    @Param({"2.0", "5.0", "20.0"})
+    public double tolerance;
+
+    private File mFile;
+
+    private double[] latitudes;
+    private double[] longitudes;
+    private String[] categories;
+    private String[] cellIds;
+    private String[] lacs;
+    private int[] rssi;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException, InterruptedException
+    {
+        mFile = createTrace();
+
+        final List<Object[]> samples = new ArrayList<>();
+
+        new TraceReplayer(mFile, false).replay(new TraceReplayer.Listener()
+        {
+            @Override
+            public void onSample(CoverageSample sample)
+            {
+                samples.add(new Object[]{sample.latitude, sample.longitude, sample.accessCategory, sample.getString("app_cellid"), sample.getString("app_celllac"), TrackSimplifier.parseRssi(sample.getString("app_rssi"))});
+            }
+        });
+
+        int count = samples.size();
+        latitudes = new double[count];
+        longitudes = new double[count];
+        categories = new String[count];
+        cellIds = new String[count];
+        lacs = new String[count];
+        rssi = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            Object[] sample = samples.get(i);
+
+            latitudes[i] = (Double) sample[0];
+            longitudes[i] = (Double) sample[1];
+            categories[i] = (String) sample[2];
+            cellIds[i] = (String) sample[3];
+            lacs[i] = (String) sample[4];
+            rssi[i] = (Integer) sample[5];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long simplify()
+    {
+        TrackSimplifier<Object> simplifier = new TrackSimplifier<>(tolerance, TrackSimplifier.DEFAULT_RSSI_BUCKET, IGNORE);
+
+        for (int i = 0; i < latitudes.length; i++)
+        {
+            simplifier.add(null, latitudes[i], longitudes[i], categories[i], cellIds[i], lacs[i], rssi[i]);
+        }
+        simplifier.finish();
+
+        return simplifier.getKept();
+    }
+
+    @Benchmark
+    public long replay_simplify() throws IOException, JSONException, InterruptedException
+    {
+        return replay(mFile, tolerance).getKept();
+    }
+
+    static File createTrace() throws IOException, JSONException
+    {
+        File file = File.createTempFile("simplifier", TraceRecorder.TRACE_SUFFIX);
+        new SyntheticDrive(24).writeTrace(file, FIXES);
+
+        return file;
+    }
+
+    /**
+     * Replays the trace into a simplifier as the simplified storage mode of Coverage does
+     */
+    static TrackSimplifier<CoverageSample> replay(File file, double tolerance) throws IOException, JSONException, InterruptedException
+    {
+        final TrackSimplifier<CoverageSample> simplifier = new TrackSimplifier<>(tolerance, TrackSimplifier.DEFAULT_RSSI_BUCKET, new TrackSimplifier.Listener<CoverageSample>()
+        {
+            @Override
+            public void onKept(CoverageSample item)
+            {
+            }
+
+            @Override
+            public void onDropped(CoverageSample item)
+            {
+            }
+        });
+
+        new TraceReplayer(file, false).replay(new TraceReplayer.Listener()
+        {
+            @Override
+            public void onSample(CoverageSample sample)
+            {
+                simplifier.add(sample, sample.latitude, sample.longitude, sample.accessCategory, sample.getString("app_cellid"), sample.getString("app_celllac"), TrackSimplifier.parseRssi(sample.getString("app_rssi")));
+            }
+        });
+        simplifier.finish();
+
+        return simplifier;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+
+import java.io.File;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with -Pbenchmark=true only
+ */
+public class TrackSimplifierBenchmarkTest
+{
+    private static final double[] TOLERANCES = {2.0, 5.0, 20.0};
+
+
+    @Test
+    public void replayedTraceStaysWithinTolerance() throws Exception
+    {
+        Assume.assumeTrue(Benchmarks.isEnabled());
+
+        File file = TrackSimplifierBenchmark.createTrace();
+        long samples = 0;
+
+        try
+        {
+            for (double tolerance : TOLERANCES)
+            {
+                TrackSimplifier<CoverageSample> simplifier = TrackSimplifierBenchmark.replay(file, tolerance);
+                samples = simplifier.getInput();
+
+                System.out.println("TrackSimplifier: " + simplifier.toJSON());
+
+                assertTrue(simplifier.getMaxError() <= tolerance);
+                assertTrue(simplifier.getRatio() < 1.0);
+            }
+        } finally
+        {
+            file.delete();
+        }
+
+        for (RunResult result : Benchmarks.run(TrackSimplifierBenchmark.class))
+        {
+            System.out.println("TrackSimplifier: " + result.getParams().getBenchmark() + " tolerance[" + result.getParams().getParam("tolerance") + "] - ms per trace[" + result.getPrimaryResult().getScore() + "] - ns per sample[" + result.getPrimaryResult().getScore() * 1e6 / samples + "]");
+        }
+    }
+}
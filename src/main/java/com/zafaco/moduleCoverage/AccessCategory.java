@@ -0,0 +1,60 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Access categories as returned by Tool.setCategory
+ */
+public enum AccessCategory
+{
+    UNKNOWN("unknown"),
+    G2("2G"),
+    G3("3G"),
+    G4("4G"),
+    G5("5G");
+
+    private final String label;
+
+    private static final AccessCategory[] VALUES = values();
+
+
+    AccessCategory(String label)
+    {
+        this.label = label;
+    }
+
+    public String getLabel()
+    {
+        return label;
+    }
+
+    public static AccessCategory fromLabel(String label)
+    {
+        for (AccessCategory category : VALUES)
+        {
+            if (category.label.equals(label))
+                return category;
+        }
+
+        return UNKNOWN;
+    }
+
+    static AccessCategory fromOrdinal(int ordinal)
+    {
+        return VALUES[ordinal];
+    }
+}
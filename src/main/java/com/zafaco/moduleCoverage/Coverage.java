@@ -27,13 +27,15 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
-import android.location.Location;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 
 import androidx.core.app.NotificationCompat;
@@ -49,13 +51,16 @@ import com.zafaco.moduleCommon.listener.ListenerNetwork;
 import com.zafaco.moduleCommon.listener.ListenerTelephony;
 import com.zafaco.moduleCommon.listener.ListenerWireless;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.TimeZone;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class Coverage extends Service
 {
@@ -67,49 +72,53 @@ public class Coverage extends Service
 
 
     private Tool mTool;
-    private JSONObject dataNetwork = null;
-    private JSONObject dataWireless = null;
+    private DeviceStateCache mDeviceStateCache = null;
+    private CoverageIngest mCoverageIngest = null;
+    private volatile TraceRecorder mTraceRecorder = null;
+    private volatile LocationScheduler mLocationScheduler = null;
 
-    private Database mDatabaseMeta = null;
-    private Database mDatabaseCoverage = null;
+    private CoverageWriter mCoverageWriter = null;
+    private CoverageJournal mCoverageJournal = null;
+    private volatile GridAggregator mGridAggregator = null;
+    private volatile TrackSimplifier<CoverageSample> mTrackSimplifier = null;
+    private CoverageTilePyramid mTilePyramid = null;
 
     private ListenerNetwork listenerNetwork = null;
     private ListenerTelephony listenerTelephony = null;
     private ListenerWireless listenerWireless = null;
     private ListenerGeoLocation listenerGeoLocation = null;
 
-    private Thread pThread;
-    private int iThreadCounter = 1;
+    private volatile CoverageSession mSession = null;
+    private HealthMonitor mHealthMonitor = null;
 
     private String appVersion = "";
     private int minTime = 1000;
     private int locationAgeThreshold = 1000;
-
-    private double distanceActual = -1.0;
-    private double appVelocity = -1.0;
-    private double appAccuracy = -1.0;
-    private double appLocationAgeMs = -1;
-
-    private int appAccessId = -1;
-    private int appVoiceId = -1;
-    private int appCallState = -1;
-    private String accessCategory = "-";
-
-    private Location lastLocation = new Location("A");
-    private Location newLocation = new Location("B");
+    private int networkAgeThreshold = 0;
+    private int batchSize = 50;
+    private int batchWindow = 5000;
+    private int notificationInterval = 5000;
+
+    private boolean recordTrace = false;
+    private boolean useJournal = true;
+    private boolean buildTiles = true;
+    private boolean adaptiveLocation = true;
+    private String storageMode = GridAggregator.STORAGE_MODE_RAW;
+    private int gridPrecision = GridAggregator.DEFAULT_PRECISION;
+    private double simplifyTolerance = TrackSimplifier.DEFAULT_TOLERANCE;
+
+    private RetentionManager mRetentionManager = null;
+    private String uploadUrl = null;
+    private int uploadChunkSize = CoverageUploader.DEFAULT_CHUNK_SIZE;
+    private int uploadParallelism = CoverageUploader.DEFAULT_PARALLELISM;
 
     private int accuracyFilterInitial = 50;
 
     private int distanceFilterInitial = 1;
-    private final int distanceFilterWalking = 10;
-    private final int distanceFilterBiking = 25;
-    private final int distanceFilterDriving = 50;
-
-    private final int velocityFilterWalkingThreshold = 4;
-    private final int velocityFilterBikingThreshold = 10;
 
 
     private String app_track_id = "";
+    private TrackHeader trackHeader = null;
 
     private int appIcon = 0;
 
@@ -118,24 +127,46 @@ public class Coverage extends Service
     private String notificationChannelId = "";
 
     private final IBinder mBinder = new LocalBinder();
-    private Handler mHandler = null;
-    private Handler mHandlerInfo = null;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> mStopReplies = new ArrayList<>();
+    private final List<SampleFilter> mSampleFilters = new ArrayList<>();
+    private final List<SampleRewriter> mSampleRewriters = new ArrayList<>();
+    private final CoverageStream<SampleSnapshot> mSampleStream = new CoverageStream<>("samples");
+    private final CoverageStream<String> mInfoStream = new CoverageStream<>("info", true);
+    private CoverageStream.Subscription<SampleSnapshot> mHandlerSubscription = null;
+    private CoverageStream.Subscription<String> mHandlerInfoSubscription = null;
     private Class<?> mClass = null;
 
-    private boolean isRunning = false;
-    private boolean useWithDistanceFilter = true;
-
     private NotificationChannel mNotificationChannel;
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mBuilder;
     private PendingIntent resultPendingIntent;
+    private NotificationUpdater mNotificationUpdater = null;
+
+    private CoverageCounter counter = new CoverageCounter();
 
-    private ConcurrentMap<String, AtomicLong> counter;
+    private final CoverageMetrics mMetrics = new CoverageMetrics();
+    private final CoverageMetrics.Counter mFixesDelivered = mMetrics.counter(CoverageMetrics.FIXES_DELIVERED);
+    private final CoverageMetrics.Counter mFixesAccepted = mMetrics.counter(CoverageMetrics.FIXES_ACCEPTED);
+    private final CoverageMetrics.Histogram mIngestLatency = mMetrics.histogram(CoverageMetrics.INGEST_LATENCY);
+    private final CoverageMetrics.Histogram mPublishLatency = mMetrics.histogram(CoverageMetrics.PUBLISH_LATENCY);
+    private volatile TrackStatistics mTrackStatistics = null;
 
     private TimeZone tz;
 
     private static final String TAG = "Coverage";
 
+    static final String TILE_DIRECTORY = "coverage_tiles";
+
+    private static final CoverageIngest.Clock ELAPSED_CLOCK = new CoverageIngest.Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
 
     public class LocalBinder extends Binder
     {
@@ -149,12 +180,70 @@ public class Coverage extends Service
     public void setDebug()
     {
         DEBUG = true;
+
+        if (mCoverageIngest != null)
+            mCoverageIngest.setDebug(true);
+    }
+
+    /**
+     * Delivers every sample and every info message as a new JSONObject to the handlers, replaces the handlers of a previous call
+     * <p>
+     * Like the handler messages this replaces, nothing is dropped: items wait in an unbounded buffer until the looper of the handler
+     * takes them. Subscribers that prefer a bounded buffer use {@link #getSampleStream} and {@link #getInfoStream} directly.
+     */
+    public synchronized void setHandler(final Handler handler, final Handler handlerInfo)
+    {
+        if (mHandlerSubscription != null)
+            mHandlerSubscription.cancel();
+
+        if (mHandlerInfoSubscription != null)
+            mHandlerInfoSubscription.cancel();
+
+        mHandlerSubscription = handler == null ? null : mSampleStream.subscribe(new CoverageStream.Subscriber<SampleSnapshot>()
+        {
+            @Override
+            public void onNext(SampleSnapshot item)
+            {
+                try
+                {
+                    dispatchMessage(handler, item.toJSON());
+                } catch (JSONException ex)
+                {
+                    Log.warning(TAG, "setHandler: samples", ex);
+                }
+            }
+        }, handler, CoverageStream.Overflow.DROP, CoverageStream.UNBOUNDED, 0);
+
+        mHandlerInfoSubscription = handlerInfo == null ? null : mInfoStream.subscribe(new CoverageStream.Subscriber<String>()
+        {
+            @Override
+            public void onNext(String item)
+            {
+                try
+                {
+                    dispatchMessage(handlerInfo, new JSONObject(item));
+                } catch (JSONException ex)
+                {
+                    Log.warning(TAG, "setHandler: info", ex);
+                }
+            }
+        }, handlerInfo, CoverageStream.Overflow.DROP, CoverageStream.UNBOUNDED, 0);
+    }
+
+    /**
+     * Admitted samples of all sessions
+     */
+    public CoverageStream<SampleSnapshot> getSampleStream()
+    {
+        return mSampleStream;
     }
 
-    public void setHandler(Handler handler, Handler handlerInfo)
+    /**
+     * Health and diagnostic messages as JSON strings, a new subscriber first receives the last message
+     */
+    public CoverageStream<String> getInfoStream()
     {
-        mHandler = handler;
-        mHandlerInfo = handlerInfo;
+        return mInfoStream;
     }
 
     public void setClass(Class<?> cls)
@@ -165,13 +254,30 @@ public class Coverage extends Service
 
     public void resetThreadCounter()
     {
-        iThreadCounter = 0;
+        if (mHealthMonitor != null)
+            mHealthMonitor.resetInfo();
+    }
+
+    public void setWarningDebounce(HealthWarning warning, long raiseMs, long clearMs)
+    {
+        if (mHealthMonitor != null)
+            mHealthMonitor.setDebounce(warning, raiseMs, clearMs);
     }
 
 
     public boolean isRunning()
     {
-        return isRunning;
+        CoverageSession session = mSession;
+
+        return session != null && session.isActive();
+    }
+
+    /**
+     * Current or last session, null before the first start
+     */
+    public CoverageSession getSession()
+    {
+        return mSession;
     }
 
     public String getTrackID()
@@ -179,6 +285,145 @@ public class Coverage extends Service
         return app_track_id;
     }
 
+    public CoverageCounter.Snapshot getCounter()
+    {
+        return counter.snapshot();
+    }
+
+    /**
+     * Live statistics of the current or last track, null before the first session
+     */
+    public TrackStatistics.Snapshot getTrackStatistics()
+    {
+        TrackStatistics trackStatistics = mTrackStatistics;
+
+        return trackStatistics != null ? trackStatistics.snapshot() : null;
+    }
+
+    public long getDeviceStateHits()
+    {
+        return mDeviceStateCache != null ? mDeviceStateCache.getHits() : 0;
+    }
+
+    public long getDeviceStateRefreshes()
+    {
+        return mDeviceStateCache != null ? mDeviceStateCache.getRefreshes() : 0;
+    }
+
+    /**
+     * Adds a filter behind the built-in admission filters, takes effect with the next start
+     */
+    public synchronized void addSampleFilter(SampleFilter filter)
+    {
+        mSampleFilters.add(filter);
+    }
+
+    public synchronized boolean removeSampleFilter(SampleFilter filter)
+    {
+        return mSampleFilters.remove(filter);
+    }
+
+    /**
+     * Adds a rewriter behind the built-in rewrite rules, takes effect with the next start
+     */
+    public synchronized void addSampleRewriter(SampleRewriter rewriter)
+    {
+        mSampleRewriters.add(rewriter);
+    }
+
+    public synchronized boolean removeSampleRewriter(SampleRewriter rewriter)
+    {
+        return mSampleRewriters.remove(rewriter);
+    }
+
+    public JSONObject getPipelineStatistics()
+    {
+        try
+        {
+            return mCoverageIngest != null ? mCoverageIngest.getPipeline().toJSON() : new JSONObject();
+        } catch (JSONException ex)
+        {
+            Log.warning(TAG, "getPipelineStatistics", ex);
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Hot path metrics of the current or last session
+     */
+    public CoverageMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+    public JSONObject getMetricsJSON()
+    {
+        try
+        {
+            return mMetrics.toJSON();
+        } catch (JSONException ex)
+        {
+            Log.warning(TAG, "getMetricsJSON", ex);
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Heatmap of all samples accepted while tile building was enabled, kept across sessions
+     */
+    public CoverageTilePyramid getTilePyramid()
+    {
+        return mTilePyramid;
+    }
+
+    /**
+     * Tile provider for a TileOverlay showing {@link #getTilePyramid()}
+     */
+    public CoverageTileProvider getTileProvider()
+    {
+        return new CoverageTileProvider(mTilePyramid);
+    }
+
+    /**
+     * Simplification statistics of the current or last session in simplified storage mode, null otherwise
+     */
+    public JSONObject getSimplifierStatistics()
+    {
+        TrackSimplifier<CoverageSample> trackSimplifier = mTrackSimplifier;
+
+        try
+        {
+            return trackSimplifier != null ? trackSimplifier.toJSON() : null;
+        } catch (JSONException ex)
+        {
+            Log.warning(TAG, "getSimplifierStatistics", ex);
+            return null;
+        }
+    }
+
+    public long getNotificationUpdatesSuppressed()
+    {
+        return mNotificationUpdater != null ? mNotificationUpdater.getUpdatesSuppressed() : 0;
+    }
+
+    public long getUploadedRows()
+    {
+        return CoverageUploadJob.getRowsSent();
+    }
+
+    public long getRetentionBytesReclaimed()
+    {
+        return mRetentionManager != null ? mRetentionManager.getBytesReclaimed() : 0;
+    }
+
+    /**
+     * Trace of the current or last session, null if record_trace was not set
+     */
+    public File getTraceFile()
+    {
+        return mTraceRecorder != null ? mTraceRecorder.getFile() : null;
+    }
+
 
     @Override
     public void onCreate()
@@ -188,7 +433,31 @@ public class Coverage extends Service
         this.ctx = getApplicationContext();
 
         mTool = new Tool();
-        dataNetwork = new JSONObject();
+        mDeviceStateCache = new DeviceStateCache(ctx, mTool);
+        mRetentionManager = RetentionManager.getInstance(ctx);
+        mTilePyramid = new CoverageTilePyramid(new File(ctx.getFilesDir(), TILE_DIRECTORY));
+
+        mHealthMonitor = new HealthMonitor(mDeviceStateCache, ELAPSED_CLOCK, new HealthMonitor.Listener()
+        {
+            @Override
+            public void onHealthEvent(JSONObject message)
+            {
+                mInfoStream.publish(message.toString());
+            }
+        });
+
+        mDeviceStateCache.setListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                TraceRecorder traceRecorder = mTraceRecorder;
+                if (traceRecorder != null)
+                    recordDeviceState(traceRecorder);
+
+                mHealthMonitor.onDeviceStateChanged();
+            }
+        });
 
         android_id = Settings.Secure.getString(ctx.getContentResolver(), Settings.Secure.ANDROID_ID);
 
@@ -196,28 +465,51 @@ public class Coverage extends Service
     }
 
     @Override
-    public int onStartCommand(Intent intent, final int flags, int startId)
+    public synchronized int onStartCommand(Intent intent, final int flags, int startId)
     {
         super.onStartCommand(intent, flags, startId);
 
         if (intent == null)
             return Service.START_REDELIVER_INTENT;
 
-        counter = new ConcurrentHashMap<>();
-        counter.putIfAbsent("all", new AtomicLong(0));
-        counter.putIfAbsent("unknown", new AtomicLong(0));
-        counter.putIfAbsent("2G", new AtomicLong(0));
-        counter.putIfAbsent("3G", new AtomicLong(0));
-        counter.putIfAbsent("4G", new AtomicLong(0));
-        counter.putIfAbsent("5G", new AtomicLong(0));
+        if (mSession != null && mSession.getState() != CoverageSession.State.IDLE)
+        {
+            Log.debug(TAG, "onStartCommand: session " + mSession.getTrackId() + " is " + mSession.getState() + ", start ignored");
+            return Service.START_REDELIVER_INTENT;
+        }
+
+        counter = new CoverageCounter();
 
 
         minTime = intent.getIntExtra("min_time", 1000);
         accuracyFilterInitial = intent.getIntExtra("min_accuracy", 50);
         locationAgeThreshold = intent.getIntExtra("location_age_threshold", 1000);
+        networkAgeThreshold = intent.getIntExtra("network_age_threshold", 0);
+        batchSize = intent.getIntExtra("batch_size", 50);
+        batchWindow = intent.getIntExtra("batch_window", 5000);
+        notificationInterval = intent.getIntExtra("notification_interval", 5000);
 
         distanceFilterInitial = intent.getIntExtra("min_distance", 1);
 
+        recordTrace = intent.getBooleanExtra("record_trace", false);
+        useJournal = intent.getBooleanExtra("journal", true);
+        buildTiles = intent.getBooleanExtra("build_tiles", true);
+        adaptiveLocation = intent.getBooleanExtra("adaptive_location", true);
+
+        storageMode = intent.getStringExtra("storage_mode") != null ? intent.getStringExtra("storage_mode") : GridAggregator.STORAGE_MODE_RAW;
+        gridPrecision = intent.getIntExtra("grid_precision", GridAggregator.DEFAULT_PRECISION);
+        simplifyTolerance = intent.getDoubleExtra("simplify_tolerance", TrackSimplifier.DEFAULT_TOLERANCE);
+
+        mRetentionManager.setLimits(intent.getIntExtra("retention_max_age_days", 0) * 86400000L, intent.getIntExtra("retention_max_mb", 0) * 1048576L);
+        mRetentionManager.onSessionStarted();
+
+        // the upload of earlier tracks pauses while the session writes, stopping the session schedules it again
+        CoverageUploadJob.cancel(ctx);
+
+        uploadUrl = intent.getStringExtra("upload_url");
+        uploadChunkSize = intent.getIntExtra("upload_chunk_size", CoverageUploader.DEFAULT_CHUNK_SIZE);
+        uploadParallelism = intent.getIntExtra("upload_parallelism", CoverageUploader.DEFAULT_PARALLELISM);
+
         app_track_id = intent.getStringExtra("app_track_id");
 
         appVersion = intent.getStringExtra("app_version");
@@ -228,24 +520,119 @@ public class Coverage extends Service
         notificationChannelId = intent.getStringExtra("notification_channel_id") != null ? intent.getStringExtra("notification_channel_id") : "12345";
 
 
-        isRunning = true;
-        useWithDistanceFilter = true;
+        trackHeader = new TrackHeader(app_track_id, "Android", Build.VERSION.RELEASE, Build.MANUFACTURER, android_id, Build.MODEL, appVersion, BuildConfig.VERSION_NAME, tz.getRawOffset() / 1000);
+        mTrackStatistics = new TrackStatistics(app_track_id, counter);
+
+
+        final CoverageSession session = new CoverageSession(app_track_id);
+        mSession = session;
+
+
+        mDeviceStateCache.start();
+
+
+        mHealthMonitor.start(session.getExecutor(), accuracyFilterInitial, locationAgeThreshold);
+
+
+        // creates the file with incremental auto vacuum before the tables are created
+        CoverageDatabase.open(ctx).close();
 
+        Database databaseCoverage = new Database(ctx, "measurements", "coverage");
+        databaseCoverage.createDB(addTableColumns());
 
-        lastLocation = new Location("A");
-        newLocation = new Location("B");
+        mMetrics.reset();
 
+        mCoverageJournal = null;
 
-        pThread = new Thread(new WorkerThread());
-        pThread.start();
+        if (useJournal)
+        {
+            try
+            {
+                mCoverageJournal = CoverageJournal.open(ctx, CoverageDatabase.TABLE_COVERAGE);
+            } catch (IOException ex)
+            {
+                Log.warning(TAG, "onStartCommand: journal not available", ex);
+            }
+        }
+
+        final CoverageWriter coverageWriter = new CoverageWriter(ctx, addTableColumns().keySet(), batchSize, batchWindow, mCoverageJournal, mMetrics);
+        coverageWriter.start(session.getExecutor());
+        mCoverageWriter = coverageWriter;
+
+        mMetrics.gauge(CoverageMetrics.DB_QUEUE_SIZE, new CoverageMetrics.Gauge()
+        {
+            @Override
+            public long get()
+            {
+                return coverageWriter.getQueueSize();
+            }
+        });
 
+        mGridAggregator = GridAggregator.STORAGE_MODE_GRID.equals(storageMode) ? new GridAggregator(mCoverageWriter, gridPrecision) : null;
+        mTrackSimplifier = TrackSimplifier.STORAGE_MODE_SIMPLIFIED.equals(storageMode) ? new TrackSimplifier<>(simplifyTolerance, TrackSimplifier.DEFAULT_RSSI_BUCKET, new TrackSimplifier.Listener<CoverageSample>()
+        {
+            @Override
+            public void onKept(CoverageSample item)
+            {
+                coverageWriter.add(item);
+            }
 
-        mDatabaseCoverage = new Database(ctx, "measurements", "coverage");
-        mDatabaseCoverage.createDB(addTableColumns());
+            @Override
+            public void onDropped(CoverageSample item)
+            {
+                item.recycle();
+            }
+        }) : null;
+
+
+        CoverageIngest.CategoryResolver categoryResolver = new CoverageIngest.CategoryResolver()
+        {
+            @Override
+            public String getCategory(int accessId)
+            {
+                return mTool.setCategory(accessId);
+            }
+        };
+
+        String unknownAccess = mTool.getNetType(0);
+
+        mCoverageIngest = new CoverageIngest(trackHeader, accuracyFilterInitial, locationAgeThreshold, unknownAccess, mDeviceStateCache, categoryResolver, CoverageIngest.SYSTEM_CLOCK);
+        mCoverageIngest.setDebug(DEBUG);
+        mCoverageIngest.setNetworkAgeThreshold(networkAgeThreshold);
+
+        for (SampleFilter filter : mSampleFilters)
+        {
+            mCoverageIngest.getPipeline().addFilter(filter);
+        }
+
+        for (SampleRewriter rewriter : mSampleRewriters)
+        {
+            mCoverageIngest.getPipeline().addRewriter(rewriter);
+        }
+
+        mTraceRecorder = null;
+
+        if (recordTrace)
+        {
+            try
+            {
+                mTraceRecorder = new TraceRecorder(TraceRecorder.getTraceFile(ctx.getFilesDir(), app_track_id));
+                mTraceRecorder.recordHeader(trackHeader, System.currentTimeMillis(), accuracyFilterInitial, locationAgeThreshold, networkAgeThreshold, DEBUG, unknownAccess, categoryResolver);
+                recordDeviceState(mTraceRecorder);
+            } catch (IOException | JSONException ex)
+            {
+                Log.warning(TAG, "onStartCommand: trace recording failed", ex);
+
+                if (mTraceRecorder != null)
+                    mTraceRecorder.close();
+
+                mTraceRecorder = null;
+            }
+        }
 
 
         LinkedHashMap<String, String> dataMeta = new LinkedHashMap<>();
-        dataMeta.put("ftable", "coverage");
+        dataMeta.put("ftable", mGridAggregator != null ? CoverageDatabase.TABLE_GRID : CoverageDatabase.TABLE_COVERAGE);
         dataMeta.put("fkey", app_track_id);
         dataMeta.put("timestamp", app_track_id);
         dataMeta.put("sent", "false");
@@ -253,9 +640,9 @@ public class Coverage extends Service
 
         try
         {
-            mDatabaseMeta = new Database(ctx, "measurements", "meta");
-            mDatabaseMeta.createDB(dataMeta);
-            mDatabaseMeta.insert(dataMeta);
+            Database databaseMeta = new Database(ctx, "measurements", "meta");
+            databaseMeta.createDB(dataMeta);
+            databaseMeta.insert(dataMeta);
         } catch (SQLiteException ex)
         {
             Log.warning(TAG, "onStartCommand: SQLiteException", ex);
@@ -288,6 +675,9 @@ public class Coverage extends Service
             startForeground(Integer.parseInt(notificationChannelId), setNotification());
         }
 
+        mNotificationUpdater = new NotificationUpdater(ctx, notificationChannelId, Integer.parseInt(notificationChannelId), appIcon, resultPendingIntent, notificationInterval);
+        mNotificationUpdater.setCounter(counter);
+
         Log.debug(TAG, "Coverage Started: Min_Time: " + minTime + ", Min_Accuracy: " + accuracyFilterInitial + ", Min_Distance: " + distanceFilterInitial);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
@@ -304,22 +694,9 @@ public class Coverage extends Service
                 {
                     try
                     {
+                        record(TraceRecorder.TYPE_NETWORK, message);
 
-                        appAccessId = message.getInt("app_access_id");
-
-
-                        appVoiceId = message.optInt("app_voice_id", -1);
-
-
-                        message.put("app_access_category", mTool.setCategory(message.getInt("app_access_id")));
-
-                        appCallState = message.getInt("app_call_state") == 0 ? 0 : 1;
-
-
-                        message.put("app_call_state", appCallState);
-
-
-                        dataNetwork = message;
+                        mCoverageIngest.onNetwork(message);
                     } catch (Exception ex)
                     {
                         Log.warning(TAG, "receiveData: ListenerTelephony", message, ex);
@@ -342,23 +719,9 @@ public class Coverage extends Service
                 {
                     try
                     {
+                        record(TraceRecorder.TYPE_NETWORK, message);
 
-                        appAccessId = message.getInt("app_access_id");
-
-
-                        appVoiceId = message.optInt("app_voice_id", -1);
-
-
-                        message.put("app_access_category", mTool.setCategory(message.getInt("app_access_id")));
-
-
-                        appCallState = message.getInt("app_call_state") == 0 ? 0 : 1;
-
-
-                        message.put("app_call_state", appCallState);
-
-
-                        dataNetwork = message;
+                        mCoverageIngest.onNetwork(message);
                     } catch (Exception ex)
                     {
                         Log.warning(TAG, "receiveData: ListenerNetwork", message, ex);
@@ -381,9 +744,9 @@ public class Coverage extends Service
             {
                 try
                 {
+                    record(TraceRecorder.TYPE_WIRELESS, message);
 
-
-                    dataWireless = message;
+                    mCoverageIngest.onWireless(message);
                 } catch (Exception ex)
                 {
                     Log.warning(TAG, "receiveData: ListenerWireless", message, ex);
@@ -403,144 +766,100 @@ public class Coverage extends Service
             @Override
             public void receiveData(JSONObject message)
             {
+                long received = System.nanoTime();
+                CoverageSample sample = null;
+
                 try
                 {
-                    appVelocity = message.getDouble("app_velocity");
-                    appAccuracy = message.getDouble("app_accuracy");
-                    appLocationAgeMs = message.getLong("app_location_age_ns") / 1e6;
-
-                    newLocation.setLatitude(message.getDouble("app_latitude"));
-                    newLocation.setLongitude(message.getDouble("app_longitude"));
-
-
-                    changeLocationFilter();
-
-
-                    message.put("timestamp", app_track_id);
+                    record(TraceRecorder.TYPE_GEO, message);
 
+                    mFixesDelivered.increment();
 
-                    message.put("client_os", "Android");
-                    message.put("client_os_version", Build.VERSION.RELEASE);
+                    sample = mCoverageIngest.onGeo(message);
 
-                    message.put("app_manufacturer", Build.MANUFACTURER);
-                    message.put("app_manufacturer_id", android_id);
-                    message.put("app_manufacturer_version", Build.MODEL);
+                    mIngestLatency.recordSince(received);
 
-                    message.put("app_version", appVersion);
-                    message.put("app_library_version", BuildConfig.VERSION_NAME);
+                    mHealthMonitor.onLocation(mCoverageIngest.getAccuracy(), mCoverageIngest.getLocationAgeMs());
 
-                    message.put("app_geo_timestamp", System.currentTimeMillis());
-                    message.put("app_geo_timezone", tz.getRawOffset() / 1000);
-
-
-                    message.put("track_id", app_track_id);
-
-
-                    message = mTool.mergeJSON(message, dataNetwork);
-                    message = mTool.mergeJSON(message, dataWireless);
-
-
-                    message.put("sent", false);
-
-
-                    message.put("app_distance", lastLocation.getLatitude() != 0.0 ? lastLocation.distanceTo(newLocation) : 0.0);
-
-
-                    if (!DEBUG)
+                    if (sample == null)
                     {
+                        SamplePipeline.Stage rejection = mCoverageIngest.getLastRejection();
+                        if (rejection != null)
+                            mMetrics.rejected(rejection.getName()).increment();
 
-                        if (mTool.isWifi(ctx))
-                            return;
-
-
-                        if (mTool.isAirplane(ctx))
-                            return;
-
-
-                        if (mTool.isSimReady(ctx) != 5)
-                            return;
-
-
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mTool.getActiveSimCount(ctx) != 1)
-                        {
-                            return;
-                        }
-
-
-                        if (message.getDouble("app_distance") < distanceActual && lastLocation.getLatitude() != 0.0)
-                            return;
-
-
-                        if (appAccuracy > accuracyFilterInitial)
-                            return;
-
-
-                        if (message.getInt("app_access_id") == 18)
-                            return;
-
-
-                        if (appLocationAgeMs > locationAgeThreshold)
-                            return;
-
-
-                        if (message.getString("app_mode").equals("WIFI"))
-                            message.put("app_mode", "WWAN");
-
-
-                        if (appCallState == 0 && appAccessId == 0 && (appVoiceId == 16 || message.has("app_operator_net_mnc")) && !message.optBoolean("app_emergency_only"))
-                        {
-                            message.put("app_access_id", 4);
-                            message.put("app_access", "2G");
-                        }
-
-
-                        if (appCallState == 1 && appAccessId == 0)
-                        {
-
-
-                            message.put("app_access_id", 4);
-                            message.put("app_access", "2G");
-                        }
-
-
-                        if (message.optBoolean("app_emergency_only"))
-                        {
-                            message.put("app_access_id", 0);
-                            message.put("app_access", mTool.getNetType(0));
-                        }
+                        return;
                     }
 
-
-                    accessCategory = mTool.setCategory(message.getInt("app_access_id"));
-                    message.put("app_access_category", accessCategory);
+                    mFixesAccepted.increment();
+                    sample.receivedNanos = received;
 
 
-                    counter.putIfAbsent(accessCategory, new AtomicLong(0));
-                    counter.get(accessCategory).incrementAndGet();
+                    AccessCategory category = AccessCategory.fromLabel(sample.accessCategory);
 
-                    counter.putIfAbsent("all", new AtomicLong(0));
-                    counter.get("all").incrementAndGet();
+                    counter.add(category, sample.geoTimestamp, sample.distance);
+                    mTrackStatistics.add(category, sample);
 
-                    updateNotification(counter);
+                    if (buildTiles)
+                        mTilePyramid.add(sample.latitude, sample.longitude, category);
 
+                    mNotificationUpdater.update(category);
 
-                    mDatabaseCoverage.createDB(message);
-                    mDatabaseCoverage.insert(message);
 
+                    long publishStart = System.nanoTime();
+                    SampleSnapshot snapshot = mSampleStream.hasSubscribers() ? new SampleSnapshot(sample) : null;
+                    long publishNanos = System.nanoTime() - publishStart;
 
-                    lastLocation.set(newLocation);
+                    GridAggregator gridAggregator = mGridAggregator;
+                    TrackSimplifier<CoverageSample> trackSimplifier = mTrackSimplifier;
+                    if (gridAggregator != null)
+                        gridAggregator.add(sample);
+                    else if (trackSimplifier != null)
+                        trackSimplifier.add(sample, sample.latitude, sample.longitude, sample.accessCategory, sample.getString("app_cellid"), sample.getString("app_celllac"), TrackSimplifier.parseRssi(sample.getString("app_rssi")));
+                    else
+                        mCoverageWriter.add(sample);
+                    sample = null;
 
-
-                    sendMessageToHandler(mHandler, message);
+                    if (snapshot != null)
+                    {
+                        publishStart = System.nanoTime();
+                        mSampleStream.publish(snapshot);
+                        mPublishLatency.record((publishNanos + System.nanoTime() - publishStart) / 1000);
+                    }
                 } catch (Exception ex)
                 {
+                    if (sample != null)
+                        sample.recycle();
+
                     Log.warning(TAG, "receiveData: ListenerGeoLocation", message, ex);
                 }
             }
         }, true);
 
         listenerGeoLocation.setGeoService();
-        listenerGeoLocation.startUpdates(minTime, distanceFilterInitial, LocationRequest.PRIORITY_HIGH_ACCURACY);
+
+        if (adaptiveLocation)
+        {
+            mLocationScheduler = new LocationScheduler(new LocationScheduler.Requester()
+            {
+                @Override
+                public void requestUpdates(int intervalMs, int smallestDisplacement, int priority)
+                {
+                    Log.debug(TAG, "requestUpdates: interval[" + intervalMs + "] - displacement[" + smallestDisplacement + "]");
+
+                    listenerGeoLocation.stopUpdates();
+                    listenerGeoLocation.startUpdates(intervalMs, smallestDisplacement, priority);
+                }
+            }, minTime, distanceFilterInitial, LocationRequest.PRIORITY_HIGH_ACCURACY);
+
+            mCoverageIngest.setLocationScheduler(mLocationScheduler, ELAPSED_CLOCK);
+            mLocationScheduler.start();
+        } else
+        {
+            mLocationScheduler = null;
+            listenerGeoLocation.startUpdates(minTime, distanceFilterInitial, LocationRequest.PRIORITY_HIGH_ACCURACY);
+        }
+
+        session.setRunning();
 
         return Service.START_REDELIVER_INTENT;
     }
@@ -554,17 +873,45 @@ public class Coverage extends Service
     @Override
     public void onDestroy()
     {
+        onStopCommand();
+
+        mSampleStream.close();
+        mInfoStream.close();
+
         super.onDestroy();
     }
 
     public void onStopCommand()
     {
+        onStopCommand(null);
+    }
+
+    /**
+     * Stops the listeners right away and releases the session in the background: the writer drains its queue, the statistics are stored
+     * and the upload is scheduled off the calling thread
+     *
+     * @param onStopped runs on the main thread once the session is IDLE and a new session can be started, right away if no session is
+     *                  active; may be null
+     */
+    public synchronized void onStopCommand(Runnable onStopped)
+    {
+        final CoverageSession session = mSession;
+
+        if (onStopped != null)
+            mStopReplies.add(onStopped);
+
+        if (session == null || !session.beginStop())
+        {
+            if (session == null || session.getState() == CoverageSession.State.IDLE)
+                postStopReplies();
+
+            return;
+        }
+
         Log.debug(TAG, "------------------------------------------------------------------");
         Log.debug(TAG, "Coverage Stopped!");
         Log.debug(TAG, "------------------------------------------------------------------");
 
-        isRunning = false;
-
         if (listenerTelephony != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
             listenerTelephony.stopUpdates();
 
@@ -577,162 +924,166 @@ public class Coverage extends Service
         if (listenerGeoLocation != null)
             listenerGeoLocation.stopUpdates();
 
-        if (pThread != null)
-            pThread.interrupt();
+        if (mLocationScheduler != null)
+            Log.debug(TAG, "LocationScheduler Stopped: requests[" + mLocationScheduler.getRequests() + "]");
 
-        unsetNotification();
+        mLocationScheduler = null;
 
-        stopForeground(true);
+        if (mHealthMonitor != null)
+            mHealthMonitor.stop();
 
-        onDestroy();
-    }
+        if (mDeviceStateCache != null)
+            mDeviceStateCache.stop();
 
-    private void sendMessageToHandler(Handler handler, JSONObject message)
-    {
-        if (handler != null)
+        if (mNotificationUpdater != null)
+            mNotificationUpdater.stop();
+
+        // starts are ignored until the session is IDLE, so the teardown sees the fields of this session
+        session.finishStopAsync(new Runnable()
         {
-            Message msg = Message.obtain(handler);
-            msg.obj = message;
-            handler.sendMessage(msg);
-        }
+            @Override
+            public void run()
+            {
+                releaseSession();
+            }
+        }, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mMainHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        onSessionIdle(session);
+                    }
+                });
+            }
+        });
     }
 
-    private void changeLocationFilter()
+    /**
+     * Flushes and closes the session resources, runs on the stop thread of the session
+     */
+    private void releaseSession()
     {
-        if (!useWithDistanceFilter)
-            return;
-
-        if (listenerGeoLocation == null)
-            return;
+        if (buildTiles && mTilePyramid != null)
+            mTilePyramid.flush();
 
-        if (appAccessId == -1)
-            return;
-
-        if (appVelocity == -1)
-            return;
-
-        double distance = 0;
-
-
-        if (appVelocity <= velocityFilterWalkingThreshold)
+        if (mTrackSimplifier != null)
         {
-            distance = distanceFilterWalking;
-            Log.debug(TAG, "changeLocationFilter: distanceFilterWalking - vA[" + appVelocity + "] - aA[" + appAccessId + "] - distance[" + distance + "]");
+            mTrackSimplifier.finish();
+            Log.debug(TAG, "TrackSimplifier Stopped: input[" + mTrackSimplifier.getInput() + "] - kept[" + mTrackSimplifier.getKept() + "] - max error[" + mTrackSimplifier.getMaxError() + "]");
         }
 
-
-        if (appVelocity > velocityFilterWalkingThreshold && appVelocity <= velocityFilterBikingThreshold)
+        if (mGridAggregator != null)
         {
-            distance = distanceFilterBiking;
-            Log.debug(TAG, "changeLocationFilter: distanceFilterBiking - vA[" + appVelocity + "] - aA[" + appAccessId + "] - distance[" + distance + "]");
+            mGridAggregator.flush();
+            Log.debug(TAG, "GridAggregator Stopped: samples[" + mGridAggregator.getSamples() + "] - cells[" + mGridAggregator.getCellsFlushed() + "]");
         }
 
+        if (mCoverageWriter != null)
+            mCoverageWriter.stop();
 
-        if (appVelocity > velocityFilterBikingThreshold)
-        {
-            distance = distanceFilterDriving;
-            Log.debug(TAG, "changeLocationFilter: distanceFilterDriving - vA[" + appVelocity + "] - aA[" + appAccessId + "] - distance[" + distance + "]");
-        }
+        // the writer thread closes the journal once it has committed or given up on its last rows
+        mCoverageJournal = null;
 
+        persistStatistics();
 
-        if (distanceActual != distance)
+        if (uploadUrl != null && !CoverageUploadJob.schedule(ctx, uploadUrl, uploadChunkSize, uploadParallelism))
+            Log.warning(TAG, "releaseSession: upload job not scheduled");
+
+        if (mRetentionManager != null)
+            mRetentionManager.onSessionStopped();
+
+        if (mTraceRecorder != null)
         {
-            distanceActual = distance;
-            Log.debug(TAG, "listenerGeoLocation: distance[" + distance + "]");
+            mTraceRecorder.close();
+            Log.debug(TAG, "Trace recorded: events[" + mTraceRecorder.getEvents() + "] - file[" + mTraceRecorder.getFile() + "]");
         }
     }
 
-
-    class WorkerThread extends Thread
+    /**
+     * Leaves the foreground and stops the service unless a new session was started in the meantime
+     */
+    private synchronized void onSessionIdle(CoverageSession session)
     {
-        public void run()
+        if (mSession == session)
         {
-            while (isRunning)
-            {
-                iThreadCounter++;
-
-                try
-                {
-                    Thread.sleep(1000);
-
-                    JSONObject message = new JSONObject();
-
+            unsetNotification();
 
-                    message.put("app_accuracy", appAccuracy);
-
-
-                    if (iThreadCounter == 20)
-                    {
-                        message.put("warning", "info");
-                        message.put("counter", iThreadCounter);
-                        message.put("show", false);
-
-                        sendMessageToHandler(mHandlerInfo, message);
-
-                        continue;
-                    }
+            stopForeground(true);
 
+            stopSelf();
+        }
 
-                    if (mTool.isWifi(ctx))
-                    {
-                        message.put("warning", "wifi");
-                        message.put("priority", 10);
-                        message.put("description: ", "mTool.isWifi(ctx) = " + mTool.isWifi(ctx));
-
-                        sendMessageToHandler(mHandlerInfo, message);
-                    } else if (mTool.isAirplane(ctx))
-                    {
-                        message.put("warning", "airplane");
-                        message.put("priority", 30);
-                        message.put("description: ", "mTool.isAirplane(ctx) = " + mTool.isAirplane(ctx));
+        postStopReplies();
+    }
 
-                        sendMessageToHandler(mHandlerInfo, message);
-                    } else if (appAccuracy > accuracyFilterInitial)
-                    {
-                        message.put("warning", "gps");
-                        message.put("priority", 1);
-                        message.put("accuracyFilterInitial", accuracyFilterInitial);
+    private synchronized void postStopReplies()
+    {
+        for (Runnable reply : mStopReplies)
+        {
+            mMainHandler.post(reply);
+        }
 
-                        sendMessageToHandler(mHandlerInfo, message);
-                    } else if (appLocationAgeMs > locationAgeThreshold)
-                    {
-                        message.put("warning", "age");
-                        message.put("priority", 30);
-                        message.put("description", "Current GPS age is over " + locationAgeThreshold + "ms: " + appLocationAgeMs);
-                        sendMessageToHandler(mHandlerInfo, message);
+        mStopReplies.clear();
+    }
 
-                    } else if (mTool.isSimReady(ctx) != 5 || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mTool.getActiveSimCount(ctx) < 1))
-                    {
-                        message.put("warning", "sim<1");
-                        message.put("priority", 30);
+    private static void dispatchMessage(Handler handler, JSONObject message)
+    {
+        Message msg = Message.obtain(handler);
+        msg.obj = message;
+        handler.dispatchMessage(msg);
+    }
 
+    /**
+     * Stores the track statistics as JSON in the statistics column of the meta row
+     */
+    private void persistStatistics()
+    {
+        if (mTrackStatistics == null)
+            return;
 
-                        sendMessageToHandler(mHandlerInfo, message);
-                    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mTool.getActiveSimCount(ctx) > 1)
-                    {
-                        message.put("warning", "sim>1");
-                        message.put("priority", 30);
-                        message.put("description: ", "mTool.getActiveSimCount(ctx) = " + mTool.getActiveSimCount(ctx));
+        SQLiteDatabase database = null;
 
-                        sendMessageToHandler(mHandlerInfo, message);
-                    }
+        try
+        {
+            TrackStatistics.Snapshot snapshot = mTrackStatistics.snapshot();
 
+            database = CoverageDatabase.open(ctx);
 
-                    if (!message.has("priority"))
-                    {
-                        message.put("warning", "no");
-                        message.put("priority", 0);
+            CoverageSchema schema = new CoverageSchema(database, CoverageDatabase.TABLE_META);
+            schema.load(Collections.singletonList(TrackStatistics.META_COLUMN));
+            schema.close();
 
-                        sendMessageToHandler(mHandlerInfo, message);
-                    }
+            TrackStatistics.persist(database, snapshot);
+        } catch (JSONException | SQLiteException ex)
+        {
+            Log.warning(TAG, "persistStatistics", ex);
+        } finally
+        {
+            if (database != null)
+                database.close();
+        }
+    }
 
+    private void record(char type, JSONObject message)
+    {
+        TraceRecorder traceRecorder = mTraceRecorder;
+        if (traceRecorder != null)
+            traceRecorder.record(type, message.toString());
+    }
 
-                } catch (Exception ex)
-                {
-                    if (!(ex instanceof InterruptedException))
-                        Log.warning(TAG, "run", ex);
-                }
-            }
+    private void recordDeviceState(TraceRecorder traceRecorder)
+    {
+        try
+        {
+            traceRecorder.recordDeviceState(mDeviceStateCache.get());
+        } catch (JSONException ex)
+        {
+            Log.warning(TAG, "recordDeviceState", ex);
         }
     }
 
@@ -764,6 +1115,7 @@ public class Coverage extends Service
         columns.put("app_accuracy", "");
         columns.put("app_velocity", "");
         columns.put("app_distance", "");
+        columns.put("app_network_age", "");
         columns.put("app_altitude_max", "");
         columns.put("app_velocity_max", "");
         columns.put("app_velocity_avg", "");
@@ -836,34 +1188,6 @@ public class Coverage extends Service
         return mBuilder.build();
     }
 
-    private void updateNotification(ConcurrentMap<String, AtomicLong> counter)
-    {
-        this.ctx = getApplicationContext();
-
-        String sMessageLine1 = "<b>Gesamt:</b> " + counter.get("all") + " / <b>Kein Netz:</b> " + counter.get("unknown");
-        String sMessageLine2 = "<b>2G:</b> " + counter.get("2G") + " / <b>3G:</b> " + counter.get("3G") + " / <b>4G:</b> " + counter.get("4G") + " / <b>5G:</b> " + counter.get("5G");
-
-        NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
-        inboxStyle.addLine(HtmlCompat.fromHtml(sMessageLine1, HtmlCompat.FROM_HTML_MODE_LEGACY));
-        inboxStyle.addLine(HtmlCompat.fromHtml(sMessageLine2, HtmlCompat.FROM_HTML_MODE_LEGACY));
-
-
-        mBuilder = new NotificationCompat.Builder(ctx, notificationChannelId)
-                .setPriority(NotificationCompat.PRIORITY_MIN)
-                .setCategory(NotificationCompat.CATEGORY_SERVICE)
-                .setOnlyAlertOnce(true)
-                .setSmallIcon(appIcon)
-                .setContentIntent(resultPendingIntent)
-                .setColor(0x3B78A4)
-                .setContentTitle("Netzverfügbarkeit")
-                .setStyle(inboxStyle);
-
-        mNotificationManager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
-
-        assert mNotificationManager != null;
-        mNotificationManager.notify(Integer.parseInt(notificationChannelId), mBuilder.build());
-    }
-
     private void unsetNotification()
     {
         this.ctx = getApplicationContext();
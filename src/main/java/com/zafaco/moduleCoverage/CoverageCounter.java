@@ -0,0 +1,164 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per access category sample counts, time-in-state and distance-in-state
+ * <p>
+ * Written by the ingest thread only, readers take consistent snapshots without locking.
+ */
+public final class CoverageCounter
+{
+    private static final int CATEGORIES = AccessCategory.values().length;
+
+    private static final long MAX_GAP_MS = 60000;
+
+    private final AtomicLongArray samples = new AtomicLongArray(CATEGORIES);
+    private final AtomicLongArray timeMs = new AtomicLongArray(CATEGORIES);
+    private final AtomicLongArray distanceMm = new AtomicLongArray(CATEGORIES);
+
+    private final AtomicInteger sequence = new AtomicInteger(0);
+
+    private AccessCategory lastCategory = null;
+    private long lastTimestamp = -1;
+
+
+    CoverageCounter()
+    {
+    }
+
+    /**
+     * Counts a sample, the time and distance since the previous sample are attributed to the category of the previous sample
+     */
+    void add(AccessCategory category, long timestamp, double distance)
+    {
+        sequence.incrementAndGet();
+
+        samples.incrementAndGet(category.ordinal());
+
+        if (lastCategory != null)
+        {
+            long gap = timestamp - lastTimestamp;
+
+            if (gap >= 0 && gap <= MAX_GAP_MS)
+            {
+                timeMs.addAndGet(lastCategory.ordinal(), gap);
+                distanceMm.addAndGet(lastCategory.ordinal(), Math.round(distance * 1000));
+            }
+        }
+
+        lastCategory = category;
+        lastTimestamp = timestamp;
+
+        sequence.incrementAndGet();
+    }
+
+    public Snapshot snapshot()
+    {
+        long[] s = new long[CATEGORIES];
+        long[] t = new long[CATEGORIES];
+        long[] d = new long[CATEGORIES];
+
+        while (true)
+        {
+            int before = sequence.get();
+
+            if ((before & 1) == 0)
+            {
+                for (int i = 0; i < CATEGORIES; i++)
+                {
+                    s[i] = samples.get(i);
+                    t[i] = timeMs.get(i);
+                    d[i] = distanceMm.get(i);
+                }
+
+                if (sequence.get() == before)
+                    return new Snapshot(s, t, d);
+            }
+
+            Thread.yield();
+        }
+    }
+
+    public static final class Snapshot
+    {
+        private final long[] samples;
+        private final long[] timeMs;
+        private final long[] distanceMm;
+
+        private final long total;
+
+
+        private Snapshot(long[] samples, long[] timeMs, long[] distanceMm)
+        {
+            this.samples = samples;
+            this.timeMs = timeMs;
+            this.distanceMm = distanceMm;
+
+            long sum = 0;
+            for (long value : samples)
+            {
+                sum += value;
+            }
+            this.total = sum;
+        }
+
+        public long getSamples()
+        {
+            return total;
+        }
+
+        public long getSamples(AccessCategory category)
+        {
+            return samples[category.ordinal()];
+        }
+
+        public long getTimeMs(AccessCategory category)
+        {
+            return timeMs[category.ordinal()];
+        }
+
+        public double getDistance(AccessCategory category)
+        {
+            return distanceMm[category.ordinal()] / 1000.0;
+        }
+
+        public JSONObject toJSON() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("all", total);
+
+            for (AccessCategory category : AccessCategory.values())
+            {
+                JSONObject entry = new JSONObject();
+                entry.put("samples", getSamples(category));
+                entry.put("time_ms", getTimeMs(category));
+                entry.put("distance", getDistance(category));
+
+                json.put(category.getLabel(), entry);
+            }
+
+            return json;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+final class CoverageDatabase
+{
+    static final String DATABASE = "measurements";
+    static final String TABLE_COVERAGE = "coverage";
+    static final String TABLE_GRID = "coverage_grid";
+    static final String TABLE_META = "meta";
+
+    private CoverageDatabase()
+    {
+    }
+
+    /**
+     * Opens a dedicated connection to the measurements database, used where batching or raw SQL is required
+     * <p>
+     * A newly created file is switched to incremental auto vacuum right away, this only works before the first page is written
+     * and spares the {@link RetentionManager} the full VACUUM of the conversion. All connections use write-ahead logging, so
+     * readers and index builds do not block the writer.
+     */
+    static SQLiteDatabase open(Context ctx)
+    {
+        // without localized collators the framework does not create android_metadata, so a new file is still empty for the pragma
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(ctx.getDatabasePath(DATABASE).getPath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+
+        if (pragmaLong(database, "page_count") == 0)
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+
+        database.enableWriteAheadLogging();
+
+        return database;
+    }
+
+    static long pragmaLong(SQLiteDatabase database, String pragma)
+    {
+        Cursor cursor = database.rawQuery("PRAGMA " + pragma, null);
+        try
+        {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally
+        {
+            cursor.close();
+        }
+    }
+}
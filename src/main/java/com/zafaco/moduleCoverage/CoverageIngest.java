@@ -0,0 +1,283 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Ingest logic of the coverage service: turns the raw listener outputs into admitted samples
+ * <p>
+ * All platform dependencies are passed in, so the same logic runs in the service and in the trace replayer on the plain JVM.
+ */
+class CoverageIngest
+{
+    interface Clock
+    {
+        long currentTimeMillis();
+    }
+
+    interface CategoryResolver
+    {
+        String getCategory(int accessId);
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final LocationScheduler.Requester NO_REQUESTS = new LocationScheduler.Requester()
+    {
+        @Override
+        public void requestUpdates(int intervalMs, int smallestDisplacement, int priority)
+        {
+        }
+    };
+
+    private final TrackHeader header;
+
+    private final DeviceState.Source mDeviceStateSource;
+    private final CategoryResolver mCategoryResolver;
+    private final Clock mClock;
+
+    private final SampleStages.DistanceFilter mDistanceFilter = new SampleStages.DistanceFilter();
+    private final SampleStages.NetworkAgeFilter mNetworkAgeFilter = new SampleStages.NetworkAgeFilter();
+    private final SamplePipeline mSamplePipeline;
+
+    private volatile boolean debug = false;
+
+    private volatile LocationScheduler mLocationScheduler;
+    private volatile Clock mMotionClock;
+
+    private final NetworkState.History mNetworkStates = new NetworkState.History(NetworkState.History.DEFAULT_CAPACITY);
+    private final NetworkState.History mWirelessStates = new NetworkState.History(NetworkState.History.DEFAULT_CAPACITY);
+
+    private volatile int appAccessId = -1;
+
+    private volatile double appVelocity = -1.0;
+    private volatile double appAccuracy = -1.0;
+    private volatile double appLocationAgeMs = -1;
+
+    private SamplePipeline.Stage lastRejection = null;
+
+    private double lastLatitude = 0.0;
+    private double lastLongitude = 0.0;
+
+    private double distanceActual = -1.0;
+    private boolean useWithDistanceFilter = true;
+
+
+    CoverageIngest(TrackHeader header, int accuracyThreshold, int locationAgeThreshold, String unknownAccess, DeviceState.Source deviceStateSource, CategoryResolver categoryResolver, Clock clock)
+    {
+        this.header = header;
+        this.mDeviceStateSource = deviceStateSource;
+        this.mCategoryResolver = categoryResolver;
+        this.mClock = clock;
+
+        mLocationScheduler = new LocationScheduler(NO_REQUESTS, 0, 0, 0);
+        mMotionClock = clock;
+
+        mDistanceFilter.setMinDistance(distanceActual);
+        mSamplePipeline = SampleStages.createDefault(mDistanceFilter, mNetworkAgeFilter, accuracyThreshold, locationAgeThreshold, unknownAccess);
+    }
+
+    void setDebug(boolean debug)
+    {
+        this.debug = debug;
+    }
+
+    /**
+     * Maximum distance in ms between a fix and the network state it is merged with, 0 disables the check
+     */
+    void setNetworkAgeThreshold(long networkAgeThresholdMs)
+    {
+        mNetworkAgeFilter.setThreshold(networkAgeThresholdMs);
+    }
+
+    /**
+     * Motion classification shared with the adaptive location request, so the distance filter and the request switch classes
+     * together. The ingest reports the velocity of every fix to it, the caller must not.
+     * <p>
+     * Without it the ingest classifies with a private scheduler of the same hysteresis on its own clock.
+     *
+     * @param motionClock monotonic time in ms passed to {@link LocationScheduler#onVelocity}
+     */
+    void setLocationScheduler(LocationScheduler locationScheduler, Clock motionClock)
+    {
+        this.mLocationScheduler = locationScheduler;
+        this.mMotionClock = motionClock;
+    }
+
+    void setUseWithDistanceFilter(boolean useWithDistanceFilter)
+    {
+        this.useWithDistanceFilter = useWithDistanceFilter;
+    }
+
+    /**
+     * Input of ListenerNetwork / ListenerTelephony
+     */
+    void onNetwork(JSONObject message) throws JSONException
+    {
+        int accessId = message.getInt("app_access_id");
+
+        NetworkState state = NetworkState.of(message, accessId, mClock.currentTimeMillis(), "app_access_category", mCategoryResolver.getCategory(accessId));
+        state.data.put("app_call_state", message.getInt("app_call_state") == 0 ? 0 : 1);
+
+        mNetworkStates.publish(state);
+
+        appAccessId = accessId;
+    }
+
+    /**
+     * Input of ListenerWireless
+     */
+    void onWireless(JSONObject message) throws JSONException
+    {
+        mWirelessStates.publish(NetworkState.of(message, -1, mClock.currentTimeMillis(), null, null));
+    }
+
+    /**
+     * Input of ListenerGeoLocation
+     *
+     * @return the admitted sample, owned by the caller, or null if the fix was rejected
+     */
+    CoverageSample onGeo(JSONObject message) throws JSONException
+    {
+        lastRejection = null;
+
+        long now = mClock.currentTimeMillis();
+        long fixTimestamp = now - message.optLong("app_location_age_ns", 0) / 1000000;
+
+        NetworkState network = mNetworkStates.select(fixTimestamp);
+        NetworkState wireless = mWirelessStates.select(fixTimestamp);
+
+        if (network == null)
+            network = NetworkState.EMPTY;
+
+        CoverageSample sample = CoverageSample.obtain();
+
+        try
+        {
+            sample.fill(header, message, network.data, wireless != null ? wireless.data : null);
+            sample.networkAgeMs = network.timestamp >= 0 ? Math.abs(fixTimestamp - network.timestamp) : -1;
+        } catch (JSONException | RuntimeException ex)
+        {
+            sample.recycle();
+            throw ex;
+        }
+
+        appVelocity = sample.velocity;
+        appAccuracy = sample.accuracy;
+        appLocationAgeMs = sample.locationAgeNs / 1e6;
+
+
+        mLocationScheduler.onVelocity(appVelocity, mMotionClock.currentTimeMillis());
+
+        changeLocationFilter();
+
+
+        sample.geoTimestamp = now;
+
+
+        sample.hasPrevious = lastLatitude != 0.0;
+        sample.distance = sample.hasPrevious ? GeoMath.distance(lastLatitude, lastLongitude, sample.latitude, sample.longitude) : 0.0;
+
+
+        if (!debug)
+        {
+            DeviceState deviceState = mDeviceStateSource.get();
+            sample.setDeviceState(deviceState.wifi, deviceState.airplane, deviceState.simState, deviceState.activeSimCount);
+
+            lastRejection = mSamplePipeline.process(sample);
+
+            if (lastRejection != null)
+            {
+                sample.recycle();
+                return null;
+            }
+        }
+
+
+        sample.accessCategory = mCategoryResolver.getCategory(sample.accessId);
+
+
+        lastLatitude = sample.latitude;
+        lastLongitude = sample.longitude;
+
+        return sample;
+    }
+
+    /**
+     * Filter stage that rejected the last fix, null if it was admitted or failed to parse
+     */
+    SamplePipeline.Stage getLastRejection()
+    {
+        return lastRejection;
+    }
+
+    SamplePipeline getPipeline()
+    {
+        return mSamplePipeline;
+    }
+
+    double getVelocity()
+    {
+        return appVelocity;
+    }
+
+    double getAccuracy()
+    {
+        return appAccuracy;
+    }
+
+    double getLocationAgeMs()
+    {
+        return appLocationAgeMs;
+    }
+
+    double getDistanceActual()
+    {
+        return distanceActual;
+    }
+
+    private void changeLocationFilter()
+    {
+        if (!useWithDistanceFilter)
+            return;
+
+        if (appAccessId == -1)
+            return;
+
+        MotionClass motionClass = mLocationScheduler.getMotionClass();
+        if (motionClass == null)
+            return;
+
+        double distance = motionClass.minDistance;
+
+
+        if (distanceActual != distance)
+        {
+            distanceActual = distance;
+            mDistanceFilter.setMinDistance(distanceActual);
+        }
+    }
+}
@@ -0,0 +1,621 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the rows handed to the {@link CoverageWriter}, so rows that were accepted but not yet committed survive
+ * the death of the process
+ * <p>
+ * Every record is {@code <int length><int crc32><payload>}, the payload holds the journal sequence, the table and all columns of
+ * the row. The writer commits rows strictly in sequence order and stores the sequence of the last committed row in the same
+ * transaction, so every row above that checkpoint is uncommitted; recovery only returns those rows and is idempotent. A torn
+ * record at the end of the file is cut off when the journal is opened.
+ */
+class CoverageJournal
+{
+    static final String TABLE_CHECKPOINT = "journal_checkpoint";
+
+    static final String JOURNAL_DIRECTORY = "coverage_journal";
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private static final String TAG = "CoverageJournal";
+
+    private final String name;
+    private final File file;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+
+    private ByteBuffer mRecord = ByteBuffer.allocate(4096);
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private final Set<String> columns = new HashSet<>();
+
+    private long lastAppended;
+    private long lastCommitted;
+    private long lastPosition;
+
+    private List<CoverageRow> mPending = new ArrayList<>();
+
+    private long appended = 0;
+    private long truncations = 0;
+    private long recoveryNanos = 0;
+
+
+    private CoverageJournal(String name, File file)
+    {
+        this.name = name;
+        this.file = file;
+    }
+
+    static File getJournalFile(File directory, String name)
+    {
+        return new File(new File(directory, JOURNAL_DIRECTORY), name + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Opens the journal, reads the checkpoint of the database and keeps all rows above it for {@link #takePending()}
+     */
+    static CoverageJournal open(Context ctx, String name) throws IOException
+    {
+        long checkpoint = 0;
+
+        SQLiteDatabase database = null;
+        try
+        {
+            database = CoverageDatabase.open(ctx);
+            checkpoint = readCheckpoint(database, name);
+        } catch (SQLiteException ex)
+        {
+            Log.warning(TAG, "open: checkpoint not readable", ex);
+        } finally
+        {
+            if (database != null)
+                database.close();
+        }
+
+        return open(getJournalFile(ctx.getFilesDir(), name), name, checkpoint);
+    }
+
+    static CoverageJournal open(File file, String name, long checkpoint) throws IOException
+    {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        CoverageJournal journal = new CoverageJournal(name, file);
+        journal.mFile = new RandomAccessFile(file, "rw");
+        journal.mChannel = journal.mFile.getChannel();
+
+        try
+        {
+            journal.recover(checkpoint);
+        } catch (IOException | RuntimeException ex)
+        {
+            journal.close();
+            throw ex;
+        }
+
+        return journal;
+    }
+
+    /**
+     * Creates the checkpoint table, must be called on the connection that commits the rows
+     */
+    static void createCheckpointTable(SQLiteDatabase database)
+    {
+        database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_CHECKPOINT + " (name TEXT PRIMARY KEY, sequence INTEGER NOT NULL)");
+    }
+
+    /**
+     * Stores the checkpoint, must run inside the transaction that committed the rows up to the sequence
+     */
+    static void writeCheckpoint(SQLiteDatabase database, String name, long sequence)
+    {
+        database.execSQL("INSERT OR REPLACE INTO " + TABLE_CHECKPOINT + " (name, sequence) VALUES (?, ?)", new Object[]{name, sequence});
+    }
+
+    static long readCheckpoint(SQLiteDatabase database, String name)
+    {
+        createCheckpointTable(database);
+
+        Cursor cursor = database.rawQuery("SELECT sequence FROM " + TABLE_CHECKPOINT + " WHERE name = ?", new String[]{name});
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Appends the row and assigns its sequence, the row is recoverable once this returns
+     * <p>
+     * The record is encoded into a buffer owned by the journal, appending does not allocate once the buffer has grown to the
+     * largest row.
+     */
+    synchronized long append(CoverageRow row) throws IOException
+    {
+        if (mChannel == null)
+            throw new IOException("Journal closed");
+
+        long sequence = lastAppended + 1;
+
+        mRecord.clear();
+        mRecord.position(HEADER_SIZE);
+
+        ensureCapacity(8);
+        mRecord.putLong(sequence);
+        putString(row.getTable());
+
+        columns.clear();
+        row.collectColumns(columns);
+
+        ensureCapacity(4);
+        mRecord.putInt(columns.size());
+        for (String column : columns)
+        {
+            putString(column);
+            putString(row.getString(column));
+        }
+
+        int length = mRecord.position() - HEADER_SIZE;
+        if (length > MAX_RECORD_SIZE)
+            throw new IOException("Record too large: " + length);
+
+        mCrc.reset();
+        mCrc.update(mRecord.array(), mRecord.arrayOffset() + HEADER_SIZE, length);
+
+        mRecord.putInt(0, length);
+        mRecord.putInt(4, (int) mCrc.getValue());
+        mRecord.flip();
+
+        long position = mChannel.position();
+        while (mRecord.hasRemaining())
+        {
+            mChannel.write(mRecord);
+        }
+
+        lastAppended = sequence;
+        lastPosition = position;
+        row.setSequence(sequence);
+        appended++;
+
+        return sequence;
+    }
+
+    /**
+     * File offset of the record written by the last {@link #append(CoverageRow)}
+     */
+    synchronized long getLastPosition()
+    {
+        return lastPosition;
+    }
+
+    /**
+     * File offset the next record is appended at
+     */
+    synchronized long getPosition() throws IOException
+    {
+        if (mChannel == null)
+            throw new IOException("Journal closed");
+
+        return mChannel.position();
+    }
+
+    /**
+     * Reads back up to {@code max} records between the two offsets, used by the writer for rows that were journaled while its
+     * queue was full
+     *
+     * @return offset of the first record not read
+     */
+    synchronized long read(long from, long to, int max, List<CoverageRow> rows) throws IOException
+    {
+        if (mChannel == null)
+            throw new IOException("Journal closed");
+
+        long position = from;
+        int count = 0;
+
+        while (position < to && count < max)
+        {
+            mHeader.clear();
+            readFully(mHeader, position);
+            mHeader.flip();
+
+            int length = mHeader.getInt();
+            int crc = mHeader.getInt();
+
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > to)
+                throw new IOException("Invalid record at " + position);
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER_SIZE);
+
+            mCrc.reset();
+            mCrc.update(payload.array(), 0, length);
+
+            if ((int) mCrc.getValue() != crc)
+                throw new IOException("Checksum mismatch at " + position);
+
+            payload.flip();
+
+            JournalRow row = JournalRow.decode(payload);
+            if (row == null)
+                throw new IOException("Malformed record at " + position);
+
+            rows.add(row);
+            count++;
+
+            position += HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    /**
+     * Called by the writer after the checkpoint was committed, empties the file once every appended row is committed
+     */
+    synchronized void onCommitted(long sequence) throws IOException
+    {
+        if (sequence > lastCommitted)
+            lastCommitted = sequence;
+
+        if (mChannel == null)
+            return;
+
+        if (lastCommitted >= lastAppended)
+        {
+            if (mChannel.size() > 0)
+            {
+                mChannel.truncate(0);
+                mChannel.position(0);
+                truncations++;
+            }
+        } else
+        {
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * Rows of a previous process that were journaled but not committed, in journal order; returns them only once
+     */
+    synchronized List<CoverageRow> takePending()
+    {
+        List<CoverageRow> pending = mPending;
+        mPending = new ArrayList<>();
+
+        return pending;
+    }
+
+    synchronized long getAppended()
+    {
+        return appended;
+    }
+
+    synchronized long getTruncations()
+    {
+        return truncations;
+    }
+
+    synchronized long getRecoveryNanos()
+    {
+        return recoveryNanos;
+    }
+
+    synchronized void close()
+    {
+        try
+        {
+            if (mChannel != null)
+                mChannel.force(false);
+        } catch (IOException ex)
+        {
+            Log.warning(TAG, "close", ex);
+        }
+
+        try
+        {
+            if (mFile != null)
+                mFile.close();
+        } catch (IOException ex)
+        {
+            Log.warning(TAG, "close", ex);
+        }
+
+        mChannel = null;
+        mFile = null;
+    }
+
+    private void recover(long checkpoint) throws IOException
+    {
+        long start = System.nanoTime();
+
+        lastAppended = checkpoint;
+        lastCommitted = checkpoint;
+
+        long size = mChannel.size();
+        long valid = 0;
+
+        if (size > 0)
+        {
+            MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            while (buffer.remaining() >= HEADER_SIZE)
+            {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+
+                if (length <= 0 || length > MAX_RECORD_SIZE || length > buffer.remaining())
+                    break;
+
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+
+                mCrc.reset();
+                mCrc.update(payload, 0, length);
+
+                if ((int) mCrc.getValue() != crc)
+                    break;
+
+                JournalRow row = JournalRow.decode(ByteBuffer.wrap(payload));
+                if (row == null)
+                    break;
+
+                valid = buffer.position();
+
+                if (row.sequence > lastAppended)
+                    lastAppended = row.sequence;
+
+                if (row.sequence > checkpoint)
+                    mPending.add(row);
+            }
+        }
+
+        if (valid < size)
+        {
+            Log.warning(TAG, "recover: dropping " + (size - valid) + " bytes of a torn record");
+            mChannel.truncate(valid);
+        }
+
+        mChannel.position(valid);
+
+        recoveryNanos = System.nanoTime() - start;
+
+        if (!mPending.isEmpty())
+            Log.debug(TAG, "Journal recovered: rows[" + mPending.size() + "] - bytes[" + valid + "] - ms[" + recoveryNanos / 1000000 + "]");
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = mChannel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Journal ends at " + position);
+
+            position += read;
+        }
+    }
+
+    private void ensureCapacity(int bytes)
+    {
+        if (mRecord.remaining() >= bytes)
+            return;
+
+        ByteBuffer record = ByteBuffer.allocate(Math.max(mRecord.capacity() * 2, mRecord.position() + bytes));
+        mRecord.flip();
+        record.put(mRecord);
+
+        mRecord = record;
+    }
+
+    /**
+     * Writes the length and the UTF-8 bytes of the value, -1 for null; encodes in place to avoid a byte array per value
+     */
+    private void putString(String value)
+    {
+        if (value == null)
+        {
+            ensureCapacity(4);
+            mRecord.putInt(-1);
+            return;
+        }
+
+        int length = value.length();
+        ensureCapacity(4 + 3 * length);
+
+        int start = mRecord.position();
+        mRecord.position(start + 4);
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x80)
+            {
+                mRecord.put((byte) c);
+            } else if (c < 0x800)
+            {
+                mRecord.put((byte) (0xc0 | (c >> 6)));
+                mRecord.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+                mRecord.put((byte) (0xf0 | (codePoint >> 18)));
+                mRecord.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                mRecord.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                mRecord.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c))
+            {
+                mRecord.put((byte) '?');
+            } else
+            {
+                mRecord.put((byte) (0xe0 | (c >> 12)));
+                mRecord.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                mRecord.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+
+        mRecord.putInt(start, mRecord.position() - start - 4);
+    }
+
+    /**
+     * Row read back from the journal
+     */
+    static final class JournalRow implements CoverageRow
+    {
+        private final String table;
+        private final Map<String, String> values;
+        private long sequence;
+
+
+        private JournalRow(long sequence, String table, Map<String, String> values)
+        {
+            this.sequence = sequence;
+            this.table = table;
+            this.values = values;
+        }
+
+        /**
+         * @return the row, or null if the payload is malformed
+         */
+        static JournalRow decode(ByteBuffer payload)
+        {
+            try
+            {
+                long sequence = payload.getLong();
+                String table = readString(payload);
+
+                int count = payload.getInt();
+                if (table == null || count < 0)
+                    return null;
+
+                Map<String, String> values = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++)
+                {
+                    String column = readString(payload);
+                    if (column == null)
+                        return null;
+
+                    values.put(column, readString(payload));
+                }
+
+                return new JournalRow(sequence, table, values);
+            } catch (RuntimeException ex)
+            {
+                return null;
+            }
+        }
+
+        private static String readString(ByteBuffer payload)
+        {
+            int length = payload.getInt();
+
+            if (length < 0)
+                return null;
+
+            byte[] bytes = new byte[length];
+            payload.get(bytes);
+
+            return new String(bytes, CHARSET);
+        }
+
+        @Override
+        public String getTable()
+        {
+            return table;
+        }
+
+        @Override
+        public long getReceivedNanos()
+        {
+            return 0;
+        }
+
+        @Override
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        @Override
+        public void setSequence(long sequence)
+        {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void collectColumns(Collection<String> columns)
+        {
+            columns.addAll(values.keySet());
+        }
+
+        @Override
+        public String getString(String column)
+        {
+            return values.get(column);
+        }
+
+        @Override
+        public void recycle()
+        {
+        }
+    }
+}
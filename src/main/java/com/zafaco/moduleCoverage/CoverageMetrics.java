@@ -0,0 +1,350 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of counters, gauges and latency histograms of the coverage hot path
+ * <p>
+ * Recording into a registered metric only touches atomics and never allocates, so the registry stays enabled in production.
+ */
+public final class CoverageMetrics
+{
+    public static final String FIXES_DELIVERED = "fixes_delivered";
+    public static final String FIXES_ACCEPTED = "fixes_accepted";
+    public static final String ROWS_PERSISTED = "rows_persisted";
+    public static final String ROWS_DROPPED = "rows_dropped";
+    public static final String ROWS_RECOVERED = "rows_recovered";
+
+    public static final String INGEST_LATENCY = "ingest_us";
+    public static final String PUBLISH_LATENCY = "publish_us";
+    public static final String END_TO_END_LATENCY = "end_to_end_us";
+    public static final String DB_COMMIT_LATENCY = "db_commit_us";
+    public static final String DB_BATCH_SIZE = "db_batch_size";
+    public static final String DB_QUEUE_DEPTH = "db_queue_depth";
+
+    public static final String DB_QUEUE_SIZE = "db_queue_size";
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    public interface Gauge
+    {
+        long get();
+    }
+
+    public static final class Counter
+    {
+        private final AtomicLong value = new AtomicLong(0);
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta)
+        {
+            value.addAndGet(delta);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+
+        private void reset()
+        {
+            value.set(0);
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values: every power of two is split into 8 linear buckets, so the relative error of a
+     * percentile is at most 12.5 % over the whole long range
+     */
+    public static final class Histogram
+    {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = SUB_BUCKETS << 1;
+        private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sum = new AtomicLong(0);
+        private final AtomicLong max = new AtomicLong(0);
+
+        public void record(long value)
+        {
+            if (value < 0)
+                value = 0;
+
+            mBuckets.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value))
+            {
+                current = max.get();
+            }
+        }
+
+        /**
+         * Records the microseconds elapsed since a {@link System#nanoTime()} start
+         */
+        public void recordSince(long startNanos)
+        {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        public double getMean()
+        {
+            long n = count.get();
+
+            return n > 0 ? (double) sum.get() / n : 0.0;
+        }
+
+        /**
+         * Upper bound of the bucket containing the percentile, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile)
+        {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+
+            if (total == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += counts[i];
+
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max.get());
+            }
+
+            return max.get();
+        }
+
+        JSONObject toJSON() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("mean", getMean());
+            json.put("max", getMax());
+
+            for (double percentile : PERCENTILES)
+            {
+                json.put("p" + (percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile)), getPercentile(percentile));
+            }
+
+            return json;
+        }
+
+        private void reset()
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                mBuckets.set(i, 0);
+            }
+
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        static int index(long value)
+        {
+            if (value < LINEAR_LIMIT)
+                return (int) value;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+            return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBound(int index)
+        {
+            if (index < LINEAR_LIMIT)
+                return index;
+
+            int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+            long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+            int shift = exponent - SUB_BUCKET_BITS;
+
+            return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> mRejections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> mGauges = new ConcurrentHashMap<>();
+
+    private volatile long resetAt = System.currentTimeMillis();
+
+
+    /**
+     * Registered counter of the name, created on first use
+     */
+    public Counter counter(String name)
+    {
+        return getOrCreate(mCounters, name);
+    }
+
+    /**
+     * Counter of fixes rejected for the reason, usually the name of the rejecting pipeline stage
+     */
+    public Counter rejected(String reason)
+    {
+        return getOrCreate(mRejections, reason);
+    }
+
+    public Histogram histogram(String name)
+    {
+        Histogram histogram = mHistograms.get(name);
+
+        if (histogram == null)
+        {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+
+            if (histogram == null)
+                histogram = created;
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Registers a value that is read on every dump, replaces a gauge of the same name
+     */
+    public void gauge(String name, Gauge gauge)
+    {
+        if (gauge == null)
+            mGauges.remove(name);
+        else
+            mGauges.put(name, gauge);
+    }
+
+    /**
+     * Clears all values, registered metrics stay valid
+     */
+    public void reset()
+    {
+        for (Counter counter : mCounters.values())
+        {
+            counter.reset();
+        }
+
+        for (Counter counter : mRejections.values())
+        {
+            counter.reset();
+        }
+
+        for (Histogram histogram : mHistograms.values())
+        {
+            histogram.reset();
+        }
+
+        resetAt = System.currentTimeMillis();
+    }
+
+    public JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+
+        long elapsedMs = Math.max(1, System.currentTimeMillis() - resetAt);
+        json.put("elapsed_ms", elapsedMs);
+
+        JSONObject counters = new JSONObject();
+        JSONObject rates = new JSONObject();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet())
+        {
+            counters.put(entry.getKey(), entry.getValue().get());
+            rates.put(entry.getKey(), entry.getValue().get() * 60000.0 / elapsedMs);
+        }
+        json.put("counters", counters);
+        json.put("per_minute", rates);
+
+        JSONObject rejections = new JSONObject();
+        for (Map.Entry<String, Counter> entry : mRejections.entrySet())
+        {
+            rejections.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("rejected", rejections);
+
+        JSONObject gauges = new JSONObject();
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet())
+        {
+            gauges.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("gauges", gauges);
+
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet())
+        {
+            histograms.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put("histograms", histograms);
+
+        return json;
+    }
+
+    private static Counter getOrCreate(ConcurrentMap<String, Counter> counters, String name)
+    {
+        Counter counter = counters.get(name);
+
+        if (counter == null)
+        {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+
+            if (counter == null)
+                counter = created;
+        }
+
+        return counter;
+    }
+}
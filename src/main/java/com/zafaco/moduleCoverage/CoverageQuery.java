@@ -0,0 +1,769 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.zafaco.moduleCommon.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexed queries on the stored coverage data
+ * <p>
+ * The indexes on track_id, sent and app_geo_timestamp and the spatial index are built on a background thread with a connection of its
+ * own and kept up to date by SQLite afterwards, the spatial index uses an R*Tree if available and a trigger maintained grid table
+ * otherwise. Existing rows are added to the spatial index in chunks of short transactions, a build interrupted by {@link #close} or by
+ * process death continues with the next instance.
+ * <p>
+ * Threading: the constructor only opens a connection and never waits for the build. The query methods only read, never change the
+ * schema and may be called from any thread, one call at a time per instance; they do disk I/O and belong off the main thread. Until
+ * {@link #isIndexReady} bounding box queries scan the table, columns an older table lacks read as null.
+ */
+public class CoverageQuery implements Closeable
+{
+    private static final String[] INDEX_COLUMNS = {"track_id", "sent", "app_geo_timestamp"};
+
+    private static final String TABLE_RTREE = "coverage_rtree";
+    private static final String TABLE_SPATIAL_GRID = "coverage_spatial_grid";
+    private static final String TABLE_BACKFILL = "coverage_index_backfill";
+
+    private static final int BACKFILL_CHUNK_ROWS = 5000;
+
+    private static final double GRID_SCALE = 100.0;
+    private static final long GRID_ROW = 36001;
+    private static final int MAX_GRID_CELLS = 4096;
+
+    private static final String POINT = "CAST(%1$s.app_latitude AS REAL), CAST(%1$s.app_latitude AS REAL), CAST(%1$s.app_longitude AS REAL), CAST(%1$s.app_longitude AS REAL)";
+    private static final String CELL = "(CAST((CAST(%1$s.app_latitude AS REAL) + 90) * " + GRID_SCALE + " AS INTEGER) * " + GRID_ROW + " + CAST((CAST(%1$s.app_longitude AS REAL) + 180) * " + GRID_SCALE + " AS INTEGER))";
+
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    // one build at a time per process, instances opened while a build runs queue behind it and find the indexes in place
+    private static final ThreadPoolExecutor sIndexExecutor = new ThreadPoolExecutor(1, 1, THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "CoverageQuery-index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        }
+    });
+
+    static
+    {
+        sIndexExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final SQLiteDatabase mSQLiteDatabase;
+
+    private final CountDownLatch mIndexBuilt = new CountDownLatch(1);
+    private volatile String spatialIndex = null;
+    private volatile boolean closed = false;
+
+    private static final String TAG = "CoverageQuery";
+
+
+    public static final class TrackSummary
+    {
+        private final String trackId;
+        private final long[] samples = new long[AccessCategory.values().length];
+
+        private long total = 0;
+        private long firstTimestamp = Long.MAX_VALUE;
+        private long lastTimestamp = Long.MIN_VALUE;
+        private double distance = 0.0;
+
+
+        TrackSummary(String trackId)
+        {
+            this.trackId = trackId;
+        }
+
+        public String getTrackId()
+        {
+            return trackId;
+        }
+
+        public long getSamples()
+        {
+            return total;
+        }
+
+        public long getSamples(AccessCategory category)
+        {
+            return samples[category.ordinal()];
+        }
+
+        /**
+         * Share of the samples in the category, 0 to 1
+         */
+        public double getShare(AccessCategory category)
+        {
+            return total > 0 ? (double) samples[category.ordinal()] / total : 0.0;
+        }
+
+        public long getFirstTimestamp()
+        {
+            return total > 0 ? firstTimestamp : 0;
+        }
+
+        public long getLastTimestamp()
+        {
+            return total > 0 ? lastTimestamp : 0;
+        }
+
+        public double getDistance()
+        {
+            return distance;
+        }
+
+        public JSONObject toJSON() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("track_id", trackId);
+            json.put("samples", total);
+            json.put("first_timestamp", getFirstTimestamp());
+            json.put("last_timestamp", getLastTimestamp());
+            json.put("distance", distance);
+
+            JSONObject share = new JSONObject();
+            for (AccessCategory category : AccessCategory.values())
+            {
+                share.put(category.getLabel(), getShare(category));
+            }
+            json.put("share", share);
+
+            return json;
+        }
+    }
+
+    public static final class Sample
+    {
+        public final String trackId;
+        public final long timestamp;
+        public final double latitude;
+        public final double longitude;
+        public final AccessCategory category;
+        public final String access;
+        public final String rssi;
+
+
+        Sample(String trackId, long timestamp, double latitude, double longitude, AccessCategory category, String access, String rssi)
+        {
+            this.trackId = trackId;
+            this.timestamp = timestamp;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.category = category;
+            this.access = access;
+            this.rssi = rssi;
+        }
+    }
+
+
+    /**
+     * Track reduced by {@link TrackSimplifier} for display
+     */
+    public static final class SimplifiedTrack
+    {
+        private final List<Sample> samples;
+        private final long input;
+        private final double maxError;
+
+
+        SimplifiedTrack(List<Sample> samples, long input, double maxError)
+        {
+            this.samples = samples;
+            this.input = input;
+            this.maxError = maxError;
+        }
+
+        public List<Sample> getSamples()
+        {
+            return samples;
+        }
+
+        public long getInput()
+        {
+            return input;
+        }
+
+        /**
+         * Kept samples per stored sample
+         */
+        public double getRatio()
+        {
+            return input > 0 ? (double) samples.size() / input : 1.0;
+        }
+
+        /**
+         * Largest distance in meters of a dropped sample to the simplified polyline
+         */
+        public double getMaxError()
+        {
+            return maxError;
+        }
+    }
+
+
+    /**
+     * Opens a dedicated connection and schedules the build of missing indexes on the background thread
+     */
+    public CoverageQuery(Context ctx)
+    {
+        mSQLiteDatabase = CoverageDatabase.open(ctx);
+
+        final Context context = ctx.getApplicationContext() != null ? ctx.getApplicationContext() : ctx;
+
+        try
+        {
+            sIndexExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    buildIndexes(context);
+                }
+            });
+        } catch (RejectedExecutionException ex)
+        {
+            Log.warning(TAG, "CoverageQuery: index build not scheduled", ex);
+            mIndexBuilt.countDown();
+        }
+    }
+
+    /**
+     * True once the spatial index covers all rows, bounding box queries scan the table before
+     */
+    public boolean isIndexReady()
+    {
+        return spatialIndex != null;
+    }
+
+    /**
+     * Waits until the index build of this instance ended, true if the spatial index is ready
+     */
+    boolean awaitIndex(long timeoutMs) throws InterruptedException
+    {
+        mIndexBuilt.await(timeoutMs, TimeUnit.MILLISECONDS);
+
+        return isIndexReady();
+    }
+
+    /**
+     * Per track summaries, ordered by track id
+     */
+    public List<TrackSummary> getTracks()
+    {
+        return querySummaries(null, null);
+    }
+
+    public TrackSummary getTrackSummary(String trackId)
+    {
+        List<TrackSummary> summaries = querySummaries("track_id = ?", new String[]{trackId});
+
+        return summaries.isEmpty() ? new TrackSummary(trackId) : summaries.get(0);
+    }
+
+    /**
+     * Samples with fix time in [from, to], app_geo_timestamp is compared as text, which matches the numeric order for 13 digit millisecond timestamps
+     */
+    public List<Sample> queryTimeRange(long from, long to, int limit)
+    {
+        Set<String> columns = getColumns(mSQLiteDatabase);
+
+        if (!columns.contains("app_geo_timestamp"))
+            return new ArrayList<>();
+
+        return querySamples("SELECT " + getSampleColumns(columns, null) + " FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE)
+                + " WHERE app_geo_timestamp BETWEEN ? AND ? ORDER BY app_geo_timestamp LIMIT " + Math.max(0, limit), new String[]{Long.toString(from), Long.toString(to)});
+    }
+
+    /**
+     * Samples inside the bounding box, resolved through the spatial index
+     */
+    public List<Sample> queryBoundingBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int limit)
+    {
+        Set<String> available = getColumns(mSQLiteDatabase);
+
+        if (!available.contains("app_latitude") || !available.contains("app_longitude"))
+            return new ArrayList<>();
+
+        String columns = getSampleColumns(available, "c");
+        String coverage = CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE);
+        String index = spatialIndex;
+
+        String filter = " WHERE CAST(c.app_latitude AS REAL) BETWEEN ? AND ? AND CAST(c.app_longitude AS REAL) BETWEEN ? AND ?";
+        String[] bounds = {Double.toString(minLatitude), Double.toString(maxLatitude), Double.toString(minLongitude), Double.toString(maxLongitude)};
+
+        String sql;
+
+        if (TABLE_RTREE.equals(index))
+        {
+            sql = "SELECT " + columns + " FROM " + TABLE_RTREE + " r JOIN " + coverage + " c ON c.rowid = r.id"
+                    + " AND r.max_lat >= " + minLatitude + " AND r.min_lat <= " + maxLatitude + " AND r.max_lon >= " + minLongitude + " AND r.min_lon <= " + maxLongitude + filter;
+        } else if (TABLE_SPATIAL_GRID.equals(index))
+        {
+            String cells = getGridCells(minLatitude, minLongitude, maxLatitude, maxLongitude);
+
+            if (cells != null)
+                sql = "SELECT " + columns + " FROM " + TABLE_SPATIAL_GRID + " g JOIN " + coverage + " c ON c.rowid = g.id AND g.cell IN (" + cells + ")" + filter;
+            else
+                sql = "SELECT " + columns + " FROM " + coverage + " c" + filter;
+        } else
+        {
+            sql = "SELECT " + columns + " FROM " + coverage + " c" + filter;
+        }
+
+        return querySamples(sql + " LIMIT " + Math.max(0, limit), bounds);
+    }
+
+    /**
+     * Samples of the track in recording order, simplified to the tolerance in meters; changes of access category, cell or RSSI bucket are always kept
+     */
+    public SimplifiedTrack querySimplifiedTrack(String trackId, double tolerance)
+    {
+        final List<Sample> samples = new ArrayList<>();
+
+        Set<String> columns = getColumns(mSQLiteDatabase);
+
+        if (!columns.contains("track_id"))
+            return new SimplifiedTrack(samples, 0, 0.0);
+
+        TrackSimplifier<Sample> trackSimplifier = new TrackSimplifier<>(tolerance, TrackSimplifier.DEFAULT_RSSI_BUCKET, new TrackSimplifier.Listener<Sample>()
+        {
+            @Override
+            public void onKept(Sample item)
+            {
+                samples.add(item);
+            }
+
+            @Override
+            public void onDropped(Sample item)
+            {
+            }
+        });
+
+        Cursor cursor = mSQLiteDatabase.rawQuery("SELECT " + getSampleColumns(columns, null) + ", " + column(columns, null, "app_cellid") + ", " + column(columns, null, "app_celllac")
+                + " FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " WHERE track_id = ? ORDER BY rowid", new String[]{trackId});
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                String category = cursor.getString(4);
+                Sample sample = new Sample(cursor.getString(0), cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3), AccessCategory.fromLabel(category), cursor.getString(5), cursor.getString(6));
+
+                trackSimplifier.add(sample, sample.latitude, sample.longitude, category, cursor.getString(7), cursor.getString(8), TrackSimplifier.parseRssi(sample.rssi));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        trackSimplifier.finish();
+
+        return new SimplifiedTrack(samples, trackSimplifier.getInput(), trackSimplifier.getMaxError());
+    }
+
+    /**
+     * Closes the connection, a running index build stops after its current chunk
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        mSQLiteDatabase.close();
+    }
+
+    private List<TrackSummary> querySummaries(String selection, String[] args)
+    {
+        Map<String, TrackSummary> summaries = new LinkedHashMap<>();
+
+        Set<String> columns = getColumns(mSQLiteDatabase);
+
+        if (!columns.contains("track_id"))
+            return new ArrayList<>();
+
+        String category = column(columns, null, "app_access_category");
+        String timestamp = "CAST(" + column(columns, null, "app_geo_timestamp") + " AS INTEGER)";
+
+        Cursor cursor = mSQLiteDatabase.rawQuery("SELECT track_id, " + category + ", COUNT(*), MIN(" + timestamp + "), MAX(" + timestamp + "), TOTAL(CAST(" + column(columns, null, "app_distance") + " AS REAL))"
+                + " FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE)
+                + (selection != null ? " WHERE " + selection : "")
+                + " GROUP BY track_id, " + category + " ORDER BY track_id", args);
+
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                String trackId = cursor.getString(0);
+
+                TrackSummary summary = summaries.get(trackId);
+                if (summary == null)
+                {
+                    summary = new TrackSummary(trackId);
+                    summaries.put(trackId, summary);
+                }
+
+                long count = cursor.getLong(2);
+
+                summary.samples[AccessCategory.fromLabel(cursor.getString(1)).ordinal()] += count;
+                summary.total += count;
+                summary.firstTimestamp = Math.min(summary.firstTimestamp, cursor.getLong(3));
+                summary.lastTimestamp = Math.max(summary.lastTimestamp, cursor.getLong(4));
+                summary.distance += cursor.getDouble(5);
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        return new ArrayList<>(summaries.values());
+    }
+
+    private List<Sample> querySamples(String sql, String[] args)
+    {
+        List<Sample> samples = new ArrayList<>();
+
+        Cursor cursor = mSQLiteDatabase.rawQuery(sql, args);
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                samples.add(new Sample(cursor.getString(0), cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3), AccessCategory.fromLabel(cursor.getString(4)), cursor.getString(5), cursor.getString(6)));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        return samples;
+    }
+
+    /**
+     * Creates the missing indexes and backfills the spatial index, runs on the index thread with a connection of its own
+     */
+    private void buildIndexes(Context ctx)
+    {
+        SQLiteDatabase database = null;
+
+        try
+        {
+            if (closed)
+                return;
+
+            database = CoverageDatabase.open(ctx);
+
+            // a table without the columns is left alone, the next instance indexes it once the writer created them
+            Set<String> columns = getColumns(database);
+
+            for (String column : INDEX_COLUMNS)
+            {
+                if (columns.contains(column))
+                    createIndex(database, CoverageDatabase.TABLE_COVERAGE, column);
+            }
+
+            if (!columns.contains("app_latitude") || !columns.contains("app_longitude"))
+                return;
+
+            String index = TABLE_SPATIAL_GRID;
+
+            if (!hasTable(database, TABLE_SPATIAL_GRID))
+            {
+                if (createRTree(database))
+                    index = TABLE_RTREE;
+                else
+                    createSpatialGrid(database);
+            }
+
+            if (backfill(database, index))
+                spatialIndex = index;
+        } catch (SQLiteException ex)
+        {
+            Log.warning(TAG, "buildIndexes", ex);
+        } finally
+        {
+            if (database != null)
+                database.close();
+
+            mIndexBuilt.countDown();
+        }
+    }
+
+    private static void createIndex(SQLiteDatabase database, String table, String column)
+    {
+        database.execSQL("CREATE INDEX IF NOT EXISTS " + CoverageSchema.quote(table + "_" + column) + " ON " + CoverageSchema.quote(table) + " (" + CoverageSchema.quote(column) + ")");
+    }
+
+    /**
+     * Creates the R*Tree with its triggers and schedules the backfill of the existing rows, false if SQLite was built without the R*Tree module
+     */
+    private static boolean createRTree(SQLiteDatabase database)
+    {
+        if (hasTable(database, TABLE_RTREE))
+            return true;
+
+        String coverage = CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE);
+
+        database.beginTransaction();
+        try
+        {
+            database.execSQL("CREATE VIRTUAL TABLE " + TABLE_RTREE + " USING rtree(id, min_lat, max_lat, min_lon, max_lon)");
+
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_RTREE + "_insert AFTER INSERT ON " + coverage
+                    + " WHEN new.app_latitude IS NOT NULL AND new.app_longitude IS NOT NULL"
+                    + " BEGIN INSERT INTO " + TABLE_RTREE + " VALUES (new.rowid, " + String.format(POINT, "new") + "); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_RTREE + "_delete AFTER DELETE ON " + coverage
+                    + " BEGIN DELETE FROM " + TABLE_RTREE + " WHERE id = old.rowid; END");
+
+            startBackfill(database, TABLE_RTREE);
+
+            database.setTransactionSuccessful();
+        } catch (SQLiteException ex)
+        {
+            Log.warning(TAG, "createRTree: falling back to grid index", ex);
+            return false;
+        } finally
+        {
+            database.endTransaction();
+        }
+
+        return true;
+    }
+
+    /**
+     * Fallback spatial index: rowids bucketed by 0.01 degree cells
+     */
+    private static void createSpatialGrid(SQLiteDatabase database)
+    {
+        String coverage = CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE);
+
+        database.beginTransaction();
+        try
+        {
+            database.execSQL("CREATE TABLE " + TABLE_SPATIAL_GRID + " (cell INTEGER NOT NULL, id INTEGER NOT NULL)");
+            database.execSQL("CREATE INDEX " + TABLE_SPATIAL_GRID + "_cell ON " + TABLE_SPATIAL_GRID + " (cell)");
+            database.execSQL("CREATE INDEX " + TABLE_SPATIAL_GRID + "_id ON " + TABLE_SPATIAL_GRID + " (id)");
+
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_SPATIAL_GRID + "_insert AFTER INSERT ON " + coverage
+                    + " WHEN new.app_latitude IS NOT NULL AND new.app_longitude IS NOT NULL"
+                    + " BEGIN INSERT INTO " + TABLE_SPATIAL_GRID + " VALUES (" + String.format(CELL, "new") + ", new.rowid); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_SPATIAL_GRID + "_delete AFTER DELETE ON " + coverage
+                    + " BEGIN DELETE FROM " + TABLE_SPATIAL_GRID + " WHERE id = old.rowid; END");
+
+            startBackfill(database, TABLE_SPATIAL_GRID);
+
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Records the rowid range to backfill, must run in the transaction that creates the insert trigger of the index: rows above the
+     * range are indexed by the trigger
+     */
+    private static void startBackfill(SQLiteDatabase database, String index)
+    {
+        database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_BACKFILL + " (name TEXT PRIMARY KEY, next_rowid INTEGER NOT NULL, end_rowid INTEGER NOT NULL)");
+        database.execSQL("INSERT OR REPLACE INTO " + TABLE_BACKFILL + " SELECT ?, 0, IFNULL(MAX(rowid), 0) FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE), new Object[]{index});
+    }
+
+    /**
+     * Adds the existing rows to the index, every chunk of rowids is a transaction of its own that also stores the progress, so the
+     * writer waits at most for one chunk and a closed instance stops after it
+     *
+     * @return true if all rows are indexed
+     */
+    private boolean backfill(SQLiteDatabase database, String index)
+    {
+        if (!hasTable(database, TABLE_BACKFILL))
+            return true;
+
+        String coverage = CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE);
+        String select = TABLE_RTREE.equals(index)
+                ? "SELECT c.rowid, " + String.format(POINT, "c")
+                : "SELECT " + String.format(CELL, "c") + ", c.rowid";
+
+        String sql = "INSERT INTO " + index + " " + select + " FROM " + coverage + " c"
+                + " WHERE c.rowid > ? AND c.rowid <= ? AND c.app_latitude IS NOT NULL AND c.app_longitude IS NOT NULL"
+                + " AND NOT EXISTS (SELECT 1 FROM " + index + " i WHERE i.id = c.rowid)";
+
+        long start = System.currentTimeMillis();
+        int chunks = 0;
+
+        boolean complete = false;
+
+        while (!closed)
+        {
+            long next;
+            long end;
+
+            Cursor cursor = database.rawQuery("SELECT next_rowid, end_rowid FROM " + TABLE_BACKFILL + " WHERE name = ?", new String[]{index});
+            try
+            {
+                if (!cursor.moveToFirst())
+                {
+                    complete = true;
+                    break;
+                }
+
+                next = cursor.getLong(0);
+                end = cursor.getLong(1);
+            } finally
+            {
+                cursor.close();
+            }
+
+            long upper = Math.min(next + BACKFILL_CHUNK_ROWS, end);
+
+            database.beginTransactionNonExclusive();
+            try
+            {
+                if (next < end)
+                    database.execSQL(sql, new Object[]{next, upper});
+
+                if (upper >= end)
+                    database.execSQL("DELETE FROM " + TABLE_BACKFILL + " WHERE name = ?", new Object[]{index});
+                else
+                    database.execSQL("UPDATE " + TABLE_BACKFILL + " SET next_rowid = ? WHERE name = ?", new Object[]{upper, index});
+
+                database.setTransactionSuccessful();
+            } finally
+            {
+                database.endTransaction();
+            }
+
+            chunks++;
+        }
+
+        if (chunks > 0)
+            Log.debug(TAG, "Index backfilled: index[" + index + "] - chunks[" + chunks + "] - ms[" + (System.currentTimeMillis() - start) + "] - complete[" + complete + "]");
+
+        return complete;
+    }
+
+    /**
+     * Comma separated ids of the grid cells covering the box, null if the box spans too many cells for an IN list
+     */
+    private static String getGridCells(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude)
+    {
+        long minRow = (long) ((minLatitude + 90) * GRID_SCALE);
+        long maxRow = (long) ((maxLatitude + 90) * GRID_SCALE);
+        long minColumn = (long) ((minLongitude + 180) * GRID_SCALE);
+        long maxColumn = (long) ((maxLongitude + 180) * GRID_SCALE);
+
+        if (maxRow < minRow || maxColumn < minColumn || (maxRow - minRow + 1) * (maxColumn - minColumn + 1) > MAX_GRID_CELLS)
+            return null;
+
+        StringBuilder cells = new StringBuilder();
+
+        for (long row = minRow; row <= maxRow; row++)
+        {
+            for (long column = minColumn; column <= maxColumn; column++)
+            {
+                if (cells.length() > 0)
+                    cells.append(',');
+
+                cells.append(row * GRID_ROW + column);
+            }
+        }
+
+        return cells.toString();
+    }
+
+    private static boolean hasTable(SQLiteDatabase database, String table)
+    {
+        Cursor cursor = database.rawQuery("SELECT 1 FROM sqlite_master WHERE name = ?", new String[]{table});
+
+        try
+        {
+            return cursor.moveToFirst();
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Columns of the coverage table, empty if the table does not exist yet
+     */
+    private static Set<String> getColumns(SQLiteDatabase database)
+    {
+        Set<String> columns = new HashSet<>();
+
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + ")", null);
+        try
+        {
+            int nameIndex = cursor.getColumnIndex("name");
+
+            while (cursor.moveToNext())
+            {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        return columns;
+    }
+
+    /**
+     * Select list of a {@link Sample} in constructor order
+     */
+    private static String getSampleColumns(Set<String> columns, String alias)
+    {
+        return column(columns, alias, "track_id") + ", " + column(columns, alias, "app_geo_timestamp") + ", " + column(columns, alias, "app_latitude") + ", " + column(columns, alias, "app_longitude")
+                + ", " + column(columns, alias, "app_access_category") + ", " + column(columns, alias, "app_access") + ", " + column(columns, alias, "app_rssi");
+    }
+
+    /**
+     * The column, or NULL if the table lacks it
+     */
+    private static String column(Set<String> columns, String alias, String name)
+    {
+        if (!columns.contains(name))
+            return "NULL";
+
+        return alias != null ? alias + "." + CoverageSchema.quote(name) : CoverageSchema.quote(name);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import java.util.Collection;
+
+/**
+ * Row that can be persisted through a {@link CoverageSchema}
+ */
+interface CoverageRow
+{
+    String getTable();
+
+    /**
+     * {@link System#nanoTime()} at which the source fix was received, 0 for derived rows
+     */
+    long getReceivedNanos();
+
+    /**
+     * Journal sequence assigned by {@link CoverageJournal#append}, 0 if the row was not journaled
+     */
+    long getSequence();
+
+    void setSequence(long sequence);
+
+    void collectColumns(Collection<String> columns);
+
+    String getString(String column);
+
+    void recycle();
+}
@@ -0,0 +1,544 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Typed coverage sample, written directly by the geo, network and wireless inputs and pooled like {@link android.os.Message}
+ * <p>
+ * Values that are not touched by the ingest path stay in the source objects and are only resolved when the sample is persisted or converted to JSON.
+ */
+public final class CoverageSample implements CoverageRow
+{
+    private static final String[] TYPED_COLUMNS = {
+            "timestamp", "track_id",
+            "client_os", "client_os_version",
+            "app_manufacturer", "app_manufacturer_id", "app_manufacturer_version",
+            "app_version", "app_library_version",
+            "app_geo_timestamp", "app_geo_timezone",
+            "app_distance", "app_network_age",
+            "app_mode", "app_access", "app_access_id", "app_access_category",
+            "sent"
+    };
+
+    private static final int POOL_MAX = 64;
+    private static final Object sPoolSync = new Object();
+    private static CoverageSample sPool;
+    private static int sPoolSize = 0;
+
+    private CoverageSample next;
+
+
+    TrackHeader header;
+
+    private JSONObject geo;
+    private JSONObject network;
+    private JSONObject wireless;
+
+    double latitude;
+    double longitude;
+    double accuracy;
+    double velocity;
+    long locationAgeNs;
+
+    long geoTimestamp;
+    double distance;
+    boolean hasPrevious;
+
+    boolean wifi;
+    boolean airplane;
+    int simState;
+    int activeSimCount;
+
+    int accessId;
+    String access;
+    String mode;
+    String accessCategory;
+
+    int voiceId;
+    int callState;
+    boolean emergencyOnly;
+    boolean hasOperatorNetMnc;
+
+    boolean sent;
+
+    long networkAgeMs;
+    long receivedNanos;
+    long sequence;
+
+
+    private CoverageSample()
+    {
+    }
+
+    static CoverageSample obtain()
+    {
+        synchronized (sPoolSync)
+        {
+            if (sPool != null)
+            {
+                CoverageSample sample = sPool;
+                sPool = sample.next;
+                sample.next = null;
+                sPoolSize--;
+
+                return sample;
+            }
+        }
+
+        return new CoverageSample();
+    }
+
+    @Override
+    public void recycle()
+    {
+        clear();
+
+        synchronized (sPoolSync)
+        {
+            if (sPoolSize < POOL_MAX)
+            {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Shallow copy outside the pool, shares the header and the source objects, which are not modified after {@link #fill}
+     */
+    CoverageSample copy()
+    {
+        CoverageSample copy = new CoverageSample();
+
+        copy.header = header;
+        copy.geo = geo;
+        copy.network = network;
+        copy.wireless = wireless;
+
+        copy.latitude = latitude;
+        copy.longitude = longitude;
+        copy.accuracy = accuracy;
+        copy.velocity = velocity;
+        copy.locationAgeNs = locationAgeNs;
+
+        copy.geoTimestamp = geoTimestamp;
+        copy.distance = distance;
+        copy.hasPrevious = hasPrevious;
+
+        copy.wifi = wifi;
+        copy.airplane = airplane;
+        copy.simState = simState;
+        copy.activeSimCount = activeSimCount;
+
+        copy.accessId = accessId;
+        copy.access = access;
+        copy.mode = mode;
+        copy.accessCategory = accessCategory;
+
+        copy.voiceId = voiceId;
+        copy.callState = callState;
+        copy.emergencyOnly = emergencyOnly;
+        copy.hasOperatorNetMnc = hasOperatorNetMnc;
+
+        copy.sent = sent;
+
+        copy.networkAgeMs = networkAgeMs;
+        copy.receivedNanos = receivedNanos;
+        copy.sequence = sequence;
+
+        return copy;
+    }
+
+    /**
+     * Reads all fields required by the ingest path from the listener outputs, the source objects must not be modified afterwards
+     */
+    void fill(TrackHeader header, JSONObject geo, JSONObject network, JSONObject wireless) throws JSONException
+    {
+        this.header = header;
+        this.geo = geo;
+        this.network = network;
+        this.wireless = wireless;
+
+        latitude = geo.getDouble("app_latitude");
+        longitude = geo.getDouble("app_longitude");
+        accuracy = geo.getDouble("app_accuracy");
+        velocity = geo.getDouble("app_velocity");
+        locationAgeNs = geo.getLong("app_location_age_ns");
+
+        Object value = source("app_access_id");
+        if (value == null)
+            throw new JSONException("No value for app_access_id");
+
+        accessId = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+
+        value = source("app_access");
+        access = value != null ? value.toString() : null;
+
+        value = source("app_mode");
+        mode = value != null ? value.toString() : null;
+
+        voiceId = optInt("app_voice_id", -1);
+        callState = optInt("app_call_state", -1);
+
+        value = source("app_emergency_only");
+        emergencyOnly = value != null && Boolean.parseBoolean(value.toString());
+
+        hasOperatorNetMnc = source("app_operator_net_mnc") != null;
+
+        geoTimestamp = 0;
+        distance = 0.0;
+        networkAgeMs = -1;
+        hasPrevious = false;
+
+        wifi = false;
+        airplane = false;
+        simState = -1;
+        activeSimCount = -1;
+
+        accessCategory = null;
+        sent = false;
+    }
+
+    public String getTrackId()
+    {
+        return header.trackId;
+    }
+
+    public double getLatitude()
+    {
+        return latitude;
+    }
+
+    public double getLongitude()
+    {
+        return longitude;
+    }
+
+    public double getAccuracy()
+    {
+        return accuracy;
+    }
+
+    public double getVelocity()
+    {
+        return velocity;
+    }
+
+    public long getLocationAgeNs()
+    {
+        return locationAgeNs;
+    }
+
+    public long getGeoTimestamp()
+    {
+        return geoTimestamp;
+    }
+
+    /**
+     * Distance in meters to the previous admitted fix, 0 for the first fix of the track
+     */
+    public double getDistance()
+    {
+        return distance;
+    }
+
+    public long getNetworkAgeMs()
+    {
+        return networkAgeMs;
+    }
+
+    public int getAccessId()
+    {
+        return accessId;
+    }
+
+    public String getAccess()
+    {
+        return access;
+    }
+
+    public String getMode()
+    {
+        return mode;
+    }
+
+    public int getCallState()
+    {
+        return callState;
+    }
+
+    public boolean isEmergencyOnly()
+    {
+        return emergencyOnly;
+    }
+
+    public boolean isWifi()
+    {
+        return wifi;
+    }
+
+    public boolean isAirplane()
+    {
+        return airplane;
+    }
+
+    public int getSimState()
+    {
+        return simState;
+    }
+
+    public int getActiveSimCount()
+    {
+        return activeSimCount;
+    }
+
+    /**
+     * Rewrites the access technology, app_access_category is resolved from the access id after the pipeline
+     */
+    public void setAccess(int accessId, String access)
+    {
+        this.accessId = accessId;
+        this.access = access;
+    }
+
+    public void setMode(String mode)
+    {
+        this.mode = mode;
+    }
+
+    void setDeviceState(boolean wifi, boolean airplane, int simState, int activeSimCount)
+    {
+        this.wifi = wifi;
+        this.airplane = airplane;
+        this.simState = simState;
+        this.activeSimCount = activeSimCount;
+    }
+
+    @Override
+    public String getTable()
+    {
+        return CoverageDatabase.TABLE_COVERAGE;
+    }
+
+    @Override
+    public long getReceivedNanos()
+    {
+        return receivedNanos;
+    }
+
+    @Override
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    @Override
+    public void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    @Override
+    public void collectColumns(Collection<String> columns)
+    {
+        for (String column : TYPED_COLUMNS)
+        {
+            columns.add(column);
+        }
+
+        collectKeys(geo, columns);
+        collectKeys(network, columns);
+        collectKeys(wireless, columns);
+    }
+
+    @Override
+    public String getString(String column)
+    {
+        switch (column)
+        {
+            case "timestamp":
+            case "track_id":
+                return header.trackId;
+            case "client_os":
+                return header.clientOs;
+            case "client_os_version":
+                return header.clientOsVersion;
+            case "app_manufacturer":
+                return header.manufacturer;
+            case "app_manufacturer_id":
+                return header.manufacturerId;
+            case "app_manufacturer_version":
+                return header.manufacturerVersion;
+            case "app_version":
+                return header.appVersion;
+            case "app_library_version":
+                return header.libraryVersion;
+            case "app_geo_timestamp":
+                return Long.toString(geoTimestamp);
+            case "app_geo_timezone":
+                return Integer.toString(header.timezone);
+            case "app_distance":
+                return Double.toString(distance);
+            case "app_network_age":
+                return Long.toString(networkAgeMs);
+            case "app_access_id":
+                return Integer.toString(accessId);
+            case "app_access_category":
+                if (accessCategory != null)
+                    return accessCategory;
+                break;
+            case "app_access":
+                if (access != null)
+                    return access;
+                break;
+            case "app_mode":
+                if (mode != null)
+                    return mode;
+                break;
+            case "sent":
+                return Boolean.toString(sent);
+            default:
+                break;
+        }
+
+        Object value = source(column);
+
+        return value != null ? String.valueOf(value) : null;
+    }
+
+    /**
+     * Materializes the sample as a new JSON object, only used at the edges (Handler consumers, export)
+     */
+    JSONObject toJSON() throws JSONException
+    {
+        JSONObject message = new JSONObject();
+
+        copyKeys(geo, message);
+        copyKeys(network, message);
+        copyKeys(wireless, message);
+
+        message.put("timestamp", header.trackId);
+        message.put("track_id", header.trackId);
+
+        message.put("client_os", header.clientOs);
+        message.put("client_os_version", header.clientOsVersion);
+
+        message.put("app_manufacturer", header.manufacturer);
+        message.put("app_manufacturer_id", header.manufacturerId);
+        message.put("app_manufacturer_version", header.manufacturerVersion);
+
+        message.put("app_version", header.appVersion);
+        message.put("app_library_version", header.libraryVersion);
+
+        message.put("app_geo_timestamp", geoTimestamp);
+        message.put("app_geo_timezone", header.timezone);
+
+        message.put("app_distance", distance);
+        message.put("app_network_age", networkAgeMs);
+
+        message.put("app_access_id", accessId);
+
+        if (access != null)
+            message.put("app_access", access);
+
+        if (mode != null)
+            message.put("app_mode", mode);
+
+        if (accessCategory != null)
+            message.put("app_access_category", accessCategory);
+
+        message.put("sent", sent);
+
+        return message;
+    }
+
+    private Object source(String key)
+    {
+        Object value;
+
+        if (wireless != null && (value = wireless.opt(key)) != null)
+            return value;
+
+        if (network != null && (value = network.opt(key)) != null)
+            return value;
+
+        return geo != null ? geo.opt(key) : null;
+    }
+
+    private int optInt(String key, int fallback)
+    {
+        Object value = source(key);
+
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+
+        try
+        {
+            return value != null ? Integer.parseInt(value.toString()) : fallback;
+        } catch (NumberFormatException ex)
+        {
+            return fallback;
+        }
+    }
+
+    private void clear()
+    {
+        receivedNanos = 0;
+        sequence = 0;
+
+        header = null;
+        geo = null;
+        network = null;
+        wireless = null;
+
+        access = null;
+        mode = null;
+        accessCategory = null;
+    }
+
+    private static void collectKeys(JSONObject source, Collection<String> columns)
+    {
+        if (source == null)
+            return;
+
+        Iterator<String> keys = source.keys();
+        while (keys.hasNext())
+        {
+            columns.add(keys.next());
+        }
+    }
+
+    private static void copyKeys(JSONObject source, JSONObject target) throws JSONException
+    {
+        if (source == null)
+            return;
+
+        Iterator<String> keys = source.keys();
+        while (keys.hasNext())
+        {
+            String key = keys.next();
+            target.put(key, source.opt(key));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schema registry of a coverage table: the column layout is read once, extended only for unseen keys and inserted through a precompiled statement
+ */
+class CoverageSchema
+{
+    private final SQLiteDatabase mSQLiteDatabase;
+    private final String table;
+
+    private final List<String> columns = new ArrayList<>();
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+
+    private SQLiteStatement mInsertStatement = null;
+
+    private static final String TAG = "CoverageSchema";
+
+
+    CoverageSchema(SQLiteDatabase database, String table)
+    {
+        this.mSQLiteDatabase = database;
+        this.table = table;
+    }
+
+    /**
+     * Resolves the current column layout of the table and creates the table if it does not exist yet
+     */
+    void load(Iterable<String> initialColumns)
+    {
+        columns.clear();
+        columnIndex.clear();
+
+        Cursor cursor = mSQLiteDatabase.rawQuery("PRAGMA table_info(" + quote(table) + ")", null);
+        try
+        {
+            int nameIndex = cursor.getColumnIndex("name");
+
+            while (cursor.moveToNext())
+            {
+                register(cursor.getString(nameIndex));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        if (columns.isEmpty())
+        {
+            StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(quote(table)).append(" (");
+
+            boolean first = true;
+            for (String column : initialColumns)
+            {
+                if (!first)
+                    sql.append(", ");
+
+                sql.append(quote(column)).append(" TEXT");
+                register(column);
+
+                first = false;
+            }
+
+            mSQLiteDatabase.execSQL(sql.append(")").toString());
+        } else
+        {
+            ensureColumns(initialColumns);
+        }
+
+        releaseStatement();
+
+        Log.debug(TAG, "load: " + table + " - columns[" + columns.size() + "]");
+    }
+
+    boolean hasColumn(String column)
+    {
+        return columnIndex.containsKey(column);
+    }
+
+    int getColumnCount()
+    {
+        return columns.size();
+    }
+
+    /**
+     * Issues ALTER TABLE for every key that has not been seen before
+     */
+    void ensureColumns(Iterable<String> keys)
+    {
+        for (String key : keys)
+        {
+            if (columnIndex.containsKey(key))
+                continue;
+
+            mSQLiteDatabase.execSQL("ALTER TABLE " + quote(table) + " ADD COLUMN " + quote(key) + " TEXT");
+            register(key);
+            releaseStatement();
+
+            Log.debug(TAG, "ensureColumns: " + table + " - added[" + key + "]");
+        }
+    }
+
+    /**
+     * Inserts a row with the known column layout, columns of the row must have been registered before
+     */
+    long insert(CoverageRow row)
+    {
+        if (mInsertStatement == null)
+            mInsertStatement = compileInsert();
+
+        mInsertStatement.clearBindings();
+
+        for (int i = 0; i < columns.size(); i++)
+        {
+            String value = row.getString(columns.get(i));
+
+            if (value != null)
+                mInsertStatement.bindString(i + 1, value);
+        }
+
+        return mInsertStatement.executeInsert();
+    }
+
+    void close()
+    {
+        releaseStatement();
+    }
+
+    private void register(String column)
+    {
+        if (columnIndex.containsKey(column))
+            return;
+
+        columnIndex.put(column, columns.size());
+        columns.add(column);
+    }
+
+    private SQLiteStatement compileInsert()
+    {
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+
+        for (int i = 0; i < columns.size(); i++)
+        {
+            if (i > 0)
+            {
+                names.append(", ");
+                values.append(", ");
+            }
+
+            names.append(quote(columns.get(i)));
+            values.append("?");
+        }
+
+        return mSQLiteDatabase.compileStatement("INSERT INTO " + quote(table) + " (" + names + ") VALUES (" + values + ")");
+    }
+
+    private void releaseStatement()
+    {
+        if (mInsertStatement != null)
+            mInsertStatement.close();
+
+        mInsertStatement = null;
+    }
+
+    static String quote(String identifier)
+    {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One coverage session: its lifecycle state and the executor that runs all of its background work (writer loop, health evaluation)
+ * <p>
+ * The thread count of a session is fixed, a session is started at most once and stopping it shuts the executor down. The teardown of a
+ * stop runs on a thread of its own, so the caller (usually the main thread) never waits for the writer or the executor.
+ */
+public final class CoverageSession
+{
+    public enum State
+    {
+        IDLE,
+        STARTING,
+        RUNNING,
+        STOPPING
+    }
+
+    static final int THREADS = 2;
+
+    private static final long TERMINATION_TIMEOUT_MS = 2000;
+
+    private static final AtomicInteger sSessions = new AtomicInteger(0);
+
+    private final String trackId;
+    private final long startedAt;
+    private final int id;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    private volatile State state = State.STARTING;
+
+    private static final String TAG = "CoverageSession";
+
+
+    CoverageSession(String trackId)
+    {
+        this.trackId = trackId;
+        this.startedAt = SystemClock.elapsedRealtime();
+        this.id = sSessions.incrementAndGet();
+
+        mExecutor = new ScheduledThreadPoolExecutor(THREADS, new ThreadFactory()
+        {
+            private final AtomicInteger threads = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                return new Thread(runnable, TAG + "-" + id + "-" + threads.incrementAndGet());
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    public String getTrackId()
+    {
+        return trackId;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    public boolean isActive()
+    {
+        return state == State.STARTING || state == State.RUNNING;
+    }
+
+    /**
+     * Elapsed realtime of the start in ms
+     */
+    public long getStartedAt()
+    {
+        return startedAt;
+    }
+
+    public JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("track_id", trackId);
+        json.put("state", state.name().toLowerCase());
+        json.put("duration_ms", SystemClock.elapsedRealtime() - startedAt);
+        json.put("threads", mExecutor.getPoolSize());
+
+        return json;
+    }
+
+    ScheduledExecutorService getExecutor()
+    {
+        return mExecutor;
+    }
+
+    synchronized void setRunning()
+    {
+        if (state == State.STARTING)
+            state = State.RUNNING;
+    }
+
+    /**
+     * Moves the session to STOPPING, only the first call returns true
+     */
+    synchronized boolean beginStop()
+    {
+        if (!isActive())
+            return false;
+
+        state = State.STOPPING;
+
+        return true;
+    }
+
+    /**
+     * Runs the teardown on a thread of its own, then shuts the executor down; the session is IDLE when onIdle is called on that thread
+     */
+    void finishStopAsync(final Runnable teardown, final Runnable onIdle)
+    {
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    teardown.run();
+                } finally
+                {
+                    finishStop();
+                }
+
+                if (onIdle != null)
+                    onIdle.run();
+            }
+        }, TAG + "-" + id + "-stop").start();
+    }
+
+    /**
+     * Shuts the executor down after the owner released all session resources, blocks for up to the termination timeout
+     */
+    void finishStop()
+    {
+        mExecutor.shutdown();
+
+        try
+        {
+            if (!mExecutor.awaitTermination(TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                mExecutor.shutdownNow();
+        } catch (InterruptedException ex)
+        {
+            mExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        state = State.IDLE;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publish/subscribe fan-out of immutable items to any number of subscribers
+ * <p>
+ * Every subscription has its own bounded buffer and is drained on its own {@link Handler}, publishing never blocks and a slow
+ * subscriber only loses its own items according to its {@link Overflow} policy. A stream created with {@code replayLast} keeps its
+ * last item and delivers it to every new subscriber first.
+ */
+public final class CoverageStream<T>
+{
+    public interface Subscriber<T>
+    {
+        void onNext(T item);
+    }
+
+    public enum Overflow
+    {
+        /**
+         * Keeps the buffered items and discards the new one
+         */
+        DROP,
+        /**
+         * Discards the oldest buffered item to make room for the new one
+         */
+        LATEST,
+        /**
+         * Buffers at most one item, a new item replaces the pending one
+         */
+        CONFLATE
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Capacity of a buffer that never overflows, for subscribers that must see every item
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final String name;
+    private final boolean replayLast;
+    private final CopyOnWriteArrayList<Subscription<T>> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private T mLast = null;
+
+    private final AtomicLong published = new AtomicLong(0);
+
+    private static final String TAG = "CoverageStream";
+
+
+    CoverageStream(String name)
+    {
+        this(name, false);
+    }
+
+    /**
+     * @param replayLast keep the last published item and deliver it on subscribe, for streams of state rather than events
+     */
+    CoverageStream(String name, boolean replayLast)
+    {
+        this.name = name;
+        this.replayLast = replayLast;
+    }
+
+    public Subscription<T> subscribe(Subscriber<T> subscriber, Handler handler)
+    {
+        return subscribe(subscriber, handler, Overflow.DROP, DEFAULT_CAPACITY, 0);
+    }
+
+    /**
+     * @param handler       handler whose looper runs {@link Subscriber#onNext}
+     * @param capacity      maximum number of buffered items, ignored for {@link Overflow#CONFLATE}
+     * @param minIntervalMs minimum time between two deliveries, 0 delivers as fast as the looper allows
+     */
+    public Subscription<T> subscribe(Subscriber<T> subscriber, Handler handler, Overflow overflow, int capacity, long minIntervalMs)
+    {
+        if (subscriber == null || handler == null || overflow == null)
+            throw new IllegalArgumentException("subscriber, handler and overflow must not be null");
+
+        Subscription<T> subscription = new Subscription<>(this, subscriber, handler, overflow, overflow == Overflow.CONFLATE ? 1 : Math.max(1, capacity), Math.max(0, minIntervalMs));
+
+        if (!replayLast)
+        {
+            mSubscriptions.add(subscription);
+            return subscription;
+        }
+
+        synchronized (this)
+        {
+            mSubscriptions.add(subscription);
+
+            if (mLast != null)
+                subscription.offer(mLast);
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Allows the publisher to skip creating items nobody receives, streams with {@code replayLast} should always publish
+     */
+    boolean hasSubscribers()
+    {
+        return !mSubscriptions.isEmpty();
+    }
+
+    void publish(T item)
+    {
+        published.incrementAndGet();
+
+        if (!replayLast)
+        {
+            offer(item);
+            return;
+        }
+
+        synchronized (this)
+        {
+            mLast = item;
+            offer(item);
+        }
+    }
+
+    private void offer(T item)
+    {
+        for (Subscription<T> subscription : mSubscriptions)
+        {
+            subscription.offer(item);
+        }
+    }
+
+    /**
+     * Number of published items
+     */
+    public long getPublished()
+    {
+        return published.get();
+    }
+
+    public int getSubscriberCount()
+    {
+        return mSubscriptions.size();
+    }
+
+    void close()
+    {
+        for (Subscription<T> subscription : mSubscriptions)
+        {
+            subscription.cancel();
+        }
+    }
+
+    public static final class Subscription<T>
+    {
+        private final CoverageStream<T> mStream;
+        private final Subscriber<T> mSubscriber;
+        private final Handler mHandler;
+
+        private final Overflow overflow;
+        private final int capacity;
+        private final long minIntervalMs;
+
+        private final ArrayDeque<T> mBuffer = new ArrayDeque<>();
+
+        private boolean isScheduled = false;
+        private long lastDelivery = 0;
+
+        private long delivered = 0;
+        private long dropped = 0;
+
+        private volatile boolean isCancelled = false;
+
+        private final Runnable drain = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deliver();
+            }
+        };
+
+
+        private Subscription(CoverageStream<T> stream, Subscriber<T> subscriber, Handler handler, Overflow overflow, int capacity, long minIntervalMs)
+        {
+            this.mStream = stream;
+            this.mSubscriber = subscriber;
+            this.mHandler = handler;
+            this.overflow = overflow;
+            this.capacity = capacity;
+            this.minIntervalMs = minIntervalMs;
+        }
+
+        public void cancel()
+        {
+            isCancelled = true;
+            mStream.mSubscriptions.remove(this);
+            mHandler.removeCallbacks(drain);
+
+            synchronized (this)
+            {
+                mBuffer.clear();
+                isScheduled = false;
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return isCancelled;
+        }
+
+        public synchronized long getDelivered()
+        {
+            return delivered;
+        }
+
+        public synchronized long getDropped()
+        {
+            return dropped;
+        }
+
+        private synchronized void offer(T item)
+        {
+            if (isCancelled)
+                return;
+
+            if (mBuffer.size() >= capacity)
+            {
+                dropped++;
+
+                if (overflow == Overflow.DROP)
+                    return;
+
+                mBuffer.pollFirst();
+            }
+
+            mBuffer.addLast(item);
+
+            if (!isScheduled)
+                schedule();
+        }
+
+        private void schedule()
+        {
+            isScheduled = true;
+
+            long delay = delivered > 0 ? lastDelivery + minIntervalMs - SystemClock.elapsedRealtime() : 0;
+            mHandler.postDelayed(drain, Math.max(0, delay));
+        }
+
+        private void deliver()
+        {
+            while (!isCancelled)
+            {
+                T item;
+
+                synchronized (this)
+                {
+                    item = mBuffer.pollFirst();
+
+                    if (item == null)
+                    {
+                        isScheduled = false;
+                        return;
+                    }
+
+                    delivered++;
+                    lastDelivery = SystemClock.elapsedRealtime();
+
+                    if (minIntervalMs > 0)
+                    {
+                        if (mBuffer.isEmpty())
+                            isScheduled = false;
+                        else
+                            schedule();
+                    }
+                }
+
+                try
+                {
+                    mSubscriber.onNext(item);
+                } catch (RuntimeException ex)
+                {
+                    Log.warning(TAG, "deliver: " + mStream.name, ex);
+                }
+
+                if (minIntervalMs > 0)
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+
+/**
+ * Serves a {@link CoverageTilePyramid} to a GoogleMap TileOverlay
+ */
+public class CoverageTileProvider implements TileProvider
+{
+    private final CoverageTilePyramid mTilePyramid;
+
+
+    public CoverageTileProvider(CoverageTilePyramid tilePyramid)
+    {
+        this.mTilePyramid = tilePyramid;
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom)
+    {
+        byte[] png = mTilePyramid.renderPng(x, y, zoom);
+
+        return png != null ? new Tile(CoverageTilePyramid.TILE_SIZE, CoverageTilePyramid.TILE_SIZE, png) : TileProvider.NO_TILE;
+    }
+}
@@ -0,0 +1,820 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import com.zafaco.moduleCommon.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Incrementally maintained coverage heatmap in Web Mercator tiles of 256 px
+ * <p>
+ * Every sample increments one cell per zoom level, a cell covers 8 x 8 px and counts samples per {@link AccessCategory}. Tiles
+ * are kept in an LRU of bounded size, evicted tiles are spilled to disk. Rendering a tile only reads that tile, so the cost
+ * depends on the viewport and not on the number of samples. The class has no Android dependencies.
+ * <p>
+ * {@link #add} never touches the disk: a tile that is not resident is created empty and the counts of its file are merged in by
+ * the IO thread. Spilling also runs on the IO thread, a dirty tile only leaves memory once its counts are on disk.
+ */
+public final class CoverageTilePyramid
+{
+    public static final int TILE_SIZE = 256;
+
+    static final int CELL_SIZE = 8;
+    static final int CELLS = TILE_SIZE / CELL_SIZE;
+
+    static final int DEFAULT_MIN_ZOOM = 6;
+    static final int DEFAULT_MAX_ZOOM = 16;
+    static final int DEFAULT_RESIDENT_TILES = 64;
+
+    private static final int CATEGORIES = AccessCategory.values().length;
+    private static final int FILE_MAGIC = 0x43565449;
+    private static final String FILE_SUFFIX = ".tile";
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private static final long SPILL_RETRY_MS = 10000;
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private static final int[] COLORS = new int[CATEGORIES];
+
+    static
+    {
+        COLORS[AccessCategory.UNKNOWN.ordinal()] = 0x9E9E9E;
+        COLORS[AccessCategory.G2.ordinal()] = 0xE53935;
+        COLORS[AccessCategory.G3.ordinal()] = 0xFB8C00;
+        COLORS[AccessCategory.G4.ordinal()] = 0x43A047;
+        COLORS[AccessCategory.G5.ordinal()] = 0x1E88E5;
+    }
+
+    private static final String TAG = "CoverageTilePyramid";
+
+    private static final class Tile
+    {
+        final int[] counts = new int[CELLS * CELLS * CATEGORIES];
+        int samples = 0;
+        boolean dirty = false;
+
+        /**
+         * Counts of the file are not merged in yet, the tile only holds the samples added since it became resident
+         */
+        boolean loading = false;
+        boolean spilling = false;
+
+        /**
+         * Flush requested while spilling, the tile is spilled again if it changed after the snapshot
+         */
+        boolean flushPending = false;
+        long version = 0;
+    }
+
+    private final File directory;
+    private final int minZoom;
+    private final int maxZoom;
+    private final int maxResidentTiles;
+
+    private final LinkedHashMap<Long, Tile> mTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final ThreadPoolExecutor mExecutor;
+
+    private int pendingTasks = 0;
+    private int pendingSpills = 0;
+    private long spillRetryAt = 0;
+    private int generation = 0;
+
+    private long samples = 0;
+    private long spilled = 0;
+    private long spillFailures = 0;
+    private long loaded = 0;
+    private long rendered = 0;
+
+
+    /**
+     * @param directory spill directory, tiles found there are part of the pyramid
+     */
+    public CoverageTilePyramid(File directory, int minZoom, int maxZoom, int maxResidentTiles)
+    {
+        if (minZoom < 0 || maxZoom > 28 || minZoom > maxZoom)
+            throw new IllegalArgumentException("Invalid zoom range " + minZoom + " - " + maxZoom);
+
+        this.directory = directory;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.maxResidentTiles = Math.max(maxZoom - minZoom + 1, maxResidentTiles);
+
+        mExecutor = new ThreadPoolExecutor(1, 1, THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public CoverageTilePyramid(File directory)
+    {
+        this(directory, DEFAULT_MIN_ZOOM, DEFAULT_MAX_ZOOM, DEFAULT_RESIDENT_TILES);
+    }
+
+    public int getMinZoom()
+    {
+        return minZoom;
+    }
+
+    public int getMaxZoom()
+    {
+        return maxZoom;
+    }
+
+    /**
+     * Adds one accepted sample to every zoom level, never blocks on the disk
+     */
+    public synchronized void add(double latitude, double longitude, AccessCategory category)
+    {
+        if (Double.isNaN(latitude) || Double.isNaN(longitude))
+            return;
+
+        double worldX = (longitude + 180.0) / 360.0;
+        double sinLatitude = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        double worldY = 0.5 - Math.log((1.0 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * Math.PI);
+
+        int ordinal = (category != null ? category : AccessCategory.UNKNOWN).ordinal();
+
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+        {
+            long size = (long) TILE_SIZE << zoom;
+
+            long pixelX = Math.max(0, Math.min(size - 1, (long) (worldX * size)));
+            long pixelY = Math.max(0, Math.min(size - 1, (long) (worldY * size)));
+
+            long key = key(zoom, (int) (pixelX / TILE_SIZE), (int) (pixelY / TILE_SIZE));
+
+            Tile tile = mTiles.get(key);
+            if (tile == null)
+            {
+                tile = new Tile();
+                tile.loading = true;
+                mTiles.put(key, tile);
+
+                submitLoad(key);
+            }
+
+            int cell = (int) (pixelY % TILE_SIZE / CELL_SIZE) * CELLS + (int) (pixelX % TILE_SIZE / CELL_SIZE);
+            tile.counts[cell * CATEGORIES + ordinal]++;
+            tile.samples++;
+            tile.dirty = true;
+            tile.version++;
+        }
+
+        samples++;
+
+        evict();
+    }
+
+    /**
+     * Renders the tile as PNG, tiles above the maximum zoom are scaled up from their ancestor; reads the disk on the calling
+     * thread if the tile is not resident
+     *
+     * @return the PNG, or null if the tile holds no samples
+     */
+    public byte[] renderPng(int x, int y, int zoom)
+    {
+        if (zoom < minZoom || x < 0 || y < 0)
+            return null;
+
+        int shift = Math.max(0, zoom - maxZoom);
+        int sourceZoom = zoom - shift;
+
+        if (sourceZoom > 28 || (x >> shift) >= (1 << sourceZoom) || (y >> shift) >= (1 << sourceZoom))
+            return null;
+
+        Tile tile = read(sourceZoom, x >> shift, y >> shift);
+
+        if (tile == null || tile.samples == 0)
+            return null;
+
+        synchronized (this)
+        {
+            rendered++;
+        }
+
+        int[] colors = new int[CELLS * CELLS];
+        for (int cell = 0; cell < colors.length; cell++)
+        {
+            colors[cell] = getColor(tile.counts, cell);
+        }
+
+        long offsetX = (long) (x - ((x >> shift) << shift)) * TILE_SIZE;
+        long offsetY = (long) (y - ((y >> shift) << shift)) * TILE_SIZE;
+
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int py = 0; py < TILE_SIZE; py++)
+        {
+            int row = (int) (((offsetY + py) >> shift) / CELL_SIZE) * CELLS;
+
+            for (int px = 0; px < TILE_SIZE; px++)
+            {
+                pixels[py * TILE_SIZE + px] = colors[row + (int) (((offsetX + px) >> shift) / CELL_SIZE)];
+            }
+        }
+
+        return PngEncoder.encode(TILE_SIZE, TILE_SIZE, pixels);
+    }
+
+    /**
+     * Samples in the tile, 0 for tiles outside the built zoom range
+     */
+    public int getSamples(int x, int y, int zoom)
+    {
+        if (zoom < minZoom || zoom > maxZoom)
+            return 0;
+
+        Tile tile = read(zoom, x, y);
+
+        return tile != null ? tile.samples : 0;
+    }
+
+    /**
+     * Dominant category of the cell that contains the pixel of the tile, null if the cell is empty or the pixel is outside the tile
+     */
+    public AccessCategory getDominantCategory(int x, int y, int zoom, int pixelX, int pixelY)
+    {
+        if (zoom < minZoom || zoom > maxZoom)
+            return null;
+
+        if (pixelX < 0 || pixelX >= TILE_SIZE || pixelY < 0 || pixelY >= TILE_SIZE)
+            return null;
+
+        Tile tile = read(zoom, x, y);
+        if (tile == null)
+            return null;
+
+        int ordinal = getDominant(tile.counts, pixelY / CELL_SIZE * CELLS + pixelX / CELL_SIZE);
+
+        return ordinal >= 0 ? AccessCategory.fromOrdinal(ordinal) : null;
+    }
+
+    /**
+     * Writes all modified tiles to the spill directory on the IO thread
+     */
+    public synchronized void flush()
+    {
+        for (Map.Entry<Long, Tile> entry : mTiles.entrySet())
+        {
+            Tile tile = entry.getValue();
+
+            if (tile.spilling)
+                tile.flushPending = true;
+            else if (tile.dirty)
+                submitSpill(entry.getKey(), tile);
+        }
+    }
+
+    /**
+     * Removes all tiles from memory and disk, the files are deleted on the IO thread
+     */
+    public synchronized void clear()
+    {
+        mTiles.clear();
+        pendingSpills = 0;
+        generation++;
+
+        submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                File[] files = directory.listFiles();
+                if (files == null)
+                    return;
+
+                for (File file : files)
+                {
+                    if (file.getName().endsWith(FILE_SUFFIX) && !file.delete())
+                        Log.warning(TAG, "clear: cannot delete " + file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the spilled tiles of the directory that were last written before the given time, and files left by interrupted spills
+     * <p>
+     * Runs on the calling thread without an instance. A tile that is still resident in a pyramid keeps its counts in memory and is
+     * written again when it changes.
+     *
+     * @return number of deleted tiles
+     */
+    static int prune(File directory, long modifiedBefore)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return 0;
+
+        int deleted = 0;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+
+            if (!name.endsWith(FILE_SUFFIX) && !name.endsWith(FILE_SUFFIX + ".tmp"))
+                continue;
+
+            if (file.lastModified() >= modifiedBefore)
+                continue;
+
+            if (!file.delete())
+            {
+                Log.warning(TAG, "prune: cannot delete " + file);
+                continue;
+            }
+
+            if (name.endsWith(FILE_SUFFIX))
+                deleted++;
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Waits until all loads, spills and deletions submitted so far have finished
+     *
+     * @return false if the timeout elapsed first
+     */
+    synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        while (pendingTasks > 0)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0)
+                return false;
+
+            wait(remaining);
+        }
+
+        return true;
+    }
+
+    synchronized int getResidentTiles()
+    {
+        return mTiles.size();
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        json.put("samples", samples);
+        json.put("resident", mTiles.size());
+        json.put("spilled", spilled);
+        json.put("spill_failures", spillFailures);
+        json.put("loaded", loaded);
+        json.put("rendered", rendered);
+        json.put("pending", pendingTasks);
+        json.put("min_zoom", minZoom);
+        json.put("max_zoom", maxZoom);
+
+        return json;
+    }
+
+    /**
+     * Spills dirty tiles in LRU order until the resident tiles fit once the spills completed, clean tiles are dropped right away;
+     * tiles that are loading or spilling are skipped and after a failed spill nothing is evicted for a while
+     */
+    private void evict()
+    {
+        if (mTiles.size() - pendingSpills <= maxResidentTiles || System.currentTimeMillis() < spillRetryAt)
+            return;
+
+        Iterator<Map.Entry<Long, Tile>> iterator = mTiles.entrySet().iterator();
+
+        while (iterator.hasNext() && mTiles.size() - pendingSpills > maxResidentTiles)
+        {
+            Map.Entry<Long, Tile> entry = iterator.next();
+            Tile tile = entry.getValue();
+
+            if (tile.loading || tile.spilling)
+                continue;
+
+            if (!tile.dirty)
+            {
+                iterator.remove();
+                continue;
+            }
+
+            submitSpill(entry.getKey(), tile);
+        }
+    }
+
+    private void submitLoad(final long key)
+    {
+        final int taskGeneration = generation;
+
+        submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Tile stored = load(key);
+
+                synchronized (CoverageTilePyramid.this)
+                {
+                    Tile tile = mTiles.get(key);
+
+                    if (tile == null || generation != taskGeneration)
+                        return;
+
+                    if (stored != null)
+                    {
+                        for (int i = 0; i < tile.counts.length; i++)
+                        {
+                            tile.counts[i] += stored.counts[i];
+                        }
+
+                        tile.samples += stored.samples;
+                        loaded++;
+                    }
+
+                    tile.loading = false;
+
+                    evict();
+                }
+            }
+        });
+    }
+
+    private void submitSpill(final long key, Tile tile)
+    {
+        tile.spilling = true;
+        pendingSpills++;
+
+        final int taskGeneration = generation;
+
+        submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Tile snapshot = new Tile();
+                long version;
+
+                synchronized (CoverageTilePyramid.this)
+                {
+                    Tile tile = mTiles.get(key);
+
+                    if (tile == null || generation != taskGeneration)
+                        return;
+
+                    System.arraycopy(tile.counts, 0, snapshot.counts, 0, tile.counts.length);
+                    snapshot.samples = tile.samples;
+                    version = tile.version;
+                }
+
+                boolean written = write(key, snapshot);
+
+                synchronized (CoverageTilePyramid.this)
+                {
+                    Tile tile = mTiles.get(key);
+
+                    if (tile == null || generation != taskGeneration)
+                        return;
+
+                    tile.spilling = false;
+                    pendingSpills--;
+
+                    boolean flushPending = tile.flushPending;
+                    tile.flushPending = false;
+
+                    if (!written)
+                    {
+                        spillFailures++;
+                        spillRetryAt = System.currentTimeMillis() + SPILL_RETRY_MS;
+                        return;
+                    }
+
+                    spilled++;
+
+                    if (tile.version != version)
+                    {
+                        if (flushPending)
+                            submitSpill(key, tile);
+
+                        return;
+                    }
+
+                    tile.dirty = false;
+
+                    if (mTiles.size() > maxResidentTiles)
+                        mTiles.remove(key);
+
+                    evict();
+                }
+            }
+        });
+    }
+
+    private void submit(final Runnable task)
+    {
+        pendingTasks++;
+
+        try
+        {
+            mExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    } finally
+                    {
+                        synchronized (CoverageTilePyramid.this)
+                        {
+                            pendingTasks--;
+                            CoverageTilePyramid.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex)
+        {
+            pendingTasks--;
+            Log.warning(TAG, "submit: executor shut down", ex);
+        }
+    }
+
+    /**
+     * Copy of the tile for reading: the resident tile, the file, or the file plus the resident counts of a tile still loading;
+     * reads again if a loading tile was merged, spilled and dropped while its file was read
+     */
+    private Tile read(int zoom, int x, int y)
+    {
+        long key = key(zoom, x, y);
+
+        while (true)
+        {
+            boolean resident;
+
+            synchronized (this)
+            {
+                Tile tile = mTiles.get(key);
+
+                if (tile != null && !tile.loading)
+                    return copy(tile, null);
+
+                resident = tile != null;
+            }
+
+            Tile stored = load(key);
+
+            synchronized (this)
+            {
+                Tile tile = mTiles.get(key);
+
+                if (tile != null)
+                    return copy(tile, tile.loading ? stored : null);
+
+                if (!resident)
+                    return stored;
+            }
+        }
+    }
+
+    private static Tile copy(Tile tile, Tile stored)
+    {
+        Tile copy = new Tile();
+        System.arraycopy(tile.counts, 0, copy.counts, 0, tile.counts.length);
+        copy.samples = tile.samples;
+
+        if (stored != null)
+        {
+            for (int i = 0; i < copy.counts.length; i++)
+            {
+                copy.counts[i] += stored.counts[i];
+            }
+
+            copy.samples += stored.samples;
+        }
+
+        return copy;
+    }
+
+    private Tile load(long key)
+    {
+        File file = getFile(key);
+        if (!file.exists())
+            return null;
+
+        DataInputStream input = null;
+        try
+        {
+            input = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file))));
+
+            if (input.readInt() != FILE_MAGIC || input.readInt() != CELLS || input.readInt() != CATEGORIES)
+            {
+                Log.warning(TAG, "load: incompatible tile " + file);
+                return null;
+            }
+
+            Tile tile = new Tile();
+            tile.samples = input.readInt();
+
+            int cells = input.readInt();
+            for (int i = 0; i < cells; i++)
+            {
+                int cell = input.readUnsignedShort();
+
+                for (int category = 0; category < CATEGORIES; category++)
+                {
+                    tile.counts[cell * CATEGORIES + category] = input.readInt();
+                }
+            }
+
+            return tile;
+        } catch (IOException | IndexOutOfBoundsException ex)
+        {
+            Log.warning(TAG, "load: " + file, ex);
+            return null;
+        } finally
+        {
+            close(input);
+        }
+    }
+
+    /**
+     * Writes the tile to a temporary file and renames it over the tile file
+     *
+     * @return false if the tile could not be written, the previous file is unchanged then
+     */
+    private boolean write(long key, Tile tile)
+    {
+        if (!directory.exists() && !directory.mkdirs())
+        {
+            Log.warning(TAG, "write: cannot create " + directory);
+            return false;
+        }
+
+        File file = getFile(key);
+        File temporary = new File(file.getPath() + ".tmp");
+
+        DataOutputStream output = null;
+        try
+        {
+            output = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(temporary))));
+
+            int cells = 0;
+            for (int cell = 0; cell < CELLS * CELLS; cell++)
+            {
+                if (getDominant(tile.counts, cell) >= 0)
+                    cells++;
+            }
+
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(CELLS);
+            output.writeInt(CATEGORIES);
+            output.writeInt(tile.samples);
+            output.writeInt(cells);
+
+            for (int cell = 0; cell < CELLS * CELLS; cell++)
+            {
+                if (getDominant(tile.counts, cell) < 0)
+                    continue;
+
+                output.writeShort(cell);
+
+                for (int category = 0; category < CATEGORIES; category++)
+                {
+                    output.writeInt(tile.counts[cell * CATEGORIES + category]);
+                }
+            }
+
+            output.close();
+            output = null;
+
+            if (!temporary.renameTo(file))
+                throw new IOException("Cannot rename " + temporary);
+
+            return true;
+        } catch (IOException ex)
+        {
+            Log.warning(TAG, "write: " + file, ex);
+            return false;
+        } finally
+        {
+            close(output);
+        }
+    }
+
+    private File getFile(long key)
+    {
+        return getFile((int) (key >>> 58), (int) ((key >>> 29) & 0x1FFFFFFF), (int) (key & 0x1FFFFFFF));
+    }
+
+    private File getFile(int zoom, int x, int y)
+    {
+        return new File(directory, zoom + "_" + x + "_" + y + FILE_SUFFIX);
+    }
+
+    private static long key(int zoom, int x, int y)
+    {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * Category with the most samples in the cell, -1 if the cell is empty
+     */
+    private static int getDominant(int[] counts, int cell)
+    {
+        int dominant = -1;
+        int max = 0;
+
+        for (int category = 0; category < CATEGORIES; category++)
+        {
+            int count = counts[cell * CATEGORIES + category];
+
+            if (count > max)
+            {
+                max = count;
+                dominant = category;
+            }
+        }
+
+        return dominant;
+    }
+
+    /**
+     * Color of the dominant category, the opacity grows with the logarithm of the sample count
+     */
+    private static int getColor(int[] counts, int cell)
+    {
+        int dominant = getDominant(counts, cell);
+        if (dominant < 0)
+            return 0;
+
+        int total = 0;
+        for (int category = 0; category < CATEGORIES; category++)
+        {
+            total += counts[cell * CATEGORIES + category];
+        }
+
+        int alpha = Math.min(255, 96 + (int) (32 * Math.log(total) / Math.log(2)));
+
+        return (alpha << 24) | COLORS[dominant];
+    }
+
+    private static void close(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        } catch (IOException ignored)
+        {
+        }
+    }
+}
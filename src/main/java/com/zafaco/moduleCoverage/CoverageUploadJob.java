@@ -0,0 +1,165 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the {@link CoverageUploader} as a JobScheduler job, so the upload outlives the measurement service and only starts while a network is
+ * available
+ * <p>
+ * An incomplete run is rescheduled by JobScheduler with exponential backoff, a complete run asks the {@link RetentionManager} to purge the
+ * sent tracks. Scheduling the job again replaces a pending job with the new parameters.
+ */
+public class CoverageUploadJob extends JobService
+{
+    static final int JOB_ID = 0x43565550;
+
+    private static final String EXTRA_URL = "upload_url";
+    private static final String EXTRA_CHUNK_SIZE = "upload_chunk_size";
+    private static final String EXTRA_PARALLELISM = "upload_parallelism";
+
+    private static final long BACKOFF_INITIAL_MS = 60000;
+
+    private static final AtomicLong rowsSent = new AtomicLong(0);
+
+    private CoverageUploader mCoverageUploader = null;
+
+    private static final String TAG = "CoverageUploadJob";
+
+
+    /**
+     * Schedules an upload run once a network is available
+     *
+     * @return false if JobScheduler refused the job
+     */
+    static boolean schedule(Context ctx, String url, int chunkSize, int parallelism)
+    {
+        JobScheduler jobScheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        if (jobScheduler == null)
+            return false;
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_URL, url);
+        extras.putInt(EXTRA_CHUNK_SIZE, chunkSize);
+        extras.putInt(EXTRA_PARALLELISM, parallelism);
+
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID, new ComponentName(ctx, CoverageUploadJob.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(BACKOFF_INITIAL_MS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras)
+                .build();
+
+        try
+        {
+            return jobScheduler.schedule(jobInfo) == JobScheduler.RESULT_SUCCESS;
+        } catch (RuntimeException ex)
+        {
+            Log.warning(TAG, "schedule", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Drops a pending run and stops a running one, its unsent rows are picked up by the next scheduled run
+     */
+    static void cancel(Context ctx)
+    {
+        JobScheduler jobScheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        if (jobScheduler != null)
+            jobScheduler.cancel(JOB_ID);
+    }
+
+    /**
+     * Rows acknowledged by the server since the process started
+     */
+    static long getRowsSent()
+    {
+        return rowsSent.get();
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params)
+    {
+        PersistableBundle extras = params.getExtras();
+        String url = extras != null ? extras.getString(EXTRA_URL) : null;
+
+        if (url == null)
+            return false;
+
+        final Context ctx = getApplicationContext();
+        final CoverageUploader uploader = new CoverageUploader(ctx, url, extras.getInt(EXTRA_CHUNK_SIZE, CoverageUploader.DEFAULT_CHUNK_SIZE), extras.getInt(EXTRA_PARALLELISM, CoverageUploader.DEFAULT_PARALLELISM));
+
+        synchronized (this)
+        {
+            mCoverageUploader = uploader;
+        }
+
+        uploader.start(new CoverageUploader.Listener()
+        {
+            @Override
+            public void onUploadFinished(long sent, boolean complete)
+            {
+                rowsSent.addAndGet(sent);
+
+                synchronized (CoverageUploadJob.this)
+                {
+                    if (mCoverageUploader != uploader)
+                        return;
+
+                    mCoverageUploader = null;
+                }
+
+                if (complete)
+                    RetentionManager.getInstance(ctx).requestRun();
+
+                jobFinished(params, !complete);
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        CoverageUploader uploader;
+
+        synchronized (this)
+        {
+            uploader = mCoverageUploader;
+            mCoverageUploader = null;
+        }
+
+        if (uploader != null)
+            uploader.cancel();
+
+        return true;
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonWriter;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads unsent coverage rows in gzipped JSON chunks and marks them sent only after the server acknowledged the chunk
+ * <p>
+ * The sent column is the only upload state, after process death the next run selects the remaining unsent rows and continues from there.
+ * A chunk that was acknowledged but not yet marked sent is sent again, retries of a chunk carry the same Idempotency-Key (table and rowid range).
+ * A chunk the server rejects with a non-retryable 4xx is quarantined, its rows are marked rejected and the run moves past them.
+ * <p>
+ * A run executes once on a background thread, rescheduling an incomplete run is left to the caller, see {@link CoverageUploadJob}.
+ */
+class CoverageUploader
+{
+    interface Listener
+    {
+        void onUploadFinished(long rowsSent, boolean complete);
+    }
+
+    static final int DEFAULT_CHUNK_SIZE = 500;
+    static final int DEFAULT_PARALLELISM = 1;
+
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long BACKOFF_INITIAL_MS = 1000;
+    private static final long BACKOFF_MAX_MS = 300000;
+
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final String[] TABLES = {CoverageDatabase.TABLE_COVERAGE, CoverageDatabase.TABLE_GRID};
+
+    static final String SENT = "true";
+    static final String REJECTED = "rejected";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final Context ctx;
+    private final String url;
+    private final int chunkSize;
+    private final int parallelism;
+
+    private final ScheduledThreadPoolExecutor mScheduler;
+    private ScheduledFuture<?> mRun = null;
+
+    private volatile CountDownLatch mCancel = new CountDownLatch(0);
+    private volatile boolean failed = false;
+
+    private final Random mRandom = new Random();
+
+    private final AtomicLong rowsSent = new AtomicLong(0);
+    private final AtomicLong rowsRejected = new AtomicLong(0);
+    private final AtomicLong chunksSent = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+
+    private static final String TAG = "CoverageUploader";
+
+
+    CoverageUploader(Context ctx, String url, int chunkSize, int parallelism)
+    {
+        this.ctx = ctx;
+        this.url = url;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.parallelism = Math.max(1, parallelism);
+
+        mScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        mScheduler.setKeepAliveTime(THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS);
+        mScheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts an upload run unless one is already pending or active, the listener is called on the upload thread when the run ends
+     */
+    synchronized void start(final Listener listener)
+    {
+        if (mRun != null && !mRun.isDone())
+            return;
+
+        mCancel = new CountDownLatch(1);
+        failed = false;
+
+        try
+        {
+            mRun = mScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long before = rowsSent.get();
+                    boolean complete = upload();
+
+                    Log.debug(TAG, "Upload Finished: rows[" + (rowsSent.get() - before) + "] - rejected[" + rowsRejected.get() + "] - chunks[" + chunksSent.get() + "] - retries[" + retries.get() + "] - complete[" + complete + "]");
+
+                    synchronized (CoverageUploader.this)
+                    {
+                        mRun = null;
+                    }
+
+                    if (listener != null)
+                        listener.onUploadFinished(rowsSent.get() - before, complete);
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex)
+        {
+            Log.warning(TAG, "start: executor shut down", ex);
+        }
+    }
+
+    /**
+     * Stops the run after the chunks in flight, pending retries are abandoned
+     */
+    void cancel()
+    {
+        synchronized (this)
+        {
+            if (mRun != null)
+                mRun.cancel(false);
+        }
+
+        mCancel.countDown();
+    }
+
+    long getRowsSent()
+    {
+        return rowsSent.get();
+    }
+
+    /**
+     * Rows of chunks the server rejected, they are marked rejected and never sent again
+     */
+    long getRowsRejected()
+    {
+        return rowsRejected.get();
+    }
+
+    long getChunksSent()
+    {
+        return chunksSent.get();
+    }
+
+    long getRetries()
+    {
+        return retries.get();
+    }
+
+    private boolean isCancelled()
+    {
+        return mCancel.getCount() == 0 || failed;
+    }
+
+    private boolean upload()
+    {
+        SQLiteDatabase database = null;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Semaphore inFlight = new Semaphore(parallelism);
+
+        try
+        {
+            database = CoverageDatabase.open(ctx);
+
+            for (String table : TABLES)
+            {
+                if (isCancelled())
+                    break;
+
+                if (hasTable(database, table))
+                    uploadTable(database, table, executor, inFlight);
+            }
+
+            inFlight.acquire(parallelism);
+            inFlight.release(parallelism);
+
+            if (isCancelled())
+                return false;
+
+            for (String table : TABLES)
+            {
+                if (hasTable(database, table))
+                    markTracksSent(database, table);
+            }
+
+            return true;
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (SQLiteException | IOException ex)
+        {
+            Log.warning(TAG, "upload", ex);
+            return false;
+        } finally
+        {
+            shutdown(executor);
+
+            if (database != null)
+                database.close();
+        }
+    }
+
+    /**
+     * Waits for the chunks in flight; chunks still waiting for a retry are cancelled and their rows stay unsent for the next run
+     */
+    private void shutdown(ExecutorService executor)
+    {
+        executor.shutdown();
+
+        try
+        {
+            if (executor.awaitTermination(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                return;
+
+            mCancel.countDown();
+            executor.shutdownNow();
+
+            if (!executor.awaitTermination(CONNECT_TIMEOUT_MS + READ_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.warning(TAG, "shutdown: chunks still in flight, their rows stay unsent");
+        } catch (InterruptedException ex)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Selects unsent rows in rowid order, at most parallelism chunks are serialized and in flight at the same time
+     */
+    private void uploadTable(final SQLiteDatabase database, final String table, ExecutorService executor, final Semaphore inFlight) throws InterruptedException, IOException
+    {
+        String sql = "SELECT rowid, * FROM " + CoverageSchema.quote(table) + " WHERE sent = 'false' AND rowid > ? ORDER BY rowid LIMIT " + chunkSize;
+
+        long lastRowId = -1;
+
+        while (!isCancelled())
+        {
+            inFlight.acquire();
+
+            final Chunk chunk;
+
+            try
+            {
+                chunk = readChunk(database, sql, table, lastRowId);
+            } catch (IOException | RuntimeException ex)
+            {
+                inFlight.release();
+                throw ex;
+            }
+
+            if (chunk == null)
+            {
+                inFlight.release();
+                return;
+            }
+
+            lastRowId = chunk.lastRowId;
+
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            String state = send(chunk);
+
+                            if (state == null)
+                            {
+                                failed = true;
+                                return;
+                            }
+
+                            markChunk(database, chunk, state);
+
+                            if (SENT.equals(state))
+                            {
+                                rowsSent.addAndGet(chunk.rows);
+                                chunksSent.incrementAndGet();
+                            } else
+                            {
+                                rowsRejected.addAndGet(chunk.rows);
+                            }
+                        } catch (SQLiteException | IllegalStateException ex)
+                        {
+                            // IllegalStateException: the run gave up on this chunk and closed the database
+                            Log.warning(TAG, "markChunk", ex);
+                            failed = true;
+                        } finally
+                        {
+                            inFlight.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex)
+            {
+                inFlight.release();
+                return;
+            }
+        }
+    }
+
+    private Chunk readChunk(SQLiteDatabase database, String sql, String table, long afterRowId) throws IOException
+    {
+        Cursor cursor = database.rawQuery(sql, new String[]{Long.toString(afterRowId)});
+
+        try
+        {
+            if (!cursor.moveToFirst())
+                return null;
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(buffer), CHARSET));
+
+            long firstRowId = cursor.getLong(0);
+            long lastRowId = firstRowId;
+            int rows = 0;
+
+            writer.beginObject();
+            writer.name("table").value(table);
+            writer.name("rows").beginArray();
+
+            do
+            {
+                lastRowId = cursor.getLong(0);
+
+                writer.beginObject();
+                for (int i = 1; i < cursor.getColumnCount(); i++)
+                {
+                    String column = cursor.getColumnName(i);
+
+                    if (!"sent".equals(column) && !cursor.isNull(i))
+                        writer.name(column).value(cursor.getString(i));
+                }
+                writer.endObject();
+
+                rows++;
+            } while (cursor.moveToNext());
+
+            writer.endArray();
+            writer.endObject();
+            writer.close();
+
+            return new Chunk(table, firstRowId, lastRowId, rows, buffer.toByteArray());
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Posts the chunk until it is acknowledged, retries transient failures with exponential backoff and jitter
+     *
+     * @return SENT or REJECTED if the server answered with 2xx or a non-retryable 4xx, null if the chunk should be sent again by a later run
+     */
+    private String send(Chunk chunk)
+    {
+        long backoff = BACKOFF_INITIAL_MS;
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !isCancelled(); attempt++)
+        {
+            int status;
+
+            try
+            {
+                status = post(chunk);
+            } catch (IOException ex)
+            {
+                Log.warning(TAG, "send: " + chunk.getKey() + " attempt " + attempt, ex);
+                status = -1;
+            }
+
+            if (status >= 200 && status < 300)
+                return SENT;
+
+            if (status >= 400 && status < 500 && status != 408 && status != 429)
+            {
+                Log.warning(TAG, "send: " + chunk.getKey() + " rejected with " + status + ", rows quarantined");
+                return REJECTED;
+            }
+
+            if (attempt == MAX_ATTEMPTS)
+                break;
+
+            retries.incrementAndGet();
+
+            long delay = backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+            backoff = Math.min(BACKOFF_MAX_MS, backoff * 2);
+
+            try
+            {
+                if (mCancel.await(delay, TimeUnit.MILLISECONDS))
+                    return null;
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private int post(Chunk chunk) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        try
+        {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(chunk.body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("Idempotency-Key", chunk.getKey());
+
+            OutputStream out = connection.getOutputStream();
+            try
+            {
+                out.write(chunk.body);
+            } finally
+            {
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null)
+            {
+                byte[] discard = new byte[1024];
+                while (in.read(discard) >= 0)
+                {
+                }
+                in.close();
+            }
+
+            return status;
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    private static void markChunk(SQLiteDatabase database, Chunk chunk, String state)
+    {
+        SQLiteStatement statement = database.compileStatement("UPDATE " + CoverageSchema.quote(chunk.table) + " SET sent = ? WHERE rowid >= ? AND rowid <= ? AND sent = 'false'");
+
+        try
+        {
+            statement.bindString(1, state);
+            statement.bindLong(2, chunk.firstRowId);
+            statement.bindLong(3, chunk.lastRowId);
+            statement.executeUpdateDelete();
+        } finally
+        {
+            statement.close();
+        }
+    }
+
+    /**
+     * Sets the sent flag of every track of the table without unsent rows, rejected rows do not keep a track unsent
+     */
+    private static void markTracksSent(SQLiteDatabase database, String table)
+    {
+        database.execSQL("UPDATE " + CoverageSchema.quote(CoverageDatabase.TABLE_META) + " SET sent = 'true' WHERE sent = 'false' AND ftable = ?"
+                + " AND NOT EXISTS (SELECT 1 FROM " + CoverageSchema.quote(table) + " c WHERE c.track_id = " + CoverageSchema.quote(CoverageDatabase.TABLE_META) + ".fkey AND c.sent = 'false')", new Object[]{table});
+    }
+
+    private static boolean hasTable(SQLiteDatabase database, String table)
+    {
+        Cursor cursor = database.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{table});
+
+        try
+        {
+            return cursor.moveToFirst();
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    private static final class Chunk
+    {
+        final String table;
+        final long firstRowId;
+        final long lastRowId;
+        final int rows;
+        final byte[] body;
+
+
+        Chunk(String table, long firstRowId, long lastRowId, int rows, byte[] body)
+        {
+            this.table = table;
+            this.firstRowId = firstRowId;
+            this.lastRowId = lastRowId;
+            this.rows = rows;
+            this.body = body;
+        }
+
+        String getKey()
+        {
+            return table + ":" + firstRowId + "-" + lastRowId;
+        }
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence of coverage rows: rows are queued by the ingest path and committed in batches by a single writer thread
+ */
+class CoverageWriter
+{
+    private final Context ctx;
+
+    private final Iterable<String> initialColumns;
+
+    private SQLiteDatabase mSQLiteDatabase = null;
+    private final Map<String, CoverageSchema> mSchemas = new HashMap<>();
+
+    private final BlockingQueue<CoverageRow> mQueue;
+    private final Set<String> columns = new HashSet<>();
+
+    private final int batchSize;
+    private final long batchWindowMs;
+
+    private Future<?> mFuture = null;
+    private volatile boolean isRunning = false;
+
+    private final AtomicLong rowsInserted = new AtomicLong(0);
+    private final AtomicLong rowsDropped = new AtomicLong(0);
+    private final AtomicLong rowsSpilled = new AtomicLong(0);
+    private final AtomicLong batchesCommitted = new AtomicLong(0);
+
+    private final CoverageJournal mJournal;
+
+    private boolean isSpilling = false;
+    private long spillPosition = 0;
+
+    private final CoverageMetrics.Counter mPersisted;
+    private final CoverageMetrics.Counter mRecovered;
+    private final CoverageMetrics.Counter mDropped;
+    private final CoverageMetrics.Histogram mCommitLatency;
+    private final CoverageMetrics.Histogram mEndToEndLatency;
+    private final CoverageMetrics.Histogram mBatchSize;
+    private final CoverageMetrics.Histogram mQueueDepth;
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long IDLE_POLL_MS = 250;
+    private static final long JOIN_TIMEOUT_MS = 2000;
+    private static final long RETRY_MIN_MS = 250;
+    private static final long RETRY_MAX_MS = 30000;
+    private static final int STOP_RETRIES = 3;
+
+    private static final String TAG = "CoverageWriter";
+
+
+    /**
+     * @param journal journal of the queued rows, rows of a previous process found in it are committed first; may be null. The
+     *                writer closes the journal when its thread ends.
+     */
+    CoverageWriter(Context ctx, Iterable<String> initialColumns, int batchSize, long batchWindowMs, CoverageJournal journal, CoverageMetrics metrics)
+    {
+        this.ctx = ctx;
+        this.initialColumns = initialColumns;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWindowMs = Math.max(0, batchWindowMs);
+
+        mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        mJournal = journal;
+
+        mPersisted = metrics.counter(CoverageMetrics.ROWS_PERSISTED);
+        mRecovered = metrics.counter(CoverageMetrics.ROWS_RECOVERED);
+        mDropped = metrics.counter(CoverageMetrics.ROWS_DROPPED);
+        mCommitLatency = metrics.histogram(CoverageMetrics.DB_COMMIT_LATENCY);
+        mEndToEndLatency = metrics.histogram(CoverageMetrics.END_TO_END_LATENCY);
+        mBatchSize = metrics.histogram(CoverageMetrics.DB_BATCH_SIZE);
+        mQueueDepth = metrics.histogram(CoverageMetrics.DB_QUEUE_DEPTH);
+    }
+
+    /**
+     * Runs the writer loop on one thread of the executor until {@link #stop()}
+     */
+    void start(ExecutorService executor)
+    {
+        if (isRunning)
+            return;
+
+        isRunning = true;
+
+        mFuture = executor.submit(new WriterThread());
+    }
+
+    /**
+     * Journals the row and hands it over to the writer thread, never blocks on the database
+     * <p>
+     * While the queue is full, journaled rows are not queued but spilled: the writer reads them back from the journal once the
+     * queue is drained, which keeps the rows in sequence order. Only rows that could not be journaled are dropped.
+     */
+    synchronized boolean add(CoverageRow row)
+    {
+        boolean journaled = false;
+
+        if (mJournal != null)
+        {
+            try
+            {
+                mJournal.append(row);
+                journaled = true;
+            } catch (IOException ex)
+            {
+                Log.warning(TAG, "add: journal append failed", ex);
+            }
+        }
+
+        if (!isSpilling && mQueue.offer(row))
+            return true;
+
+        if (journaled)
+        {
+            if (!isSpilling)
+            {
+                isSpilling = true;
+                spillPosition = mJournal.getLastPosition();
+                Log.warning(TAG, "add: queue full, spilling rows to the journal");
+            }
+
+            row.recycle();
+            rowsSpilled.incrementAndGet();
+
+            return true;
+        }
+
+        row.recycle();
+
+        rowsDropped.incrementAndGet();
+        mDropped.increment();
+        Log.warning(TAG, "add: queue full, row dropped");
+
+        return false;
+    }
+
+    /**
+     * Stops the writer thread after all queued rows have been committed; rows the thread has not committed within the timeout stay
+     * journaled and are committed by the next session
+     */
+    void stop()
+    {
+        isRunning = false;
+
+        if (mFuture == null)
+            return;
+
+        try
+        {
+            mFuture.get(JOIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex)
+        {
+            Log.warning(TAG, "stop", ex);
+        }
+
+        mFuture = null;
+    }
+
+    int getQueueSize()
+    {
+        return mQueue.size();
+    }
+
+    long getRowsInserted()
+    {
+        return rowsInserted.get();
+    }
+
+    long getRowsDropped()
+    {
+        return rowsDropped.get();
+    }
+
+    long getRowsSpilled()
+    {
+        return rowsSpilled.get();
+    }
+
+    long getBatchesCommitted()
+    {
+        return batchesCommitted.get();
+    }
+
+    private void commit(List<CoverageRow> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+
+        mQueueDepth.record(mQueue.size());
+
+        for (CoverageRow row : batch)
+        {
+            columns.clear();
+            row.collectColumns(columns);
+
+            getSchema(row.getTable(), columns).ensureColumns(columns);
+        }
+
+        // rows are committed in sequence order, so the last row is the lowest uncommitted sequence minus one
+        long sequence = 0;
+
+        mSQLiteDatabase.beginTransaction();
+        try
+        {
+            for (CoverageRow row : batch)
+            {
+                mSchemas.get(row.getTable()).insert(row);
+
+                sequence = Math.max(sequence, row.getSequence());
+            }
+
+            if (mJournal != null && sequence > 0)
+                CoverageJournal.writeCheckpoint(mSQLiteDatabase, mJournal.getName(), sequence);
+
+            mSQLiteDatabase.setTransactionSuccessful();
+        } finally
+        {
+            mSQLiteDatabase.endTransaction();
+        }
+
+        if (mJournal != null && sequence > 0)
+        {
+            try
+            {
+                mJournal.onCommitted(sequence);
+            } catch (IOException ex)
+            {
+                Log.warning(TAG, "commit: journal truncation failed", ex);
+            }
+        }
+
+        rowsInserted.addAndGet(batch.size());
+        batchesCommitted.incrementAndGet();
+
+        mCommitLatency.recordSince(start);
+        mBatchSize.record(batch.size());
+        mPersisted.add(batch.size());
+
+        for (int i = 0; i < batch.size(); i++)
+        {
+            long receivedNanos = batch.get(i).getReceivedNanos();
+
+            if (receivedNanos != 0)
+                mEndToEndLatency.recordSince(receivedNanos);
+        }
+    }
+
+    /**
+     * Schema of the table, tables other than coverage are created with the columns of their first row
+     */
+    private CoverageSchema getSchema(String table, Iterable<String> initialColumns)
+    {
+        CoverageSchema schema = mSchemas.get(table);
+
+        if (schema == null)
+        {
+            schema = new CoverageSchema(mSQLiteDatabase, table);
+            schema.load(initialColumns);
+
+            mSchemas.put(table, schema);
+        }
+
+        return schema;
+    }
+
+    /**
+     * Commits the rows a previous process journaled but did not commit
+     *
+     * @return false if the writer was stopped before all rows were committed
+     */
+    private boolean replay(List<CoverageRow> batch) throws InterruptedException
+    {
+        // re-read on the writing connection, a writer of the previous session may have committed after the journal was opened
+        long checkpoint = CoverageJournal.readCheckpoint(mSQLiteDatabase, mJournal.getName());
+
+        List<CoverageRow> pending = mJournal.takePending();
+        if (pending.isEmpty())
+            return true;
+
+        long start = System.nanoTime();
+        int replayed = 0;
+
+        for (int i = 0; i < pending.size(); i++)
+        {
+            CoverageRow row = pending.get(i);
+
+            if (row.getSequence() > checkpoint)
+                batch.add(row);
+
+            if (batch.isEmpty() || (batch.size() < batchSize && i < pending.size() - 1))
+                continue;
+
+            if (!commitWithRetry(batch))
+            {
+                Log.warning(TAG, "replay: stopped, " + (pending.size() - replayed) + " rows stay journaled");
+                batch.clear();
+                return false;
+            }
+
+            replayed += batch.size();
+            batch.clear();
+        }
+
+        long elapsedNs = Math.max(1, System.nanoTime() - start);
+        mRecovered.add(replayed);
+
+        Log.debug(TAG, "Journal replayed: rows[" + replayed + "] - ms[" + elapsedNs / 1000000 + "] - rows/s[" + (long) (replayed * 1e9 / elapsedNs) + "]");
+
+        return true;
+    }
+
+    /**
+     * Commits the batch, a failed commit is retried with exponential backoff so no later sequence is committed before it
+     *
+     * @return false if the writer was stopped and the batch is still not committed, the rows stay journaled
+     */
+    private boolean commitWithRetry(List<CoverageRow> batch) throws InterruptedException
+    {
+        long backoff = RETRY_MIN_MS;
+        int attempts = 0;
+
+        while (true)
+        {
+            try
+            {
+                commit(batch);
+                return true;
+            } catch (SQLiteException ex)
+            {
+                attempts++;
+
+                if (!isRunning && attempts >= STOP_RETRIES)
+                {
+                    Log.warning(TAG, "commit: failed " + attempts + " times while stopping, giving up on " + batch.size() + " rows", ex);
+                    return false;
+                }
+
+                Log.warning(TAG, "commit: failed for " + batch.size() + " rows, retry in " + backoff + " ms", ex);
+
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+            }
+        }
+    }
+
+    private synchronized boolean isSpilling()
+    {
+        return isSpilling;
+    }
+
+    /**
+     * Reads the next spilled rows back from the journal, ends spilling once the writer has caught up with the journal
+     */
+    private void readSpilled(List<CoverageRow> batch)
+    {
+        long from;
+        long to;
+
+        synchronized (this)
+        {
+            if (!isSpilling)
+                return;
+
+            from = spillPosition;
+            try
+            {
+                to = mJournal.getPosition();
+            } catch (IOException ex)
+            {
+                Log.warning(TAG, "readSpilled: journal not readable", ex);
+                isSpilling = false;
+                return;
+            }
+        }
+
+        long next;
+        try
+        {
+            next = mJournal.read(from, to, batchSize, batch);
+        } catch (IOException ex)
+        {
+            Log.warning(TAG, "readSpilled: journal not readable, spilled rows lost", ex);
+            next = Long.MAX_VALUE;
+        }
+
+        synchronized (this)
+        {
+            spillPosition = next;
+
+            try
+            {
+                if (spillPosition >= mJournal.getPosition())
+                    isSpilling = false;
+            } catch (IOException ex)
+            {
+                isSpilling = false;
+            }
+        }
+    }
+
+    /**
+     * Collects the next batch from the queue, or from the journal once the queue is drained while rows were spilled
+     */
+    private void fill(List<CoverageRow> batch) throws InterruptedException
+    {
+        if (mQueue.isEmpty() && isSpilling())
+        {
+            readSpilled(batch);
+            return;
+        }
+
+        CoverageRow row = mQueue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+
+        if (row == null)
+            return;
+
+        batch.add(row);
+
+        long deadline = System.currentTimeMillis() + batchWindowMs;
+
+        // while spilling, new rows go to the journal and not to the queue, waiting for them would only hold back the batch
+        while (batch.size() < batchSize && isRunning && !isSpilling())
+        {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0)
+                break;
+
+            row = mQueue.poll(Math.min(remaining, IDLE_POLL_MS), TimeUnit.MILLISECONDS);
+
+            if (row != null)
+                batch.add(row);
+        }
+
+        mQueue.drainTo(batch, batchSize - batch.size());
+    }
+
+    /**
+     * Opens the connection and the coverage schema, retries with exponential backoff until it succeeds or the writer is stopped
+     */
+    private boolean open() throws InterruptedException
+    {
+        long backoff = RETRY_MIN_MS;
+
+        while (true)
+        {
+            try
+            {
+                mSQLiteDatabase = CoverageDatabase.open(ctx);
+                getSchema(CoverageDatabase.TABLE_COVERAGE, initialColumns);
+
+                return true;
+            } catch (SQLiteException ex)
+            {
+                close();
+
+                if (!isRunning)
+                {
+                    Log.warning(TAG, "open: failed, " + mQueue.size() + " queued rows not written", ex);
+                    return false;
+                }
+
+                Log.warning(TAG, "open: failed, retry in " + backoff + " ms", ex);
+
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+            }
+        }
+    }
+
+    private void close()
+    {
+        for (CoverageSchema schema : mSchemas.values())
+        {
+            schema.close();
+        }
+
+        mSchemas.clear();
+
+        if (mSQLiteDatabase != null)
+            mSQLiteDatabase.close();
+
+        mSQLiteDatabase = null;
+    }
+
+    class WriterThread implements Runnable
+    {
+        public void run()
+        {
+            List<CoverageRow> batch = new ArrayList<>(batchSize);
+
+            try
+            {
+                if (!open())
+                    return;
+
+                if (mJournal != null && !replay(batch))
+                    return;
+
+                while (isRunning || !mQueue.isEmpty() || isSpilling())
+                {
+                    fill(batch);
+
+                    if (batch.isEmpty())
+                        continue;
+
+                    boolean committed = commitWithRetry(batch);
+
+                    for (CoverageRow done : batch)
+                    {
+                        done.recycle();
+                    }
+
+                    batch.clear();
+
+                    if (!committed)
+                        break;
+                }
+            } catch (InterruptedException ex)
+            {
+                Log.warning(TAG, "run: interrupted with " + mQueue.size() + " queued rows", ex);
+            } catch (SQLiteException ex)
+            {
+                Log.warning(TAG, "run: SQLiteException", ex);
+            } finally
+            {
+                close();
+
+                if (mJournal != null)
+                {
+                    mJournal.close();
+                    Log.debug(TAG, "Journal Closed: appended[" + mJournal.getAppended() + "] - truncations[" + mJournal.getTruncations() + "]");
+                }
+            }
+
+            Log.debug(TAG, "Writer Stopped: rows[" + rowsInserted.get() + "] - batches[" + batchesCommitted.get() + "] - spilled[" + rowsSpilled.get() + "] - dropped[" + rowsDropped.get() + "]");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Immutable device state relevant for the admission of samples
+ */
+final class DeviceState
+{
+    interface Source
+    {
+        DeviceState get();
+    }
+
+    final boolean wifi;
+    final boolean airplane;
+    final int simState;
+    final int activeSimCount;
+
+    final long timestamp;
+
+
+    DeviceState(boolean wifi, boolean airplane, int simState, int activeSimCount, long timestamp)
+    {
+        this.wifi = wifi;
+        this.airplane = airplane;
+        this.simState = simState;
+        this.activeSimCount = activeSimCount;
+        this.timestamp = timestamp;
+    }
+
+    boolean equalsState(DeviceState other)
+    {
+        return other != null && wifi == other.wifi && airplane == other.airplane && simState == other.simState && activeSimCount == other.activeSimCount;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+
+import com.zafaco.moduleCommon.Log;
+import com.zafaco.moduleCommon.Tool;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Device state (wifi, airplane mode, SIM) refreshed from system broadcasts and callbacks, read lock-free by the ingest path and the health monitor
+ * <p>
+ * Every source only updates its own part of the state: wifi follows the capabilities of the network callbacks, airplane mode its
+ * broadcast and the SIM state the SIM broadcast and subscription changes. The system services are only queried all at once on
+ * start and when no update arrived for a longer period.
+ */
+class DeviceStateCache implements DeviceState.Source
+{
+    private final Context ctx;
+    private final Tool mTool;
+
+    private volatile DeviceState state = null;
+    private volatile Runnable mListener = null;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong refreshes = new AtomicLong(0);
+
+    private ConnectivityManager mConnectivityManager = null;
+    private SubscriptionManager mSubscriptionManager = null;
+
+    private boolean isRegistered = false;
+
+    private final Set<Network> mWifiNetworks = new HashSet<>();
+
+    private boolean wifi = false;
+    private boolean airplane = false;
+    private int simState = 0;
+    private int activeSimCount = 0;
+
+    private static final String ACTION_SIM_STATE_CHANGED = "android.intent.action.SIM_STATE_CHANGED";
+    private static final String EXTRA_AIRPLANE_STATE = "state";
+    private static final long MAX_STATE_AGE_MS = 60000;
+
+    private static final String TAG = "DeviceStateCache";
+
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            if (Intent.ACTION_AIRPLANE_MODE_CHANGED.equals(intent.getAction()))
+                onAirplaneChanged(intent.getBooleanExtra(EXTRA_AIRPLANE_STATE, false));
+            else
+                onSimChanged();
+        }
+    };
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback()
+    {
+        @Override
+        public void onAvailable(Network network)
+        {
+            // from Android O on the capabilities of a new network always follow in onCapabilitiesChanged
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+                onWifiChanged(mTool.isWifi(ctx));
+        }
+
+        @Override
+        public void onLost(Network network)
+        {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+                onWifiChanged(mTool.isWifi(ctx));
+            else
+                onWifiChanged(network, false);
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities)
+        {
+            onWifiChanged(network, networkCapabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) && networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+        }
+    };
+
+    private SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsChangedListener = null;
+
+
+    DeviceStateCache(Context ctx, Tool tool)
+    {
+        this.ctx = ctx;
+        this.mTool = tool;
+    }
+
+    /**
+     * Sets a callback that is run on the refreshing thread whenever the cached state changed
+     */
+    void setListener(Runnable listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Registers all state sources, must be called from a thread with a Looper
+     */
+    void start()
+    {
+        if (isRegistered)
+            return;
+
+        refresh();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_AIRPLANE_MODE_CHANGED);
+        filter.addAction(ACTION_SIM_STATE_CHANGED);
+        ctx.registerReceiver(mReceiver, filter);
+
+        try
+        {
+            mConnectivityManager = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+            if (mConnectivityManager != null)
+                mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), mNetworkCallback);
+        } catch (RuntimeException ex)
+        {
+            mConnectivityManager = null;
+            Log.warning(TAG, "start: network callback failure", ex);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1)
+        {
+            try
+            {
+                mSubscriptionManager = (SubscriptionManager) ctx.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
+
+                if (mSubscriptionManager != null)
+                {
+                    mSubscriptionsChangedListener = new SubscriptionManager.OnSubscriptionsChangedListener()
+                    {
+                        @Override
+                        public void onSubscriptionsChanged()
+                        {
+                            onSimChanged();
+                        }
+                    };
+                    mSubscriptionManager.addOnSubscriptionsChangedListener(mSubscriptionsChangedListener);
+                }
+            } catch (RuntimeException ex)
+            {
+                mSubscriptionManager = null;
+                Log.warning(TAG, "start: subscription listener failure", ex);
+            }
+        }
+
+        isRegistered = true;
+    }
+
+    void stop()
+    {
+        if (!isRegistered)
+            return;
+
+        try
+        {
+            ctx.unregisterReceiver(mReceiver);
+        } catch (IllegalArgumentException ex)
+        {
+            Log.warning(TAG, "stop: receiver not registered", ex);
+        }
+
+        if (mConnectivityManager != null)
+        {
+            try
+            {
+                mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            } catch (RuntimeException ex)
+            {
+                Log.warning(TAG, "stop: network callback failure", ex);
+            }
+        }
+
+        if (mSubscriptionManager != null && mSubscriptionsChangedListener != null)
+            mSubscriptionManager.removeOnSubscriptionsChangedListener(mSubscriptionsChangedListener);
+
+        mConnectivityManager = null;
+        mSubscriptionManager = null;
+        mSubscriptionsChangedListener = null;
+
+        synchronized (this)
+        {
+            mWifiNetworks.clear();
+        }
+
+        isRegistered = false;
+
+        Log.debug(TAG, "DeviceStateCache Stopped: hits[" + hits.get() + "] - refreshes[" + refreshes.get() + "]");
+    }
+
+    /**
+     * Returns the cached state, the system services are only queried if no broadcast arrived for a longer period
+     */
+    @Override
+    public DeviceState get()
+    {
+        DeviceState current = state;
+
+        if (current == null || SystemClock.elapsedRealtime() - current.timestamp > MAX_STATE_AGE_MS)
+            return refresh();
+
+        hits.incrementAndGet();
+
+        return current;
+    }
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    long getRefreshes()
+    {
+        return refreshes.get();
+    }
+
+    /**
+     * Queries all system services, only used on start and when the state is too old
+     */
+    DeviceState refresh()
+    {
+        boolean wifi = mTool.isWifi(ctx);
+        boolean airplane = mTool.isAirplane(ctx);
+        int simState = mTool.isSimReady(ctx);
+        int activeSimCount = getActiveSimCount();
+
+        synchronized (this)
+        {
+            this.wifi = wifi;
+            this.airplane = airplane;
+            this.simState = simState;
+            this.activeSimCount = activeSimCount;
+        }
+
+        refreshes.incrementAndGet();
+
+        return publish();
+    }
+
+    /**
+     * Tracks the networks with wifi transport and internet access, wifi is on while there is at least one
+     */
+    private void onWifiChanged(Network network, boolean wifi)
+    {
+        synchronized (this)
+        {
+            if (wifi)
+                mWifiNetworks.add(network);
+            else
+                mWifiNetworks.remove(network);
+
+            this.wifi = !mWifiNetworks.isEmpty();
+        }
+
+        publish();
+    }
+
+    private void onWifiChanged(boolean wifi)
+    {
+        synchronized (this)
+        {
+            this.wifi = wifi;
+        }
+
+        publish();
+    }
+
+    private void onAirplaneChanged(boolean airplane)
+    {
+        synchronized (this)
+        {
+            this.airplane = airplane;
+        }
+
+        publish();
+    }
+
+    private void onSimChanged()
+    {
+        int simState = mTool.isSimReady(ctx);
+        int activeSimCount = getActiveSimCount();
+
+        synchronized (this)
+        {
+            this.simState = simState;
+            this.activeSimCount = activeSimCount;
+        }
+
+        publish();
+    }
+
+    private int getActiveSimCount()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? mTool.getActiveSimCount(ctx) : 1;
+    }
+
+    /**
+     * Replaces the cached state with the current parts and runs the listener if it changed
+     */
+    private DeviceState publish()
+    {
+        DeviceState previous;
+        DeviceState current;
+
+        synchronized (this)
+        {
+            previous = state;
+            current = new DeviceState(wifi, airplane, simState, activeSimCount, SystemClock.elapsedRealtime());
+            state = current;
+        }
+
+        Runnable listener = mListener;
+
+        if (listener != null && !current.equalsState(previous))
+            listener.run();
+
+        return current;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Geodesic helpers without Android dependencies
+ */
+final class GeoMath
+{
+    static final double EARTH_RADIUS = 6371008.8;
+
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_B = 6356752.3142;
+    private static final double WGS84_F = (WGS84_A - WGS84_B) / WGS84_A;
+
+    private static final int MAX_ITERATIONS = 20;
+
+    private static final char[] GEOHASH_BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private GeoMath()
+    {
+    }
+
+    /**
+     * Ellipsoidal distance in meters (Vincenty inverse formula), same result as android.location.Location.distanceTo
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2)
+    {
+        lat1 = Math.toRadians(lat1);
+        lat2 = Math.toRadians(lat2);
+        lon1 = Math.toRadians(lon1);
+        lon2 = Math.toRadians(lon2);
+
+        double aSqMinusBSqOverBSq = (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+
+        double l = lon2 - lon1;
+        double a = 0.0;
+
+        double u1 = Math.atan((1.0 - WGS84_F) * Math.tan(lat1));
+        double u2 = Math.atan((1.0 - WGS84_F) * Math.tan(lat2));
+
+        double cosU1 = Math.cos(u1);
+        double cosU2 = Math.cos(u2);
+        double sinU1 = Math.sin(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU1cosU2 = cosU1 * cosU2;
+        double sinU1sinU2 = sinU1 * sinU2;
+
+        double sigma = 0.0;
+        double deltaSigma = 0.0;
+
+        double lambda = l;
+
+        for (int i = 0; i < MAX_ITERATIONS; i++)
+        {
+            double lambdaOrig = lambda;
+
+            double cosLambda = Math.cos(lambda);
+            double sinLambda = Math.sin(lambda);
+
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSqSigma = t1 * t1 + t2 * t2;
+
+            double sinSigma = Math.sqrt(sinSqSigma);
+            double cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+
+            double sinAlpha = (sinSigma == 0) ? 0.0 : cosU1cosU2 * sinLambda / sinSigma;
+            double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            double cos2SM = (cosSqAlpha == 0) ? 0.0 : cosSigma - 2.0 * sinU1sinU2 / cosSqAlpha;
+
+            double uSquared = cosSqAlpha * aSqMinusBSqOverBSq;
+            a = 1 + (uSquared / 16384.0) * (4096.0 + uSquared * (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+            double b = (uSquared / 1024.0) * (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+            double c = (WGS84_F / 16.0) * cosSqAlpha * (4.0 + WGS84_F * (4.0 - 3.0 * cosSqAlpha));
+            double cos2SMSq = cos2SM * cos2SM;
+
+            deltaSigma = b * sinSigma * (cos2SM + (b / 4.0) * (cosSigma * (-1.0 + 2.0 * cos2SMSq) - (b / 6.0) * cos2SM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SMSq)));
+
+            lambda = l + (1.0 - c) * WGS84_F * sinAlpha * (sigma + c * sinSigma * (cos2SM + c * cosSigma * (-1.0 + 2.0 * cos2SM * cos2SM)));
+
+            if (lambda == 0 || Math.abs((lambda - lambdaOrig) / lambda) < 1.0e-12)
+                break;
+        }
+
+        return (float) (WGS84_B * a * (sigma - deltaSigma));
+    }
+
+    /**
+     * Geohash of the position, precision 8 is a cell of about 38 x 19 m
+     */
+    static String geohash(double latitude, double longitude, int precision)
+    {
+        char[] hash = new char[precision];
+
+        double minLatitude = -90.0;
+        double maxLatitude = 90.0;
+        double minLongitude = -180.0;
+        double maxLongitude = 180.0;
+
+        boolean even = true;
+        int bit = 0;
+        int value = 0;
+
+        for (int i = 0; i < precision; )
+        {
+            if (even)
+            {
+                double mid = (minLongitude + maxLongitude) / 2;
+                if (longitude >= mid)
+                {
+                    value = (value << 1) | 1;
+                    minLongitude = mid;
+                } else
+                {
+                    value <<= 1;
+                    maxLongitude = mid;
+                }
+            } else
+            {
+                double mid = (minLatitude + maxLatitude) / 2;
+                if (latitude >= mid)
+                {
+                    value = (value << 1) | 1;
+                    minLatitude = mid;
+                } else
+                {
+                    value <<= 1;
+                    maxLatitude = mid;
+                }
+            }
+
+            even = !even;
+
+            if (++bit == 5)
+            {
+                hash[i++] = GEOHASH_BASE32[value];
+                bit = 0;
+                value = 0;
+            }
+        }
+
+        return new String(hash);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aggregation storage mode: admitted samples are binned into geohash cells per access category and a cell is written as one row when the device leaves it
+ */
+class GridAggregator
+{
+    static final String STORAGE_MODE_RAW = "raw";
+    static final String STORAGE_MODE_GRID = "grid";
+
+    static final int DEFAULT_PRECISION = 8;
+
+    private static final long MAX_CELL_DURATION_MS = 300000;
+    private static final int MAX_CELL_IDS = 16;
+
+    private final CoverageWriter mCoverageWriter;
+    private final int precision;
+
+    private final Map<String, Cell> openCells = new LinkedHashMap<>();
+    private String currentGridId = null;
+
+    private long samples = 0;
+    private long cellsFlushed = 0;
+
+
+    GridAggregator(CoverageWriter writer, int precision)
+    {
+        this.mCoverageWriter = writer;
+        this.precision = Math.max(1, Math.min(12, precision));
+    }
+
+    /**
+     * Adds the sample to its cell, the sample is recycled before the call returns
+     */
+    synchronized void add(CoverageSample sample)
+    {
+        try
+        {
+            String gridId = GeoMath.geohash(sample.latitude, sample.longitude, precision);
+
+            if (!gridId.equals(currentGridId))
+            {
+                flush();
+                currentGridId = gridId;
+            }
+
+            String category = sample.accessCategory != null ? sample.accessCategory : "-";
+
+            Cell cell = openCells.get(category);
+
+            if (cell != null && sample.geoTimestamp - cell.firstTimestamp > MAX_CELL_DURATION_MS)
+            {
+                write(cell);
+                cell = null;
+            }
+
+            if (cell == null)
+            {
+                cell = new Cell(sample.header, gridId, precision, category);
+                openCells.put(category, cell);
+            }
+
+            cell.add(sample);
+            samples++;
+        } finally
+        {
+            sample.recycle();
+        }
+    }
+
+    /**
+     * Writes all open cells, called when the device leaves the current cell and when the session stops
+     */
+    synchronized void flush()
+    {
+        for (Cell cell : openCells.values())
+        {
+            write(cell);
+        }
+
+        openCells.clear();
+        currentGridId = null;
+    }
+
+    synchronized long getSamples()
+    {
+        return samples;
+    }
+
+    synchronized long getCellsFlushed()
+    {
+        return cellsFlushed;
+    }
+
+    private void write(Cell cell)
+    {
+        mCoverageWriter.add(cell);
+        cellsFlushed++;
+    }
+
+    static final class Cell implements CoverageRow
+    {
+        private static final String[] COLUMNS = {
+                "timestamp", "track_id",
+                "client_os", "client_os_version",
+                "app_manufacturer", "app_manufacturer_id", "app_manufacturer_version",
+                "app_version", "app_library_version",
+                "app_geo_timezone",
+                "grid_id", "grid_precision",
+                "app_latitude", "app_longitude",
+                "app_access_category",
+                "sample_count",
+                "app_geo_timestamp_first", "app_geo_timestamp_last",
+                "app_distance",
+                "app_rssi_min", "app_rssi_max", "app_rssi_avg",
+                "app_access_share", "app_cellids",
+                "sent"
+        };
+
+        final TrackHeader header;
+        final String gridId;
+        final int precision;
+        final String category;
+
+        int count = 0;
+        long firstTimestamp = 0;
+        long lastTimestamp = 0;
+
+        double latitudeSum = 0.0;
+        double longitudeSum = 0.0;
+        double distance = 0.0;
+
+        int rssiCount = 0;
+        int rssiMin = Integer.MAX_VALUE;
+        int rssiMax = Integer.MIN_VALUE;
+        long rssiSum = 0;
+
+        final Map<String, Integer> accessShare = new LinkedHashMap<>();
+        final Set<String> cellIds = new LinkedHashSet<>();
+
+        long sequence = 0;
+
+
+        Cell(TrackHeader header, String gridId, int precision, String category)
+        {
+            this.header = header;
+            this.gridId = gridId;
+            this.precision = precision;
+            this.category = category;
+        }
+
+        void add(CoverageSample sample)
+        {
+            if (count == 0)
+                firstTimestamp = sample.geoTimestamp;
+
+            lastTimestamp = sample.geoTimestamp;
+            count++;
+
+            latitudeSum += sample.latitude;
+            longitudeSum += sample.longitude;
+            distance += sample.distance;
+
+            String rssi = sample.getString("app_rssi");
+            if (rssi != null)
+            {
+                try
+                {
+                    int value = (int) Math.round(Double.parseDouble(rssi));
+
+                    rssiMin = Math.min(rssiMin, value);
+                    rssiMax = Math.max(rssiMax, value);
+                    rssiSum += value;
+                    rssiCount++;
+                } catch (NumberFormatException ignored)
+                {
+                }
+            }
+
+            String access = sample.access != null ? sample.access : "-";
+            Integer share = accessShare.get(access);
+            accessShare.put(access, share == null ? 1 : share + 1);
+
+            String cellId = sample.getString("app_cellid");
+            if (cellId != null && !cellId.isEmpty() && cellIds.size() < MAX_CELL_IDS)
+                cellIds.add(cellId);
+        }
+
+        @Override
+        public String getTable()
+        {
+            return CoverageDatabase.TABLE_GRID;
+        }
+
+        @Override
+        public long getReceivedNanos()
+        {
+            return 0;
+        }
+
+        @Override
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        @Override
+        public void setSequence(long sequence)
+        {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void collectColumns(Collection<String> columns)
+        {
+            for (String column : COLUMNS)
+            {
+                columns.add(column);
+            }
+        }
+
+        @Override
+        public String getString(String column)
+        {
+            switch (column)
+            {
+                case "timestamp":
+                case "track_id":
+                    return header.trackId;
+                case "client_os":
+                    return header.clientOs;
+                case "client_os_version":
+                    return header.clientOsVersion;
+                case "app_manufacturer":
+                    return header.manufacturer;
+                case "app_manufacturer_id":
+                    return header.manufacturerId;
+                case "app_manufacturer_version":
+                    return header.manufacturerVersion;
+                case "app_version":
+                    return header.appVersion;
+                case "app_library_version":
+                    return header.libraryVersion;
+                case "app_geo_timezone":
+                    return Integer.toString(header.timezone);
+                case "grid_id":
+                    return gridId;
+                case "grid_precision":
+                    return Integer.toString(precision);
+                case "app_latitude":
+                    return Double.toString(latitudeSum / count);
+                case "app_longitude":
+                    return Double.toString(longitudeSum / count);
+                case "app_access_category":
+                    return category;
+                case "sample_count":
+                    return Integer.toString(count);
+                case "app_geo_timestamp_first":
+                    return Long.toString(firstTimestamp);
+                case "app_geo_timestamp_last":
+                    return Long.toString(lastTimestamp);
+                case "app_distance":
+                    return Double.toString(distance);
+                case "app_rssi_min":
+                    return rssiCount > 0 ? Integer.toString(rssiMin) : null;
+                case "app_rssi_max":
+                    return rssiCount > 0 ? Integer.toString(rssiMax) : null;
+                case "app_rssi_avg":
+                    return rssiCount > 0 ? Double.toString((double) rssiSum / rssiCount) : null;
+                case "app_access_share":
+                    return toShare();
+                case "app_cellids":
+                    return new JSONArray(cellIds).toString();
+                case "sent":
+                    return "false";
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Cells are not pooled, they are created at the rate the device leaves them
+         */
+        @Override
+        public void recycle()
+        {
+        }
+
+        private String toShare()
+        {
+            JSONObject json = new JSONObject();
+
+            try
+            {
+                for (Map.Entry<String, Integer> entry : accessShare.entrySet())
+                {
+                    json.put(entry.getKey(), (double) entry.getValue() / count);
+                }
+            } catch (JSONException ex)
+            {
+                return null;
+            }
+
+            return json.toString();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import com.zafaco.moduleCommon.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Edge-triggered health monitor: warning conditions are evaluated when their inputs change and an event is only emitted on a debounced transition
+ */
+class HealthMonitor
+{
+    interface Listener
+    {
+        void onHealthEvent(JSONObject message);
+    }
+
+    private static final HealthWarning[] WARNINGS = HealthWarning.values();
+
+    private static final long INFO_DELAY_MS = 20000;
+    private static final int INFO_COUNTER = 20;
+
+    private final DeviceState.Source mDeviceStateSource;
+    private final CoverageIngest.Clock mClock;
+    private final Listener mListener;
+
+    private final long[] raiseMs = new long[WARNINGS.length];
+    private final long[] clearMs = new long[WARNINGS.length];
+
+    private final boolean[] active = new boolean[WARNINGS.length];
+    private final long[] pendingSince = new long[WARNINGS.length];
+
+    private ScheduledExecutorService mScheduler = null;
+    private ScheduledFuture<?> mPendingEvaluation = null;
+    private ScheduledFuture<?> mPendingInfo = null;
+
+    private int accuracyThreshold = 50;
+    private int locationAgeThreshold = 1000;
+
+    private volatile double appAccuracy = -1.0;
+    private volatile double appLocationAgeMs = -1;
+
+    private final AtomicInteger locationConditions = new AtomicInteger(0);
+
+    private HealthWarning lastEmitted = null;
+    private boolean hasEmitted = false;
+
+    private final AtomicLong evaluations = new AtomicLong(0);
+    private final AtomicLong events = new AtomicLong(0);
+
+    private static final String TAG = "HealthMonitor";
+
+
+    private final Runnable evaluate = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            evaluate();
+        }
+    };
+
+    private final Runnable info = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                JSONObject message = new JSONObject();
+                message.put("app_accuracy", appAccuracy);
+                message.put("warning", "info");
+                message.put("counter", INFO_COUNTER);
+                message.put("show", false);
+
+                emit(message);
+            } catch (JSONException ex)
+            {
+                Log.warning(TAG, "info", ex);
+            }
+        }
+    };
+
+
+    /**
+     * @param clock monotonic time in ms, the debounce delays are measured with it
+     */
+    HealthMonitor(DeviceState.Source deviceStateSource, CoverageIngest.Clock clock, Listener listener)
+    {
+        this.mDeviceStateSource = deviceStateSource;
+        this.mClock = clock;
+        this.mListener = listener;
+
+        for (HealthWarning warning : WARNINGS)
+        {
+            raiseMs[warning.ordinal()] = warning.defaultRaiseMs;
+            clearMs[warning.ordinal()] = warning.defaultClearMs;
+        }
+    }
+
+    /**
+     * Sets how long a condition must hold before the warning is raised, and how long it must be absent before the warning is cleared
+     */
+    synchronized void setDebounce(HealthWarning warning, long raise, long clear)
+    {
+        raiseMs[warning.ordinal()] = Math.max(0, raise);
+        clearMs[warning.ordinal()] = Math.max(0, clear);
+    }
+
+    synchronized void start(ScheduledExecutorService scheduler, int accuracyThreshold, int locationAgeThreshold)
+    {
+        this.mScheduler = scheduler;
+        this.accuracyThreshold = accuracyThreshold;
+        this.locationAgeThreshold = locationAgeThreshold;
+
+        appAccuracy = -1.0;
+        appLocationAgeMs = -1;
+        locationConditions.set(0);
+
+        for (int i = 0; i < WARNINGS.length; i++)
+        {
+            active[i] = false;
+            pendingSince[i] = -1;
+        }
+
+        lastEmitted = null;
+        hasEmitted = false;
+
+        submit(evaluate);
+        resetInfo();
+    }
+
+    synchronized void stop()
+    {
+        if (mPendingEvaluation != null)
+            mPendingEvaluation.cancel(false);
+
+        if (mPendingInfo != null)
+            mPendingInfo.cancel(false);
+
+        mPendingEvaluation = null;
+        mPendingInfo = null;
+        mScheduler = null;
+
+        Log.debug(TAG, "HealthMonitor Stopped: evaluations[" + evaluations.get() + "] - events[" + events.get() + "]");
+    }
+
+    /**
+     * Restarts the delay of the one-time info event
+     */
+    synchronized void resetInfo()
+    {
+        if (mScheduler == null)
+            return;
+
+        if (mPendingInfo != null)
+            mPendingInfo.cancel(false);
+
+        try
+        {
+            mPendingInfo = mScheduler.schedule(info, INFO_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex)
+        {
+            mPendingInfo = null;
+        }
+    }
+
+    /**
+     * Updates the location inputs, an evaluation is only scheduled if one of the location conditions flipped
+     */
+    void onLocation(double accuracy, double locationAgeMs)
+    {
+        appAccuracy = accuracy;
+        appLocationAgeMs = locationAgeMs;
+
+        int conditions = (accuracy > accuracyThreshold ? 1 : 0) | (locationAgeMs > locationAgeThreshold ? 2 : 0);
+
+        if (locationConditions.getAndSet(conditions) != conditions)
+            submit(evaluate);
+    }
+
+    void onDeviceStateChanged()
+    {
+        submit(evaluate);
+    }
+
+    long getEvaluations()
+    {
+        return evaluations.get();
+    }
+
+    long getEvents()
+    {
+        return events.get();
+    }
+
+    private synchronized void submit(Runnable task)
+    {
+        if (mScheduler == null)
+            return;
+
+        try
+        {
+            mScheduler.execute(task);
+        } catch (RejectedExecutionException ex)
+        {
+            Log.warning(TAG, "submit: scheduler shut down", ex);
+        }
+    }
+
+    private synchronized void evaluate()
+    {
+        if (mScheduler == null)
+            return;
+
+        evaluations.incrementAndGet();
+
+        DeviceState deviceState = mDeviceStateSource.get();
+
+        long now = mClock.currentTimeMillis();
+        long nextCheck = Long.MAX_VALUE;
+
+        HealthWarning top = null;
+
+        for (HealthWarning warning : WARNINGS)
+        {
+            int i = warning.ordinal();
+            boolean condition = isRaised(warning, deviceState);
+
+            if (condition == active[i])
+            {
+                pendingSince[i] = -1;
+            } else
+            {
+                if (pendingSince[i] < 0)
+                    pendingSince[i] = now;
+
+                long delay = condition ? raiseMs[i] : clearMs[i];
+
+                if (now - pendingSince[i] >= delay)
+                {
+                    active[i] = condition;
+                    pendingSince[i] = -1;
+                } else
+                {
+                    nextCheck = Math.min(nextCheck, pendingSince[i] + delay);
+                }
+            }
+
+            if (top == null && active[i])
+                top = warning;
+        }
+
+        if (mPendingEvaluation != null)
+        {
+            mPendingEvaluation.cancel(false);
+            mPendingEvaluation = null;
+        }
+
+        if (nextCheck != Long.MAX_VALUE)
+            mPendingEvaluation = mScheduler.schedule(evaluate, nextCheck - now, TimeUnit.MILLISECONDS);
+
+        if (hasEmitted && top == lastEmitted)
+            return;
+
+        lastEmitted = top;
+        hasEmitted = true;
+
+        try
+        {
+            emit(toMessage(top, deviceState));
+        } catch (JSONException ex)
+        {
+            Log.warning(TAG, "evaluate", ex);
+        }
+    }
+
+    private boolean isRaised(HealthWarning warning, DeviceState deviceState)
+    {
+        switch (warning)
+        {
+            case WIFI:
+                return deviceState.wifi;
+            case AIRPLANE:
+                return deviceState.airplane;
+            case GPS:
+                return appAccuracy > accuracyThreshold;
+            case AGE:
+                return appLocationAgeMs > locationAgeThreshold;
+            case SIM_MISSING:
+                return deviceState.simState != 5 || deviceState.activeSimCount < 1;
+            case SIM_MULTIPLE:
+                return deviceState.activeSimCount > 1;
+            default:
+                return false;
+        }
+    }
+
+    private JSONObject toMessage(HealthWarning warning, DeviceState deviceState) throws JSONException
+    {
+        JSONObject message = new JSONObject();
+
+        message.put("app_accuracy", appAccuracy);
+
+        if (warning == null)
+        {
+            message.put("warning", "no");
+            message.put("priority", 0);
+
+            return message;
+        }
+
+        message.put("warning", warning.getLabel());
+        message.put("priority", warning.getPriority());
+
+        switch (warning)
+        {
+            case WIFI:
+                message.put("description: ", "mTool.isWifi(ctx) = " + deviceState.wifi);
+                break;
+            case AIRPLANE:
+                message.put("description: ", "mTool.isAirplane(ctx) = " + deviceState.airplane);
+                break;
+            case GPS:
+                message.put("accuracyFilterInitial", accuracyThreshold);
+                break;
+            case AGE:
+                message.put("description", "Current GPS age is over " + locationAgeThreshold + "ms: " + appLocationAgeMs);
+                break;
+            case SIM_MULTIPLE:
+                message.put("description: ", "mTool.getActiveSimCount(ctx) = " + deviceState.activeSimCount);
+                break;
+            default:
+                break;
+        }
+
+        return message;
+    }
+
+    private void emit(JSONObject message)
+    {
+        events.incrementAndGet();
+
+        mListener.onHealthEvent(message);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Warnings reported to the info handler, in order of precedence
+ */
+public enum HealthWarning
+{
+    WIFI("wifi", 10, 0, 1000),
+    AIRPLANE("airplane", 30, 0, 0),
+    GPS("gps", 1, 2000, 2000),
+    AGE("age", 30, 2000, 2000),
+    SIM_MISSING("sim<1", 30, 1000, 1000),
+    SIM_MULTIPLE("sim>1", 30, 1000, 1000);
+
+    private final String label;
+    private final int priority;
+
+    final long defaultRaiseMs;
+    final long defaultClearMs;
+
+
+    HealthWarning(String label, int priority, long defaultRaiseMs, long defaultClearMs)
+    {
+        this.label = label;
+        this.priority = priority;
+        this.defaultRaiseMs = defaultRaiseMs;
+        this.defaultClearMs = defaultClearMs;
+    }
+
+    public String getLabel()
+    {
+        return label;
+    }
+
+    public int getPriority()
+    {
+        return priority;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Re-issues the location request with interval and smallest displacement matched to the current motion class
+ * <p>
+ * A faster class is entered as soon as the velocity leaves the current band by more than the hysteresis, a slower class only after it held for the downgrade delay.
+ */
+class LocationScheduler
+{
+    interface Requester
+    {
+        void requestUpdates(int intervalMs, int smallestDisplacement, int priority);
+    }
+
+    static final double HYSTERESIS = 1.0;
+    static final long DOWNGRADE_DELAY_MS = 15000;
+
+    private final Requester mRequester;
+
+    private final int minIntervalMs;
+    private final int initialDisplacement;
+    private final int priority;
+
+    private MotionClass motionClass = null;
+    private MotionClass pendingClass = null;
+    private long pendingSince = -1;
+
+    private int intervalMs;
+    private int smallestDisplacement;
+
+    private long requests = 0;
+
+
+    /**
+     * @param minIntervalMs interval of the initial request and lower bound of all intervals
+     * @param priority      priority of all requests, the accuracy filter rejects fixes of the balanced and low power providers
+     */
+    LocationScheduler(Requester requester, int minIntervalMs, int initialDisplacement, int priority)
+    {
+        this.mRequester = requester;
+        this.minIntervalMs = minIntervalMs;
+        this.initialDisplacement = initialDisplacement;
+        this.priority = priority;
+    }
+
+    /**
+     * Issues the initial request, used until the first velocity is known
+     */
+    synchronized void start()
+    {
+        motionClass = null;
+        pendingClass = null;
+        pendingSince = -1;
+
+        request(minIntervalMs, initialDisplacement);
+    }
+
+    /**
+     * @param now monotonic time in ms
+     */
+    synchronized void onVelocity(double velocity, long now)
+    {
+        if (velocity < 0)
+            return;
+
+        MotionClass candidate = classify(velocity);
+
+        if (candidate == motionClass)
+        {
+            pendingClass = null;
+            pendingSince = -1;
+            return;
+        }
+
+        if (motionClass != null && candidate.ordinal() < motionClass.ordinal())
+        {
+            if (candidate != pendingClass)
+            {
+                pendingClass = candidate;
+                pendingSince = now;
+            }
+
+            if (now - pendingSince < DOWNGRADE_DELAY_MS)
+                return;
+        }
+
+        motionClass = candidate;
+        pendingClass = null;
+        pendingSince = -1;
+
+        request(getIntervalMs(candidate), candidate.minDistance);
+    }
+
+    synchronized MotionClass getMotionClass()
+    {
+        return motionClass;
+    }
+
+    synchronized int getIntervalMs()
+    {
+        return intervalMs;
+    }
+
+    synchronized int getSmallestDisplacement()
+    {
+        return smallestDisplacement;
+    }
+
+    synchronized long getRequests()
+    {
+        return requests;
+    }
+
+    private MotionClass classify(double velocity)
+    {
+        if (motionClass == null)
+            return MotionClass.fromVelocity(velocity);
+
+        if (velocity > motionClass.maxVelocity + HYSTERESIS)
+            return MotionClass.fromVelocity(velocity);
+
+        if (velocity <= motionClass.getMinVelocity() - HYSTERESIS)
+            return MotionClass.fromVelocity(velocity);
+
+        return motionClass;
+    }
+
+    /**
+     * Time to cover the minimum distance at the upper velocity of the class, so no admissible fix is skipped
+     */
+    private int getIntervalMs(MotionClass motionClass)
+    {
+        if (Double.isInfinite(motionClass.maxVelocity))
+            return minIntervalMs;
+
+        return Math.max(minIntervalMs, (int) (1000 * motionClass.minDistance / (motionClass.maxVelocity + HYSTERESIS)));
+    }
+
+    private void request(int intervalMs, int smallestDisplacement)
+    {
+        this.intervalMs = intervalMs;
+        this.smallestDisplacement = smallestDisplacement;
+
+        requests++;
+
+        mRequester.requestUpdates(intervalMs, smallestDisplacement, priority);
+    }
+}
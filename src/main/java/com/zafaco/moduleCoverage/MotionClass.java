@@ -0,0 +1,58 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Motion classes derived from the reported velocity, with the minimum distance between two admitted samples
+ */
+enum MotionClass
+{
+    WALKING(10, 4.0),
+    BIKING(25, 10.0),
+    DRIVING(50, Double.POSITIVE_INFINITY);
+
+    private static final MotionClass[] VALUES = values();
+
+    final int minDistance;
+    final double maxVelocity;
+
+
+    MotionClass(int minDistance, double maxVelocity)
+    {
+        this.minDistance = minDistance;
+        this.maxVelocity = maxVelocity;
+    }
+
+    /**
+     * Lower velocity bound of the class, the upper bound of the previous class
+     */
+    double getMinVelocity()
+    {
+        return ordinal() == 0 ? Double.NEGATIVE_INFINITY : VALUES[ordinal() - 1].maxVelocity;
+    }
+
+    static MotionClass fromVelocity(double velocity)
+    {
+        for (MotionClass motionClass : VALUES)
+        {
+            if (velocity <= motionClass.maxVelocity)
+                return motionClass;
+        }
+
+        return DRIVING;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable output of a network or wireless listener, stamped with the ingest clock when it was received
+ */
+final class NetworkState
+{
+    static final NetworkState EMPTY = new NetworkState(new JSONObject(), -1, 0);
+
+    /**
+     * Private copy of the listener output, never modified after construction
+     */
+    final JSONObject data;
+    final int accessId;
+    final long timestamp;
+
+
+    private NetworkState(JSONObject data, int accessId, long timestamp)
+    {
+        this.data = data;
+        this.accessId = accessId;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Copies the listener output so later changes by the listener cannot leak into samples
+     *
+     * @param extra optional key added to the copy, may be null
+     */
+    static NetworkState of(JSONObject message, int accessId, long timestamp, String extraKey, Object extra) throws JSONException
+    {
+        JSONObject data = new JSONObject();
+
+        Iterator<String> keys = message.keys();
+        while (keys.hasNext())
+        {
+            String key = keys.next();
+            data.put(key, message.opt(key));
+        }
+
+        if (extraKey != null)
+            data.put(extraKey, extra);
+
+        return new NetworkState(data, accessId, timestamp);
+    }
+
+    /**
+     * Small history of recent states, published copy-on-write through one atomic reference
+     * <p>
+     * Listener threads publish a new array per state, the geo path only reads the current array and never locks or allocates.
+     */
+    static final class History
+    {
+        static final int DEFAULT_CAPACITY = 8;
+
+        private static final NetworkState[] NONE = new NetworkState[0];
+
+        private final int capacity;
+        private final AtomicReference<NetworkState[]> mStates = new AtomicReference<>(NONE);
+
+
+        History(int capacity)
+        {
+            this.capacity = Math.max(1, capacity);
+        }
+
+        void publish(NetworkState state)
+        {
+            while (true)
+            {
+                NetworkState[] current = mStates.get();
+                NetworkState[] next = new NetworkState[Math.min(current.length + 1, capacity)];
+
+                next[0] = state;
+                System.arraycopy(current, 0, next, 1, next.length - 1);
+
+                if (mStates.compareAndSet(current, next))
+                    return;
+            }
+        }
+
+        /**
+         * State whose timestamp is closest to the given time, the newer one on a tie, or null if nothing was published
+         */
+        NetworkState select(long timestamp)
+        {
+            NetworkState[] states = mStates.get();
+
+            NetworkState best = null;
+            long bestDistance = Long.MAX_VALUE;
+
+            for (NetworkState state : states)
+            {
+                long distance = Math.abs(timestamp - state.timestamp);
+
+                if (distance < bestDistance)
+                {
+                    best = state;
+                    bestDistance = distance;
+                }
+            }
+
+            return best;
+        }
+
+        NetworkState latest()
+        {
+            NetworkState[] states = mStates.get();
+
+            return states.length > 0 ? states[0] : null;
+        }
+    }
+}
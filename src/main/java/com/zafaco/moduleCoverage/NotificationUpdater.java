@@ -0,0 +1,168 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.text.HtmlCompat;
+
+/**
+ * Coalesces counter changes into notification refreshes of at most one per interval, a change of the access category refreshes immediately
+ */
+class NotificationUpdater
+{
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mBuilder;
+    private final Handler mHandler;
+
+    private final int notificationId;
+    private final long minIntervalMs;
+
+    private CoverageCounter counter;
+
+    private AccessCategory lastCategory = null;
+    private String lastLine1 = null;
+    private String lastLine2 = null;
+
+    private long lastRefresh = 0;
+    private boolean isScheduled = false;
+
+    private long updatesPosted = 0;
+    private long updatesSuppressed = 0;
+
+    private final Runnable pendingRefresh = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (NotificationUpdater.this)
+            {
+                isScheduled = false;
+                refresh();
+            }
+        }
+    };
+
+
+    NotificationUpdater(Context ctx, String channelId, int notificationId, int appIcon, PendingIntent contentIntent, long minIntervalMs)
+    {
+        this.notificationId = notificationId;
+        this.minIntervalMs = Math.max(0, minIntervalMs);
+
+        mNotificationManager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        mHandler = new Handler(Looper.getMainLooper());
+
+        mBuilder = new NotificationCompat.Builder(ctx, channelId)
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setCategory(NotificationCompat.CATEGORY_SERVICE)
+                .setOnlyAlertOnce(true)
+                .setSmallIcon(appIcon)
+                .setContentIntent(contentIntent)
+                .setColor(0x3B78A4)
+                .setContentTitle("Netzverfügbarkeit");
+    }
+
+    synchronized void setCounter(CoverageCounter counter)
+    {
+        this.counter = counter;
+    }
+
+    /**
+     * Signals a counter change caused by a sample of the given access category
+     */
+    synchronized void update(AccessCategory category)
+    {
+        boolean categoryChanged = lastCategory != category;
+        lastCategory = category;
+
+        long elapsed = SystemClock.elapsedRealtime() - lastRefresh;
+
+        if (categoryChanged || elapsed >= minIntervalMs)
+        {
+            refresh();
+            return;
+        }
+
+        updatesSuppressed++;
+
+        if (!isScheduled)
+        {
+            isScheduled = true;
+            mHandler.postDelayed(pendingRefresh, minIntervalMs - elapsed);
+        }
+    }
+
+    synchronized void stop()
+    {
+        mHandler.removeCallbacks(pendingRefresh);
+        isScheduled = false;
+    }
+
+    synchronized long getUpdatesPosted()
+    {
+        return updatesPosted;
+    }
+
+    synchronized long getUpdatesSuppressed()
+    {
+        return updatesSuppressed;
+    }
+
+    private void refresh()
+    {
+        if (isScheduled)
+        {
+            mHandler.removeCallbacks(pendingRefresh);
+            isScheduled = false;
+        }
+
+        lastRefresh = SystemClock.elapsedRealtime();
+
+        if (counter == null || mNotificationManager == null)
+            return;
+
+        CoverageCounter.Snapshot snapshot = counter.snapshot();
+
+        String sMessageLine1 = "<b>Gesamt:</b> " + snapshot.getSamples() + " / <b>Kein Netz:</b> " + snapshot.getSamples(AccessCategory.UNKNOWN);
+        String sMessageLine2 = "<b>2G:</b> " + snapshot.getSamples(AccessCategory.G2) + " / <b>3G:</b> " + snapshot.getSamples(AccessCategory.G3) + " / <b>4G:</b> " + snapshot.getSamples(AccessCategory.G4) + " / <b>5G:</b> " + snapshot.getSamples(AccessCategory.G5);
+
+        if (sMessageLine1.equals(lastLine1) && sMessageLine2.equals(lastLine2))
+        {
+            updatesSuppressed++;
+            return;
+        }
+
+        lastLine1 = sMessageLine1;
+        lastLine2 = sMessageLine2;
+
+        NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
+        inboxStyle.addLine(HtmlCompat.fromHtml(sMessageLine1, HtmlCompat.FROM_HTML_MODE_LEGACY));
+        inboxStyle.addLine(HtmlCompat.fromHtml(sMessageLine2, HtmlCompat.FROM_HTML_MODE_LEGACY));
+
+        mBuilder.setStyle(inboxStyle);
+
+        mNotificationManager.notify(notificationId, mBuilder.build());
+
+        updatesPosted++;
+    }
+}
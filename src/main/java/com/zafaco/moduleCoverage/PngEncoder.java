@@ -0,0 +1,130 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal PNG encoder for 8 bit RGBA images without Android dependencies
+ */
+final class PngEncoder
+{
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private PngEncoder()
+    {
+    }
+
+    /**
+     * @param argb pixels in row order, one ARGB int per pixel
+     */
+    static byte[] encode(int width, int height, int[] argb)
+    {
+        if (argb.length != width * height)
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + argb.length);
+
+        byte[] raw = new byte[height * (width * 4 + 1)];
+
+        int offset = 0;
+        for (int y = 0; y < height; y++)
+        {
+            raw[offset++] = 0;
+
+            for (int x = 0; x < width; x++)
+            {
+                int pixel = argb[y * width + x];
+
+                raw[offset++] = (byte) (pixel >>> 16);
+                raw[offset++] = (byte) (pixel >>> 8);
+                raw[offset++] = (byte) pixel;
+                raw[offset++] = (byte) (pixel >>> 24);
+            }
+        }
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            DataOutputStream output = new DataOutputStream(bytes);
+
+            output.write(SIGNATURE);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream headerOutput = new DataOutputStream(header);
+            headerOutput.writeInt(width);
+            headerOutput.writeInt(height);
+            headerOutput.writeByte(8);
+            headerOutput.writeByte(COLOR_TYPE_RGBA);
+            headerOutput.writeByte(0);
+            headerOutput.writeByte(0);
+            headerOutput.writeByte(0);
+
+            writeChunk(output, "IHDR", header.toByteArray());
+            writeChunk(output, "IDAT", deflate(raw));
+            writeChunk(output, "IEND", new byte[0]);
+
+            return bytes.toByteArray();
+        } catch (IOException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] deflate(byte[] raw)
+    {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        try
+        {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, raw.length / 16));
+            byte[] buffer = new byte[8192];
+
+            while (!deflater.finished())
+            {
+                int length = deflater.deflate(buffer);
+                bytes.write(buffer, 0, length);
+            }
+
+            return bytes.toByteArray();
+        } finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static void writeChunk(DataOutputStream output, String type, byte[] data) throws IOException
+    {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        output.writeInt(data.length);
+        output.write(typeBytes);
+        output.write(data);
+        output.writeInt((int) crc.getValue());
+    }
+}
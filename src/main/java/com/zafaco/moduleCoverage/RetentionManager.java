@@ -0,0 +1,540 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.zafaco.moduleCommon.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reclaims space of the measurements database between sessions: purges tracks that are sent, deleted, too old or beyond the size budget and
+ * compacts the file with incremental_vacuum in short time slices. Spilled heatmap tiles follow the age limit.
+ * <p>
+ * All work runs on a background thread and only while no session is active, a starting session interrupts the run at the next step.
+ * The one-time conversion of an existing database to incremental auto vacuum needs a full VACUUM, a starting session aborts it and
+ * the conversion is tried again after the session.
+ */
+class RetentionManager
+{
+    private static final int DELETE_CHUNK_ROWS = 1000;
+    private static final int VACUUM_PAGES_PER_STEP = 64;
+    private static final long SLICE_MS = 50;
+    private static final long STEP_DELAY_MS = 200;
+    private static final long START_DELAY_MS = 5000;
+    private static final long THREAD_KEEP_ALIVE_S = 30;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Context ctx;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    private volatile boolean sessionActive = false;
+    private volatile long maxAgeMs = 0;
+    private volatile long maxBytes = 0;
+
+    private boolean scheduled = false;
+
+    private volatile CancellationSignal mConversionCancel = null;
+
+    private final AtomicLong rowsPurged = new AtomicLong(0);
+    private final AtomicLong tracksPurged = new AtomicLong(0);
+    private final AtomicLong bytesReclaimed = new AtomicLong(0);
+    private final AtomicLong vacuumSteps = new AtomicLong(0);
+    private final AtomicLong tilesPurged = new AtomicLong(0);
+
+    private static RetentionManager sInstance = null;
+
+    private static final String TAG = "RetentionManager";
+
+
+    /**
+     * The instance shared by the measurement service and the upload job, so both see the same session state
+     */
+    static synchronized RetentionManager getInstance(Context ctx)
+    {
+        Context application = ctx.getApplicationContext() != null ? ctx.getApplicationContext() : ctx;
+
+        if (sInstance == null || sInstance.ctx != application)
+            sInstance = new RetentionManager(application);
+
+        return sInstance;
+    }
+
+    RetentionManager(Context ctx)
+    {
+        this.ctx = ctx;
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
+        mExecutor.setKeepAliveTime(THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param maxAgeMs tracks older than this are purged, 0 disables the age limit
+     * @param maxBytes oldest tracks are purged while the database is larger, 0 disables the size budget
+     */
+    void setLimits(long maxAgeMs, long maxBytes)
+    {
+        this.maxAgeMs = Math.max(0, maxAgeMs);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Stops a running purge or compaction at the next step and aborts a running auto vacuum conversion, never waits and may be called
+     * on the main thread before a session opens the database
+     */
+    void onSessionStarted()
+    {
+        sessionActive = true;
+
+        CancellationSignal conversionCancel = mConversionCancel;
+
+        if (conversionCancel != null)
+            conversionCancel.cancel();
+    }
+
+    /**
+     * Schedules a retention run after the session has released the database
+     */
+    void onSessionStopped()
+    {
+        sessionActive = false;
+
+        requestRun();
+    }
+
+    /**
+     * Schedules a retention run, e.g. after an upload marked tracks sent; the run is skipped while a session is active
+     */
+    synchronized void requestRun()
+    {
+        if (scheduled)
+            return;
+
+        try
+        {
+            mExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (RetentionManager.this)
+                    {
+                        scheduled = false;
+                    }
+
+                    runRetention();
+                }
+            }, START_DELAY_MS, TimeUnit.MILLISECONDS);
+
+            scheduled = true;
+        } catch (RejectedExecutionException ex)
+        {
+            Log.warning(TAG, "requestRun: executor shut down", ex);
+        }
+    }
+
+    long getRowsPurged()
+    {
+        return rowsPurged.get();
+    }
+
+    long getTracksPurged()
+    {
+        return tracksPurged.get();
+    }
+
+    long getBytesReclaimed()
+    {
+        return bytesReclaimed.get();
+    }
+
+    long getVacuumSteps()
+    {
+        return vacuumSteps.get();
+    }
+
+    long getTilesPurged()
+    {
+        return tilesPurged.get();
+    }
+
+    /**
+     * One retention run on the calling thread, the compaction steps are scheduled on the background thread afterwards
+     */
+    void runRetention()
+    {
+        if (sessionActive)
+            return;
+
+        purgeTiles();
+
+        SQLiteDatabase database = null;
+
+        try
+        {
+            database = CoverageDatabase.open(ctx);
+
+            long sizeBefore = getDatabaseSize(database);
+
+            purgeFlagged(database);
+            purgeOld(database);
+            purgeOverBudget(database);
+
+            ensureIncrementalVacuum(database);
+
+            database.close();
+            database = null;
+
+            Log.debug(TAG, "Retention: rows[" + rowsPurged.get() + "] - tracks[" + tracksPurged.get() + "] - size[" + sizeBefore + "]");
+
+            scheduleVacuumStep(sizeBefore);
+        } catch (SQLiteException ex)
+        {
+            Log.warning(TAG, "runRetention: SQLiteException", ex);
+        } finally
+        {
+            if (database != null)
+                database.close();
+        }
+    }
+
+    /**
+     * Deletes heatmap tiles that were not written within the age limit; a tile aggregates many tracks, so the size budget does not apply
+     */
+    private void purgeTiles()
+    {
+        if (maxAgeMs <= 0)
+            return;
+
+        int deleted = CoverageTilePyramid.prune(new File(ctx.getFilesDir(), Coverage.TILE_DIRECTORY), System.currentTimeMillis() - maxAgeMs);
+
+        if (deleted > 0)
+        {
+            tilesPurged.addAndGet(deleted);
+            Log.debug(TAG, "Retention: tiles[" + deleted + "]");
+        }
+    }
+
+    private void purgeFlagged(SQLiteDatabase database)
+    {
+        for (Track track : queryTracks(database, "sent = 'true' OR deleted = 'true'", null))
+        {
+            if (sessionActive)
+                return;
+
+            purgeTrack(database, track, track.deleted);
+        }
+    }
+
+    private void purgeOld(SQLiteDatabase database)
+    {
+        if (maxAgeMs <= 0)
+            return;
+
+        long limit = System.currentTimeMillis() - maxAgeMs;
+
+        for (Track track : queryTracks(database, null, null))
+        {
+            if (sessionActive)
+                return;
+
+            if (track.timestamp > 0 && track.timestamp < limit)
+                purgeTrack(database, track, true);
+        }
+    }
+
+    /**
+     * Purges the oldest tracks until the used size is within the budget, free pages do not count against the budget
+     */
+    private void purgeOverBudget(SQLiteDatabase database)
+    {
+        if (maxBytes <= 0)
+            return;
+
+        for (Track track : queryTracks(database, null, "CAST(timestamp AS INTEGER) ASC"))
+        {
+            if (sessionActive)
+                return;
+
+            long used = getDatabaseSize(database) - CoverageDatabase.pragmaLong(database, "freelist_count") * CoverageDatabase.pragmaLong(database, "page_size");
+
+            if (used <= maxBytes)
+                return;
+
+            purgeTrack(database, track, true);
+        }
+    }
+
+    /**
+     * Deletes the rows of the track in chunks of autocommitted statements, so a starting session waits at most for one chunk
+     *
+     * @param removeMeta also remove the meta row, otherwise only the measurements are dropped and the sent flag is kept
+     */
+    private void purgeTrack(SQLiteDatabase database, Track track, boolean removeMeta)
+    {
+        String table = CoverageSchema.quote(track.table);
+        String sql = "DELETE FROM " + table + " WHERE rowid IN (SELECT rowid FROM " + table + " WHERE track_id = ? LIMIT " + DELETE_CHUNK_ROWS + ")";
+
+        SQLiteStatement statement = database.compileStatement(sql);
+        try
+        {
+            while (!sessionActive)
+            {
+                statement.bindString(1, track.trackId);
+
+                int deleted = statement.executeUpdateDelete();
+                rowsPurged.addAndGet(deleted);
+
+                if (deleted < DELETE_CHUNK_ROWS)
+                    break;
+            }
+        } finally
+        {
+            statement.close();
+        }
+
+        if (sessionActive)
+            return;
+
+        if (removeMeta)
+            database.delete(CoverageDatabase.TABLE_META, "ftable = ? AND fkey = ?", new String[]{track.table, track.trackId});
+
+        tracksPurged.incrementAndGet();
+    }
+
+    /**
+     * Switches a database created before {@link CoverageDatabase#open} set the mode to incremental auto vacuum, which needs one
+     * full VACUUM; only runs while no session is active, a starting session cancels it and SQLite rolls the VACUUM back
+     */
+    private void ensureIncrementalVacuum(SQLiteDatabase database)
+    {
+        if (getAutoVacuum(database) == AUTO_VACUUM_INCREMENTAL)
+            return;
+
+        CancellationSignal conversionCancel = new CancellationSignal();
+        mConversionCancel = conversionCancel;
+
+        try
+        {
+            // a session started before the signal was published is seen here, one started after it cancels the signal
+            if (sessionActive)
+                return;
+
+            long start = System.currentTimeMillis();
+
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+
+            Cursor cursor = database.rawQuery("VACUUM", null, conversionCancel);
+            try
+            {
+                cursor.moveToNext();
+            } finally
+            {
+                cursor.close();
+            }
+
+            Log.debug(TAG, "ensureIncrementalVacuum: converted in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (OperationCanceledException ex)
+        {
+            Log.debug(TAG, "ensureIncrementalVacuum: aborted by a starting session");
+        } finally
+        {
+            mConversionCancel = null;
+        }
+    }
+
+    private void scheduleVacuumStep(final long sizeBefore)
+    {
+        try
+        {
+            mExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    vacuumStep(sizeBefore);
+                }
+            }, STEP_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex)
+        {
+            Log.warning(TAG, "scheduleVacuumStep: executor shut down", ex);
+        }
+    }
+
+    /**
+     * Releases free pages for at most one time slice, then yields and reschedules itself until the free list is empty
+     */
+    private void vacuumStep(long sizeBefore)
+    {
+        if (sessionActive)
+            return;
+
+        vacuumSteps.incrementAndGet();
+
+        SQLiteDatabase database = null;
+
+        try
+        {
+            database = CoverageDatabase.open(ctx);
+
+            long deadline = System.currentTimeMillis() + SLICE_MS;
+            long free = CoverageDatabase.pragmaLong(database, "freelist_count");
+
+            while (free > 0 && !sessionActive && System.currentTimeMillis() < deadline)
+            {
+                Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STEP + ")", null);
+                try
+                {
+                    while (cursor.moveToNext())
+                    {
+                    }
+                } finally
+                {
+                    cursor.close();
+                }
+
+                free = CoverageDatabase.pragmaLong(database, "freelist_count");
+            }
+
+            long sizeAfter = getDatabaseSize(database);
+
+            if (free > 0 && !sessionActive)
+            {
+                scheduleVacuumStep(sizeBefore);
+                return;
+            }
+
+            long reclaimed = Math.max(0, sizeBefore - sizeAfter);
+            bytesReclaimed.addAndGet(reclaimed);
+
+            Log.debug(TAG, "Vacuum: reclaimed[" + reclaimed + "] - size[" + sizeAfter + "] - interrupted[" + sessionActive + "]");
+        } catch (SQLiteException ex)
+        {
+            Log.warning(TAG, "vacuumStep: SQLiteException", ex);
+        } finally
+        {
+            if (database != null)
+                database.close();
+        }
+    }
+
+    private List<Track> queryTracks(SQLiteDatabase database, String selection, String order)
+    {
+        List<Track> tracks = new ArrayList<>();
+
+        String sql = "SELECT ftable, fkey, timestamp, deleted FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_META)
+                + (selection != null ? " WHERE " + selection : "")
+                + (order != null ? " ORDER BY " + order : "");
+
+        Cursor cursor = database.rawQuery(sql, null);
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                String table = cursor.getString(0);
+
+                if (!CoverageDatabase.TABLE_COVERAGE.equals(table) && !CoverageDatabase.TABLE_GRID.equals(table))
+                    continue;
+
+                tracks.add(new Track(table, cursor.getString(1), parseLong(cursor.getString(2)), "true".equals(cursor.getString(3))));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        return tracks;
+    }
+
+    /**
+     * Reads the mode on the primary connection in a transaction, the pooled read connections of a WAL database may report the mode
+     * from before a conversion
+     */
+    private static long getAutoVacuum(SQLiteDatabase database)
+    {
+        database.beginTransactionNonExclusive();
+        try
+        {
+            CoverageDatabase.pragmaLong(database, "schema_version");
+
+            return CoverageDatabase.pragmaLong(database, "auto_vacuum");
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    private static long getDatabaseSize(SQLiteDatabase database)
+    {
+        return CoverageDatabase.pragmaLong(database, "page_count") * CoverageDatabase.pragmaLong(database, "page_size");
+    }
+
+    private static long parseLong(String value)
+    {
+        try
+        {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
+
+    private static final class Track
+    {
+        final String table;
+        final String trackId;
+        final long timestamp;
+        final boolean deleted;
+
+
+        Track(String table, String trackId, long timestamp, boolean deleted)
+        {
+            this.table = table;
+            this.trackId = trackId;
+            this.timestamp = timestamp;
+            this.deleted = deleted;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Admission stage of the {@link SamplePipeline}, a rejected sample is not persisted
+ * <p>
+ * Host apps register additional filters with {@link Coverage#addSampleFilter}, they run on the ingest thread after the built-in filters and must not keep the sample.
+ */
+public interface SampleFilter
+{
+    String getName();
+
+    boolean accept(CoverageSample sample);
+}
@@ -0,0 +1,169 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered chain of filters followed by rewriters, every stage keeps its own accept/reject counters and timing
+ * <p>
+ * The pipeline only depends on {@link CoverageSample} and runs on the plain JVM.
+ */
+class SamplePipeline
+{
+    private final List<Stage> filters = new ArrayList<>();
+    private final List<Stage> rewriters = new ArrayList<>();
+
+    private volatile long processed = 0;
+    private volatile long accepted = 0;
+
+
+    static final class Stage
+    {
+        private final SampleFilter filter;
+        private final SampleRewriter rewriter;
+
+        private volatile long passed = 0;
+        private volatile long rejected = 0;
+        private volatile long nanos = 0;
+
+
+        private Stage(SampleFilter filter, SampleRewriter rewriter)
+        {
+            this.filter = filter;
+            this.rewriter = rewriter;
+        }
+
+        String getName()
+        {
+            return filter != null ? filter.getName() : rewriter.getName();
+        }
+
+        long getPassed()
+        {
+            return passed;
+        }
+
+        long getRejected()
+        {
+            return rejected;
+        }
+
+        long getNanos()
+        {
+            return nanos;
+        }
+    }
+
+
+    SamplePipeline addFilter(SampleFilter filter)
+    {
+        filters.add(new Stage(filter, null));
+        return this;
+    }
+
+    SamplePipeline addRewriter(SampleRewriter rewriter)
+    {
+        rewriters.add(new Stage(null, rewriter));
+        return this;
+    }
+
+    /**
+     * Runs all stages on the sample, must only be called from one thread at a time
+     *
+     * @return the rejecting filter stage, or null if the sample was admitted
+     */
+    Stage process(CoverageSample sample)
+    {
+        processed++;
+
+        for (int i = 0; i < filters.size(); i++)
+        {
+            Stage stage = filters.get(i);
+
+            long start = System.nanoTime();
+            boolean accept = stage.filter.accept(sample);
+            stage.nanos += System.nanoTime() - start;
+
+            if (!accept)
+            {
+                stage.rejected++;
+                return stage;
+            }
+
+            stage.passed++;
+        }
+
+        for (int i = 0; i < rewriters.size(); i++)
+        {
+            Stage stage = rewriters.get(i);
+
+            long start = System.nanoTime();
+            stage.rewriter.rewrite(sample);
+            stage.nanos += System.nanoTime() - start;
+
+            stage.passed++;
+        }
+
+        accepted++;
+
+        return null;
+    }
+
+    List<Stage> getStages()
+    {
+        List<Stage> stages = new ArrayList<>(filters);
+        stages.addAll(rewriters);
+
+        return stages;
+    }
+
+    long getProcessed()
+    {
+        return processed;
+    }
+
+    long getAccepted()
+    {
+        return accepted;
+    }
+
+    JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        json.put("processed", processed);
+        json.put("accepted", accepted);
+
+        JSONObject stages = new JSONObject();
+        for (Stage stage : getStages())
+        {
+            JSONObject entry = new JSONObject();
+            entry.put("passed", stage.passed);
+            entry.put("rejected", stage.rejected);
+            entry.put("nanos", stage.nanos);
+
+            stages.put(stage.getName(), entry);
+        }
+        json.put("stages", stages);
+
+        return json;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Rewrite stage of the {@link SamplePipeline}, runs on admitted samples only
+ * <p>
+ * Host apps register additional rewriters with {@link Coverage#addSampleRewriter}, they run on the ingest thread after the built-in rewriters and must not keep the sample.
+ */
+public interface SampleRewriter
+{
+    String getName();
+
+    void rewrite(CoverageSample sample);
+}
@@ -0,0 +1,82 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Immutable copy of an admitted sample, safe to hand to any number of subscribers
+ * <p>
+ * The snapshot keeps the typed fields, the JSON form is only built by subscribers that ask for it.
+ */
+public final class SampleSnapshot
+{
+    public final String trackId;
+    public final long geoTimestamp;
+
+    public final double latitude;
+    public final double longitude;
+    public final double accuracy;
+    public final double velocity;
+    public final double distance;
+
+    public final int accessId;
+    public final String access;
+    public final String accessCategory;
+
+    private final CoverageSample mSample;
+
+
+    SampleSnapshot(CoverageSample sample)
+    {
+        this.trackId = sample.header.trackId;
+        this.geoTimestamp = sample.geoTimestamp;
+
+        this.latitude = sample.latitude;
+        this.longitude = sample.longitude;
+        this.accuracy = sample.accuracy;
+        this.velocity = sample.velocity;
+        this.distance = sample.distance;
+
+        this.accessId = sample.accessId;
+        this.access = sample.access;
+        this.accessCategory = sample.accessCategory;
+
+        mSample = sample.copy();
+    }
+
+    /**
+     * All columns of the sample as a new object owned by the caller, built on every call
+     */
+    public JSONObject toJSON() throws JSONException
+    {
+        return mSample.toJSON();
+    }
+
+    @Override
+    public String toString()
+    {
+        try
+        {
+            return toJSON().toString();
+        } catch (JSONException ex)
+        {
+            return "{}";
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Admission filters and rewrite rules of the coverage ingest path
+ */
+final class SampleStages
+{
+    private SampleStages()
+    {
+    }
+
+    /**
+     * Builds the default pipeline, cheap primitive checks first
+     *
+     * @param unknownAccess value of app_access for emergency-only samples, as returned by Tool.getNetType(0)
+     */
+    static SamplePipeline createDefault(DistanceFilter distanceFilter, NetworkAgeFilter networkAgeFilter, int accuracyThreshold, int locationAgeThreshold, String unknownAccess)
+    {
+        return new SamplePipeline()
+                .addFilter(new AccessIdFilter(18))
+                .addFilter(new AccuracyFilter(accuracyThreshold))
+                .addFilter(new LocationAgeFilter(locationAgeThreshold))
+                .addFilter(networkAgeFilter)
+                .addFilter(distanceFilter)
+                .addFilter(new WifiFilter())
+                .addFilter(new AirplaneFilter())
+                .addFilter(new SimFilter())
+                .addRewriter(new ModeRewriter())
+                .addRewriter(new CircuitSwitchedRewriter())
+                .addRewriter(new EmergencyRewriter(unknownAccess));
+    }
+
+    static final class AccessIdFilter implements SampleFilter
+    {
+        private final int rejectedAccessId;
+
+        AccessIdFilter(int rejectedAccessId)
+        {
+            this.rejectedAccessId = rejectedAccessId;
+        }
+
+        @Override
+        public String getName()
+        {
+            return "access_id";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return sample.accessId != rejectedAccessId;
+        }
+    }
+
+    static final class AccuracyFilter implements SampleFilter
+    {
+        private final double threshold;
+
+        AccuracyFilter(double threshold)
+        {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String getName()
+        {
+            return "accuracy";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return sample.accuracy <= threshold;
+        }
+    }
+
+    static final class LocationAgeFilter implements SampleFilter
+    {
+        private final double thresholdMs;
+
+        LocationAgeFilter(double thresholdMs)
+        {
+            this.thresholdMs = thresholdMs;
+        }
+
+        @Override
+        public String getName()
+        {
+            return "location_age";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return sample.locationAgeNs / 1e6 <= thresholdMs;
+        }
+    }
+
+    /**
+     * Rejects samples whose network state is further away in time from the fix than the threshold, disabled by default
+     */
+    static final class NetworkAgeFilter implements SampleFilter
+    {
+        private volatile long thresholdMs = 0;
+
+        void setThreshold(long thresholdMs)
+        {
+            this.thresholdMs = Math.max(0, thresholdMs);
+        }
+
+        @Override
+        public String getName()
+        {
+            return "network_age";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            long threshold = thresholdMs;
+
+            return threshold == 0 || sample.networkAgeMs <= threshold;
+        }
+    }
+
+    /**
+     * Rejects samples closer to the previous admitted sample than the current motion dependent distance
+     */
+    static final class DistanceFilter implements SampleFilter
+    {
+        private volatile double minDistance = -1.0;
+
+        void setMinDistance(double minDistance)
+        {
+            this.minDistance = minDistance;
+        }
+
+        double getMinDistance()
+        {
+            return minDistance;
+        }
+
+        @Override
+        public String getName()
+        {
+            return "distance";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return !sample.hasPrevious || sample.distance >= minDistance;
+        }
+    }
+
+    static final class WifiFilter implements SampleFilter
+    {
+        @Override
+        public String getName()
+        {
+            return "wifi";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return !sample.wifi;
+        }
+    }
+
+    static final class AirplaneFilter implements SampleFilter
+    {
+        @Override
+        public String getName()
+        {
+            return "airplane";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return !sample.airplane;
+        }
+    }
+
+    static final class SimFilter implements SampleFilter
+    {
+        @Override
+        public String getName()
+        {
+            return "sim";
+        }
+
+        @Override
+        public boolean accept(CoverageSample sample)
+        {
+            return sample.simState == 5 && sample.activeSimCount == 1;
+        }
+    }
+
+    static final class ModeRewriter implements SampleRewriter
+    {
+        @Override
+        public String getName()
+        {
+            return "mode";
+        }
+
+        @Override
+        public void rewrite(CoverageSample sample)
+        {
+            if ("WIFI".equals(sample.mode))
+                sample.mode = "WWAN";
+        }
+    }
+
+    /**
+     * Reports unknown access as 2G when the device is registered in a circuit switched network or in a call
+     */
+    static final class CircuitSwitchedRewriter implements SampleRewriter
+    {
+        @Override
+        public String getName()
+        {
+            return "circuit_switched";
+        }
+
+        @Override
+        public void rewrite(CoverageSample sample)
+        {
+            if (sample.accessId != 0)
+                return;
+
+            if (sample.callState == 0 && (sample.voiceId == 16 || sample.hasOperatorNetMnc) && !sample.emergencyOnly)
+            {
+                sample.accessId = 4;
+                sample.access = "2G";
+            } else if (sample.callState == 1)
+            {
+                sample.accessId = 4;
+                sample.access = "2G";
+            }
+        }
+    }
+
+    static final class EmergencyRewriter implements SampleRewriter
+    {
+        private final String unknownAccess;
+
+        EmergencyRewriter(String unknownAccess)
+        {
+            this.unknownAccess = unknownAccess;
+        }
+
+        @Override
+        public String getName()
+        {
+            return "emergency";
+        }
+
+        @Override
+        public void rewrite(CoverageSample sample)
+        {
+            if (sample.emergencyOnly)
+            {
+                sample.accessId = 0;
+                sample.access = unknownAccess;
+            }
+        }
+    }
+}
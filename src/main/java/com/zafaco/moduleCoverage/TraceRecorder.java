@@ -0,0 +1,207 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the raw listener outputs of a session into a gzipped trace for {@link TraceReplayer}
+ * <p>
+ * Every line has the form {@code <offset ms>\t<type>\t<json>}, the first line is the header describing the session.
+ * <p>
+ * The gzip stream is sync-flushed at least every {@link #FLUSH_INTERVAL_MS}, a trace cut off by the death of the process is
+ * readable up to the last flush.
+ */
+class TraceRecorder
+{
+    static final char TYPE_HEADER = 'h';
+    static final char TYPE_GEO = 'g';
+    static final char TYPE_NETWORK = 'n';
+    static final char TYPE_WIRELESS = 'w';
+    static final char TYPE_DEVICE = 'd';
+
+    static final int CATEGORY_TABLE_SIZE = 32;
+
+    static final String TRACE_DIRECTORY = "coverage_traces";
+    static final String TRACE_SUFFIX = ".trace.gz";
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    static final long FLUSH_INTERVAL_MS = 2000;
+
+    private final File file;
+    private Writer mWriter;
+
+    private final long startNanos;
+    private final long flushIntervalNs;
+    private long lastFlushNanos;
+
+    private long events = 0;
+
+
+    TraceRecorder(File file) throws IOException
+    {
+        this(file, FLUSH_INTERVAL_MS);
+    }
+
+    TraceRecorder(File file, long flushIntervalMs) throws IOException
+    {
+        this.file = file;
+        this.flushIntervalNs = flushIntervalMs * 1000000;
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        mWriter = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file), 8192, true), CHARSET), 65536);
+        startNanos = System.nanoTime();
+        lastFlushNanos = startNanos;
+    }
+
+    static File getTraceFile(File directory, String trackId)
+    {
+        return new File(new File(directory, TRACE_DIRECTORY), trackId + TRACE_SUFFIX);
+    }
+
+    /**
+     * Writes the session header, must be the first record
+     */
+    void recordHeader(TrackHeader header, long startMillis, int accuracyThreshold, int locationAgeThreshold, int networkAgeThreshold, boolean debug, String unknownAccess, CoverageIngest.CategoryResolver categoryResolver) throws JSONException
+    {
+        JSONObject json = new JSONObject();
+
+        json.put("track_id", header.trackId);
+        json.put("start", startMillis);
+
+        json.put("client_os", header.clientOs);
+        json.put("client_os_version", header.clientOsVersion);
+        json.put("app_manufacturer", header.manufacturer);
+        json.put("app_manufacturer_id", header.manufacturerId);
+        json.put("app_manufacturer_version", header.manufacturerVersion);
+        json.put("app_version", header.appVersion);
+        json.put("app_library_version", header.libraryVersion);
+        json.put("app_geo_timezone", header.timezone);
+
+        json.put("min_accuracy", accuracyThreshold);
+        json.put("location_age_threshold", locationAgeThreshold);
+        json.put("network_age_threshold", networkAgeThreshold);
+        json.put("debug", debug);
+        json.put("unknown_access", unknownAccess);
+
+        JSONArray categories = new JSONArray();
+        for (int i = 0; i < CATEGORY_TABLE_SIZE; i++)
+        {
+            categories.put(categoryResolver.getCategory(i));
+        }
+        json.put("categories", categories);
+
+        record(TYPE_HEADER, json.toString());
+    }
+
+    void recordDeviceState(DeviceState deviceState) throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        json.put("wifi", deviceState.wifi);
+        json.put("airplane", deviceState.airplane);
+        json.put("sim_state", deviceState.simState);
+        json.put("active_sim_count", deviceState.activeSimCount);
+
+        record(TYPE_DEVICE, json.toString());
+    }
+
+    /**
+     * Appends one raw listener output, must be called before the output is modified by the ingest
+     */
+    synchronized void record(char type, String payload)
+    {
+        if (mWriter == null)
+            return;
+
+        try
+        {
+            long nowNanos = System.nanoTime();
+
+            mWriter.write(Long.toString((nowNanos - startNanos) / 1000000));
+            mWriter.write('\t');
+            mWriter.write(type);
+            mWriter.write('\t');
+            mWriter.write(payload);
+            mWriter.write('\n');
+
+            events++;
+
+            if (nowNanos - lastFlushNanos >= flushIntervalNs)
+            {
+                mWriter.flush();
+                lastFlushNanos = nowNanos;
+            }
+        } catch (IOException ex)
+        {
+            closeQuietly();
+        }
+    }
+
+    synchronized long getEvents()
+    {
+        return events;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    synchronized void close()
+    {
+        if (mWriter == null)
+            return;
+
+        try
+        {
+            mWriter.close();
+        } catch (IOException ex)
+        {
+            closeQuietly();
+        }
+
+        mWriter = null;
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            if (mWriter != null)
+                mWriter.close();
+        } catch (IOException ignored)
+        {
+        }
+
+        mWriter = null;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a trace written by {@link TraceRecorder} through a {@link CoverageIngest} without any Android dependency
+ * <p>
+ * The ingest clock follows the recorded offsets, so admitted samples are identical in real-time and in as-fast-as-possible mode.
+ * A trace that ends in a truncated gzip stream, as left behind by a crashed session, is replayed up to its last complete line.
+ */
+class TraceReplayer
+{
+    private static final long INTERVAL_TOLERANCE_MS = 100;
+
+    interface Listener
+    {
+        /**
+         * Called for every admitted sample, the sample is recycled after the call returns
+         */
+        void onSample(CoverageSample sample);
+    }
+
+    static final class Result
+    {
+        long events = 0;
+        long fixes = 0;
+        long skipped = 0;
+        long accepted = 0;
+        long rejected = 0;
+        long errors = 0;
+        long elapsedNs = 0;
+        boolean truncated = false;
+
+        long getEvents()
+        {
+            return events;
+        }
+
+        long getFixes()
+        {
+            return fixes;
+        }
+
+        /**
+         * Recorded fixes the location scheduler would not have requested
+         */
+        long getSkipped()
+        {
+            return skipped;
+        }
+
+        long getAccepted()
+        {
+            return accepted;
+        }
+
+        long getRejected()
+        {
+            return rejected;
+        }
+
+        long getErrors()
+        {
+            return errors;
+        }
+
+        long getElapsedNs()
+        {
+            return elapsedNs;
+        }
+
+        /**
+         * The trace ended in a truncated gzip stream
+         */
+        boolean isTruncated()
+        {
+            return truncated;
+        }
+
+        double getSamplesPerSecond()
+        {
+            return elapsedNs > 0 ? fixes * 1e9 / elapsedNs : 0.0;
+        }
+
+        JSONObject toJSON() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("events", events);
+            json.put("fixes", fixes);
+            json.put("skipped", skipped);
+            json.put("accepted", accepted);
+            json.put("rejected", rejected);
+            json.put("errors", errors);
+            json.put("elapsed_ns", elapsedNs);
+            json.put("truncated", truncated);
+            json.put("samples_per_second", getSamplesPerSecond());
+
+            return json;
+        }
+    }
+
+    private final File file;
+    private final boolean realTime;
+
+    private CoverageIngest mCoverageIngest = null;
+    private LocationScheduler mLocationScheduler = null;
+
+    private long lastDelivered = -1;
+    private double lastDeliveredLatitude = 0.0;
+    private double lastDeliveredLongitude = 0.0;
+
+    private volatile DeviceState deviceState = new DeviceState(false, false, 5, 1, 0);
+    private volatile long now = 0;
+
+
+    /**
+     * @param realTime sleep between events according to the recorded offsets instead of replaying as fast as possible
+     */
+    TraceReplayer(File file, boolean realTime)
+    {
+        this.file = file;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Simulates the delivery of fixes by an adaptive location request: recorded fixes closer in time or distance to the previous
+     * delivered fix than the current request allows are skipped before they reach the ingest
+     */
+    void setLocationScheduler(LocationScheduler locationScheduler)
+    {
+        this.mLocationScheduler = locationScheduler;
+    }
+
+    /**
+     * Ingest of the last replay, valid after the header was read
+     */
+    CoverageIngest getIngest()
+    {
+        return mCoverageIngest;
+    }
+
+    Result replay(Listener listener) throws IOException, JSONException, InterruptedException
+    {
+        Result result = new Result();
+
+        FileInputStream stream = new FileInputStream(file);
+        TruncatedInputStream input;
+
+        try
+        {
+            input = new TruncatedInputStream(new GZIPInputStream(stream, 8192));
+        } catch (EOFException ex)
+        {
+            stream.close();
+
+            result.truncated = true;
+            return result;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, TraceRecorder.CHARSET), 65536);
+
+        try
+        {
+            long startMillis = 0;
+            long startNanos = System.nanoTime();
+
+            String next;
+            for (String line = reader.readLine(); line != null; line = next)
+            {
+                next = reader.readLine();
+
+                // the last line of a truncated trace is partial unless the data ends with its newline
+                if (next == null && input.isTruncated() && input.getLastByte() != '\n')
+                    break;
+
+                int first = line.indexOf('\t');
+                int second = first < 0 ? -1 : line.indexOf('\t', first + 1);
+
+                if (second != first + 2)
+                {
+                    result.errors++;
+                    continue;
+                }
+
+                long offset;
+                char type = line.charAt(first + 1);
+                JSONObject message;
+
+                try
+                {
+                    offset = Long.parseLong(line.substring(0, first));
+                    message = new JSONObject(line.substring(second + 1));
+                } catch (JSONException | NumberFormatException ex)
+                {
+                    result.errors++;
+                    continue;
+                }
+
+                if (type == TraceRecorder.TYPE_HEADER)
+                {
+                    startMillis = message.getLong("start");
+                    mCoverageIngest = createIngest(message);
+
+                    lastDelivered = -1;
+                    if (mLocationScheduler != null)
+                        mLocationScheduler.start();
+
+                    result.events++;
+                    continue;
+                }
+
+                if (mCoverageIngest == null)
+                    throw new JSONException("Trace does not start with a header");
+
+                if (realTime)
+                {
+                    long wait = offset - (System.nanoTime() - startNanos) / 1000000;
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                }
+
+                now = startMillis + offset;
+                result.events++;
+
+                try
+                {
+                    dispatch(type, message, listener, result);
+                } catch (JSONException | RuntimeException ex)
+                {
+                    result.errors++;
+                }
+            }
+
+            result.elapsedNs = System.nanoTime() - startNanos;
+            result.truncated = input.isTruncated();
+        } finally
+        {
+            reader.close();
+        }
+
+        return result;
+    }
+
+    private void dispatch(char type, JSONObject message, Listener listener, Result result) throws JSONException
+    {
+        switch (type)
+        {
+            case TraceRecorder.TYPE_NETWORK:
+                mCoverageIngest.onNetwork(message);
+                break;
+            case TraceRecorder.TYPE_WIRELESS:
+                mCoverageIngest.onWireless(message);
+                break;
+            case TraceRecorder.TYPE_DEVICE:
+                deviceState = new DeviceState(message.getBoolean("wifi"), message.getBoolean("airplane"), message.getInt("sim_state"), message.getInt("active_sim_count"), now);
+                break;
+            case TraceRecorder.TYPE_GEO:
+                if (mLocationScheduler != null && !isDelivered(message))
+                {
+                    result.skipped++;
+                    break;
+                }
+
+                result.fixes++;
+
+                CoverageSample sample = mCoverageIngest.onGeo(message);
+
+                if (sample == null)
+                {
+                    result.rejected++;
+                    break;
+                }
+
+                result.accepted++;
+
+                try
+                {
+                    if (listener != null)
+                        listener.onSample(sample);
+                } finally
+                {
+                    sample.recycle();
+                }
+                break;
+            default:
+                result.errors++;
+                break;
+        }
+    }
+
+    private boolean isDelivered(JSONObject message) throws JSONException
+    {
+        double latitude = message.getDouble("app_latitude");
+        double longitude = message.getDouble("app_longitude");
+
+        if (lastDelivered >= 0)
+        {
+            if (now - lastDelivered < mLocationScheduler.getIntervalMs() - INTERVAL_TOLERANCE_MS)
+                return false;
+
+            if (GeoMath.distance(lastDeliveredLatitude, lastDeliveredLongitude, latitude, longitude) < mLocationScheduler.getSmallestDisplacement())
+                return false;
+        }
+
+        lastDelivered = now;
+        lastDeliveredLatitude = latitude;
+        lastDeliveredLongitude = longitude;
+
+        return true;
+    }
+
+    /**
+     * Ends the stream where a truncated gzip stream fails, so all data decoded up to that point is still delivered
+     */
+    private static final class TruncatedInputStream extends FilterInputStream
+    {
+        private boolean truncated = false;
+        private int lastByte = -1;
+
+
+        TruncatedInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        boolean isTruncated()
+        {
+            return truncated;
+        }
+
+        int getLastByte()
+        {
+            return lastByte;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] single = new byte[1];
+
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            if (truncated)
+                return -1;
+
+            int read;
+            try
+            {
+                read = super.read(buffer, offset, length);
+            } catch (EOFException ex)
+            {
+                truncated = true;
+                return -1;
+            }
+
+            if (read > 0)
+                lastByte = buffer[offset + read - 1] & 0xff;
+
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return truncated ? 0 : super.available();
+        }
+    }
+
+    private CoverageIngest createIngest(JSONObject header) throws JSONException
+    {
+        TrackHeader trackHeader = new TrackHeader(
+                header.getString("track_id"),
+                header.optString("client_os", null),
+                header.optString("client_os_version", null),
+                header.optString("app_manufacturer", null),
+                header.optString("app_manufacturer_id", null),
+                header.optString("app_manufacturer_version", null),
+                header.optString("app_version", null),
+                header.optString("app_library_version", null),
+                header.getInt("app_geo_timezone"));
+
+        JSONArray categoryArray = header.getJSONArray("categories");
+        final String[] categories = new String[categoryArray.length()];
+        for (int i = 0; i < categories.length; i++)
+        {
+            categories[i] = categoryArray.isNull(i) ? null : categoryArray.getString(i);
+        }
+
+        CoverageIngest.CategoryResolver categoryResolver = new CoverageIngest.CategoryResolver()
+        {
+            @Override
+            public String getCategory(int accessId)
+            {
+                return accessId >= 0 && accessId < categories.length ? categories[accessId] : null;
+            }
+        };
+
+        DeviceState.Source deviceStateSource = new DeviceState.Source()
+        {
+            @Override
+            public DeviceState get()
+            {
+                return deviceState;
+            }
+        };
+
+        CoverageIngest.Clock clock = new CoverageIngest.Clock()
+        {
+            @Override
+            public long currentTimeMillis()
+            {
+                return now;
+            }
+        };
+
+        CoverageIngest ingest = new CoverageIngest(trackHeader, header.getInt("min_accuracy"), header.getInt("location_age_threshold"), header.isNull("unknown_access") ? null : header.getString("unknown_access"), deviceStateSource, categoryResolver, clock);
+        ingest.setDebug(header.optBoolean("debug", false));
+        ingest.setNetworkAgeThreshold(header.optLong("network_age_threshold", 0));
+
+        if (mLocationScheduler != null)
+            ingest.setLocationScheduler(mLocationScheduler, clock);
+
+        return ingest;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a track written by {@link TrackEncoder} row by row
+ * <p>
+ * Latitude and longitude are restored from their fixed-point values, all other values are restored exactly.
+ */
+class TrackDecoder
+{
+    private final InputStream mInputStream;
+
+    private final String trackId;
+    private final List<String> columns;
+
+    private final boolean[] fixedPoint;
+    private final String[] current;
+    private final long[] lastNumber;
+    private final byte[] bitmap;
+
+    private final List<String> dictionary = new ArrayList<>();
+
+    private boolean finished = false;
+    private long rows = 0;
+
+
+    TrackDecoder(InputStream inputStream) throws IOException
+    {
+        this.mInputStream = inputStream;
+
+        byte[] magic = new byte[TrackEncoder.MAGIC.length];
+        readFully(magic);
+
+        if (!Arrays.equals(magic, TrackEncoder.MAGIC))
+            throw new IOException("Not a coverage track");
+
+        int version = readByte();
+        if (version != TrackEncoder.VERSION)
+            throw new IOException("Unsupported track version " + version);
+
+        trackId = readString();
+
+        int columnCount = (int) readVarint();
+        List<String> names = new ArrayList<>(columnCount);
+
+        fixedPoint = new boolean[columnCount];
+
+        for (int i = 0; i < columnCount; i++)
+        {
+            String column = readString();
+
+            names.add(column);
+            fixedPoint[i] = TrackEncoder.isFixedPoint(column);
+        }
+
+        columns = Collections.unmodifiableList(names);
+
+        current = new String[columnCount];
+        lastNumber = new long[columnCount];
+        bitmap = new byte[(columnCount + 7) / 8];
+    }
+
+    String getTrackId()
+    {
+        return trackId;
+    }
+
+    List<String> getColumns()
+    {
+        return columns;
+    }
+
+    long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * @return the values of the next row in column order, or null at the end of the track; the array is reused by the next call
+     */
+    String[] readRow() throws IOException
+    {
+        if (finished)
+            return null;
+
+        int marker = readByte();
+
+        if (marker == TrackEncoder.END)
+        {
+            finished = true;
+            return null;
+        }
+
+        if (marker != TrackEncoder.ROW)
+            throw new IOException("Corrupt track at row " + rows);
+
+        readFully(bitmap);
+
+        for (int i = 0; i < current.length; i++)
+        {
+            if ((bitmap[i >> 3] & (1 << (i & 7))) != 0)
+                current[i] = readValue(i);
+        }
+
+        rows++;
+
+        return current;
+    }
+
+    private String readValue(int column) throws IOException
+    {
+        int tag = readByte();
+
+        switch (tag)
+        {
+            case TrackEncoder.TAG_NULL:
+                return null;
+            case TrackEncoder.TAG_LITERAL:
+                String literal = readString();
+                dictionary.add(literal);
+                return literal;
+            case TrackEncoder.TAG_LITERAL_UNINDEXED:
+                return readString();
+            case TrackEncoder.TAG_DICTIONARY:
+                int index = (int) readVarint();
+                if (index < 0 || index >= dictionary.size())
+                    throw new IOException("Corrupt dictionary index " + index);
+                return dictionary.get(index);
+            case TrackEncoder.TAG_INTEGER:
+                lastNumber[column] += TrackEncoder.unzigzag(readVarint());
+                return Long.toString(lastNumber[column]);
+            case TrackEncoder.TAG_FIXED_POINT:
+                if (!fixedPoint[column])
+                    throw new IOException("Fixed-point value in column " + columns.get(column));
+                lastNumber[column] += TrackEncoder.unzigzag(readVarint());
+                return Double.toString(lastNumber[column] / TrackEncoder.FIXED_POINT_SCALE);
+            default:
+                throw new IOException("Corrupt value tag " + tag);
+        }
+    }
+
+    private String readString() throws IOException
+    {
+        int length = (int) readVarint();
+
+        if (length < 0)
+            throw new IOException("Corrupt string length");
+
+        byte[] bytes = new byte[length];
+        readFully(bytes);
+
+        return new String(bytes, TrackEncoder.CHARSET);
+    }
+
+    private long readVarint() throws IOException
+    {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Corrupt varint");
+    }
+
+    private int readByte() throws IOException
+    {
+        int b = mInputStream.read();
+
+        if (b < 0)
+            throw new EOFException();
+
+        return b;
+    }
+
+    private void readFully(byte[] buffer) throws IOException
+    {
+        int offset = 0;
+
+        while (offset < buffer.length)
+        {
+            int read = mInputStream.read(buffer, offset, buffer.length - offset);
+
+            if (read < 0)
+                throw new EOFException();
+
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the coverage rows of one track, read by {@link TrackDecoder}
+ * <p>
+ * The header holds the track id and the column names. Every row starts with a bitmap of the columns that changed since the previous row, so constant
+ * fields cost one bit per row. Changed integers are written as zigzag varint deltas, latitude and longitude as deltas of 1e-7 degree fixed-point
+ * values (about 1 cm), and all other strings through a dictionary shared by all columns.
+ */
+class TrackEncoder
+{
+    static final byte[] MAGIC = {'C', 'V', 'T', 'R'};
+    static final int VERSION = 1;
+
+    static final int ROW = 1;
+    static final int END = 0;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_LITERAL = 1;
+    static final int TAG_DICTIONARY = 2;
+    static final int TAG_INTEGER = 3;
+    static final int TAG_FIXED_POINT = 4;
+    static final int TAG_LITERAL_UNINDEXED = 5;
+
+    static final double FIXED_POINT_SCALE = 1e7;
+    static final int MAX_DICTIONARY_SIZE = 65536;
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final OutputStream mOutputStream;
+
+    private final int columnCount;
+    private final boolean[] fixedPoint;
+
+    private final String[] previous;
+    private final long[] lastNumber;
+    private final byte[] bitmap;
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    private long rows = 0;
+
+
+    TrackEncoder(OutputStream outputStream, String trackId, List<String> columns) throws IOException
+    {
+        this.mOutputStream = outputStream;
+
+        columnCount = columns.size();
+        fixedPoint = new boolean[columnCount];
+        previous = new String[columnCount];
+        lastNumber = new long[columnCount];
+        bitmap = new byte[(columnCount + 7) / 8];
+
+        mOutputStream.write(MAGIC);
+        mOutputStream.write(VERSION);
+
+        writeString(trackId);
+        writeVarint(columnCount);
+
+        for (int i = 0; i < columnCount; i++)
+        {
+            String column = columns.get(i);
+
+            fixedPoint[i] = isFixedPoint(column);
+            writeString(column);
+        }
+    }
+
+    /**
+     * Streams all rows of the track from the coverage table in insertion order
+     *
+     * @return number of encoded rows
+     */
+    static long encode(SQLiteDatabase database, String trackId, OutputStream outputStream) throws IOException
+    {
+        Cursor cursor = database.rawQuery("SELECT * FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " WHERE track_id = ? ORDER BY rowid", new String[]{trackId});
+
+        try
+        {
+            String[] values = new String[cursor.getColumnCount()];
+
+            TrackEncoder encoder = new TrackEncoder(new BufferedOutputStream(outputStream, 65536), trackId, Arrays.asList(cursor.getColumnNames()));
+
+            while (cursor.moveToNext())
+            {
+                for (int i = 0; i < values.length; i++)
+                {
+                    values[i] = cursor.isNull(i) ? null : cursor.getString(i);
+                }
+
+                encoder.writeRow(values);
+            }
+
+            encoder.finish();
+
+            return encoder.getRows();
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param values one value per column, in header order
+     */
+    void writeRow(String[] values) throws IOException
+    {
+        if (values.length != columnCount)
+            throw new IllegalArgumentException("Expected " + columnCount + " values, got " + values.length);
+
+        Arrays.fill(bitmap, (byte) 0);
+
+        for (int i = 0; i < columnCount; i++)
+        {
+            if (rows == 0 || !equals(values[i], previous[i]))
+                bitmap[i >> 3] |= (byte) (1 << (i & 7));
+        }
+
+        mOutputStream.write(ROW);
+        mOutputStream.write(bitmap);
+
+        for (int i = 0; i < columnCount; i++)
+        {
+            if ((bitmap[i >> 3] & (1 << (i & 7))) != 0)
+            {
+                writeValue(i, values[i]);
+                previous[i] = values[i];
+            }
+        }
+
+        rows++;
+    }
+
+    /**
+     * Writes the end marker and flushes, the underlying stream is not closed
+     */
+    void finish() throws IOException
+    {
+        mOutputStream.write(END);
+        mOutputStream.flush();
+    }
+
+    long getRows()
+    {
+        return rows;
+    }
+
+    int getDictionarySize()
+    {
+        return dictionary.size();
+    }
+
+    private void writeValue(int column, String value) throws IOException
+    {
+        if (value == null)
+        {
+            mOutputStream.write(TAG_NULL);
+            return;
+        }
+
+        if (fixedPoint[column])
+        {
+            double number = parseCoordinate(value);
+
+            if (!Double.isNaN(number))
+            {
+                long fixed = Math.round(number * FIXED_POINT_SCALE);
+
+                mOutputStream.write(TAG_FIXED_POINT);
+                writeVarint(zigzag(fixed - lastNumber[column]));
+                lastNumber[column] = fixed;
+
+                return;
+            }
+        }
+
+        if (isCanonicalLong(value))
+        {
+            long number = Long.parseLong(value);
+
+            mOutputStream.write(TAG_INTEGER);
+            writeVarint(zigzag(number - lastNumber[column]));
+            lastNumber[column] = number;
+
+            return;
+        }
+
+        Integer index = dictionary.get(value);
+
+        if (index != null)
+        {
+            mOutputStream.write(TAG_DICTIONARY);
+            writeVarint(index);
+        } else if (dictionary.size() < MAX_DICTIONARY_SIZE)
+        {
+            mOutputStream.write(TAG_LITERAL);
+            writeString(value);
+            dictionary.put(value, dictionary.size());
+        } else
+        {
+            mOutputStream.write(TAG_LITERAL_UNINDEXED);
+            writeString(value);
+        }
+    }
+
+    private void writeString(String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(CHARSET);
+
+        writeVarint(bytes.length);
+        mOutputStream.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            mOutputStream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        mOutputStream.write((int) value);
+    }
+
+    static boolean isFixedPoint(String column)
+    {
+        return "app_latitude".equals(column) || "app_longitude".equals(column);
+    }
+
+    static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * True if the value is the exact decimal representation of a long, so decoding restores the same string
+     */
+    static boolean isCanonicalLong(String value)
+    {
+        int length = value.length();
+        int start = value.startsWith("-") ? 1 : 0;
+
+        if (length == start || length - start > 18)
+            return false;
+
+        if (value.charAt(start) == '0' && (length - start > 1 || start == 1))
+            return false;
+
+        for (int i = start; i < length; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < '0' || c > '9')
+                return false;
+        }
+
+        return true;
+    }
+
+    private static double parseCoordinate(String value)
+    {
+        try
+        {
+            double number = Double.parseDouble(value);
+
+            return Math.abs(number) <= 180.0 ? number : Double.NaN;
+        } catch (NumberFormatException ex)
+        {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean equals(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+}
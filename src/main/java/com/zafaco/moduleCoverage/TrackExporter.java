@@ -0,0 +1,572 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the coverage rows of a track to an output stream in bounded pages, memory use does not depend on the track length
+ * <p>
+ * Pages are selected by rowid (keyset pagination), so rows committed by an active session during the export are picked up without re-reading earlier pages.
+ */
+public class TrackExporter
+{
+    public enum Format
+    {
+        /**
+         * One GeoJSON Feature with the track as LineString, a Point if the track has a single position and no geometry without positions
+         */
+        GEOJSON_LINE,
+        /**
+         * GeoJSON FeatureCollection with one Point Feature per row, all columns as properties
+         */
+        GEOJSON_POINTS,
+        CSV,
+        /**
+         * Delta-encoded binary format of {@link TrackEncoder}
+         */
+        BINARY
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final Context ctx;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+
+    public TrackExporter(Context ctx)
+    {
+        this.ctx = ctx;
+    }
+
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Writes the track to the stream, the stream is flushed but not closed
+     *
+     * @return number of exported rows
+     */
+    public long export(String trackId, Format format, boolean gzip, OutputStream outputStream) throws IOException
+    {
+        OutputStream out = new NonClosingOutputStream(outputStream);
+        GzipStream gzipStream = gzip ? new GzipStream(out) : null;
+
+        boolean complete = false;
+
+        try
+        {
+            SQLiteDatabase database = CoverageDatabase.open(ctx);
+
+            try
+            {
+                RowSink sink = createSink(format, trackId, gzipStream != null ? gzipStream : out);
+
+                long rows = export(database, trackId, sink);
+
+                sink.close();
+                complete = true;
+
+                return rows;
+            } finally
+            {
+                database.close();
+            }
+        } finally
+        {
+            if (gzipStream != null)
+                gzipStream.finish(complete);
+        }
+    }
+
+    private long export(SQLiteDatabase database, String trackId, RowSink sink) throws IOException
+    {
+        String sql = "SELECT rowid, * FROM " + CoverageSchema.quote(CoverageDatabase.TABLE_COVERAGE) + " WHERE track_id = ? AND rowid > ? ORDER BY rowid LIMIT " + pageSize;
+
+        List<String> columns = null;
+        int[] cursorIndex = null;
+        String[] values = null;
+
+        long lastRowId = -1;
+        long rows = 0;
+
+        while (true)
+        {
+            Cursor cursor = database.rawQuery(sql, new String[]{trackId, Long.toString(lastRowId)});
+
+            int page = 0;
+
+            try
+            {
+                if (columns == null)
+                {
+                    columns = new ArrayList<>();
+                    for (int i = 1; i < cursor.getColumnCount(); i++)
+                    {
+                        columns.add(cursor.getColumnName(i));
+                    }
+
+                    values = new String[columns.size()];
+                    sink.begin(columns);
+                }
+
+                cursorIndex = resolveColumns(cursor, columns, cursorIndex);
+
+                while (cursor.moveToNext())
+                {
+                    lastRowId = cursor.getLong(0);
+
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        int index = cursorIndex[i];
+                        values[i] = index < 0 || cursor.isNull(index) ? null : cursor.getString(index);
+                    }
+
+                    sink.row(values);
+
+                    page++;
+                }
+            } finally
+            {
+                cursor.close();
+            }
+
+            rows += page;
+
+            if (page < pageSize)
+                break;
+        }
+
+        sink.end();
+
+        return rows;
+    }
+
+    /**
+     * Maps the columns of the first page to the cursor, columns added by the writer during the export are not part of the output
+     */
+    private static int[] resolveColumns(Cursor cursor, List<String> columns, int[] cursorIndex)
+    {
+        if (cursorIndex != null && cursorIndex.length == columns.size() && cursor.getColumnCount() == columns.size() + 1)
+            return cursorIndex;
+
+        int[] index = new int[columns.size()];
+
+        for (int i = 0; i < index.length; i++)
+        {
+            index[i] = cursor.getColumnIndex(columns.get(i));
+        }
+
+        return index;
+    }
+
+    private static RowSink createSink(Format format, String trackId, OutputStream out)
+    {
+        switch (format)
+        {
+            case GEOJSON_LINE:
+                return new LineSink(trackId, out);
+            case GEOJSON_POINTS:
+                return new PointSink(out);
+            case CSV:
+                return new CsvSink(out);
+            case BINARY:
+                return new BinarySink(trackId, out);
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    private static Writer createWriter(OutputStream out)
+    {
+        return new BufferedWriter(new OutputStreamWriter(out, CHARSET), 65536);
+    }
+
+    private static double parseDouble(String value)
+    {
+        if (value == null)
+            return Double.NaN;
+
+        try
+        {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex)
+        {
+            return Double.NaN;
+        }
+    }
+
+    private abstract static class RowSink
+    {
+        abstract void begin(List<String> columns) throws IOException;
+
+        abstract void row(String[] values) throws IOException;
+
+        abstract void end() throws IOException;
+
+        abstract void close() throws IOException;
+    }
+
+    private static final class LineSink extends RowSink
+    {
+        private final String trackId;
+        private final JsonWriter mJsonWriter;
+
+        private int latitude = -1;
+        private int longitude = -1;
+        private long points = 0;
+        private double firstLat;
+        private double firstLon;
+
+
+        LineSink(String trackId, OutputStream out)
+        {
+            this.trackId = trackId;
+            this.mJsonWriter = new JsonWriter(createWriter(out));
+        }
+
+        @Override
+        void begin(List<String> columns) throws IOException
+        {
+            latitude = columns.indexOf("app_latitude");
+            longitude = columns.indexOf("app_longitude");
+
+            mJsonWriter.beginObject();
+            mJsonWriter.name("type").value("Feature");
+        }
+
+        @Override
+        void row(String[] values) throws IOException
+        {
+            if (latitude < 0 || longitude < 0)
+                return;
+
+            double lat = parseDouble(values[latitude]);
+            double lon = parseDouble(values[longitude]);
+
+            if (Double.isNaN(lat) || Double.isNaN(lon))
+                return;
+
+            points++;
+
+            // the geometry type is only known with the second position, the first one is held back until then
+            if (points == 1)
+            {
+                firstLat = lat;
+                firstLon = lon;
+                return;
+            }
+
+            if (points == 2)
+            {
+                mJsonWriter.name("geometry").beginObject();
+                mJsonWriter.name("type").value("LineString");
+                mJsonWriter.name("coordinates").beginArray();
+                mJsonWriter.beginArray().value(firstLon).value(firstLat).endArray();
+            }
+
+            mJsonWriter.beginArray().value(lon).value(lat).endArray();
+        }
+
+        @Override
+        void end() throws IOException
+        {
+            if (points == 0)
+            {
+                mJsonWriter.name("geometry").nullValue();
+            } else if (points == 1)
+            {
+                mJsonWriter.name("geometry").beginObject();
+                mJsonWriter.name("type").value("Point");
+                mJsonWriter.name("coordinates").beginArray().value(firstLon).value(firstLat).endArray();
+                mJsonWriter.endObject();
+            } else
+            {
+                mJsonWriter.endArray();
+                mJsonWriter.endObject();
+            }
+
+            mJsonWriter.name("properties").beginObject();
+            mJsonWriter.name("track_id").value(trackId);
+            mJsonWriter.name("points").value(points);
+            mJsonWriter.endObject();
+
+            mJsonWriter.endObject();
+        }
+
+        @Override
+        void close() throws IOException
+        {
+            mJsonWriter.close();
+        }
+    }
+
+    private static final class PointSink extends RowSink
+    {
+        private final JsonWriter mJsonWriter;
+
+        private List<String> columns;
+        private int latitude = -1;
+        private int longitude = -1;
+
+
+        PointSink(OutputStream out)
+        {
+            this.mJsonWriter = new JsonWriter(createWriter(out));
+        }
+
+        @Override
+        void begin(List<String> columns) throws IOException
+        {
+            this.columns = columns;
+
+            latitude = columns.indexOf("app_latitude");
+            longitude = columns.indexOf("app_longitude");
+
+            mJsonWriter.beginObject();
+            mJsonWriter.name("type").value("FeatureCollection");
+            mJsonWriter.name("features").beginArray();
+        }
+
+        @Override
+        void row(String[] values) throws IOException
+        {
+            double lat = latitude < 0 ? Double.NaN : parseDouble(values[latitude]);
+            double lon = longitude < 0 ? Double.NaN : parseDouble(values[longitude]);
+
+            mJsonWriter.beginObject();
+            mJsonWriter.name("type").value("Feature");
+
+            mJsonWriter.name("geometry");
+            if (Double.isNaN(lat) || Double.isNaN(lon))
+            {
+                mJsonWriter.nullValue();
+            } else
+            {
+                mJsonWriter.beginObject();
+                mJsonWriter.name("type").value("Point");
+                mJsonWriter.name("coordinates").beginArray().value(lon).value(lat).endArray();
+                mJsonWriter.endObject();
+            }
+
+            mJsonWriter.name("properties").beginObject();
+            for (int i = 0; i < values.length; i++)
+            {
+                if (values[i] != null)
+                    mJsonWriter.name(columns.get(i)).value(values[i]);
+            }
+            mJsonWriter.endObject();
+
+            mJsonWriter.endObject();
+        }
+
+        @Override
+        void end() throws IOException
+        {
+            mJsonWriter.endArray();
+            mJsonWriter.endObject();
+        }
+
+        @Override
+        void close() throws IOException
+        {
+            mJsonWriter.close();
+        }
+    }
+
+    private static final class CsvSink extends RowSink
+    {
+        private final Writer mWriter;
+
+
+        CsvSink(OutputStream out)
+        {
+            this.mWriter = createWriter(out);
+        }
+
+        @Override
+        void begin(List<String> columns) throws IOException
+        {
+            for (int i = 0; i < columns.size(); i++)
+            {
+                if (i > 0)
+                    mWriter.write(',');
+
+                writeField(columns.get(i));
+            }
+
+            mWriter.write("\r\n");
+        }
+
+        @Override
+        void row(String[] values) throws IOException
+        {
+            for (int i = 0; i < values.length; i++)
+            {
+                if (i > 0)
+                    mWriter.write(',');
+
+                if (values[i] != null)
+                    writeField(values[i]);
+            }
+
+            mWriter.write("\r\n");
+        }
+
+        @Override
+        void end()
+        {
+        }
+
+        @Override
+        void close() throws IOException
+        {
+            mWriter.close();
+        }
+
+        private void writeField(String value) throws IOException
+        {
+            boolean quote = false;
+
+            for (int i = 0; i < value.length() && !quote; i++)
+            {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+            }
+
+            if (!quote)
+            {
+                mWriter.write(value);
+                return;
+            }
+
+            mWriter.write('"');
+            mWriter.write(value.replace("\"", "\"\""));
+            mWriter.write('"');
+        }
+    }
+
+    private static final class BinarySink extends RowSink
+    {
+        private final String trackId;
+        private final OutputStream mOutputStream;
+
+        private TrackEncoder mTrackEncoder = null;
+
+
+        BinarySink(String trackId, OutputStream out)
+        {
+            this.trackId = trackId;
+            this.mOutputStream = new BufferedOutputStream(out, 65536);
+        }
+
+        @Override
+        void begin(List<String> columns) throws IOException
+        {
+            mTrackEncoder = new TrackEncoder(mOutputStream, trackId, columns);
+        }
+
+        @Override
+        void row(String[] values) throws IOException
+        {
+            mTrackEncoder.writeRow(values);
+        }
+
+        @Override
+        void end() throws IOException
+        {
+            mTrackEncoder.finish();
+        }
+
+        @Override
+        void close() throws IOException
+        {
+            mOutputStream.close();
+        }
+    }
+
+    /**
+     * Keeps the caller's stream open when the format writers are closed
+     */
+    /**
+     * GZIP stream that always releases the native memory of its deflater, also when the export failed
+     */
+    private static final class GzipStream extends GZIPOutputStream
+    {
+        GzipStream(OutputStream out) throws IOException
+        {
+            super(out, 65536);
+        }
+
+        /**
+         * Writes the trailer and closes the stream, a failure of the trailer is only reported if the export itself completed
+         */
+        void finish(boolean complete) throws IOException
+        {
+            try
+            {
+                close();
+            } catch (IOException ex)
+            {
+                if (complete)
+                    throw ex;
+            } finally
+            {
+                def.end();
+            }
+        }
+    }
+
+    private static final class NonClosingOutputStream extends FilterOutputStream
+    {
+        NonClosingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException
+        {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+/**
+ * Fields that are constant for all samples of a track
+ */
+final class TrackHeader
+{
+    final String trackId;
+
+    final String clientOs;
+    final String clientOsVersion;
+
+    final String manufacturer;
+    final String manufacturerId;
+    final String manufacturerVersion;
+
+    final String appVersion;
+    final String libraryVersion;
+
+    final int timezone;
+
+
+    TrackHeader(String trackId, String clientOs, String clientOsVersion, String manufacturer, String manufacturerId, String manufacturerVersion, String appVersion, String libraryVersion, int timezone)
+    {
+        this.trackId = trackId;
+        this.clientOs = clientOs;
+        this.clientOsVersion = clientOsVersion;
+        this.manufacturer = manufacturer;
+        this.manufacturerId = manufacturerId;
+        this.manufacturerVersion = manufacturerVersion;
+        this.appVersion = appVersion;
+        this.libraryVersion = libraryVersion;
+        this.timezone = timezone;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming sliding-window simplification of a track with bounded memory
+ * <p>
+ * A point is dropped while every point since the last kept point stays within the tolerance of the segment from that point to
+ * the newest one. Points where the access category, the cell (app_cellid / app_celllac) or the RSSI bucket changes are always kept
+ * together with their predecessor, so technology boundaries stay exact.
+ */
+class TrackSimplifier<T>
+{
+    static final String STORAGE_MODE_SIMPLIFIED = "simplified";
+
+    static final double DEFAULT_TOLERANCE = 5.0;
+    static final int DEFAULT_RSSI_BUCKET = 10;
+
+    static final int NO_RSSI = Integer.MIN_VALUE;
+
+    private static final int MAX_WINDOW = 256;
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(GeoMath.EARTH_RADIUS);
+
+    interface Listener<T>
+    {
+        void onKept(T item);
+
+        void onDropped(T item);
+    }
+
+    private static final class Point<T>
+    {
+        final T item;
+        final double latitude;
+        final double longitude;
+
+        final String category;
+        final String cellId;
+        final String lac;
+        final int rssiBucket;
+
+
+        Point(T item, double latitude, double longitude, String category, String cellId, String lac, int rssiBucket)
+        {
+            this.item = item;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.category = category;
+            this.cellId = cellId;
+            this.lac = lac;
+            this.rssiBucket = rssiBucket;
+        }
+
+        boolean sameState(Point<T> other)
+        {
+            return rssiBucket == other.rssiBucket && equals(category, other.category) && equals(cellId, other.cellId) && equals(lac, other.lac);
+        }
+
+        private static boolean equals(String a, String b)
+        {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final double tolerance;
+    private final int rssiBucket;
+    private final Listener<T> mListener;
+
+    private Point<T> anchor = null;
+    private final List<Point<T>> mWindow = new ArrayList<>();
+
+    private long input = 0;
+    private long kept = 0;
+    private long stateChanges = 0;
+    private double maxError = 0.0;
+
+
+    /**
+     * @param tolerance  maximum distance in meters of a dropped point to the kept polyline
+     * @param rssiBucket width of the RSSI buckets in dB
+     */
+    TrackSimplifier(double tolerance, int rssiBucket, Listener<T> listener)
+    {
+        this.tolerance = Math.max(0.0, tolerance);
+        this.rssiBucket = Math.max(1, rssiBucket);
+        this.mListener = listener;
+    }
+
+    /**
+     * @param rssi signal strength in dBm, {@link #NO_RSSI} if unknown
+     */
+    synchronized void add(T item, double latitude, double longitude, String category, String cellId, String lac, int rssi)
+    {
+        input++;
+
+        Point<T> point = new Point<>(item, latitude, longitude, category, cellId, lac, rssi == NO_RSSI ? NO_RSSI : (int) Math.floor((double) rssi / rssiBucket));
+
+        if (anchor == null)
+        {
+            keep(point);
+            anchor = point;
+            return;
+        }
+
+        Point<T> last = mWindow.isEmpty() ? anchor : mWindow.get(mWindow.size() - 1);
+
+        if (!point.sameState(last))
+        {
+            stateChanges++;
+
+            if (last != anchor)
+                advance();
+
+            keep(point);
+            anchor = point;
+            return;
+        }
+
+        if (mWindow.size() >= MAX_WINDOW || !fits(point))
+            advance();
+
+        mWindow.add(point);
+    }
+
+    /**
+     * Keeps the last pending point, must be called at the end of the track
+     */
+    synchronized void finish()
+    {
+        if (!mWindow.isEmpty())
+            advance();
+
+        anchor = null;
+    }
+
+    /**
+     * RSSI column value as int, {@link #NO_RSSI} if missing or not numeric
+     */
+    static int parseRssi(String rssi)
+    {
+        if (rssi == null)
+            return NO_RSSI;
+
+        try
+        {
+            return (int) Math.round(Double.parseDouble(rssi));
+        } catch (NumberFormatException ex)
+        {
+            return NO_RSSI;
+        }
+    }
+
+    synchronized long getInput()
+    {
+        return input;
+    }
+
+    synchronized long getKept()
+    {
+        return kept;
+    }
+
+    /**
+     * Kept points per input point, 1.0 before the first point
+     */
+    synchronized double getRatio()
+    {
+        return input > 0 ? (double) kept / input : 1.0;
+    }
+
+    /**
+     * Largest distance in meters of a dropped point to its kept segment
+     */
+    synchronized double getMaxError()
+    {
+        return maxError;
+    }
+
+    synchronized JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        json.put("input", input);
+        json.put("kept", kept);
+        json.put("ratio", getRatio());
+        json.put("max_error", maxError);
+        json.put("state_changes", stateChanges);
+        json.put("tolerance", tolerance);
+
+        return json;
+    }
+
+    /**
+     * Keeps the newest window point as the new anchor and drops the points before it
+     */
+    private void advance()
+    {
+        Point<T> end = mWindow.get(mWindow.size() - 1);
+
+        for (int i = 0; i < mWindow.size() - 1; i++)
+        {
+            Point<T> point = mWindow.get(i);
+
+            maxError = Math.max(maxError, distance(anchor, end, point));
+            mListener.onDropped(point.item);
+        }
+
+        mWindow.clear();
+
+        keep(end);
+        anchor = end;
+    }
+
+    private boolean fits(Point<T> end)
+    {
+        for (int i = 0; i < mWindow.size(); i++)
+        {
+            if (distance(anchor, end, mWindow.get(i)) > tolerance)
+                return false;
+        }
+
+        return true;
+    }
+
+    private void keep(Point<T> point)
+    {
+        kept++;
+        mListener.onKept(point.item);
+    }
+
+    /**
+     * Distance in meters of the point to the segment, in an equirectangular projection around the segment start
+     */
+    private static double distance(Point<?> start, Point<?> end, Point<?> point)
+    {
+        double scale = Math.cos(Math.toRadians(start.latitude)) * METERS_PER_DEGREE;
+
+        double ex = (end.longitude - start.longitude) * scale;
+        double ey = (end.latitude - start.latitude) * METERS_PER_DEGREE;
+        double px = (point.longitude - start.longitude) * scale;
+        double py = (point.latitude - start.latitude) * METERS_PER_DEGREE;
+
+        double lengthSquared = ex * ex + ey * ey;
+        double t = lengthSquared > 0 ? Math.max(0.0, Math.min(1.0, (px * ex + py * ey) / lengthSquared)) : 0.0;
+
+        double dx = px - t * ex;
+        double dy = py - t * ey;
+
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
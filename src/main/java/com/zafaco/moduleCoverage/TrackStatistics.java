@@ -0,0 +1,323 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Per track statistics updated in O(1) per admitted sample: velocity, altitude and RSSI moments (Welford), a fixed-bucket RSSI histogram per
+ * access category and, through the {@link CoverageCounter}, time and distance per access category
+ * <p>
+ * Reading never touches the database, the statistics are persisted with the meta row when the session stops.
+ */
+public final class TrackStatistics
+{
+    public static final int RSSI_HISTOGRAM_MIN = -140;
+    public static final int RSSI_HISTOGRAM_WIDTH = 10;
+    public static final int RSSI_HISTOGRAM_BUCKETS = 10;
+
+    static final String META_COLUMN = "statistics";
+
+    private static final int CATEGORIES = AccessCategory.values().length;
+
+    private final String trackId;
+    private final CoverageCounter counter;
+
+    private final Moments velocity = new Moments();
+    private final Moments altitude = new Moments();
+    private final Moments rssi = new Moments();
+
+    private final long[][] rssiHistograms = new long[CATEGORIES][RSSI_HISTOGRAM_BUCKETS + 2];
+
+
+    TrackStatistics(String trackId, CoverageCounter counter)
+    {
+        this.trackId = trackId;
+        this.counter = counter;
+    }
+
+    /**
+     * Adds an admitted sample of the category, the per category time and distance are counted by the {@link CoverageCounter}
+     */
+    synchronized void add(AccessCategory category, CoverageSample sample)
+    {
+        if (sample.velocity >= 0)
+            velocity.add(sample.velocity);
+
+        double value = parseDouble(sample.getString("app_altitude"));
+        if (!Double.isNaN(value))
+            altitude.add(value);
+
+        value = parseDouble(sample.getString("app_rssi"));
+        if (!Double.isNaN(value))
+        {
+            rssi.add(value);
+            rssiHistograms[category.ordinal()][getBucket(value)]++;
+        }
+    }
+
+    public synchronized Snapshot snapshot()
+    {
+        long[][] histograms = new long[CATEGORIES][];
+        for (int i = 0; i < CATEGORIES; i++)
+        {
+            histograms[i] = rssiHistograms[i].clone();
+        }
+
+        return new Snapshot(trackId, counter.snapshot(), velocity.copy(), altitude.copy(), rssi.copy(), histograms);
+    }
+
+    /**
+     * Writes the snapshot as JSON to the statistics column of the meta row of its track, the column must exist
+     */
+    static void persist(SQLiteDatabase database, Snapshot snapshot) throws JSONException
+    {
+        database.execSQL("UPDATE " + CoverageSchema.quote(CoverageDatabase.TABLE_META) + " SET " + CoverageSchema.quote(META_COLUMN) + " = ? WHERE fkey = ?",
+                new Object[]{snapshot.toJSON().toString(), snapshot.getTrackId()});
+    }
+
+    /**
+     * Bucket 0 holds values below {@link #RSSI_HISTOGRAM_MIN}, the last bucket values at or above the upper bound
+     */
+    static int getBucket(double rssi)
+    {
+        if (rssi < RSSI_HISTOGRAM_MIN)
+            return 0;
+
+        int bucket = (int) ((rssi - RSSI_HISTOGRAM_MIN) / RSSI_HISTOGRAM_WIDTH);
+
+        return Math.min(bucket, RSSI_HISTOGRAM_BUCKETS) + 1;
+    }
+
+    private static double parseDouble(String value)
+    {
+        if (value == null || value.isEmpty())
+            return Double.NaN;
+
+        try
+        {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex)
+        {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Running count, mean, variance, minimum and maximum (Welford)
+     */
+    public static final class Moments
+    {
+        private long count = 0;
+        private double mean = 0.0;
+        private double m2 = 0.0;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+
+
+        void add(double value)
+        {
+            count++;
+
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+
+            min = count == 1 ? value : Math.min(min, value);
+            max = count == 1 ? value : Math.max(max, value);
+        }
+
+        Moments copy()
+        {
+            Moments copy = new Moments();
+            copy.count = count;
+            copy.mean = mean;
+            copy.m2 = m2;
+            copy.min = min;
+            copy.max = max;
+
+            return copy;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMean()
+        {
+            return count > 0 ? mean : Double.NaN;
+        }
+
+        /**
+         * Sample variance
+         */
+        public double getVariance()
+        {
+            return count > 1 ? m2 / (count - 1) : 0.0;
+        }
+
+        public double getStandardDeviation()
+        {
+            return Math.sqrt(getVariance());
+        }
+
+        public double getMin()
+        {
+            return min;
+        }
+
+        public double getMax()
+        {
+            return max;
+        }
+
+        JSONObject toJSON() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+
+            if (count > 0)
+            {
+                json.put("mean", mean);
+                json.put("stddev", getStandardDeviation());
+                json.put("min", min);
+                json.put("max", max);
+            }
+
+            return json;
+        }
+    }
+
+    public static final class Snapshot
+    {
+        private final String trackId;
+        private final CoverageCounter.Snapshot counter;
+        private final Moments velocity;
+        private final Moments altitude;
+        private final Moments rssi;
+        private final long[][] rssiHistograms;
+
+
+        private Snapshot(String trackId, CoverageCounter.Snapshot counter, Moments velocity, Moments altitude, Moments rssi, long[][] rssiHistograms)
+        {
+            this.trackId = trackId;
+            this.counter = counter;
+            this.velocity = velocity;
+            this.altitude = altitude;
+            this.rssi = rssi;
+            this.rssiHistograms = rssiHistograms;
+        }
+
+        public String getTrackId()
+        {
+            return trackId;
+        }
+
+        /**
+         * Samples, time and distance per access category
+         */
+        public CoverageCounter.Snapshot getCounter()
+        {
+            return counter;
+        }
+
+        public Moments getVelocity()
+        {
+            return velocity;
+        }
+
+        public Moments getAltitude()
+        {
+            return altitude;
+        }
+
+        public Moments getRssi()
+        {
+            return rssi;
+        }
+
+        /**
+         * Counts per RSSI bucket of all categories: below the minimum, {@link #RSSI_HISTOGRAM_BUCKETS} buckets of {@link #RSSI_HISTOGRAM_WIDTH} dB,
+         * at or above the maximum
+         */
+        public long[] getRssiHistogram()
+        {
+            long[] histogram = new long[RSSI_HISTOGRAM_BUCKETS + 2];
+
+            for (long[] counts : rssiHistograms)
+            {
+                for (int i = 0; i < histogram.length; i++)
+                {
+                    histogram[i] += counts[i];
+                }
+            }
+
+            return histogram;
+        }
+
+        /**
+         * Counts per RSSI bucket of the samples of the category
+         */
+        public long[] getRssiHistogram(AccessCategory category)
+        {
+            return rssiHistograms[category.ordinal()].clone();
+        }
+
+        public JSONObject toJSON() throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("track_id", trackId);
+            json.put("categories", counter.toJSON());
+            json.put("velocity", velocity.toJSON());
+            json.put("altitude", altitude.toJSON());
+            json.put("rssi", rssi.toJSON());
+
+            JSONObject histogram = new JSONObject();
+            histogram.put("min", RSSI_HISTOGRAM_MIN);
+            histogram.put("width", RSSI_HISTOGRAM_WIDTH);
+
+            histogram.put("counts", toJSON(getRssiHistogram()));
+
+            JSONObject categories = new JSONObject();
+            for (AccessCategory category : AccessCategory.values())
+            {
+                categories.put(category.getLabel(), toJSON(rssiHistograms[category.ordinal()]));
+            }
+            histogram.put("categories", categories);
+
+            json.put("rssi_histogram", histogram);
+
+            return json;
+        }
+
+        private static JSONArray toJSON(long[] counts)
+        {
+            JSONArray json = new JSONArray();
+            for (long count : counts)
+            {
+                json.put(count);
+            }
+
+            return json;
+        }
+    }
+}
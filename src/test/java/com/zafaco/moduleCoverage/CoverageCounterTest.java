@@ -0,0 +1,127 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoverageCounterTest
+{
+    private static final double DELTA = 1e-9;
+
+
+    @Test
+    public void attributesTimeAndDistanceToPreviousCategory() throws Exception
+    {
+        CoverageCounter counter = new CoverageCounter();
+
+        counter.add(AccessCategory.G4, 1000, 0);
+        counter.add(AccessCategory.G4, 2000, 10.5);
+        counter.add(AccessCategory.G3, 3500, 20);
+        counter.add(AccessCategory.G5, 4000, 3.25);
+
+        CoverageCounter.Snapshot snapshot = counter.snapshot();
+
+        assertEquals(4, snapshot.getSamples());
+        assertEquals(2, snapshot.getSamples(AccessCategory.G4));
+        assertEquals(1, snapshot.getSamples(AccessCategory.G3));
+        assertEquals(1, snapshot.getSamples(AccessCategory.G5));
+        assertEquals(0, snapshot.getSamples(AccessCategory.G2));
+
+        assertEquals(2500, snapshot.getTimeMs(AccessCategory.G4));
+        assertEquals(500, snapshot.getTimeMs(AccessCategory.G3));
+        assertEquals(0, snapshot.getTimeMs(AccessCategory.G5));
+
+        assertEquals(30.5, snapshot.getDistance(AccessCategory.G4), DELTA);
+        assertEquals(3.25, snapshot.getDistance(AccessCategory.G3), DELTA);
+        assertEquals(0, snapshot.getDistance(AccessCategory.G5), DELTA);
+
+        JSONObject json = snapshot.toJSON();
+        assertEquals(4, json.getLong("all"));
+        assertEquals(2, json.getJSONObject("4G").getLong("samples"));
+        assertEquals(2500, json.getJSONObject("4G").getLong("time_ms"));
+        assertEquals(30.5, json.getJSONObject("4G").getDouble("distance"), DELTA);
+    }
+
+    @Test
+    public void gapsAndClockStepsAreNotAttributed()
+    {
+        CoverageCounter counter = new CoverageCounter();
+
+        counter.add(AccessCategory.G4, 0, 0);
+        counter.add(AccessCategory.G4, 120000, 500);
+        counter.add(AccessCategory.G4, 119000, 5);
+        counter.add(AccessCategory.G4, 120000, 7);
+
+        CoverageCounter.Snapshot snapshot = counter.snapshot();
+
+        assertEquals(4, snapshot.getSamples(AccessCategory.G4));
+        assertEquals(1000, snapshot.getTimeMs(AccessCategory.G4));
+        assertEquals(7, snapshot.getDistance(AccessCategory.G4), DELTA);
+    }
+
+    @Test
+    public void snapshotIsConsistentWhileWriting() throws Exception
+    {
+        final CoverageCounter counter = new CoverageCounter();
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long timestamp = 0;
+                while (running.get())
+                {
+                    counter.add(AccessCategory.fromOrdinal((int) (timestamp / 1000 % 5)), timestamp, 1);
+                    timestamp += 1000;
+                }
+            }
+        });
+        writer.start();
+
+        try
+        {
+            for (int i = 0; i < 100000; i++)
+            {
+                CoverageCounter.Snapshot snapshot = counter.snapshot();
+
+                long timeMs = 0;
+                double distance = 0;
+                for (AccessCategory category : AccessCategory.values())
+                {
+                    timeMs += snapshot.getTimeMs(category);
+                    distance += snapshot.getDistance(category);
+                }
+
+                long attributed = Math.max(0, snapshot.getSamples() - 1);
+                assertEquals(attributed * 1000, timeMs);
+                assertEquals(attributed, distance, DELTA);
+            }
+        }
+        finally
+        {
+            running.set(false);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageIngestTest
+{
+    private static final long START = 1700000000000L;
+
+    private final FakeClock clock = new FakeClock();
+
+    private CoverageIngest ingest;
+    private int fix = 0;
+
+
+    private static final class FakeClock implements CoverageIngest.Clock
+    {
+        long now = START;
+
+        @Override
+        public long currentTimeMillis()
+        {
+            return now;
+        }
+    }
+
+
+    @Before
+    public void setUp()
+    {
+        // location age threshold of 60 s, the tests move the fix time back by up to a few seconds
+        ingest = createIngest(60000);
+    }
+
+    @Test
+    public void selectsNetworkStateClosestToFixTime() throws Exception
+    {
+        publishNetwork(START + 1000, 13);
+        publishNetwork(START + 2000, 20);
+        publishNetwork(START + 3000, 3);
+
+        // now, location age ms -> selected access id, |fixTimestamp - state.timestamp|
+        long[][] table = new long[][]{
+                {START + 3500, 0, 3, 500},
+                {START + 3500, 1400, 20, 100},
+                {START + 3500, 2400, 13, 100},
+                {START + 3500, 3400, 13, 900},
+                {START + 5000, 2100, 3, 100},
+                {START + 5000, 2600, 20, 400},
+                {START + 2100, 1000, 13, 100},
+                {START + 2100, 200, 20, 100},
+        };
+
+        for (int i = 0; i < table.length; i++)
+        {
+            long[] row = table[i];
+            clock.now = row[0];
+
+            CoverageSample sample = ingest.onGeo(geo(row[1]));
+
+            assertNotNull("row " + i, sample);
+            assertEquals("row " + i, (int) row[2], sample.accessId);
+            assertEquals("row " + i, row[3], sample.networkAgeMs);
+            assertEquals("row " + i, row[0], sample.geoTimestamp);
+
+            sample.recycle();
+        }
+    }
+
+    @Test
+    public void selectsAtStateBoundaries() throws Exception
+    {
+        publishNetwork(START + 1000, 13);
+        publishNetwork(START + 2000, 20);
+
+        clock.now = START + 3000;
+
+        // fix exactly at a state
+        assertAccess(13, 2000, 0);
+        assertAccess(20, 1000, 0);
+
+        // fix exactly between two states picks the newer one
+        assertAccess(20, 1500, 500);
+
+        // one millisecond to either side of the midpoint
+        assertAccess(13, 1501, 499);
+        assertAccess(20, 1499, 499);
+
+        // before the first and after the last state
+        assertAccess(13, 2500, 500);
+        assertAccess(20, -5000, 6000);
+
+        // the wireless history is selected independently of the network history
+        publishWireless(START + 1200, "a");
+        publishWireless(START + 2900, "b");
+
+        clock.now = START + 3000;
+        CoverageSample sample = ingest.onGeo(geo(1600));
+        assertEquals(13, sample.accessId);
+        assertEquals("a", sample.toJSON().getString("app_ssid"));
+        sample.recycle();
+
+        sample = ingest.onGeo(geo(200));
+        assertEquals(20, sample.accessId);
+        assertEquals("b", sample.toJSON().getString("app_ssid"));
+        sample.recycle();
+    }
+
+    @Test
+    public void historyKeepsOnlyTheNewestStates() throws Exception
+    {
+        int capacity = NetworkState.History.DEFAULT_CAPACITY;
+
+        for (int i = 0; i < capacity * 3; i++)
+        {
+            publishNetwork(START + i * 1000, 100 + i);
+        }
+
+        int oldest = capacity * 2;
+
+        // a fix at the time of an evicted state falls back to the oldest retained one
+        clock.now = START + capacity * 3 * 1000;
+        CoverageSample sample = ingest.onGeo(geo(clock.now - START));
+        assertEquals(100 + oldest, sample.accessId);
+        assertEquals(oldest * 1000, sample.networkAgeMs);
+        sample.recycle();
+
+        NetworkState.History history = new NetworkState.History(3);
+        assertNull(history.latest());
+        assertNull(history.select(0));
+
+        for (int i = 0; i < 5; i++)
+        {
+            history.publish(state(i * 10, i));
+        }
+
+        assertEquals(4, history.latest().accessId);
+        assertEquals(2, history.select(-1).accessId);
+        assertEquals(4, history.select(1000).accessId);
+    }
+
+    @Test
+    public void historyStaysBoundedUnderConcurrentPublishers() throws Exception
+    {
+        final int capacity = 4;
+        final int perThread = 20000;
+        final NetworkState.History history = new NetworkState.History(capacity);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        Thread[] publishers = new Thread[3];
+        for (int t = 0; t < publishers.length; t++)
+        {
+            final int offset = t;
+            publishers[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < perThread; i++)
+                        {
+                            history.publish(state(i * publishers.length + offset, offset));
+                        }
+                    } catch (JSONException ex)
+                    {
+                        failure.set(ex.toString());
+                    }
+                }
+            });
+        }
+
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean published = false;
+
+                while (running.get())
+                {
+                    NetworkState selected = history.select(-1);
+
+                    if (published && selected == null)
+                        failure.set("published state disappeared");
+
+                    published = history.latest() != null;
+                }
+            }
+        });
+
+        reader.start();
+        for (Thread publisher : publishers)
+        {
+            publisher.start();
+        }
+        for (Thread publisher : publishers)
+        {
+            publisher.join();
+        }
+        running.set(false);
+        reader.join();
+
+        assertNull(failure.get());
+
+        // after the publishers are done the history holds the last states of each thread, never more than its capacity
+        long total = (long) perThread * publishers.length;
+        NetworkState oldest = history.select(-1);
+        assertTrue(oldest.timestamp >= total - capacity * publishers.length);
+
+        int count = 0;
+        for (long timestamp = 0; timestamp < total; timestamp++)
+        {
+            if (history.select(timestamp).timestamp == timestamp)
+                count++;
+        }
+        assertEquals(capacity, count);
+    }
+
+    @Test
+    public void publishedStateIsACopyOfTheListenerOutput() throws Exception
+    {
+        clock.now = START;
+        JSONObject message = network(13);
+        ingest.onNetwork(message);
+
+        message.put("app_access_id", 20);
+        message.put("app_cellid", "changed");
+
+        clock.now = START + 100;
+        CoverageSample sample = ingest.onGeo(geo(0));
+        assertEquals(13, sample.accessId);
+        assertEquals("1", sample.toJSON().getString("app_cellid"));
+        sample.recycle();
+    }
+
+    @Test
+    public void staleNetworkStateIsRejectedWhenEnabled() throws Exception
+    {
+        publishNetwork(START + 1000, 13);
+
+        // the staleness filter is off by default
+        clock.now = START + 11000;
+        CoverageSample sample = ingest.onGeo(geo(0));
+        assertNotNull(sample);
+        assertEquals(10000, sample.networkAgeMs);
+        assertNull(ingest.getLastRejection());
+        sample.recycle();
+
+        ingest.setNetworkAgeThreshold(2000);
+
+        // age measured from the fix time, not from the arrival of the fix
+        long[][] table = new long[][]{
+                // now, location age ms, admitted
+                {START + 3000, 0, 1},
+                {START + 3001, 0, 0},
+                {START + 4000, 1000, 1},
+                {START + 4000, 999, 0},
+                {START + 2000, 0, 1},
+                {START + 1000, 2000, 1},
+                {START + 1000, 2001, 0},
+        };
+
+        for (int i = 0; i < table.length; i++)
+        {
+            long[] row = table[i];
+            clock.now = row[0];
+
+            sample = ingest.onGeo(geo(row[1]));
+
+            if (row[2] == 1)
+            {
+                assertNotNull("row " + i, sample);
+                assertNull("row " + i, ingest.getLastRejection());
+                sample.recycle();
+            } else
+            {
+                assertNull("row " + i, sample);
+                assertEquals("row " + i, "network_age", ingest.getLastRejection().getName());
+            }
+        }
+
+        // a newer state makes the same fix admissible again
+        publishNetwork(START + 30000, 20);
+        clock.now = START + 31000;
+        sample = ingest.onGeo(geo(0));
+        assertNotNull(sample);
+        assertEquals(20, sample.accessId);
+        sample.recycle();
+
+        ingest.setNetworkAgeThreshold(0);
+        clock.now = START + 60000;
+        sample = ingest.onGeo(geo(0));
+        assertNotNull(sample);
+        sample.recycle();
+    }
+
+    @Test
+    public void distanceFilterFollowsMotionClassWithHysteresis() throws Exception
+    {
+        publishNetwork(START, 13);
+
+        // velocity -> motion class and minimum distance, one fix per second
+        Object[][] table = new Object[][]{
+                {3.9, MotionClass.WALKING},
+                // inside the hysteresis above the walking band
+                {4.9, MotionClass.WALKING},
+                {5.1, MotionClass.BIKING},
+                // a slower class is only entered after the downgrade delay
+                {3.0, MotionClass.BIKING},
+                {20.0, MotionClass.DRIVING},
+                {9.5, MotionClass.DRIVING},
+        };
+
+        for (int i = 0; i < table.length; i++)
+        {
+            clock.now += 1000;
+            ingest.onGeo(geo(0, (Double) table[i][0])).recycle();
+
+            assertEquals("row " + i, ((MotionClass) table[i][1]).minDistance, ingest.getDistanceActual(), 0.0);
+        }
+
+        for (long elapsed = 0; elapsed < LocationScheduler.DOWNGRADE_DELAY_MS; elapsed += 1000)
+        {
+            clock.now += 1000;
+            ingest.onGeo(geo(0, 3.0)).recycle();
+        }
+        assertEquals(MotionClass.DRIVING.minDistance, ingest.getDistanceActual(), 0.0);
+
+        clock.now += 1000;
+        ingest.onGeo(geo(0, 3.0)).recycle();
+        assertEquals(MotionClass.WALKING.minDistance, ingest.getDistanceActual(), 0.0);
+    }
+
+    @Test
+    public void distanceFilterUsesSharedScheduler() throws Exception
+    {
+        final List<Integer> requests = new ArrayList<>();
+
+        LocationScheduler scheduler = new LocationScheduler(new LocationScheduler.Requester()
+        {
+            @Override
+            public void requestUpdates(int intervalMs, int smallestDisplacement, int priority)
+            {
+                requests.add(smallestDisplacement);
+            }
+        }, 1000, 0, 0);
+
+        final long[] elapsed = {0};
+        ingest.setLocationScheduler(scheduler, new CoverageIngest.Clock()
+        {
+            @Override
+            public long currentTimeMillis()
+            {
+                return elapsed[0];
+            }
+        });
+
+        publishNetwork(START, 13);
+
+        double[] velocities = {8.0, 3.0, 3.0, 3.0, 30.0};
+        for (double velocity : velocities)
+        {
+            clock.now += 1000;
+            elapsed[0] += 10000;
+
+            ingest.onGeo(geo(0, velocity)).recycle();
+
+            assertEquals(scheduler.getMotionClass().minDistance, ingest.getDistanceActual(), 0.0);
+            assertEquals(scheduler.getSmallestDisplacement(), (int) ingest.getDistanceActual());
+        }
+
+        // biking, walking after the downgrade delay on the monotonic clock, driving
+        assertEquals(Arrays.asList(MotionClass.BIKING.minDistance, MotionClass.WALKING.minDistance, MotionClass.DRIVING.minDistance), requests);
+    }
+
+
+    private CoverageIngest createIngest(int locationAgeThreshold)
+    {
+        final DeviceState deviceState = new DeviceState(false, false, 5, 1, START);
+
+        DeviceState.Source deviceStateSource = new DeviceState.Source()
+        {
+            @Override
+            public DeviceState get()
+            {
+                return deviceState;
+            }
+        };
+
+        return new CoverageIngest(SyntheticDrive.createHeader(), 50, locationAgeThreshold, "unknown", deviceStateSource, SyntheticDrive.createCategoryResolver(), clock);
+    }
+
+    private void assertAccess(int expectedAccessId, long locationAgeMs, long expectedNetworkAgeMs) throws JSONException
+    {
+        CoverageSample sample = ingest.onGeo(geo(locationAgeMs));
+
+        String label = "age " + locationAgeMs;
+        assertNotNull(label, sample);
+        assertEquals(label, expectedAccessId, sample.accessId);
+        assertEquals(label, expectedNetworkAgeMs, sample.networkAgeMs);
+
+        sample.recycle();
+    }
+
+    private void publishNetwork(long timestamp, int accessId) throws JSONException
+    {
+        clock.now = timestamp;
+        ingest.onNetwork(network(accessId));
+    }
+
+    private void publishWireless(long timestamp, String ssid) throws JSONException
+    {
+        clock.now = timestamp;
+
+        JSONObject wireless = new JSONObject();
+        wireless.put("app_ssid", ssid);
+        ingest.onWireless(wireless);
+    }
+
+    private static JSONObject network(int accessId) throws JSONException
+    {
+        JSONObject network = new JSONObject();
+        network.put("app_access_id", accessId);
+        network.put("app_access", "LTE");
+        network.put("app_mode", "MOBILE");
+        network.put("app_call_state", 0);
+        network.put("app_cellid", "1");
+
+        return network;
+    }
+
+    private static NetworkState state(long timestamp, int accessId) throws JSONException
+    {
+        return NetworkState.of(new JSONObject(), accessId, timestamp, null, null);
+    }
+
+    /**
+     * Next fix, one kilometer north of the previous one so the distance filter never rejects it
+     */
+    private JSONObject geo(long locationAgeMs) throws JSONException
+    {
+        return geo(locationAgeMs, 1.0);
+    }
+
+    private JSONObject geo(long locationAgeMs, double velocity) throws JSONException
+    {
+        fix++;
+
+        JSONObject geo = new JSONObject();
+        geo.put("app_latitude", 48.0 + fix * 0.01);
+        geo.put("app_longitude", 16.0);
+        geo.put("app_accuracy", 5.0);
+        geo.put("app_velocity", velocity);
+        geo.put("app_location_age_ns", locationAgeMs * 1000000L);
+
+        return geo;
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageJournalTest
+{
+    private static final String NAME = CoverageDatabase.TABLE_COVERAGE;
+
+    private static final List<String> COLUMNS = Arrays.asList("timestamp", "app_latitude", "app_operator", "app_rssi");
+
+    private static final int SESSION_BATCH_SIZE = 2000;
+    private static final int SESSION_COMMITTED = 2000;
+    private static final int SESSION_ACKNOWLEDGED = 5000;
+    private static final long TIMEOUT_MS = 60000;
+
+    private File mDirectory;
+    private File mFile;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete());
+        mFile = CoverageJournal.getJournalFile(mDirectory, NAME);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mFile.delete();
+        mFile.getParentFile().delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void recoversRowsAboveCheckpoint() throws IOException
+    {
+        CoverageJournal journal = CoverageJournal.open(mFile, NAME, 0);
+        for (int i = 1; i <= 10; i++)
+        {
+            assertEquals(i, journal.append(row(i)));
+        }
+        journal.close();
+
+        journal = CoverageJournal.open(mFile, NAME, 4);
+        List<CoverageRow> pending = journal.takePending();
+        journal.close();
+
+        assertEquals(6, pending.size());
+        for (int i = 0; i < pending.size(); i++)
+        {
+            assertRow(i + 5, pending.get(i));
+        }
+    }
+
+    @Test
+    public void truncatesOnceEverythingIsCommitted() throws IOException
+    {
+        CoverageJournal journal = CoverageJournal.open(mFile, NAME, 0);
+        journal.append(row(1));
+        journal.append(row(2));
+
+        journal.onCommitted(1);
+        assertTrue(mFile.length() > 0);
+
+        journal.onCommitted(2);
+        assertEquals(0, mFile.length());
+        assertEquals(1, journal.getTruncations());
+
+        assertEquals(3, journal.append(row(3)));
+        journal.close();
+
+        journal = CoverageJournal.open(mFile, NAME, 2);
+        List<CoverageRow> pending = journal.takePending();
+        journal.close();
+
+        assertEquals(1, pending.size());
+        assertRow(3, pending.get(0));
+    }
+
+    @Test
+    public void readsBackSpilledRows() throws IOException
+    {
+        CoverageJournal journal = CoverageJournal.open(mFile, NAME, 0);
+        journal.append(row(1));
+        journal.append(row(2));
+        long from = journal.getLastPosition();
+        journal.append(row(3));
+
+        List<CoverageRow> rows = new ArrayList<>();
+        long next = journal.read(from, journal.getPosition(), 1, rows);
+        next = journal.read(next, journal.getPosition(), 10, rows);
+        assertEquals(journal.getPosition(), next);
+        journal.close();
+
+        assertEquals(2, rows.size());
+        assertRow(2, rows.get(0));
+        assertRow(3, rows.get(1));
+    }
+
+    @Test
+    public void recoversPrefixAfterTornWrite() throws IOException
+    {
+        Random random = new Random(42);
+        int rows = 50;
+
+        for (int round = 0; round < 100; round++)
+        {
+            mFile.delete();
+
+            CoverageJournal journal = CoverageJournal.open(mFile, NAME, 0);
+            for (int i = 1; i <= rows; i++)
+            {
+                journal.append(row(i));
+            }
+            journal.close();
+
+            long length = (long) (random.nextDouble() * mFile.length());
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+            file.close();
+
+            journal = CoverageJournal.open(mFile, NAME, 0);
+            List<CoverageRow> pending = journal.takePending();
+
+            for (int i = 0; i < pending.size(); i++)
+            {
+                assertRow(i + 1, pending.get(i));
+            }
+            assertTrue(mFile.length() <= length);
+
+            // appending continues right after the last intact record
+            assertEquals(pending.size() + 1, journal.append(row(pending.size() + 1)));
+            journal.close();
+
+            journal = CoverageJournal.open(mFile, NAME, 0);
+            assertEquals(pending.size() + 1, journal.takePending().size());
+            journal.close();
+        }
+    }
+
+    @Test
+    public void recoversAcknowledgedRowsAfterKill() throws Exception
+    {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Writer.class.getName(), mFile.getPath())
+                .redirectErrorStream(true)
+                .start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        long acknowledged = 0;
+        String line;
+        while (acknowledged < 2000 && (line = reader.readLine()) != null)
+        {
+            acknowledged = Long.parseLong(line.trim());
+        }
+
+        process.destroyForcibly();
+        process.waitFor();
+        reader.close();
+
+        assertTrue(acknowledged >= 2000);
+
+        CoverageJournal journal = CoverageJournal.open(mFile, NAME, 0);
+        List<CoverageRow> pending = journal.takePending();
+        journal.close();
+
+        assertTrue(pending.size() >= acknowledged);
+        for (int i = 0; i < pending.size(); i++)
+        {
+            assertRow(i + 1, pending.get(i));
+        }
+    }
+
+    /**
+     * Kills a session whose writer committed part of the rows, the next writer commits the rest from the journal: every
+     * acknowledged row is in the coverage table exactly once, on both sides of the checkpoint
+     */
+    @Test
+    public void killedSessionIsReplayedExactlyOnce() throws Exception
+    {
+        assertTrue(mDirectory.mkdirs());
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+
+        for (String name : System.getProperties().stringPropertyNames())
+        {
+            if (name.startsWith("robolectric."))
+                command.add("-D" + name + "=" + System.getProperty(name));
+        }
+
+        command.add("-D" + KilledSession.DIRECTORY + "=" + mDirectory.getPath());
+        command.add(JUnitCore.class.getName());
+        command.add(KilledSession.class.getName());
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        StringBuilder output = new StringBuilder();
+        long acknowledged = 0;
+        long committed = 0;
+        String line;
+
+        while ((committed < SESSION_COMMITTED || acknowledged < SESSION_ACKNOWLEDGED) && (line = reader.readLine()) != null)
+        {
+            if (!line.startsWith(KilledSession.ACKNOWLEDGED))
+            {
+                output.append(line).append('\n');
+                continue;
+            }
+
+            String[] fields = line.split(" ");
+            acknowledged = Long.parseLong(fields[1]);
+            committed = Long.parseLong(fields[2]);
+        }
+
+        process.destroyForcibly();
+        process.waitFor();
+        reader.close();
+
+        assertTrue(output.toString(), acknowledged >= SESSION_ACKNOWLEDGED);
+
+        Context ctx = directoryContext(mDirectory);
+
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+        long checkpoint = CoverageJournal.readCheckpoint(database, NAME);
+        long[] before = countRows(database);
+        database.close();
+
+        // the killed writer committed rows up to the checkpoint and nothing beyond
+        assertTrue(checkpoint >= SESSION_COMMITTED);
+        assertTrue(checkpoint < acknowledged);
+        assertEquals(checkpoint, before[0]);
+        assertEquals(checkpoint, before[3]);
+
+        CoverageMetrics metrics = new CoverageMetrics();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            CoverageWriter writer = new CoverageWriter(ctx, COLUMNS, 500, 1000, CoverageJournal.open(ctx, NAME), metrics);
+
+            long start = System.nanoTime();
+            writer.start(executor);
+
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (writer.getRowsInserted() < acknowledged - checkpoint && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+
+            long elapsedNs = System.nanoTime() - start;
+            writer.stop();
+
+            long replayed = metrics.counter(CoverageMetrics.ROWS_RECOVERED).get();
+
+            System.out.println("CoverageJournal: replayed rows[" + replayed + "] - ms[" + elapsedNs / 1000000 + "] - rows/s[" + (long) (replayed * 1e9 / elapsedNs) + "]");
+
+            // rows journaled after the last acknowledgement may have survived the kill as well
+            assertTrue(replayed >= acknowledged - checkpoint);
+
+            database = CoverageDatabase.open(ctx);
+            long[] after = countRows(database);
+            long next = CoverageJournal.readCheckpoint(database, NAME);
+            database.close();
+
+            // count, distinct, min and max of the row number: rows 1..n, each exactly once
+            assertEquals(checkpoint + replayed, after[0]);
+            assertEquals(after[0], after[1]);
+            assertEquals(1, after[2]);
+            assertEquals(after[0], after[3]);
+            assertEquals(after[3], next);
+
+            // a second replay finds nothing left to commit
+            writer = new CoverageWriter(ctx, COLUMNS, 500, 1000, CoverageJournal.open(ctx, NAME), metrics);
+            writer.start(executor);
+            writer.stop();
+
+            database = CoverageDatabase.open(ctx);
+            assertEquals(after[0], countRows(database)[0]);
+            database.close();
+
+            assertEquals(replayed, metrics.counter(CoverageMetrics.ROWS_RECOVERED).get());
+        } finally
+        {
+            executor.shutdownNow();
+
+            for (String name : new String[]{CoverageDatabase.DATABASE, CoverageDatabase.DATABASE + "-wal", CoverageDatabase.DATABASE + "-shm", CoverageDatabase.DATABASE + "-journal"})
+            {
+                new File(mDirectory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Session of {@link #killedSessionIsReplayedExactlyOnce}, only runs inside the child JVM: adds rows to a writer until it is
+     * killed and prints every acknowledged sequence together with the number of committed rows
+     */
+    @RunWith(RobolectricTestRunner.class)
+    @Config(sdk = 33)
+    public static class KilledSession
+    {
+        static final String DIRECTORY = "coverage.journal.directory";
+        static final String ACKNOWLEDGED = "acknowledged ";
+
+        @Test
+        public void writeUntilKilled() throws Exception
+        {
+            String directory = System.getProperty(DIRECTORY);
+            Assume.assumeTrue(directory != null);
+
+            Context ctx = directoryContext(new File(directory));
+
+            CoverageWriter writer = new CoverageWriter(ctx, COLUMNS, SESSION_BATCH_SIZE, TIMEOUT_MS, CoverageJournal.open(ctx, NAME), new CoverageMetrics());
+            writer.start(Executors.newSingleThreadExecutor());
+
+            for (long i = 1; ; i++)
+            {
+                CoverageRow row = row(i);
+
+                assertTrue(writer.add(row));
+                assertEquals(i, row.getSequence());
+
+                System.out.println(ACKNOWLEDGED + i + " " + writer.getRowsInserted());
+            }
+        }
+    }
+
+    /**
+     * Appends rows until it is killed, prints the sequence of every row the journal acknowledged
+     */
+    public static final class Writer
+    {
+        public static void main(String[] args) throws IOException
+        {
+            CoverageJournal journal = CoverageJournal.open(new File(args[0]), NAME, 0);
+
+            for (long i = 1; ; i++)
+            {
+                System.out.println(journal.append(row(i)));
+            }
+        }
+    }
+
+    static CoverageRow row(long i)
+    {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("timestamp", Long.toString(i));
+        values.put("app_latitude", Double.toString(48.0 + i / 1e4));
+        values.put("app_operator", "Operator ä€📡 " + i);
+        values.put("app_rssi", i % 3 == 0 ? null : Long.toString(-60 - i % 40));
+
+        return new MapRow(CoverageDatabase.TABLE_COVERAGE, values);
+    }
+
+    /**
+     * Context whose database and files live in the directory, shared by the test and the killed session
+     */
+    private static Context directoryContext(final File directory)
+    {
+        return new ContextWrapper(RuntimeEnvironment.getApplication())
+        {
+            @Override
+            public File getDatabasePath(String name)
+            {
+                return new File(directory, name);
+            }
+
+            @Override
+            public File getFilesDir()
+            {
+                return directory;
+            }
+        };
+    }
+
+    /**
+     * Count, distinct count, minimum and maximum of the row number in the coverage table
+     */
+    private static long[] countRows(SQLiteDatabase database)
+    {
+        Cursor cursor = database.rawQuery("SELECT COUNT(*), COUNT(DISTINCT CAST(timestamp AS INTEGER)), MIN(CAST(timestamp AS INTEGER)), MAX(CAST(timestamp AS INTEGER)) FROM " + CoverageDatabase.TABLE_COVERAGE, null);
+        try
+        {
+            assertTrue(cursor.moveToFirst());
+
+            return new long[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)};
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    private static void assertRow(long i, CoverageRow row)
+    {
+        assertEquals(i, row.getSequence());
+        assertEquals(CoverageDatabase.TABLE_COVERAGE, row.getTable());
+
+        CoverageRow expected = row(i);
+        List<String> columns = new ArrayList<>();
+        expected.collectColumns(columns);
+
+        for (String column : columns)
+        {
+            assertEquals(expected.getString(column), row.getString(column));
+        }
+    }
+
+    static final class MapRow implements CoverageRow
+    {
+        private final String table;
+        private final Map<String, String> values;
+        private long sequence;
+
+
+        MapRow(String table, Map<String, String> values)
+        {
+            this.table = table;
+            this.values = values;
+        }
+
+        @Override
+        public String getTable()
+        {
+            return table;
+        }
+
+        @Override
+        public long getReceivedNanos()
+        {
+            return 0;
+        }
+
+        @Override
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        @Override
+        public void setSequence(long sequence)
+        {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void collectColumns(Collection<String> columns)
+        {
+            columns.addAll(values.keySet());
+        }
+
+        @Override
+        public String getString(String column)
+        {
+            return values.get(column);
+        }
+
+        @Override
+        public void recycle()
+        {
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageMetricsTest
+{
+    private static final double MAX_RELATIVE_ERROR = 0.125;
+
+
+    @Test
+    public void bucketsCoverLongRange()
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            checkBucket(value);
+        }
+
+        for (int exponent = 0; exponent < 63; exponent++)
+        {
+            long power = 1L << exponent;
+
+            checkBucket(power - 1);
+            checkBucket(power);
+            checkBucket(power + 1);
+        }
+
+        Random random = new Random(21);
+        for (int i = 0; i < 100000; i++)
+        {
+            checkBucket((random.nextLong() >>> 1) >>> random.nextInt(63));
+        }
+
+        checkBucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, CoverageMetrics.Histogram.upperBound(CoverageMetrics.Histogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void bucketsAreContiguous()
+    {
+        int last = CoverageMetrics.Histogram.index(Long.MAX_VALUE);
+
+        assertEquals(0, CoverageMetrics.Histogram.index(0));
+
+        for (int index = 1; index <= last; index++)
+        {
+            long lower = CoverageMetrics.Histogram.upperBound(index - 1) + 1;
+            long upper = CoverageMetrics.Histogram.upperBound(index);
+
+            assertTrue(upper >= lower);
+            assertEquals(index, CoverageMetrics.Histogram.index(lower));
+            assertEquals(index, CoverageMetrics.Histogram.index(upper));
+        }
+    }
+
+    @Test
+    public void percentilesAreUpperBucketBounds() throws Exception
+    {
+        CoverageMetrics.Histogram histogram = new CoverageMetrics.Histogram();
+
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (long value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500500 / 1001.0, histogram.getMean(), 1e-9);
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * (1 + MAX_RELATIVE_ERROR));
+
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(1000, histogram.getPercentile(100));
+
+        JSONObject json = histogram.toJSON();
+        assertEquals(p50, json.getLong("p50"));
+        assertEquals(histogram.getPercentile(99.9), json.getLong("p99.9"));
+    }
+
+    @Test
+    public void resetKeepsRegisteredMetrics() throws Exception
+    {
+        CoverageMetrics metrics = new CoverageMetrics();
+
+        CoverageMetrics.Counter counter = metrics.counter(CoverageMetrics.FIXES_DELIVERED);
+        CoverageMetrics.Histogram histogram = metrics.histogram(CoverageMetrics.INGEST_LATENCY);
+
+        assertSame(counter, metrics.counter(CoverageMetrics.FIXES_DELIVERED));
+        assertSame(histogram, metrics.histogram(CoverageMetrics.INGEST_LATENCY));
+
+        counter.add(3);
+        histogram.record(40);
+        metrics.rejected("accuracy").increment();
+        metrics.gauge(CoverageMetrics.DB_QUEUE_SIZE, new CoverageMetrics.Gauge()
+        {
+            @Override
+            public long get()
+            {
+                return 7;
+            }
+        });
+
+        JSONObject json = metrics.toJSON();
+        assertEquals(3, json.getJSONObject("counters").getLong(CoverageMetrics.FIXES_DELIVERED));
+        assertEquals(1, json.getJSONObject("rejected").getLong("accuracy"));
+        assertEquals(7, json.getJSONObject("gauges").getLong(CoverageMetrics.DB_QUEUE_SIZE));
+        assertEquals(1, json.getJSONObject("histograms").getJSONObject(CoverageMetrics.INGEST_LATENCY).getLong("count"));
+
+        metrics.reset();
+
+        assertEquals(0, counter.get());
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, metrics.rejected("accuracy").get());
+
+        counter.increment();
+        assertEquals(1, metrics.toJSON().getJSONObject("counters").getLong(CoverageMetrics.FIXES_DELIVERED));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate()
+    {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled());
+
+        CoverageMetrics metrics = new CoverageMetrics();
+        CoverageMetrics.Histogram histogram = metrics.histogram(CoverageMetrics.INGEST_LATENCY);
+        CoverageMetrics.Counter counter = metrics.counter(CoverageMetrics.FIXES_DELIVERED);
+        CoverageMetrics.Counter rejected = metrics.rejected("accuracy");
+
+        long threadId = Thread.currentThread().getId();
+
+        // the first round runs in the interpreter, the last one compiled
+        long allocated = 0;
+        for (int round = 0; round < 5; round++)
+        {
+            long before = allocation.getThreadAllocatedBytes(threadId);
+
+            record(histogram, counter, rejected, 200000);
+
+            allocated = allocation.getThreadAllocatedBytes(threadId) - before;
+        }
+
+        // getThreadAllocatedBytes itself may allocate a few bytes, the bound is far below one byte per record
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void record(CoverageMetrics.Histogram histogram, CoverageMetrics.Counter counter, CoverageMetrics.Counter rejected, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            long start = System.nanoTime();
+
+            counter.increment();
+            histogram.record(i * 37L);
+            rejected.add(1);
+            histogram.recordSince(start);
+        }
+    }
+
+    private static void checkBucket(long value)
+    {
+        int index = CoverageMetrics.Histogram.index(value);
+        long upper = CoverageMetrics.Histogram.upperBound(index);
+        long lower = index == 0 ? 0 : CoverageMetrics.Histogram.upperBound(index - 1) + 1;
+
+        assertTrue("value " + value, lower <= value && value <= upper);
+        assertTrue("value " + value, upper - lower <= Math.max(1, lower) * MAX_RELATIVE_ERROR);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageQueryTest
+{
+    private static final int BENCHMARK_ROWS = 5000000;
+    private static final int BENCHMARK_QUERIES = 20;
+
+    // around Vienna, the test boxes cover a hundredth and the benchmark boxes a ten-thousandth of the area
+    private static final double MIN_LATITUDE = 48.0;
+    private static final double MIN_LONGITUDE = 16.0;
+    private static final double SPAN = 1.0;
+    private static final double BOX = 0.1;
+    private static final double BENCHMARK_BOX = 0.01;
+    private static final long TIMEOUT_MS = 600000;
+
+    private Context ctx;
+    private SQLiteDatabase mSQLiteDatabase;
+    private Random random;
+
+
+    @Before
+    public void setUp()
+    {
+        ctx = RuntimeEnvironment.getApplication();
+        mSQLiteDatabase = CoverageDatabase.open(ctx);
+        mSQLiteDatabase.execSQL("CREATE TABLE " + CoverageDatabase.TABLE_COVERAGE + " (track_id TEXT, app_geo_timestamp TEXT, app_latitude TEXT, app_longitude TEXT)");
+        random = new Random(1);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mSQLiteDatabase.close();
+    }
+
+    @Test
+    public void backfillIndexesExistingRows() throws InterruptedException
+    {
+        insert(12345);
+
+        CoverageQuery query = new CoverageQuery(ctx);
+
+        assertTrue(query.awaitIndex(TIMEOUT_MS));
+        assertBoxes(query);
+        assertEquals(0, backfillRows());
+
+        query.close();
+    }
+
+    @Test
+    public void triggerIndexesNewRows() throws InterruptedException
+    {
+        insert(100);
+
+        CoverageQuery query = new CoverageQuery(ctx);
+        assertTrue(query.awaitIndex(TIMEOUT_MS));
+        insert(5000);
+
+        assertBoxes(query);
+
+        query.close();
+    }
+
+    @Test
+    public void interruptedBackfillResumes() throws InterruptedException
+    {
+        insert(20000);
+
+        CoverageQuery first = new CoverageQuery(ctx);
+        assertTrue(first.awaitIndex(TIMEOUT_MS));
+        first.close();
+
+        // state of a build that was killed after the first chunk
+        String index = count("SELECT COUNT(*) FROM sqlite_master WHERE name = 'coverage_rtree'") > 0 ? "coverage_rtree" : "coverage_spatial_grid";
+        mSQLiteDatabase.execSQL("DELETE FROM " + index + " WHERE id > 5000");
+        mSQLiteDatabase.execSQL("INSERT INTO coverage_index_backfill VALUES ('" + index + "', 5000, 20000)");
+
+        CoverageQuery query = new CoverageQuery(ctx);
+
+        assertTrue(query.awaitIndex(TIMEOUT_MS));
+        assertBoxes(query);
+        assertEquals(0, backfillRows());
+        assertEquals(20000, count("SELECT COUNT(*) FROM " + index));
+
+        query.close();
+    }
+
+    @Test
+    public void queriesLeaveSchemaAlone() throws InterruptedException
+    {
+        insert(3000);
+
+        String columns = getColumns();
+        CoverageQuery query = new CoverageQuery(ctx);
+
+        // the answers do not depend on the progress of the build, columns the table lacks read as null
+        assertBoxes(query);
+        assertEquals(3000, query.getTrackSummary("t").getSamples());
+        assertEquals(AccessCategory.UNKNOWN, query.queryTimeRange(1700000000000L, 1700000000009L, 100).get(0).category);
+        assertEquals(10, query.queryTimeRange(1700000000000L, 1700000000009L, 100).size());
+        assertEquals(3000, query.querySimplifiedTrack("t", 0.0).getInput());
+
+        assertTrue(query.awaitIndex(TIMEOUT_MS));
+        assertBoxes(query);
+        assertEquals(1, query.getTracks().size());
+
+        assertEquals(columns, getColumns());
+
+        query.close();
+    }
+
+    @Test
+    public void missingTableReadsEmpty() throws InterruptedException
+    {
+        mSQLiteDatabase.execSQL("DROP TABLE " + CoverageDatabase.TABLE_COVERAGE);
+
+        CoverageQuery query = new CoverageQuery(ctx);
+
+        assertEquals(0, query.getTracks().size());
+        assertEquals(0, query.queryBoundingBox(MIN_LATITUDE, MIN_LONGITUDE, MIN_LATITUDE + SPAN, MIN_LONGITUDE + SPAN, 100).size());
+        assertEquals(0, query.queryTimeRange(0, Long.MAX_VALUE, 100).size());
+
+        query.awaitIndex(TIMEOUT_MS);
+        assertEquals(0, count("SELECT COUNT(*) FROM sqlite_master WHERE name = '" + CoverageDatabase.TABLE_COVERAGE + "'"));
+
+        query.close();
+    }
+
+    /**
+     * Bounding box queries on five million rows through the spatial index and as full scan
+     * <p>
+     * Runs with -Pbenchmark=true only
+     */
+    @Test
+    public void indexOutperformsFullScan() throws InterruptedException
+    {
+        Assume.assumeTrue(Boolean.getBoolean("coverage.benchmark"));
+
+        insert(BENCHMARK_ROWS);
+
+        long start = System.nanoTime();
+        CoverageQuery query = new CoverageQuery(ctx);
+        assertTrue(query.awaitIndex(TIMEOUT_MS));
+        long backfill = System.nanoTime() - start;
+
+        long indexed = 0;
+        long scanned = 0;
+
+        for (int i = 0; i < BENCHMARK_QUERIES; i++)
+        {
+            double[] box = box(BENCHMARK_BOX);
+
+            start = System.nanoTime();
+            List<CoverageQuery.Sample> samples = query.queryBoundingBox(box[0], box[1], box[2], box[3], Integer.MAX_VALUE);
+            indexed += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int expected = fullScan(box);
+            scanned += System.nanoTime() - start;
+
+            assertEquals(expected, samples.size());
+        }
+
+        query.close();
+
+        System.out.println("CoverageQuery: rows[" + BENCHMARK_ROWS + "] - backfill ms[" + backfill / 1000000 + "] - index ms/query[" + indexed / BENCHMARK_QUERIES / 1000000
+                + "] - full scan ms/query[" + scanned / BENCHMARK_QUERIES / 1000000 + "]");
+
+        assertTrue("index " + indexed + " ns, full scan " + scanned + " ns", indexed * 5 < scanned);
+    }
+
+    private void assertBoxes(CoverageQuery query)
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            double[] box = box(BOX);
+
+            List<CoverageQuery.Sample> samples = query.queryBoundingBox(box[0], box[1], box[2], box[3], Integer.MAX_VALUE);
+
+            assertEquals(fullScan(box), samples.size());
+        }
+    }
+
+    private double[] box(double size)
+    {
+        double latitude = MIN_LATITUDE + random.nextDouble() * (SPAN - size);
+        double longitude = MIN_LONGITUDE + random.nextDouble() * (SPAN - size);
+
+        return new double[]{latitude, longitude, latitude + size, longitude + size};
+    }
+
+    private int fullScan(double[] box)
+    {
+        return count("SELECT COUNT(*) FROM " + CoverageDatabase.TABLE_COVERAGE
+                + " WHERE CAST(app_latitude AS REAL) BETWEEN " + box[0] + " AND " + box[2]
+                + " AND CAST(app_longitude AS REAL) BETWEEN " + box[1] + " AND " + box[3]);
+    }
+
+    private String getColumns()
+    {
+        StringBuilder columns = new StringBuilder();
+
+        Cursor cursor = mSQLiteDatabase.rawQuery("PRAGMA table_info(" + CoverageDatabase.TABLE_COVERAGE + ")", null);
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                columns.append(cursor.getString(cursor.getColumnIndex("name"))).append(',');
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        return columns.toString();
+    }
+
+    private int backfillRows()
+    {
+        if (count("SELECT COUNT(*) FROM sqlite_master WHERE name = 'coverage_index_backfill'") == 0)
+            return 0;
+
+        return count("SELECT COUNT(*) FROM coverage_index_backfill");
+    }
+
+    private int count(String sql)
+    {
+        Cursor cursor = mSQLiteDatabase.rawQuery(sql, null);
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    private void insert(int count)
+    {
+        SQLiteStatement statement = mSQLiteDatabase.compileStatement("INSERT INTO " + CoverageDatabase.TABLE_COVERAGE + " (track_id, app_geo_timestamp, app_latitude, app_longitude) VALUES ('t', ?, ?, ?)");
+
+        mSQLiteDatabase.beginTransaction();
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                statement.bindString(1, Long.toString(1700000000000L + i));
+                statement.bindString(2, Double.toString(MIN_LATITUDE + random.nextDouble() * SPAN));
+                statement.bindString(3, Double.toString(MIN_LONGITUDE + random.nextDouble() * SPAN));
+                statement.executeInsert();
+            }
+
+            mSQLiteDatabase.setTransactionSuccessful();
+        } finally
+        {
+            mSQLiteDatabase.endTransaction();
+            statement.close();
+        }
+    }
+}
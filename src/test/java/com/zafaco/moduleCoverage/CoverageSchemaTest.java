@@ -0,0 +1,196 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageSchemaTest
+{
+    private static final String TABLE = CoverageDatabase.TABLE_COVERAGE;
+
+    private static final List<String> INITIAL_COLUMNS = Arrays.asList("timestamp", "track_id", "app_latitude", "app_longitude");
+
+    private SQLiteDatabase mSQLiteDatabase;
+
+
+    @Before
+    public void setUp()
+    {
+        mSQLiteDatabase = CoverageDatabase.open(RuntimeEnvironment.getApplication());
+    }
+
+    @After
+    public void tearDown()
+    {
+        mSQLiteDatabase.close();
+    }
+
+    @Test
+    public void createsMissingTableWithInitialColumns()
+    {
+        CoverageSchema schema = new CoverageSchema(mSQLiteDatabase, TABLE);
+        schema.load(INITIAL_COLUMNS);
+        schema.close();
+
+        assertEquals(INITIAL_COLUMNS, tableColumns());
+        assertEquals(INITIAL_COLUMNS.size(), schema.getColumnCount());
+    }
+
+    @Test
+    public void upgradesBaselineTableWithoutTouchingRows()
+    {
+        // layout and row of a table written before the registry existed, in a different column order
+        mSQLiteDatabase.execSQL("CREATE TABLE " + TABLE + " (track_id TEXT, app_latitude TEXT, timestamp TEXT)");
+        mSQLiteDatabase.execSQL("INSERT INTO " + TABLE + " VALUES ('baseline', '48.2', '1')");
+
+        CoverageSchema schema = new CoverageSchema(mSQLiteDatabase, TABLE);
+        schema.load(INITIAL_COLUMNS);
+
+        assertEquals(Arrays.asList("track_id", "app_latitude", "timestamp", "app_longitude"), tableColumns());
+        assertTrue(schema.hasColumn("app_longitude"));
+
+        schema.ensureColumns(Arrays.asList("timestamp", "app_rssi", "app \"quoted\"", "app_rssi"));
+
+        assertEquals(Arrays.asList("track_id", "app_latitude", "timestamp", "app_longitude", "app_rssi", "app \"quoted\""), tableColumns());
+        assertEquals(6, schema.getColumnCount());
+        schema.close();
+
+        // a new registry reads the upgraded layout and issues no further ALTER
+        schema = new CoverageSchema(mSQLiteDatabase, TABLE);
+        schema.load(INITIAL_COLUMNS);
+        schema.ensureColumns(Arrays.asList("app_rssi", "app \"quoted\""));
+        schema.close();
+
+        assertEquals(6, schema.getColumnCount());
+        assertEquals(6, tableColumns().size());
+
+        Cursor cursor = mSQLiteDatabase.rawQuery("SELECT track_id, app_latitude, timestamp, app_longitude, app_rssi FROM " + TABLE, null);
+        try
+        {
+            assertTrue(cursor.moveToNext());
+            assertEquals("baseline", cursor.getString(0));
+            assertEquals("48.2", cursor.getString(1));
+            assertEquals("1", cursor.getString(2));
+            assertTrue(cursor.isNull(3));
+            assertTrue(cursor.isNull(4));
+            assertFalse(cursor.moveToNext());
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void insertBindsValuesByTableLayout()
+    {
+        mSQLiteDatabase.execSQL("CREATE TABLE " + TABLE + " (app_longitude TEXT, track_id TEXT, timestamp TEXT)");
+
+        CoverageSchema schema = new CoverageSchema(mSQLiteDatabase, TABLE);
+        schema.load(INITIAL_COLUMNS);
+
+        Map<String, String> first = new LinkedHashMap<>();
+        first.put("timestamp", "1");
+        first.put("track_id", "track");
+        first.put("app_latitude", "48.2");
+        first.put("app_longitude", "16.4");
+
+        long id = schema.insert(new CoverageJournalTest.MapRow(TABLE, first));
+        assertRow(id, first);
+
+        // a column added between inserts recompiles the statement
+        Map<String, String> second = new LinkedHashMap<>();
+        second.put("app_rssi", "-85");
+        second.put("app \"quoted\"", "value");
+        second.put("timestamp", "2");
+        second.put("app_longitude", "16.5");
+
+        schema.ensureColumns(second.keySet());
+
+        id = schema.insert(new CoverageJournalTest.MapRow(TABLE, second));
+        assertRow(id, second);
+
+        schema.close();
+    }
+
+    private List<String> tableColumns()
+    {
+        List<String> columns = new ArrayList<>();
+
+        Cursor cursor = mSQLiteDatabase.rawQuery("PRAGMA table_info(" + TABLE + ")", null);
+        try
+        {
+            int nameIndex = cursor.getColumnIndex("name");
+
+            while (cursor.moveToNext())
+            {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+
+        return columns;
+    }
+
+    /**
+     * Every column of the stored row holds the value of the row, columns the row does not have are NULL
+     */
+    private void assertRow(long id, Map<String, String> values)
+    {
+        Cursor cursor = mSQLiteDatabase.rawQuery("SELECT * FROM " + TABLE + " WHERE rowid = ?", new String[]{Long.toString(id)});
+        try
+        {
+            assertTrue(cursor.moveToNext());
+
+            for (int i = 0; i < cursor.getColumnCount(); i++)
+            {
+                String expected = values.get(cursor.getColumnName(i));
+
+                if (expected == null)
+                    assertNull(cursor.getColumnName(i), cursor.getString(i));
+                else
+                    assertEquals(cursor.getColumnName(i), expected, cursor.getString(i));
+            }
+        } finally
+        {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.app.Activity;
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageSessionTest
+{
+    private static final int REPEATS = 20;
+    private static final long SETTLE_MS = 5000;
+
+    private ServiceController<Coverage> mController;
+    private Coverage mCoverage;
+
+    private int startId = 0;
+
+
+    @Before
+    public void setUp()
+    {
+        // target of the notification intent
+        shadowOf(RuntimeEnvironment.getApplication().getPackageManager()).addActivityIfNotPresent(new ComponentName(RuntimeEnvironment.getApplication(), Activity.class));
+
+        mController = Robolectric.buildService(Coverage.class).create();
+        mCoverage = mController.get();
+    }
+
+    @After
+    public void tearDown()
+    {
+        mController.destroy();
+    }
+
+    @Test
+    public void repeatedStartKeepsSession() throws Exception
+    {
+        start(0);
+
+        CoverageSession session = mCoverage.getSession();
+        assertEquals(CoverageSession.State.RUNNING, session.getState());
+
+        int sessionThreads = awaitSessionThreads(CoverageSession.THREADS);
+        int threads = awaitThreads(-1);
+
+        for (int i = 0; i < REPEATS; i++)
+        {
+            start(Service.START_FLAG_REDELIVERY);
+            start(0);
+        }
+
+        // the guard returns before any listener, thread or handle is created, the session is created after the database setup
+        assertSame(session, mCoverage.getSession());
+        assertEquals(CoverageSession.State.RUNNING, session.getState());
+        assertEquals(sessionThreads, countSessionThreads());
+        assertEquals(threads, awaitThreads(threads));
+    }
+
+    @Test
+    public void repeatedStartStopReleasesThreads() throws Exception
+    {
+        start(0);
+        awaitSessionThreads(CoverageSession.THREADS);
+
+        // the first stop starts the retention worker of the service, which outlives the session
+        stop();
+        start(0);
+        awaitSessionThreads(CoverageSession.THREADS);
+        int threads = awaitThreads(-1);
+
+        CoverageSession previous = null;
+
+        for (int i = 0; i < REPEATS; i++)
+        {
+            CoverageSession session = mCoverage.getSession();
+            assertNotSame(previous, session);
+            assertTrue(mCoverage.isRunning());
+
+            mCoverage.onStopCommand();
+            stop();
+
+            assertEquals(CoverageSession.State.IDLE, session.getState());
+            assertFalse(session.isActive());
+            assertTrue(session.getExecutor().isTerminated());
+            assertFalse(mCoverage.isRunning());
+            assertEquals(0, awaitSessionThreads(0));
+
+            start(0);
+            start(Service.START_FLAG_REDELIVERY);
+
+            previous = session;
+        }
+
+        assertEquals(CoverageSession.State.RUNNING, mCoverage.getSession().getState());
+        assertTrue(awaitSessionThreads(CoverageSession.THREADS) <= CoverageSession.THREADS);
+        assertTrue(awaitThreads(threads) <= threads);
+    }
+
+    @Test
+    public void stopReturnsBeforeTeardownAndRepliesAtIdle() throws Exception
+    {
+        start(0);
+
+        CoverageSession session = mCoverage.getSession();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        mCoverage.onStopCommand(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                stopped.set(true);
+            }
+        });
+
+        // the writer and the executor are released on the stop thread, a start in the meantime is ignored
+        assertFalse(mCoverage.isRunning());
+        assertFalse(stopped.get());
+
+        start(0);
+        assertSame(session, mCoverage.getSession());
+
+        // the reply is posted to the main thread once the session is IDLE
+        awaitReply(stopped);
+        assertEquals(CoverageSession.State.IDLE, session.getState());
+        assertTrue(session.getExecutor().isTerminated());
+
+        start(0);
+        assertNotSame(session, mCoverage.getSession());
+        assertTrue(mCoverage.isRunning());
+    }
+
+    @Test
+    public void stopWithoutStartIsIgnored()
+    {
+        mCoverage.onStopCommand();
+
+        assertEquals(null, mCoverage.getSession());
+        assertFalse(mCoverage.isRunning());
+    }
+
+    private void start(int flags)
+    {
+        Intent intent = new Intent(RuntimeEnvironment.getApplication(), Coverage.class);
+        intent.putExtra("app_track_id", "1700000000000");
+        intent.putExtra("app_version", "1.0");
+        intent.putExtra("record_trace", false);
+        intent.putExtra("app_intent_class", Activity.class.getName());
+
+        mCoverage.onStartCommand(intent, flags, ++startId);
+    }
+
+    /**
+     * Stops the session and waits until it is IDLE and the main thread ran the reply
+     */
+    private void stop() throws InterruptedException
+    {
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        mCoverage.onStopCommand(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                stopped.set(true);
+            }
+        });
+
+        awaitReply(stopped);
+    }
+
+    private static void awaitReply(AtomicBoolean stopped) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+
+        while (!stopped.get() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+
+        assertTrue(stopped.get());
+    }
+
+    /**
+     * Waits until the threads of the coverage sessions reached the expected count or the timeout passed
+     */
+    private static int awaitSessionThreads(int expected) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        int count = countSessionThreads();
+
+        while (count != expected && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            count = countSessionThreads();
+        }
+
+        return count;
+    }
+
+    /**
+     * Waits until the live thread count reached the expected one, or for a second if no count is expected
+     */
+    private static int awaitThreads(int expected) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + (expected < 0 ? 1000 : SETTLE_MS);
+        int count = Thread.getAllStackTraces().size();
+
+        while ((expected < 0 || count > expected) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            count = Thread.getAllStackTraces().size();
+        }
+
+        return count;
+    }
+
+    private static int countSessionThreads()
+    {
+        int count = 0;
+
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.isAlive() && thread.getName().startsWith("CoverageSession-"))
+                count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageStreamTest
+{
+    private static final int CAPACITY = 3;
+    private static final long INTERVAL_MS = 1000;
+
+    private Handler mHandler;
+
+
+    @Before
+    public void setUp()
+    {
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Test
+    public void dropKeepsBufferedItems()
+    {
+        CoverageStream<Integer> stream = new CoverageStream<>("test");
+        Recorder<Integer> recorder = new Recorder<>();
+        CoverageStream.Subscription<Integer> subscription = stream.subscribe(recorder, mHandler, CoverageStream.Overflow.DROP, CAPACITY, 0);
+
+        publish(stream, 1, 2, 3, 4, 5);
+        idle();
+
+        assertEquals(Arrays.asList(1, 2, 3), recorder.items);
+        assertEquals(2, subscription.getDropped());
+        assertEquals(3, subscription.getDelivered());
+    }
+
+    @Test
+    public void latestDiscardsOldest()
+    {
+        CoverageStream<Integer> stream = new CoverageStream<>("test");
+        Recorder<Integer> recorder = new Recorder<>();
+        CoverageStream.Subscription<Integer> subscription = stream.subscribe(recorder, mHandler, CoverageStream.Overflow.LATEST, CAPACITY, 0);
+
+        publish(stream, 1, 2, 3, 4, 5);
+        idle();
+
+        assertEquals(Arrays.asList(3, 4, 5), recorder.items);
+        assertEquals(2, subscription.getDropped());
+    }
+
+    @Test
+    public void conflateKeepsNewest()
+    {
+        CoverageStream<Integer> stream = new CoverageStream<>("test");
+        Recorder<Integer> recorder = new Recorder<>();
+        CoverageStream.Subscription<Integer> subscription = stream.subscribe(recorder, mHandler, CoverageStream.Overflow.CONFLATE, CAPACITY, 0);
+
+        publish(stream, 1, 2, 3, 4, 5);
+        idle();
+
+        assertEquals(Arrays.asList(5), recorder.items);
+        assertEquals(4, subscription.getDropped());
+
+        publish(stream, 6);
+        idle();
+
+        assertEquals(Arrays.asList(5, 6), recorder.items);
+    }
+
+    @Test
+    public void minIntervalThrottlesDelivery()
+    {
+        CoverageStream<Integer> stream = new CoverageStream<>("test");
+        Recorder<Integer> recorder = new Recorder<>();
+        stream.subscribe(recorder, mHandler, CoverageStream.Overflow.DROP, CAPACITY, INTERVAL_MS);
+
+        publish(stream, 1, 2, 3);
+        idle();
+        assertEquals(Arrays.asList(1), recorder.items);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(INTERVAL_MS - 1));
+        assertEquals(Arrays.asList(1), recorder.items);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1));
+        assertEquals(Arrays.asList(1, 2), recorder.items);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(INTERVAL_MS));
+        assertEquals(Arrays.asList(1, 2, 3), recorder.items);
+
+        // an item after a quiet period is delivered right away
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(5 * INTERVAL_MS));
+        publish(stream, 4);
+        idle();
+        assertEquals(Arrays.asList(1, 2, 3, 4), recorder.items);
+    }
+
+    @Test
+    public void slowSubscriberOnlyLosesItsOwnItems()
+    {
+        CoverageStream<Integer> stream = new CoverageStream<>("test");
+        Recorder<Integer> slow = new Recorder<>();
+        Recorder<Integer> fast = new Recorder<>();
+        stream.subscribe(slow, mHandler, CoverageStream.Overflow.DROP, 1, 0);
+        stream.subscribe(fast, mHandler);
+
+        publish(stream, 1, 2, 3, 4, 5);
+        idle();
+
+        assertEquals(Arrays.asList(1), slow.items);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), fast.items);
+        assertEquals(5, stream.getPublished());
+    }
+
+    @Test
+    public void replaysLastInfoToNewSubscribers()
+    {
+        CoverageStream<String> info = new CoverageStream<>("info", true);
+        CoverageStream<String> events = new CoverageStream<>("events");
+
+        info.publish("a");
+        info.publish("b");
+        events.publish("a");
+
+        Recorder<String> infoRecorder = new Recorder<>();
+        Recorder<String> eventRecorder = new Recorder<>();
+        info.subscribe(infoRecorder, mHandler);
+        events.subscribe(eventRecorder, mHandler);
+        idle();
+
+        assertEquals(Arrays.asList("b"), infoRecorder.items);
+        assertEquals(0, eventRecorder.items.size());
+
+        info.publish("c");
+        idle();
+
+        assertEquals(Arrays.asList("b", "c"), infoRecorder.items);
+    }
+
+    @Test
+    public void cancelStopsDelivery()
+    {
+        CoverageStream<Integer> stream = new CoverageStream<>("test");
+        Recorder<Integer> recorder = new Recorder<>();
+        CoverageStream.Subscription<Integer> subscription = stream.subscribe(recorder, mHandler);
+
+        publish(stream, 1, 2);
+        subscription.cancel();
+        publish(stream, 3);
+        idle();
+
+        assertEquals(0, recorder.items.size());
+        assertEquals(0, stream.getSubscriberCount());
+    }
+
+    @Test
+    public void legacyHandlersAreLossless()
+    {
+        shadowOf(RuntimeEnvironment.getApplication().getPackageManager()).addActivityIfNotPresent(new ComponentName(RuntimeEnvironment.getApplication(), Activity.class));
+
+        ServiceController<Coverage> controller = Robolectric.buildService(Coverage.class).create();
+        Coverage coverage = controller.get();
+
+        final List<JSONObject> messages = new ArrayList<>();
+        Handler handlerInfo = new Handler(Looper.getMainLooper())
+        {
+            @Override
+            public void handleMessage(Message msg)
+            {
+                messages.add((JSONObject) msg.obj);
+            }
+        };
+
+        coverage.setHandler(null, handlerInfo);
+
+        int count = 10 * CoverageStream.DEFAULT_CAPACITY;
+        for (int i = 0; i < count; i++)
+        {
+            coverage.getInfoStream().publish("{\"n\":" + i + "}");
+        }
+        idle();
+
+        assertEquals(count, messages.size());
+        assertEquals(count - 1, messages.get(count - 1).optInt("n"));
+
+        controller.destroy();
+    }
+
+    @Test
+    public void snapshotBuildsJsonOnDemand() throws Exception
+    {
+        SyntheticDrive drive = new SyntheticDrive(10);
+        CoverageIngest ingest = SyntheticDrive.createIngest(drive);
+
+        CoverageSample sample = null;
+        while (sample == null)
+        {
+            sample = drive.nextSample(ingest);
+        }
+
+        String expected = sample.toJSON().toString();
+        SampleSnapshot snapshot = new SampleSnapshot(sample);
+
+        // the snapshot does not depend on the pooled sample
+        sample.recycle();
+
+        JSONObject json = snapshot.toJSON();
+        assertEquals(new JSONObject(expected).toString(), json.toString());
+        assertNotSame(json, snapshot.toJSON());
+        assertEquals(snapshot.latitude, json.getDouble("app_latitude"), 0.0);
+        assertEquals(snapshot.accessId, json.getInt("app_access_id"));
+        assertTrue(snapshot.trackId.length() > 0);
+    }
+
+    private static void idle()
+    {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    @SafeVarargs
+    private static <T> void publish(CoverageStream<T> stream, T... items)
+    {
+        for (T item : items)
+        {
+            stream.publish(item);
+        }
+    }
+
+    private static final class Recorder<T> implements CoverageStream.Subscriber<T>
+    {
+        final List<T> items = new ArrayList<>();
+
+        @Override
+        public void onNext(T item)
+        {
+            items.add(item);
+        }
+    }
+}
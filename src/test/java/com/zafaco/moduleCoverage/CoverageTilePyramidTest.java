@@ -0,0 +1,314 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageTilePyramidTest
+{
+    private static final int MIN_ZOOM = 10;
+    private static final int MAX_ZOOM = 16;
+    private static final long TIMEOUT_MS = 10000;
+
+    private File mDirectory;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDirectory = File.createTempFile("tiles", "");
+        assertTrue(mDirectory.delete());
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(mDirectory);
+    }
+
+    @Test
+    public void evictionKeepsAllCounts() throws Exception
+    {
+        double[][] drive = drive(20000, 1);
+
+        CoverageTilePyramid pyramid = new CoverageTilePyramid(new File(mDirectory, "small"), MIN_ZOOM, MAX_ZOOM, 0);
+        Map<Long, Integer> expected = replay(pyramid, drive);
+
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+        assertTrue(expected.size() > 4 * (MAX_ZOOM - MIN_ZOOM + 1));
+        assertCounts(pyramid, expected);
+
+        pyramid.flush();
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+
+        // a new instance only sees the spilled files
+        assertCounts(new CoverageTilePyramid(new File(mDirectory, "small"), MIN_ZOOM, MAX_ZOOM, 0), expected);
+    }
+
+    @Test
+    public void reopenedPyramidMergesNewSamples() throws Exception
+    {
+        double[][] first = drive(5000, 2);
+        double[][] second = drive(5000, 3);
+
+        CoverageTilePyramid pyramid = new CoverageTilePyramid(mDirectory, MIN_ZOOM, MAX_ZOOM, 0);
+        Map<Long, Integer> expected = replay(pyramid, first);
+        pyramid.flush();
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+
+        pyramid = new CoverageTilePyramid(mDirectory, MIN_ZOOM, MAX_ZOOM, 0);
+        for (Map.Entry<Long, Integer> entry : replay(pyramid, second).entrySet())
+        {
+            Integer count = expected.get(entry.getKey());
+            expected.put(entry.getKey(), entry.getValue() + (count != null ? count : 0));
+        }
+
+        // counts of tiles still loading are combined with their files
+        assertCounts(pyramid, expected);
+
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+        assertCounts(pyramid, expected);
+    }
+
+    @Test
+    public void failedSpillKeepsTileResident() throws Exception
+    {
+        File blocked = new File(mDirectory, "blocked");
+        assertTrue(mDirectory.mkdirs());
+        new FileOutputStream(blocked).close();
+
+        CoverageTilePyramid pyramid = new CoverageTilePyramid(blocked, MIN_ZOOM, MAX_ZOOM, 0);
+        Map<Long, Integer> expected = replay(pyramid, drive(5000, 4));
+
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+        assertEquals(expected.size(), pyramid.getResidentTiles());
+        assertCounts(pyramid, expected);
+    }
+
+    @Test
+    public void rendersSampledTilesOnly() throws Exception
+    {
+        CoverageTilePyramid pyramid = new CoverageTilePyramid(mDirectory, MIN_ZOOM, MAX_ZOOM, 0);
+        Map<Long, Integer> expected = replay(pyramid, drive(1000, 5));
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+
+        long key = 0;
+        for (long candidate : expected.keySet())
+        {
+            if ((int) (candidate >>> 58) == MAX_ZOOM)
+                key = candidate;
+        }
+
+        int zoom = (int) (key >>> 58);
+        int x = (int) ((key >>> 29) & 0x1FFFFFFF);
+        int y = (int) (key & 0x1FFFFFFF);
+
+        byte[] png = pyramid.renderPng(x, y, zoom);
+        assertNotNull(png);
+        assertArrayEquals(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, new byte[]{png[0], png[1], png[2], png[3]});
+
+        // above the maximum zoom the tile is scaled up from its ancestor
+        assertNotNull(pyramid.renderPng(x << 2, y << 2, zoom + 2));
+        assertNull(pyramid.renderPng(0, 0, MIN_ZOOM));
+    }
+
+    @Test
+    public void dominantCategoryIsNullOutsideTile() throws Exception
+    {
+        CoverageTilePyramid pyramid = new CoverageTilePyramid(mDirectory, MIN_ZOOM, MAX_ZOOM, 0);
+        Map<Long, Integer> expected = replay(pyramid, drive(1000, 6));
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+
+        long key = expected.keySet().iterator().next();
+        int zoom = (int) (key >>> 58);
+        int x = (int) ((key >>> 29) & 0x1FFFFFFF);
+        int y = (int) (key & 0x1FFFFFFF);
+
+        int size = CoverageTilePyramid.TILE_SIZE;
+        int cell = CoverageTilePyramid.CELL_SIZE;
+
+        int cells = 0;
+        for (int pixelY = 0; pixelY < size; pixelY += cell)
+        {
+            for (int pixelX = 0; pixelX < size; pixelX += cell)
+            {
+                if (pyramid.getDominantCategory(x, y, zoom, pixelX, pixelY) == null)
+                    continue;
+
+                cells++;
+
+                // pixels beyond the right or left edge must not wrap into this cell of the next or previous row
+                if (pixelX == 0 && pixelY > 0)
+                    assertNull(pyramid.getDominantCategory(x, y, zoom, size, pixelY - cell));
+                if (pixelX == size - cell && pixelY < size - cell)
+                    assertNull(pyramid.getDominantCategory(x, y, zoom, -cell, pixelY + cell));
+            }
+        }
+        assertTrue(cells > 0);
+
+        int[][] outside = {{-1, 0}, {0, -1}, {size, 0}, {0, size}, {size - 1, -1}, {-1, size - 1}, {Integer.MIN_VALUE, 0}, {0, Integer.MAX_VALUE}};
+
+        for (int[] pixel : outside)
+        {
+            assertNull(pixel[0] + "," + pixel[1], pyramid.getDominantCategory(x, y, zoom, pixel[0], pixel[1]));
+        }
+
+        // the last pixel is still inside the tile
+        pyramid.getDominantCategory(x, y, zoom, size - 1, size - 1);
+    }
+
+    @Test
+    public void pruneDeletesTilesWrittenBeforeTime() throws Exception
+    {
+        CoverageTilePyramid pyramid = new CoverageTilePyramid(mDirectory, MIN_ZOOM, MAX_ZOOM, 0);
+        Map<Long, Integer> expected = replay(pyramid, drive(2000, 7));
+        pyramid.flush();
+        assertTrue(pyramid.awaitIdle(TIMEOUT_MS));
+
+        File[] tiles = mDirectory.listFiles();
+        assertEquals(expected.size(), tiles.length);
+
+        long now = System.currentTimeMillis();
+        int old = 0;
+        for (int i = 0; i < tiles.length; i++)
+        {
+            if (i % 2 == 0)
+            {
+                assertTrue(tiles[i].setLastModified(now - 3600000));
+                old++;
+            }
+        }
+
+        File temporary = new File(mDirectory, "10_1_1.tile.tmp");
+        File other = new File(mDirectory, "other");
+        new FileOutputStream(temporary).close();
+        new FileOutputStream(other).close();
+        assertTrue(temporary.setLastModified(now - 3600000));
+        assertTrue(other.setLastModified(now - 3600000));
+
+        assertEquals(old, CoverageTilePyramid.prune(mDirectory, now - 60000));
+
+        assertEquals(tiles.length - old + 1, mDirectory.listFiles().length);
+        assertTrue(other.exists());
+        assertFalse(temporary.exists());
+
+        // nothing left that is old enough
+        assertEquals(0, CoverageTilePyramid.prune(mDirectory, now - 60000));
+        assertEquals(0, CoverageTilePyramid.prune(new File(mDirectory, "missing"), now));
+    }
+
+    /**
+     * Replays a drive of the given length, a random walk around Vienna with a new access category every few hundred samples
+     */
+    static double[][] drive(int length, long seed)
+    {
+        Random random = new Random(seed);
+        double[][] samples = new double[length][3];
+
+        double latitude = 48.2;
+        double longitude = 16.37;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        int category = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            heading += random.nextGaussian() * 0.2;
+            latitude += Math.cos(heading) * 0.0002;
+            longitude += Math.sin(heading) * 0.0003;
+
+            if (random.nextInt(300) == 0)
+                category = random.nextInt(AccessCategory.values().length);
+
+            samples[i][0] = latitude;
+            samples[i][1] = longitude;
+            samples[i][2] = category;
+        }
+
+        return samples;
+    }
+
+    private static Map<Long, Integer> replay(CoverageTilePyramid pyramid, double[][] drive)
+    {
+        Map<Long, Integer> counts = new HashMap<>();
+
+        for (double[] sample : drive)
+        {
+            pyramid.add(sample[0], sample[1], AccessCategory.fromOrdinal((int) sample[2]));
+
+            for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++)
+            {
+                long key = key(sample[0], sample[1], zoom);
+                Integer count = counts.get(key);
+                counts.put(key, count != null ? count + 1 : 1);
+            }
+        }
+
+        return counts;
+    }
+
+    private static void assertCounts(CoverageTilePyramid pyramid, Map<Long, Integer> expected)
+    {
+        for (Map.Entry<Long, Integer> entry : expected.entrySet())
+        {
+            long key = entry.getKey();
+
+            assertEquals("tile " + key, (int) entry.getValue(), pyramid.getSamples((int) ((key >>> 29) & 0x1FFFFFFF), (int) (key & 0x1FFFFFFF), (int) (key >>> 58)));
+        }
+    }
+
+    private static long key(double latitude, double longitude, int zoom)
+    {
+        double sinLatitude = Math.sin(Math.toRadians(latitude));
+        long size = (long) CoverageTilePyramid.TILE_SIZE << zoom;
+
+        long x = (long) ((longitude + 180.0) / 360.0 * size) / CoverageTilePyramid.TILE_SIZE;
+        long y = (long) ((0.5 - Math.log((1.0 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * Math.PI)) * size) / CoverageTilePyramid.TILE_SIZE;
+
+        return ((long) zoom << 58) | (x << 29) | y;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
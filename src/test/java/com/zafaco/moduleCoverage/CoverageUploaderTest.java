@@ -0,0 +1,383 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageUploaderTest
+{
+    private static final int CHUNK_SIZE = 100;
+    private static final long TIMEOUT_MS = 60000;
+
+    /**
+     * Server answer that drops the connection without a response
+     */
+    private static final int DROP = -1;
+
+    private Context ctx;
+    private HttpServer mServer;
+    private String url;
+
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final Queue<Integer> mAnswers = new LinkedList<>();
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        ctx = RuntimeEnvironment.getApplication();
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/upload", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                Request request = new Request();
+                request.key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+                request.encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                request.body = new JSONObject(new String(readAll(new GZIPInputStream(exchange.getRequestBody())), "UTF-8"));
+                request.sentBefore = countRows("sent = 'true'");
+                mRequests.add(request);
+
+                Integer status;
+                synchronized (mAnswers)
+                {
+                    status = mAnswers.poll();
+                }
+
+                if (status != null && status == DROP)
+                {
+                    exchange.close();
+                    return;
+                }
+
+                exchange.sendResponseHeaders(status != null ? status : 200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+
+        url = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload";
+    }
+
+    @After
+    public void tearDown()
+    {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void sendsGzippedChunksAndMarksThemSent() throws Exception
+    {
+        insertTrack("t1", 250);
+
+        CoverageUploader uploader = new CoverageUploader(ctx, url, CHUNK_SIZE, 1);
+        assertTrue(run(uploader));
+
+        assertEquals(3, mRequests.size());
+        assertEquals(250, uploader.getRowsSent());
+        assertEquals(3, uploader.getChunksSent());
+
+        int[] sizes = {100, 100, 50};
+        for (int i = 0; i < sizes.length; i++)
+        {
+            Request request = mRequests.get(i);
+
+            assertEquals("gzip", request.encoding);
+            assertEquals(CoverageDatabase.TABLE_COVERAGE, request.body.getString("table"));
+            assertEquals(sizes[i], request.body.getJSONArray("rows").length());
+            assertFalse(request.body.getJSONArray("rows").getJSONObject(0).has("sent"));
+            assertEquals(CoverageDatabase.TABLE_COVERAGE + ":" + (i * CHUNK_SIZE + 1) + "-" + (i * CHUNK_SIZE + sizes[i]), request.key);
+        }
+
+        assertEquals(250, countRows("sent = 'true'"));
+        assertEquals("true", metaSent("t1"));
+    }
+
+    @Test
+    public void marksRowsSentOnlyAfterAcknowledgement() throws Exception
+    {
+        insertTrack("t1", 250);
+
+        assertTrue(run(new CoverageUploader(ctx, url, CHUNK_SIZE, 1)));
+
+        // at the time each chunk reached the server only the chunks before it were marked
+        for (int i = 0; i < mRequests.size(); i++)
+        {
+            assertEquals(i * CHUNK_SIZE, mRequests.get(i).sentBefore);
+        }
+    }
+
+    @Test
+    public void retriesServerErrorsAndThrottling() throws Exception
+    {
+        insertTrack("t1", 50);
+        answer(503, 429);
+
+        CoverageUploader uploader = new CoverageUploader(ctx, url, CHUNK_SIZE, 1);
+        assertTrue(run(uploader));
+
+        assertEquals(3, mRequests.size());
+        assertEquals(2, uploader.getRetries());
+        assertEquals(1, uploader.getChunksSent());
+
+        // every attempt carries the same key, so the server can drop duplicates
+        assertEquals(mRequests.get(0).key, mRequests.get(1).key);
+        assertEquals(mRequests.get(0).key, mRequests.get(2).key);
+        assertEquals(50, countRows("sent = 'true'"));
+    }
+
+    @Test
+    public void quarantinesRejectedChunks() throws Exception
+    {
+        insertTrack("t1", 250);
+        answer(200, 400);
+
+        CoverageUploader uploader = new CoverageUploader(ctx, url, CHUNK_SIZE, 1);
+        assertTrue(run(uploader));
+
+        assertEquals(3, mRequests.size());
+        assertEquals(150, uploader.getRowsSent());
+        assertEquals(100, uploader.getRowsRejected());
+        assertEquals(100, countRows("sent = 'rejected' AND rowid BETWEEN 101 AND 200"));
+        assertEquals(0, countRows("sent = 'false'"));
+        assertEquals("true", metaSent("t1"));
+
+        // the rejected range is not selected again
+        mRequests.clear();
+        assertTrue(run(new CoverageUploader(ctx, url, CHUNK_SIZE, 1)));
+        assertEquals(0, mRequests.size());
+    }
+
+    @Test
+    public void newInstanceResumesAfterDeathMidRun() throws Exception
+    {
+        insertTrack("t1", 350);
+        answer(200, DROP);
+
+        // the first run gets one chunk acknowledged, then loses the connection and dies in the backoff of the second chunk
+        final CoverageUploader first = new CoverageUploader(ctx, url, CHUNK_SIZE, 1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean complete = new AtomicBoolean(true);
+
+        first.start(new CoverageUploader.Listener()
+        {
+            @Override
+            public void onUploadFinished(long rowsSent, boolean done)
+            {
+                complete.set(done);
+                finished.countDown();
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mRequests.size() < 2 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        first.cancel();
+
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(complete.get());
+        assertEquals(100, countRows("sent = 'true'"));
+        assertEquals("false", metaSent("t1"));
+
+        String interrupted = mRequests.get(1).key;
+        mRequests.clear();
+
+        // only the sent column carries state, a fresh instance continues with the chunk the first one lost
+        CoverageUploader second = new CoverageUploader(ctx, url, CHUNK_SIZE, 1);
+        assertTrue(run(second));
+
+        assertEquals(3, mRequests.size());
+        assertEquals(interrupted, mRequests.get(0).key);
+        assertEquals(250, second.getRowsSent());
+        assertEquals(350, countRows("sent = 'true'"));
+        assertEquals("true", metaSent("t1"));
+    }
+
+    @Test
+    public void jobRequiresNetwork()
+    {
+        assertTrue(CoverageUploadJob.schedule(ctx, url, CHUNK_SIZE, 1));
+
+        JobScheduler jobScheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo jobInfo = jobScheduler.getPendingJob(CoverageUploadJob.JOB_ID);
+
+        assertNotNull(jobInfo);
+        assertEquals(JobInfo.NETWORK_TYPE_ANY, jobInfo.getNetworkType());
+        assertEquals(url, jobInfo.getExtras().getString("upload_url"));
+
+        CoverageUploadJob.cancel(ctx);
+        assertEquals(null, jobScheduler.getPendingJob(CoverageUploadJob.JOB_ID));
+    }
+
+    private void answer(int... statuses)
+    {
+        synchronized (mAnswers)
+        {
+            for (int status : statuses)
+            {
+                mAnswers.add(status);
+            }
+        }
+    }
+
+    private static boolean run(CoverageUploader uploader) throws InterruptedException
+    {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean complete = new AtomicBoolean(false);
+
+        uploader.start(new CoverageUploader.Listener()
+        {
+            @Override
+            public void onUploadFinished(long rowsSent, boolean done)
+            {
+                complete.set(done);
+                finished.countDown();
+            }
+        });
+
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        return complete.get();
+    }
+
+    private void insertTrack(String trackId, int rows)
+    {
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+
+        try
+        {
+            database.execSQL("CREATE TABLE IF NOT EXISTS meta (ftable TEXT, fkey TEXT, timestamp TEXT, sent TEXT, deleted TEXT)");
+            database.execSQL("CREATE TABLE IF NOT EXISTS coverage (timestamp TEXT, track_id TEXT, app_latitude TEXT, app_longitude TEXT, sent TEXT)");
+            database.execSQL("INSERT INTO meta VALUES (?, ?, ?, 'false', 'false')", new Object[]{CoverageDatabase.TABLE_COVERAGE, trackId, trackId});
+
+            database.beginTransaction();
+            for (int i = 0; i < rows; i++)
+            {
+                database.execSQL("INSERT INTO coverage VALUES (?, ?, ?, ?, 'false')", new Object[]{Long.toString(1700000000000L + i * 1000L), trackId, "48." + i, "16." + i});
+            }
+            database.setTransactionSuccessful();
+            database.endTransaction();
+        } finally
+        {
+            database.close();
+        }
+    }
+
+    private int countRows(String selection)
+    {
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+
+        try
+        {
+            Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM coverage WHERE " + selection, null);
+            try
+            {
+                return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally
+            {
+                cursor.close();
+            }
+        } finally
+        {
+            database.close();
+        }
+    }
+
+    private String metaSent(String trackId)
+    {
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+
+        try
+        {
+            Cursor cursor = database.rawQuery("SELECT sent FROM meta WHERE fkey = ?", new String[]{trackId});
+            try
+            {
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally
+            {
+                cursor.close();
+            }
+        } finally
+        {
+            database.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = in.read(buffer)) >= 0)
+        {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static final class Request
+    {
+        String key;
+        String encoding;
+        JSONObject body;
+        int sentBefore;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class CoverageWriterTest
+{
+    private static final List<String> INITIAL_COLUMNS = Arrays.asList("timestamp", "track_id", "app_latitude", "app_longitude");
+
+    private static final int ROWS = 2000;
+    private static final int BENCHMARK_ROWS = 20000;
+    private static final int BATCH_SIZE = 50;
+    private static final long BATCH_WINDOW_MS = 5000;
+    private static final long TIMEOUT_MS = 60000;
+
+    private Context ctx;
+    private ExecutorService mExecutor;
+
+
+    @Before
+    public void setUp()
+    {
+        ctx = RuntimeEnvironment.getApplication();
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void commitsAllRowsInBatches() throws Exception
+    {
+        CoverageWriter writer = new CoverageWriter(ctx, INITIAL_COLUMNS, BATCH_SIZE, BATCH_WINDOW_MS, CoverageJournal.open(ctx, CoverageDatabase.TABLE_COVERAGE), new CoverageMetrics());
+        writer.start(mExecutor);
+
+        List<CoverageSample> samples = samples(ROWS);
+        for (CoverageSample sample : samples)
+        {
+            assertTrue(writer.add(sample));
+        }
+
+        writer.stop();
+
+        assertEquals(ROWS, writer.getRowsInserted());
+        assertEquals(0, writer.getRowsDropped());
+        assertTrue(writer.getBatchesCommitted() <= 2 * ROWS / BATCH_SIZE);
+        assertEquals(ROWS, countRows());
+    }
+
+    /**
+     * Rows per second and latency per fix of the write-behind writer against an insert with its own transaction on the callback thread,
+     * all rows are added as one burst
+     * <p>
+     * Runs with -Pbenchmark=true only
+     */
+    @Test
+    public void writerKeepsCallbackShort() throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("coverage.benchmark"));
+
+        // insert per fix, as ListenerGeoLocation did before the writer
+        List<CoverageSample> samples = samples(BENCHMARK_ROWS);
+        CoverageMetrics.Histogram direct = new CoverageMetrics().histogram("direct");
+
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+        CoverageSchema schema = new CoverageSchema(database, CoverageDatabase.TABLE_COVERAGE);
+        schema.load(INITIAL_COLUMNS);
+
+        List<String> columns = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (CoverageSample sample : samples)
+        {
+            long fix = System.nanoTime();
+
+            columns.clear();
+            sample.collectColumns(columns);
+            schema.ensureColumns(columns);
+            schema.insert(sample);
+
+            direct.recordSince(fix);
+            sample.recycle();
+        }
+
+        long directNanos = System.nanoTime() - start;
+
+        schema.close();
+        database.close();
+
+        // write-behind writer, measured until the last row is committed
+        samples = samples(BENCHMARK_ROWS);
+        CoverageMetrics.Histogram queued = new CoverageMetrics().histogram("queued");
+
+        CoverageWriter writer = new CoverageWriter(ctx, INITIAL_COLUMNS, BATCH_SIZE, BATCH_WINDOW_MS, CoverageJournal.open(ctx, CoverageDatabase.TABLE_COVERAGE), new CoverageMetrics());
+        writer.start(mExecutor);
+
+        start = System.nanoTime();
+
+        for (CoverageSample sample : samples)
+        {
+            long fix = System.nanoTime();
+            writer.add(sample);
+            queued.recordSince(fix);
+        }
+
+        // stop() only waits a bounded time, rows still spilled to the journal would be left to the next session
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (writer.getRowsInserted() < BENCHMARK_ROWS && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(1);
+        }
+
+        long writerNanos = System.nanoTime() - start;
+        writer.stop();
+
+        assertEquals(BENCHMARK_ROWS, writer.getRowsInserted());
+        assertEquals(2 * BENCHMARK_ROWS, countRows());
+
+        System.out.println("CoverageWriter: insert per fix rows/s[" + BENCHMARK_ROWS * 1000000000L / directNanos + "] - p50 us[" + direct.getPercentile(50) + "] - p99 us[" + direct.getPercentile(99) + "]");
+        System.out.println("CoverageWriter: write-behind rows/s[" + BENCHMARK_ROWS * 1000000000L / writerNanos + "] - p50 us[" + queued.getPercentile(50) + "] - p99 us[" + queued.getPercentile(99) + "]");
+
+        // in a burst the writer also journals every row and reads most of them back after spilling, only the callback is guaranteed to be faster
+        assertTrue(queued.getPercentile(50) < direct.getPercentile(50));
+    }
+
+    private static List<CoverageSample> samples(int count) throws Exception
+    {
+        SyntheticDrive drive = new SyntheticDrive(count);
+        CoverageIngest ingest = SyntheticDrive.createIngest(drive);
+
+        List<CoverageSample> samples = new ArrayList<>();
+        while (samples.size() < count)
+        {
+            CoverageSample sample = drive.nextSample(ingest);
+
+            if (sample != null)
+                samples.add(sample);
+        }
+
+        return samples;
+    }
+
+    private int countRows()
+    {
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + CoverageDatabase.TABLE_COVERAGE, null);
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally
+        {
+            cursor.close();
+            database.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Looper;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+
+import com.zafaco.moduleCommon.Tool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowNetwork;
+import org.robolectric.shadows.ShadowNetworkCapabilities;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class DeviceStateCacheTest
+{
+    private static final String ACTION_SIM_STATE_CHANGED = "android.intent.action.SIM_STATE_CHANGED";
+
+    private Context ctx;
+    private CountingTool tool;
+    private DeviceStateCache cache;
+
+    private final AtomicInteger changes = new AtomicInteger(0);
+
+    private int wifiQueries;
+    private int airplaneQueries;
+    private int simQueries;
+
+
+    @Before
+    public void setUp()
+    {
+        ctx = RuntimeEnvironment.getApplication();
+        tool = new CountingTool();
+
+        cache = new DeviceStateCache(ctx, tool);
+        cache.setListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                changes.incrementAndGet();
+            }
+        });
+        cache.start();
+        shadowOf(Looper.getMainLooper()).idle();
+
+        // the subscription listener reports the current subscriptions once after registration
+        wifiQueries = tool.wifiQueries;
+        airplaneQueries = tool.airplaneQueries;
+        simQueries = tool.simQueries;
+        changes.set(0);
+    }
+
+    @After
+    public void tearDown()
+    {
+        cache.stop();
+    }
+
+    @Test
+    public void startQueriesAllServicesOnce()
+    {
+        assertEquals(1, wifiQueries);
+        assertEquals(1, airplaneQueries);
+        assertTrue(simQueries >= 1);
+        assertEquals(1, cache.getRefreshes());
+
+        DeviceState state = cache.get();
+        assertSame(state, cache.get());
+
+        assertFalse(state.wifi);
+        assertFalse(state.airplane);
+        assertEquals(5, state.simState);
+        assertEquals(1, state.activeSimCount);
+
+        assertEquals(2, cache.getHits());
+        assertQueries(0, 0, 0);
+    }
+
+    @Test
+    public void airplaneBroadcastOnlyUpdatesAirplaneMode()
+    {
+        tool.wifi = true;
+        tool.simState = 1;
+
+        sendAirplane(true);
+
+        DeviceState state = cache.get();
+        assertTrue(state.airplane);
+
+        // the other parts keep their last known values, no service is queried
+        assertFalse(state.wifi);
+        assertEquals(5, state.simState);
+        assertQueries(0, 0, 0);
+        assertEquals(1, changes.get());
+
+        sendAirplane(true);
+        assertEquals(1, changes.get());
+
+        sendAirplane(false);
+        assertFalse(cache.get().airplane);
+        assertEquals(2, changes.get());
+        assertEquals(1, cache.getRefreshes());
+    }
+
+    @Test
+    public void simBroadcastOnlyQueriesSimState()
+    {
+        tool.wifi = true;
+        tool.simState = 1;
+        tool.activeSimCount = 0;
+
+        ctx.sendBroadcast(new Intent(ACTION_SIM_STATE_CHANGED));
+        shadowOf(Looper.getMainLooper()).idle();
+
+        DeviceState state = cache.get();
+        assertEquals(1, state.simState);
+        assertEquals(0, state.activeSimCount);
+        assertFalse(state.wifi);
+
+        assertQueries(0, 0, 1);
+        assertEquals(1, changes.get());
+    }
+
+    @Test
+    public void subscriptionChangeOnlyQueriesSimState()
+    {
+        tool.simState = 1;
+
+        SubscriptionManager subscriptionManager = (SubscriptionManager) ctx.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
+        shadowOf(subscriptionManager).setActiveSubscriptionInfoList(Collections.<SubscriptionInfo>emptyList());
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(1, cache.get().simState);
+        assertQueries(0, 0, 1);
+    }
+
+    @Test
+    public void wifiFollowsNetworkCapabilities()
+    {
+        ConnectivityManager.NetworkCallback callback = networkCallback();
+
+        Network first = ShadowNetwork.newInstance(1);
+        Network second = ShadowNetwork.newInstance(2);
+        Network cellular = ShadowNetwork.newInstance(3);
+
+        callback.onCapabilitiesChanged(cellular, capabilities(NetworkCapabilities.TRANSPORT_CELLULAR, true));
+        assertFalse(cache.get().wifi);
+
+        // wifi without internet access, e.g. before the captive portal is passed
+        callback.onCapabilitiesChanged(first, capabilities(NetworkCapabilities.TRANSPORT_WIFI, false));
+        assertFalse(cache.get().wifi);
+
+        callback.onCapabilitiesChanged(first, capabilities(NetworkCapabilities.TRANSPORT_WIFI, true));
+        callback.onCapabilitiesChanged(second, capabilities(NetworkCapabilities.TRANSPORT_WIFI, true));
+        assertTrue(cache.get().wifi);
+        assertEquals(1, changes.get());
+
+        callback.onLost(first);
+        assertTrue(cache.get().wifi);
+
+        callback.onCapabilitiesChanged(second, capabilities(NetworkCapabilities.TRANSPORT_WIFI, true));
+        callback.onLost(second);
+        assertFalse(cache.get().wifi);
+        assertEquals(2, changes.get());
+
+        // the network callbacks never query the services
+        assertQueries(0, 0, 0);
+        assertEquals(1, cache.getRefreshes());
+    }
+
+    @Test
+    public void staleStateIsRefreshed()
+    {
+        tool.airplane = true;
+
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(30));
+        assertFalse(cache.get().airplane);
+        assertEquals(1, cache.getRefreshes());
+
+        ShadowSystemClock.advanceBy(Duration.ofSeconds(31));
+        assertTrue(cache.get().airplane);
+        assertEquals(2, cache.getRefreshes());
+        assertQueries(1, 1, 1);
+    }
+
+    @Test
+    public void stoppedCacheIgnoresBroadcasts()
+    {
+        cache.stop();
+
+        sendAirplane(true);
+
+        assertFalse(cache.get().airplane);
+        assertEquals(0, changes.get());
+        assertTrue(shadowOf((ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE)).getNetworkCallbacks().isEmpty());
+    }
+
+    /**
+     * Service queries since the cache was started
+     */
+    private void assertQueries(int wifi, int airplane, int sim)
+    {
+        assertEquals("wifi", wifi, tool.wifiQueries - wifiQueries);
+        assertEquals("airplane", airplane, tool.airplaneQueries - airplaneQueries);
+        assertEquals("sim", sim, tool.simQueries - simQueries);
+    }
+
+    private void sendAirplane(boolean airplane)
+    {
+        ctx.sendBroadcast(new Intent(Intent.ACTION_AIRPLANE_MODE_CHANGED).putExtra("state", airplane));
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private ConnectivityManager.NetworkCallback networkCallback()
+    {
+        ConnectivityManager connectivityManager = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        assertEquals(1, shadowOf(connectivityManager).getNetworkCallbacks().size());
+
+        return shadowOf(connectivityManager).getNetworkCallbacks().iterator().next();
+    }
+
+    private static NetworkCapabilities capabilities(int transport, boolean internet)
+    {
+        NetworkCapabilities capabilities = ShadowNetworkCapabilities.newInstance();
+        shadowOf(capabilities).addTransportType(transport);
+
+        if (internet)
+            shadowOf(capabilities).addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+
+        return capabilities;
+    }
+
+    /**
+     * Tool with settable answers that counts the service queries
+     */
+    private static final class CountingTool extends Tool
+    {
+        volatile boolean wifi = false;
+        volatile boolean airplane = false;
+        volatile int simState = 5;
+        volatile int activeSimCount = 1;
+
+        int wifiQueries = 0;
+        int airplaneQueries = 0;
+        int simQueries = 0;
+
+
+        @Override
+        public boolean isWifi(Context ctx)
+        {
+            wifiQueries++;
+            return wifi;
+        }
+
+        @Override
+        public boolean isAirplane(Context ctx)
+        {
+            airplaneQueries++;
+            return airplane;
+        }
+
+        @Override
+        public int isSimReady(Context ctx)
+        {
+            simQueries++;
+            return simState;
+        }
+
+        @Override
+        public int getActiveSimCount(Context ctx)
+        {
+            return activeSimCount;
+        }
+    }
+}
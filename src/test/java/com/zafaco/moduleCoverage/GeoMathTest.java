@@ -0,0 +1,83 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GeoMathTest
+{
+    @Test
+    public void geohashMatchesReferenceValues()
+    {
+        assertEquals("ezs42", GeoMath.geohash(42.6, -5.6, 5));
+        assertEquals("u4pruydqqvj", GeoMath.geohash(57.64911, 10.40744, 11));
+        assertEquals("s", GeoMath.geohash(0.0, 0.0, 1));
+        assertEquals("7zzzzz", GeoMath.geohash(-1e-9, -1e-9, 6));
+        assertEquals("0000", GeoMath.geohash(-90.0, -180.0, 4));
+        assertEquals("zzzz", GeoMath.geohash(90.0, 180.0, 4));
+        assertEquals("", GeoMath.geohash(48.2, 16.37, 0));
+    }
+
+    @Test
+    public void geohashOfLowerPrecisionIsPrefix()
+    {
+        Random random = new Random(12);
+
+        for (int i = 0; i < 10000; i++)
+        {
+            double latitude = random.nextDouble() * 180.0 - 90.0;
+            double longitude = random.nextDouble() * 360.0 - 180.0;
+
+            String hash = GeoMath.geohash(latitude, longitude, 12);
+
+            for (int precision = 1; precision < 12; precision++)
+            {
+                assertEquals(hash.substring(0, precision), GeoMath.geohash(latitude, longitude, precision));
+            }
+        }
+    }
+
+    @Test
+    public void geohashCellHasDocumentedSize()
+    {
+        // 40 bits at precision 8, 20 each for longitude and latitude
+        double latitude = 180.0 / (1 << 20) * 300000 - 90.0;
+        double longitude = 360.0 / (1 << 20) * 600000 - 180.0;
+
+        double cellLatitude = 180.0 / (1 << 20);
+        double cellLongitude = 360.0 / (1 << 20);
+
+        String hash = GeoMath.geohash(latitude, longitude, 8);
+
+        assertEquals(hash, GeoMath.geohash(latitude + cellLatitude * 0.99, longitude + cellLongitude * 0.99, 8));
+        assertNotEquals(hash, GeoMath.geohash(latitude + cellLatitude, longitude, 8));
+        assertNotEquals(hash, GeoMath.geohash(latitude, longitude + cellLongitude, 8));
+        assertNotEquals(hash, GeoMath.geohash(latitude - cellLatitude * 0.01, longitude, 8));
+
+        double width = GeoMath.distance(latitude, longitude, latitude, longitude + cellLongitude);
+        double height = GeoMath.distance(latitude, longitude, latitude + cellLatitude, longitude);
+
+        assertTrue(width < 39 && width > 20);
+        assertTrue(height > 18 && height < 20);
+    }
+}
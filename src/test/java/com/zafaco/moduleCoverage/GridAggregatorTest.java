@@ -0,0 +1,296 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class GridAggregatorTest
+{
+    private static final List<String> INITIAL_COLUMNS = Arrays.asList("timestamp", "track_id", "app_latitude", "app_longitude");
+
+    private static final int PRECISION = 8;
+    private static final double DELTA = 1e-9;
+    private static final long TIMEOUT_MS = 60000;
+
+    // center of a precision 8 cell in Vienna and of a cell about a kilometer away
+    private static final double LATITUDE = 48.20823;
+    private static final double LONGITUDE = 16.37382;
+    private static final double OTHER_LATITUDE = 48.21823;
+
+    private static final TrackHeader HEADER = new TrackHeader("track", "Android", "14", "Google", "id", "Pixel", "1.0", "1.0", 3600);
+
+    private Context ctx;
+    private ExecutorService mExecutor;
+    private CoverageWriter writer;
+
+
+    @Before
+    public void setUp()
+    {
+        ctx = RuntimeEnvironment.getApplication();
+        mExecutor = Executors.newSingleThreadExecutor();
+
+        writer = new CoverageWriter(ctx, INITIAL_COLUMNS, 1, 0, null, new CoverageMetrics());
+        writer.start(mExecutor);
+    }
+
+    @After
+    public void tearDown()
+    {
+        writer.stop();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void aggregatesSamplesPerCategory() throws Exception
+    {
+        String gridId = GeoMath.geohash(LATITUDE, LONGITUDE, PRECISION);
+        assertEquals(gridId, GeoMath.geohash(LATITUDE + 0.00004, LONGITUDE - 0.00004, PRECISION));
+
+        GridAggregator aggregator = new GridAggregator(writer, PRECISION);
+
+        aggregator.add(sample(LATITUDE, LONGITUDE, 1000, 0.0, "4G", "LTE", "-80", "1"));
+        aggregator.add(sample(LATITUDE + 0.00004, LONGITUDE, 2000, 4.5, "4G", "LTE", "-91", "2"));
+        aggregator.add(sample(LATITUDE, LONGITUDE, 3000, 1.0, "3G", "HSPA", null, null));
+        aggregator.add(sample(LATITUDE, LONGITUDE - 0.00004, 4000, 3.0, "4G", "LTE_CA", "-70", "1"));
+        aggregator.add(sample(LATITUDE, LONGITUDE, 5000, 2.0, null, null, "abc", ""));
+
+        assertEquals(5, aggregator.getSamples());
+        assertEquals(0, aggregator.getCellsFlushed());
+
+        aggregator.flush();
+        assertEquals(3, aggregator.getCellsFlushed());
+
+        List<Map<String, String>> rows = readRows(3);
+        assertEquals(3, rows.size());
+
+        Map<String, String> g4 = rows.get(0);
+        assertEquals("track", g4.get("track_id"));
+        assertEquals(gridId, g4.get("grid_id"));
+        assertEquals(Integer.toString(PRECISION), g4.get("grid_precision"));
+        assertEquals("4G", g4.get("app_access_category"));
+        assertEquals("3", g4.get("sample_count"));
+        assertEquals(LATITUDE + 0.00004 / 3, Double.parseDouble(g4.get("app_latitude")), DELTA);
+        assertEquals(LONGITUDE - 0.00004 / 3, Double.parseDouble(g4.get("app_longitude")), DELTA);
+        assertEquals("1000", g4.get("app_geo_timestamp_first"));
+        assertEquals("4000", g4.get("app_geo_timestamp_last"));
+        assertEquals(7.5, Double.parseDouble(g4.get("app_distance")), DELTA);
+        assertEquals("-91", g4.get("app_rssi_min"));
+        assertEquals("-70", g4.get("app_rssi_max"));
+        assertEquals(-241.0 / 3, Double.parseDouble(g4.get("app_rssi_avg")), DELTA);
+        assertEquals("false", g4.get("sent"));
+
+        JSONObject share = new JSONObject(g4.get("app_access_share"));
+        assertEquals(2.0 / 3, share.getDouble("LTE"), DELTA);
+        assertEquals(1.0 / 3, share.getDouble("LTE_CA"), DELTA);
+
+        JSONArray cellIds = new JSONArray(g4.get("app_cellids"));
+        assertEquals(2, cellIds.length());
+        assertEquals("1", cellIds.getString(0));
+        assertEquals("2", cellIds.getString(1));
+
+        Map<String, String> g3 = rows.get(1);
+        assertEquals("3G", g3.get("app_access_category"));
+        assertEquals("1", g3.get("sample_count"));
+        assertNull(g3.get("app_rssi_min"));
+        assertNull(g3.get("app_rssi_avg"));
+        assertEquals("[]", g3.get("app_cellids"));
+
+        // samples without category, access and a parsable RSSI are kept in a cell of their own
+        Map<String, String> unknown = rows.get(2);
+        assertEquals("-", unknown.get("app_access_category"));
+        assertEquals(1.0, new JSONObject(unknown.get("app_access_share")).getDouble("-"), DELTA);
+        assertNull(unknown.get("app_rssi_max"));
+        assertEquals("[]", unknown.get("app_cellids"));
+    }
+
+    @Test
+    public void leavingTheCellFlushesItsCategories() throws Exception
+    {
+        String gridId = GeoMath.geohash(LATITUDE, LONGITUDE, PRECISION);
+        String otherGridId = GeoMath.geohash(OTHER_LATITUDE, LONGITUDE, PRECISION);
+
+        GridAggregator aggregator = new GridAggregator(writer, PRECISION);
+
+        aggregator.add(sample(LATITUDE, LONGITUDE, 1000, 0.0, "4G", "LTE", "-80", null));
+        aggregator.add(sample(LATITUDE, LONGITUDE, 2000, 1.0, "5G", "NR", "-85", null));
+        assertEquals(0, aggregator.getCellsFlushed());
+
+        aggregator.add(sample(OTHER_LATITUDE, LONGITUDE, 3000, 1100.0, "4G", "LTE", "-90", null));
+        assertEquals(2, aggregator.getCellsFlushed());
+
+        // coming back opens a new row for the first cell
+        aggregator.add(sample(LATITUDE, LONGITUDE, 4000, 1100.0, "4G", "LTE", "-95", null));
+        assertEquals(3, aggregator.getCellsFlushed());
+
+        aggregator.flush();
+        aggregator.flush();
+        assertEquals(4, aggregator.getCellsFlushed());
+
+        List<Map<String, String>> rows = readRows(4);
+        assertEquals(4, rows.size());
+
+        assertRow(rows.get(0), gridId, "4G", "1", "1000");
+        assertRow(rows.get(1), gridId, "5G", "1", "2000");
+        assertRow(rows.get(2), otherGridId, "4G", "1", "3000");
+        assertRow(rows.get(3), gridId, "4G", "1", "4000");
+    }
+
+    @Test
+    public void longStayIsSplitIntoSeveralRows() throws Exception
+    {
+        String gridId = GeoMath.geohash(LATITUDE, LONGITUDE, PRECISION);
+
+        GridAggregator aggregator = new GridAggregator(writer, PRECISION);
+
+        // one sample per minute for eleven minutes, a cell row covers at most five
+        for (int i = 0; i <= 10; i++)
+        {
+            aggregator.add(sample(LATITUDE, LONGITUDE, i * 60000L, 0.0, "4G", "LTE", "-80", null));
+        }
+
+        assertEquals(1, aggregator.getCellsFlushed());
+
+        aggregator.flush();
+
+        List<Map<String, String>> rows = readRows(2);
+        assertEquals(2, rows.size());
+
+        assertRow(rows.get(0), gridId, "4G", "6", "0");
+        assertEquals("300000", rows.get(0).get("app_geo_timestamp_last"));
+        assertRow(rows.get(1), gridId, "4G", "5", "360000");
+        assertEquals("600000", rows.get(1).get("app_geo_timestamp_last"));
+    }
+
+    @Test
+    public void precisionIsClamped() throws Exception
+    {
+        GridAggregator fine = new GridAggregator(writer, 20);
+        fine.add(sample(LATITUDE, LONGITUDE, 1000, 0.0, "4G", "LTE", null, null));
+        fine.flush();
+
+        GridAggregator coarse = new GridAggregator(writer, 0);
+        coarse.add(sample(LATITUDE, LONGITUDE, 1000, 0.0, "4G", "LTE", null, null));
+        coarse.flush();
+
+        List<Map<String, String>> rows = readRows(2);
+        assertEquals(2, rows.size());
+
+        assertEquals(GeoMath.geohash(LATITUDE, LONGITUDE, 12), rows.get(0).get("grid_id"));
+        assertEquals("12", rows.get(0).get("grid_precision"));
+        assertEquals(GeoMath.geohash(LATITUDE, LONGITUDE, 1), rows.get(1).get("grid_id"));
+        assertEquals("1", rows.get(1).get("grid_precision"));
+    }
+
+    private static CoverageSample sample(double latitude, double longitude, long timestamp, double distance, String category, String access, String rssi, String cellId) throws Exception
+    {
+        JSONObject geo = new JSONObject();
+        geo.put("app_latitude", latitude);
+        geo.put("app_longitude", longitude);
+        geo.put("app_accuracy", 5.0);
+        geo.put("app_velocity", 10.0);
+        geo.put("app_location_age_ns", 0);
+
+        JSONObject network = new JSONObject();
+        network.put("app_access_id", 13);
+        network.putOpt("app_access", access);
+        network.putOpt("app_rssi", rssi);
+        network.putOpt("app_cellid", cellId);
+
+        CoverageSample sample = CoverageSample.obtain();
+        sample.fill(HEADER, geo, network, new JSONObject());
+
+        sample.geoTimestamp = timestamp;
+        sample.distance = distance;
+        sample.accessCategory = category;
+
+        return sample;
+    }
+
+    private static void assertRow(Map<String, String> row, String gridId, String category, String count, String firstTimestamp)
+    {
+        assertEquals(gridId, row.get("grid_id"));
+        assertEquals(category, row.get("app_access_category"));
+        assertEquals(count, row.get("sample_count"));
+        assertEquals(firstTimestamp, row.get("app_geo_timestamp_first"));
+    }
+
+    /**
+     * Rows of the grid table in insert order, once the writer committed the given number of cells
+     */
+    private List<Map<String, String>> readRows(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (writer.getRowsInserted() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        writer.stop();
+
+        List<Map<String, String>> rows = new ArrayList<>();
+
+        SQLiteDatabase database = CoverageDatabase.open(ctx);
+        Cursor cursor = database.rawQuery("SELECT * FROM " + CoverageDatabase.TABLE_GRID + " ORDER BY rowid", null);
+        try
+        {
+            while (cursor.moveToNext())
+            {
+                Map<String, String> row = new HashMap<>();
+
+                for (int i = 0; i < cursor.getColumnCount(); i++)
+                {
+                    row.put(cursor.getColumnName(i), cursor.getString(i));
+                }
+
+                rows.add(row);
+            }
+        } finally
+        {
+            cursor.close();
+            database.close();
+        }
+
+        return rows;
+    }
+}
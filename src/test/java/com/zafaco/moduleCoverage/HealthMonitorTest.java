@@ -0,0 +1,367 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HealthMonitorTest
+{
+    private static final int ACCURACY_THRESHOLD = 50;
+    private static final int LOCATION_AGE_THRESHOLD = 1000;
+
+    private static final double GOOD = 10;
+    private static final double BAD = 100;
+
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final List<String> warnings = new ArrayList<>();
+
+    private volatile DeviceState deviceState = new DeviceState(false, false, 5, 1, 0);
+
+    private HealthMonitor monitor;
+
+
+    @Before
+    public void setUp()
+    {
+        monitor = new HealthMonitor(new DeviceState.Source()
+        {
+            @Override
+            public DeviceState get()
+            {
+                return deviceState;
+            }
+        }, scheduler, new HealthMonitor.Listener()
+        {
+            @Override
+            public void onHealthEvent(JSONObject message)
+            {
+                String warning = message.optString("warning");
+
+                if (!"info".equals(warning))
+                    warnings.add(warning);
+            }
+        });
+
+        monitor.start(scheduler, ACCURACY_THRESHOLD, LOCATION_AGE_THRESHOLD);
+        scheduler.advance(0);
+    }
+
+    @After
+    public void tearDown()
+    {
+        monitor.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void startEmitsCurrentStateOnce()
+    {
+        assertEquals(Collections.singletonList("no"), warnings);
+        assertEquals(1, monitor.getEvaluations());
+    }
+
+    @Test
+    public void unchangedConditionsAreNotEvaluated()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            monitor.onLocation(GOOD + i % 10, 100);
+            scheduler.advance(100);
+        }
+
+        assertEquals(1, monitor.getEvaluations());
+
+        // only the flip of a condition submits an evaluation, not every fix that keeps it
+        monitor.onLocation(BAD, 100);
+        for (int i = 0; i < 100; i++)
+        {
+            monitor.onLocation(BAD + i, 100);
+        }
+        scheduler.advance(0);
+
+        assertEquals(2, monitor.getEvaluations());
+    }
+
+    @Test
+    public void flappingFasterThanRaiseDelayNeverWarns()
+    {
+        monitor.setDebounce(HealthWarning.GPS, 2000, 2000);
+
+        // bad for 1.5 s, good for 0.5 s, for a minute
+        for (long t = 0; t < 60000; t += 2000)
+        {
+            monitor.onLocation(BAD, 100);
+            scheduler.advance(1500);
+            monitor.onLocation(GOOD, 100);
+            scheduler.advance(500);
+        }
+
+        assertEquals(Collections.singletonList("no"), warnings);
+        assertTrue(monitor.getEvaluations() >= 60);
+    }
+
+    @Test
+    public void raisesAfterHoldAndIgnoresFlappingUntilCleared()
+    {
+        monitor.setDebounce(HealthWarning.GPS, 2000, 3000);
+
+        monitor.onLocation(BAD, 100);
+        scheduler.advance(1999);
+        assertEquals(1, warnings.size());
+
+        // the pending evaluation fires when the raise delay has elapsed, without a new fix
+        scheduler.advance(1);
+        assertEquals(Arrays.asList("no", "gps"), warnings);
+
+        // good for 2.5 s, bad for 0.5 s: the warning never clears
+        for (long t = 0; t < 60000; t += 3000)
+        {
+            monitor.onLocation(GOOD, 100);
+            scheduler.advance(2500);
+            monitor.onLocation(BAD, 100);
+            scheduler.advance(500);
+        }
+        assertEquals(Arrays.asList("no", "gps"), warnings);
+
+        monitor.onLocation(GOOD, 100);
+        scheduler.advance(2999);
+        assertEquals(2, warnings.size());
+        scheduler.advance(1);
+
+        assertEquals(Arrays.asList("no", "gps", "no"), warnings);
+    }
+
+    @Test
+    public void countsWarningsOfFlappingInputs()
+    {
+        monitor.setDebounce(HealthWarning.GPS, 1500, 1500);
+
+        // accuracy per second, a condition has to hold for 1.5 s: a warning needs two bad seconds in a row, a clear two good ones
+        double[] accuracy = {BAD, GOOD, BAD, BAD, GOOD, BAD, GOOD, GOOD, BAD, GOOD, BAD, BAD, BAD, GOOD, GOOD, GOOD, BAD, GOOD};
+        String[] expected = {"no", "gps", "no", "gps", "no"};
+
+        for (double value : accuracy)
+        {
+            monitor.onLocation(value, 100);
+            scheduler.advance(1000);
+        }
+
+        assertEquals(Arrays.asList(expected), warnings);
+        assertEquals(expected.length, monitor.getEvents());
+    }
+
+    @Test
+    public void deviceStateIsDebouncedAndPrioritized()
+    {
+        // wifi is raised at once and cleared after 1 s
+        setDeviceState(true);
+        assertEquals(Arrays.asList("no", "wifi"), warnings);
+
+        for (int i = 0; i < 20; i++)
+        {
+            setDeviceState(false);
+            scheduler.advance(900);
+            setDeviceState(true);
+            scheduler.advance(100);
+        }
+        assertEquals(Arrays.asList("no", "wifi"), warnings);
+
+        // a bad fix raises gps behind the wifi warning, which takes precedence
+        monitor.onLocation(BAD, 100);
+        scheduler.advance(HealthWarning.GPS.defaultRaiseMs);
+        assertEquals(Arrays.asList("no", "wifi"), warnings);
+
+        setDeviceState(false);
+        scheduler.advance(HealthWarning.WIFI.defaultClearMs);
+        assertEquals(Arrays.asList("no", "wifi", "gps"), warnings);
+    }
+
+    @Test
+    public void stoppedMonitorEmitsNothing()
+    {
+        monitor.onLocation(BAD, 100);
+        monitor.stop();
+
+        scheduler.advance(60000);
+        monitor.onLocation(GOOD, 100);
+        monitor.onDeviceStateChanged();
+        scheduler.advance(60000);
+
+        assertEquals(Collections.singletonList("no"), warnings);
+    }
+
+    private void setDeviceState(boolean wifi)
+    {
+        deviceState = new DeviceState(wifi, false, 5, 1, scheduler.now);
+        monitor.onDeviceStateChanged();
+        scheduler.advance(0);
+    }
+
+    /**
+     * Runs submitted and scheduled tasks on the test thread when the fake clock is advanced
+     */
+    private static final class FakeScheduler extends ScheduledThreadPoolExecutor implements CoverageIngest.Clock
+    {
+        private final List<Task> tasks = new ArrayList<>();
+        private long now = 0;
+        private long sequence = 0;
+
+
+        FakeScheduler()
+        {
+            super(1);
+        }
+
+        @Override
+        public long currentTimeMillis()
+        {
+            return now;
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            schedule(command, 0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+        {
+            Task task = new Task(command, now + unit.toMillis(Math.max(0, delay)), sequence++);
+            tasks.add(task);
+
+            return task;
+        }
+
+        /**
+         * Runs all tasks due within the next milliseconds in order of their due time
+         */
+        void advance(long ms)
+        {
+            long target = now + ms;
+
+            while (true)
+            {
+                Task next = null;
+                for (Task task : tasks)
+                {
+                    if (task.due <= target && (next == null || task.compareTo(next) < 0))
+                        next = task;
+                }
+
+                if (next == null)
+                    break;
+
+                tasks.remove(next);
+
+                if (next.cancelled)
+                    continue;
+
+                now = Math.max(now, next.due);
+                next.done = true;
+                next.command.run();
+            }
+
+            now = target;
+        }
+
+        private final class Task implements ScheduledFuture<Object>
+        {
+            final Runnable command;
+            final long due;
+            final long order;
+
+            boolean cancelled = false;
+            boolean done = false;
+
+
+            Task(Runnable command, long due, long order)
+            {
+                this.command = command;
+                this.due = due;
+                this.order = order;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit)
+            {
+                return unit.convert(due - now, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other)
+            {
+                Task task = (Task) other;
+
+                if (due != task.due)
+                    return due < task.due ? -1 : 1;
+
+                return Long.compare(order, task.order);
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning)
+            {
+                if (done)
+                    return false;
+
+                cancelled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled()
+            {
+                return cancelled;
+            }
+
+            @Override
+            public boolean isDone()
+            {
+                return done || cancelled;
+            }
+
+            @Override
+            public Object get()
+            {
+                return null;
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit)
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocationSchedulerTest
+{
+    private static final int MIN_INTERVAL_MS = 1000;
+
+    /**
+     * Seconds and velocities of the replayed trace: walking, driving, biking, walking
+     */
+    private static final int[] SEGMENT_SECONDS = {300, 300, 300, 300};
+    private static final double[] SEGMENT_VELOCITY = {1.4, 15.0, 6.0, 1.4};
+
+    private File mFile;
+
+    private int requests = 0;
+    private int lastIntervalMs = -1;
+    private int lastDisplacement = -1;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mFile = File.createTempFile("scheduler", TraceRecorder.TRACE_SUFFIX);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mFile.delete();
+    }
+
+    @Test
+    public void requestsMatchMotionClass()
+    {
+        LocationScheduler scheduler = createScheduler();
+        scheduler.start();
+
+        assertNull(scheduler.getMotionClass());
+        assertEquals(1, requests);
+        assertEquals(MIN_INTERVAL_MS, lastIntervalMs);
+        assertEquals(5, lastDisplacement);
+
+        scheduler.onVelocity(1.4, 0);
+        assertEquals(MotionClass.WALKING, scheduler.getMotionClass());
+        assertEquals(2000, lastIntervalMs);
+        assertEquals(10, lastDisplacement);
+
+        scheduler.onVelocity(8.0, 1000);
+        assertEquals(MotionClass.BIKING, scheduler.getMotionClass());
+        assertEquals(2272, lastIntervalMs);
+        assertEquals(25, lastDisplacement);
+
+        scheduler.onVelocity(30.0, 2000);
+        assertEquals(MotionClass.DRIVING, scheduler.getMotionClass());
+        assertEquals(MIN_INTERVAL_MS, lastIntervalMs);
+        assertEquals(50, lastDisplacement);
+
+        assertEquals(4, requests);
+    }
+
+    @Test
+    public void hysteresisKeepsClassAtBoundary()
+    {
+        LocationScheduler scheduler = createScheduler();
+        scheduler.start();
+
+        scheduler.onVelocity(3.5, 0);
+        scheduler.onVelocity(4.9, 1000);
+        scheduler.onVelocity(3.9, 2000);
+        scheduler.onVelocity(4.9, 3000);
+
+        assertEquals(MotionClass.WALKING, scheduler.getMotionClass());
+        assertEquals(2, requests);
+
+        scheduler.onVelocity(5.1, 4000);
+
+        assertEquals(MotionClass.BIKING, scheduler.getMotionClass());
+        assertEquals(3, requests);
+
+        // inside the band of walking, but not below it by the hysteresis
+        scheduler.onVelocity(3.5, 5000 + LocationScheduler.DOWNGRADE_DELAY_MS * 2);
+
+        assertEquals(MotionClass.BIKING, scheduler.getMotionClass());
+        assertEquals(3, requests);
+    }
+
+    @Test
+    public void downgradeWaitsForDelay()
+    {
+        LocationScheduler scheduler = createScheduler();
+        scheduler.start();
+
+        scheduler.onVelocity(20.0, 0);
+        assertEquals(MotionClass.DRIVING, scheduler.getMotionClass());
+
+        scheduler.onVelocity(1.0, 1000);
+        scheduler.onVelocity(1.0, 1000 + LocationScheduler.DOWNGRADE_DELAY_MS - 1);
+        assertEquals(MotionClass.DRIVING, scheduler.getMotionClass());
+
+        // a fix back in the band restarts the delay
+        scheduler.onVelocity(20.0, 1000 + LocationScheduler.DOWNGRADE_DELAY_MS);
+        scheduler.onVelocity(1.0, 2000 + LocationScheduler.DOWNGRADE_DELAY_MS);
+        scheduler.onVelocity(1.0, 2000 + LocationScheduler.DOWNGRADE_DELAY_MS * 2 - 1);
+        assertEquals(MotionClass.DRIVING, scheduler.getMotionClass());
+
+        scheduler.onVelocity(1.0, 2000 + LocationScheduler.DOWNGRADE_DELAY_MS * 2);
+        assertEquals(MotionClass.WALKING, scheduler.getMotionClass());
+        assertEquals(3, requests);
+
+        scheduler.onVelocity(-1, 3000 + LocationScheduler.DOWNGRADE_DELAY_MS * 2);
+        assertEquals(MotionClass.WALKING, scheduler.getMotionClass());
+    }
+
+    @Test
+    public void replayedTraceKeepsAcceptedFixes() throws Exception
+    {
+        int fixes = record();
+
+        TraceReplayer.Result fixed = new TraceReplayer(mFile, false).replay(null);
+
+        TraceReplayer adaptive = new TraceReplayer(mFile, false);
+        adaptive.setLocationScheduler(createScheduler());
+        TraceReplayer.Result scheduled = adaptive.replay(null);
+
+        assertEquals(0, fixed.getErrors());
+        assertEquals(0, scheduled.getErrors());
+
+        assertEquals(fixes, fixed.getFixes());
+        assertEquals(fixes, scheduled.getFixes() + scheduled.getSkipped());
+
+        // one request at start, one per segment and one for the first velocity
+        assertEquals(1 + SEGMENT_SECONDS.length, requests);
+
+        assertTrue(scheduled.getFixes() * 2 < fixed.getFixes());
+        assertTrue(scheduled.getAccepted() * 10 >= fixed.getAccepted() * 9);
+    }
+
+    private LocationScheduler createScheduler()
+    {
+        return new LocationScheduler(new LocationScheduler.Requester()
+        {
+            @Override
+            public void requestUpdates(int intervalMs, int smallestDisplacement, int priority)
+            {
+                requests++;
+                lastIntervalMs = intervalMs;
+                lastDisplacement = smallestDisplacement;
+            }
+        }, MIN_INTERVAL_MS, 5, 100);
+    }
+
+    /**
+     * Writes one fix per second along a meridian with the velocity of the current segment, the header is taken from {@link TraceRecorder}
+     * which stamps real offsets on all other records
+     */
+    private int record() throws Exception
+    {
+        File headerFile = File.createTempFile("header", TraceRecorder.TRACE_SUFFIX);
+        String header;
+
+        try
+        {
+            TraceRecorder recorder = new TraceRecorder(headerFile);
+            recorder.recordHeader(new TrackHeader("track", "Android", "14", "Google", "id", "Pixel", "1.0", "1.0", 3600), 1700000000000L, 50, 1000, 0, false, "unknown", new CoverageIngest.CategoryResolver()
+            {
+                @Override
+                public String getCategory(int accessId)
+                {
+                    return accessId == 13 ? "4G" : null;
+                }
+            });
+            recorder.close();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(headerFile)), TraceRecorder.CHARSET));
+            try
+            {
+                header = reader.readLine();
+            } finally
+            {
+                reader.close();
+            }
+        } finally
+        {
+            headerFile.delete();
+        }
+
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(mFile)), TraceRecorder.CHARSET);
+        int fixes = 0;
+
+        try
+        {
+            writer.write(header);
+            writer.write('\n');
+
+            JSONObject network = new JSONObject();
+            network.put("app_access_id", 13);
+            network.put("app_access", "LTE");
+            network.put("app_mode", "MOBILE");
+            network.put("app_call_state", 0);
+            write(writer, 0, TraceRecorder.TYPE_NETWORK, network);
+
+            double latitude = 48.2;
+            long offset = 0;
+
+            for (int segment = 0; segment < SEGMENT_SECONDS.length; segment++)
+            {
+                for (int second = 0; second < SEGMENT_SECONDS[segment]; second++)
+                {
+                    offset += 1000;
+                    latitude += SEGMENT_VELOCITY[segment] / 111195.0;
+
+                    JSONObject geo = new JSONObject();
+                    geo.put("app_latitude", latitude);
+                    geo.put("app_longitude", 16.37);
+                    geo.put("app_accuracy", 5.0);
+                    geo.put("app_altitude", 180.0);
+                    geo.put("app_velocity", SEGMENT_VELOCITY[segment]);
+                    geo.put("app_location_age_ns", 0);
+                    write(writer, offset, TraceRecorder.TYPE_GEO, geo);
+
+                    fixes++;
+                }
+            }
+        } finally
+        {
+            writer.close();
+        }
+
+        return fixes;
+    }
+
+    private static void write(Writer writer, long offset, char type, JSONObject message) throws IOException
+    {
+        writer.write(Long.toString(offset));
+        writer.write('\t');
+        writer.write(type);
+        writer.write('\t');
+        writer.write(message.toString());
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNotificationManager;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class NotificationUpdaterTest
+{
+    private static final int NOTIFICATION_ID = 42;
+    private static final long INTERVAL_MS = 1000;
+
+    private CoverageCounter counter;
+    private NotificationUpdater updater;
+    private ShadowLooper mainLooper;
+    private ShadowNotificationManager notificationManager;
+
+    private long timestamp = 0;
+
+
+    @Before
+    public void setUp()
+    {
+        Context ctx = RuntimeEnvironment.getApplication();
+
+        counter = new CoverageCounter();
+        updater = new NotificationUpdater(ctx, "channel", NOTIFICATION_ID, android.R.drawable.ic_dialog_info, null, INTERVAL_MS);
+        updater.setCounter(counter);
+
+        mainLooper = shadowOf(Looper.getMainLooper());
+        notificationManager = shadowOf((NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE));
+    }
+
+    @Test
+    public void firstSampleIsPostedRightAway()
+    {
+        sample(AccessCategory.G4);
+
+        assertEquals(1, updater.getUpdatesPosted());
+        assertEquals(0, updater.getUpdatesSuppressed());
+        assertNotNull(notificationManager.getNotification(NOTIFICATION_ID));
+    }
+
+    @Test
+    public void samplesWithinIntervalAreCoalescedIntoOneRefresh()
+    {
+        sample(AccessCategory.G4);
+
+        for (int i = 0; i < 10; i++)
+        {
+            mainLooper.idleFor(Duration.ofMillis(50));
+            sample(AccessCategory.G4);
+        }
+
+        assertEquals(1, updater.getUpdatesPosted());
+        assertEquals(10, updater.getUpdatesSuppressed());
+
+        // the scheduled refresh fires once at the end of the interval and shows the latest counts
+        mainLooper.idleFor(Duration.ofMillis(INTERVAL_MS - 500 - 1));
+        assertEquals(1, updater.getUpdatesPosted());
+
+        mainLooper.idleFor(Duration.ofMillis(1));
+        assertEquals(2, updater.getUpdatesPosted());
+
+        mainLooper.idleFor(Duration.ofMillis(10 * INTERVAL_MS));
+        assertEquals(2, updater.getUpdatesPosted());
+        assertEquals(10, updater.getUpdatesSuppressed());
+    }
+
+    @Test
+    public void sampleAfterIntervalRefreshesDirectly()
+    {
+        sample(AccessCategory.G4);
+
+        mainLooper.idleFor(Duration.ofMillis(INTERVAL_MS));
+        sample(AccessCategory.G4);
+
+        assertEquals(2, updater.getUpdatesPosted());
+        assertEquals(0, updater.getUpdatesSuppressed());
+
+        mainLooper.idleFor(Duration.ofMillis(10 * INTERVAL_MS));
+        assertEquals(2, updater.getUpdatesPosted());
+    }
+
+    @Test
+    public void categoryChangeRefreshesImmediatelyAndCancelsPendingRefresh()
+    {
+        sample(AccessCategory.G4);
+        sample(AccessCategory.G4);
+
+        assertEquals(1, updater.getUpdatesPosted());
+
+        sample(AccessCategory.G5);
+
+        assertEquals(2, updater.getUpdatesPosted());
+        assertEquals(1, updater.getUpdatesSuppressed());
+
+        mainLooper.idleFor(Duration.ofMillis(10 * INTERVAL_MS));
+        assertEquals(2, updater.getUpdatesPosted());
+    }
+
+    @Test
+    public void unchangedCountsAreNotPostedAgain()
+    {
+        sample(AccessCategory.G4);
+
+        // a refresh without a counter change renders the same lines
+        mainLooper.idleFor(Duration.ofMillis(INTERVAL_MS));
+        updater.update(AccessCategory.G4);
+
+        assertEquals(1, updater.getUpdatesPosted());
+        assertEquals(1, updater.getUpdatesSuppressed());
+
+        // the category flips without a new sample, the lines are still the same
+        updater.update(AccessCategory.G3);
+
+        assertEquals(1, updater.getUpdatesPosted());
+        assertEquals(2, updater.getUpdatesSuppressed());
+
+        sample(AccessCategory.G3);
+        mainLooper.idleFor(Duration.ofMillis(INTERVAL_MS));
+
+        assertEquals(2, updater.getUpdatesPosted());
+    }
+
+    @Test
+    public void stopCancelsPendingRefresh()
+    {
+        sample(AccessCategory.G4);
+        sample(AccessCategory.G4);
+
+        updater.stop();
+        mainLooper.idleFor(Duration.ofMillis(10 * INTERVAL_MS));
+
+        assertEquals(1, updater.getUpdatesPosted());
+        assertEquals(1, updater.getUpdatesSuppressed());
+    }
+
+    private void sample(AccessCategory category)
+    {
+        timestamp += 1000;
+
+        counter.add(category, timestamp, 10);
+        updater.update(category);
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class RetentionManagerTest
+{
+    private static final long DAY_MS = 86400000L;
+    private static final int ROWS = 2000;
+    private static final long TIMEOUT_MS = 30000;
+
+    private Context ctx;
+    private SQLiteDatabase mSQLiteDatabase;
+    private long now;
+
+
+    @Before
+    public void setUp()
+    {
+        ctx = RuntimeEnvironment.getApplication();
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (mSQLiteDatabase != null)
+            mSQLiteDatabase.close();
+    }
+
+    @Test
+    public void purgesFlaggedAndOldTracks()
+    {
+        open();
+        insertTrack("sent", now, ROWS, "true", "false");
+        insertTrack("deleted", now, ROWS, "false", "true");
+        insertTrack("old", now - 40 * DAY_MS, ROWS, "false", "false");
+        insertTrack("recent", now - DAY_MS, ROWS, "false", "false");
+
+        RetentionManager retentionManager = new RetentionManager(ctx);
+        retentionManager.setLimits(30 * DAY_MS, 0);
+        retentionManager.runRetention();
+
+        // a sent track keeps its meta row and sent flag, deleted and expired tracks disappear completely
+        assertEquals(0, rows("sent"));
+        assertEquals(1, metaRows("sent"));
+        assertEquals(0, rows("deleted"));
+        assertEquals(0, metaRows("deleted"));
+        assertEquals(0, rows("old"));
+        assertEquals(0, metaRows("old"));
+        assertEquals(ROWS, rows("recent"));
+        assertEquals(1, metaRows("recent"));
+
+        assertEquals(3 * ROWS, retentionManager.getRowsPurged());
+        assertEquals(3, retentionManager.getTracksPurged());
+    }
+
+    @Test
+    public void purgesOldestTracksUntilWithinBudget()
+    {
+        open();
+
+        // inserted out of order, the purge follows the track timestamp and not the rowid
+        insertTrack("middle", now - 2 * DAY_MS, ROWS, "false", "false");
+        long one = getUsedSize();
+        insertTrack("newest", now - DAY_MS, ROWS, "false", "false");
+        long two = getUsedSize();
+        insertTrack("oldest", now - 3 * DAY_MS, ROWS, "false", "false");
+
+        long budget = (one + two) / 2;
+
+        RetentionManager retentionManager = new RetentionManager(ctx);
+        retentionManager.setLimits(0, budget);
+        retentionManager.runRetention();
+
+        assertEquals(0, metaRows("oldest"));
+        assertEquals(0, metaRows("middle"));
+        assertEquals(1, metaRows("newest"));
+        assertEquals(ROWS, rows("newest"));
+        assertTrue(getUsedSize() <= budget);
+    }
+
+    @Test
+    public void newDatabaseUsesIncrementalVacuum()
+    {
+        open();
+
+        assertEquals(2, getAutoVacuum());
+    }
+
+    @Test
+    public void compactsInSteps() throws InterruptedException
+    {
+        open();
+        insertTrack("sent", now, 10 * ROWS, "true", "false");
+
+        long size = getFileSize();
+
+        RetentionManager retentionManager = new RetentionManager(ctx);
+        retentionManager.runRetention();
+
+        assertTrue(freePages() > 0);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (retentionManager.getBytesReclaimed() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertTrue(retentionManager.getVacuumSteps() >= 1);
+        assertTrue(retentionManager.getBytesReclaimed() > 0);
+        assertEquals(0, freePages());
+        assertTrue(getFileSize() < size);
+    }
+
+    @Test
+    public void startingSessionInterruptsCompaction() throws InterruptedException
+    {
+        open();
+        insertTrack("sent", now, 10 * ROWS, "true", "false");
+
+        RetentionManager retentionManager = new RetentionManager(ctx);
+        retentionManager.runRetention();
+        retentionManager.onSessionStarted();
+
+        // the first step was scheduled before the start and returns without touching the free list
+        Thread.sleep(1000);
+
+        long free = freePages();
+        assertTrue(free > 0);
+        assertEquals(0, retentionManager.getVacuumSteps());
+
+        // the next run after the session finishes the compaction
+        retentionManager.onSessionStopped();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (freePages() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, freePages());
+    }
+
+    @Test
+    public void conversionWaitsForSessionAndNeverBlocksStart()
+    {
+        // a database from before incremental auto vacuum, the framework default is none or full
+        mSQLiteDatabase = SQLiteDatabase.openOrCreateDatabase(ctx.getDatabasePath(CoverageDatabase.DATABASE), null);
+        Assume.assumeTrue(getAutoVacuum() != 2);
+        createTables();
+        insertTrack("recent", now, ROWS, "false", "false");
+
+        RetentionManager retentionManager = new RetentionManager(ctx);
+
+        long start = System.nanoTime();
+        retentionManager.onSessionStarted();
+        assertTrue(System.nanoTime() - start < 50000000L);
+
+        long mode = getAutoVacuum();
+        retentionManager.runRetention();
+        assertEquals(mode, getAutoVacuum());
+
+        retentionManager.onSessionStopped();
+        retentionManager.runRetention();
+        assertEquals(2, getAutoVacuum());
+        assertEquals(ROWS, rows("recent"));
+    }
+
+    @Test
+    public void purgesTilesOlderThanAgeLimit() throws IOException
+    {
+        open();
+
+        File directory = new File(ctx.getFilesDir(), Coverage.TILE_DIRECTORY);
+        assertTrue(directory.mkdirs());
+
+        File old = tile(directory, "12_2210_1420.tile", now - 40 * DAY_MS);
+        File recent = tile(directory, "12_2210_1421.tile", now - DAY_MS);
+        File temporary = tile(directory, "12_2210_1422.tile.tmp", now - 40 * DAY_MS);
+        File other = tile(directory, "notes.txt", now - 40 * DAY_MS);
+
+        // without an age limit tiles are kept
+        RetentionManager retentionManager = new RetentionManager(ctx);
+        retentionManager.setLimits(0, 1);
+        retentionManager.runRetention();
+        assertTrue(old.exists());
+
+        retentionManager.setLimits(30 * DAY_MS, 0);
+        retentionManager.runRetention();
+
+        assertFalse(old.exists());
+        assertFalse(temporary.exists());
+        assertTrue(recent.exists());
+        assertTrue(other.exists());
+        assertEquals(1, retentionManager.getTilesPurged());
+
+        // a starting session skips the run
+        old = tile(directory, "12_2210_1420.tile", now - 40 * DAY_MS);
+        retentionManager.onSessionStarted();
+        retentionManager.runRetention();
+        assertTrue(old.exists());
+    }
+
+    private static File tile(File directory, String name, long lastModified) throws IOException
+    {
+        File file = new File(directory, name);
+        new FileOutputStream(file).close();
+        assertTrue(file.setLastModified(lastModified));
+
+        return file;
+    }
+
+    private void open()
+    {
+        mSQLiteDatabase = CoverageDatabase.open(ctx);
+        createTables();
+    }
+
+    private void createTables()
+    {
+        mSQLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + CoverageDatabase.TABLE_META + " (ftable TEXT, fkey TEXT, timestamp TEXT, sent TEXT, deleted TEXT)");
+        mSQLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + CoverageDatabase.TABLE_COVERAGE + " (track_id TEXT, app_geo_timestamp TEXT, app_latitude TEXT, app_longitude TEXT, app_access TEXT, sent TEXT)");
+    }
+
+    private void insertTrack(String trackId, long timestamp, int rows, String sent, String deleted)
+    {
+        mSQLiteDatabase.execSQL("INSERT INTO " + CoverageDatabase.TABLE_META + " VALUES (?, ?, ?, ?, ?)", new Object[]{CoverageDatabase.TABLE_COVERAGE, trackId, Long.toString(timestamp), sent, deleted});
+
+        SQLiteStatement statement = mSQLiteDatabase.compileStatement("INSERT INTO " + CoverageDatabase.TABLE_COVERAGE + " VALUES (?, ?, ?, ?, ?, ?)");
+
+        mSQLiteDatabase.beginTransaction();
+        try
+        {
+            for (int i = 0; i < rows; i++)
+            {
+                statement.bindString(1, trackId);
+                statement.bindString(2, Long.toString(timestamp + i * 1000L));
+                statement.bindString(3, Double.toString(48.0 + i * 1e-5));
+                statement.bindString(4, Double.toString(16.0 + i * 1e-5));
+                statement.bindString(5, "LTE-" + trackId + "-" + i + "-0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+                statement.bindString(6, sent);
+                statement.executeInsert();
+            }
+
+            mSQLiteDatabase.setTransactionSuccessful();
+        } finally
+        {
+            mSQLiteDatabase.endTransaction();
+            statement.close();
+        }
+    }
+
+    /**
+     * Read in a transaction, the pooled read connections may report the mode from before a conversion
+     */
+    private long getAutoVacuum()
+    {
+        mSQLiteDatabase.beginTransactionNonExclusive();
+        try
+        {
+            CoverageDatabase.pragmaLong(mSQLiteDatabase, "schema_version");
+
+            return CoverageDatabase.pragmaLong(mSQLiteDatabase, "auto_vacuum");
+        } finally
+        {
+            mSQLiteDatabase.endTransaction();
+        }
+    }
+
+    private long getUsedSize()
+    {
+        return (CoverageDatabase.pragmaLong(mSQLiteDatabase, "page_count") - freePages()) * CoverageDatabase.pragmaLong(mSQLiteDatabase, "page_size");
+    }
+
+    private long getFileSize()
+    {
+        return CoverageDatabase.pragmaLong(mSQLiteDatabase, "page_count") * CoverageDatabase.pragmaLong(mSQLiteDatabase, "page_size");
+    }
+
+    private long freePages()
+    {
+        return CoverageDatabase.pragmaLong(mSQLiteDatabase, "freelist_count");
+    }
+
+    private int rows(String trackId)
+    {
+        return count("SELECT COUNT(*) FROM " + CoverageDatabase.TABLE_COVERAGE + " WHERE track_id = ?", trackId);
+    }
+
+    private int metaRows(String trackId)
+    {
+        return count("SELECT COUNT(*) FROM " + CoverageDatabase.TABLE_META + " WHERE fkey = ?", trackId);
+    }
+
+    private int count(String sql, String arg)
+    {
+        Cursor cursor = mSQLiteDatabase.rawQuery(sql, new String[]{arg});
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally
+        {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.zafaco.moduleCoverage;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SamplePipelineTest
+{
+    private static final int ACCURACY_THRESHOLD = 50;
+    private static final int LOCATION_AGE_THRESHOLD = 1000;
+    private static final double MIN_DISTANCE = 5.0;
+    private static final String UNKNOWN = "UNKNOWN";
+
+
+    /**
+     * One row of the admission table, the mutation is applied to an admissible baseline sample
+     */
+    private static abstract class Row
+    {
+        final String label;
+        final String rejectedBy;
+
+        Row(String label, String rejectedBy)
+        {
+            this.label = label;
+            this.rejectedBy = rejectedBy;
+        }
+
+        abstract void apply(CoverageSample sample);
+    }
+
+
+    @Test
+    public void eachFilterRejectsItsCase() throws Exception
+    {
+        Row[] rows = new Row[]{
+                new Row("baseline", null)
+                {
+                    void apply(CoverageSample sample)
+                    {
+                    }
+                },
+                new Row("access id 18", "access_id")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.accessId = 18;
+                    }
+                },
+                new Row("accuracy at threshold", null)
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.accuracy = ACCURACY_THRESHOLD;
+                    }
+                },
+                new Row("accuracy above threshold", "accuracy")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.accuracy = ACCURACY_THRESHOLD + 0.1;
+                    }
+                },
+                new Row("location age at threshold", null)
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.locationAgeNs = LOCATION_AGE_THRESHOLD * 1000000L;
+                    }
+                },
+                new Row("location age above threshold", "location_age")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.locationAgeNs = LOCATION_AGE_THRESHOLD * 1000000L + 1;
+                    }
+                },
+                new Row("network age, filter disabled", null)
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.networkAgeMs = Long.MAX_VALUE;
+                    }
+                },
+                new Row("distance below minimum", "distance")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.distance = MIN_DISTANCE - 0.1;
+                    }
+                },
+                new Row("distance at minimum", null)
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.distance = MIN_DISTANCE;
+                    }
+                },
+                new Row("first fix ignores distance", null)
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.hasPrevious = false;
+                        sample.distance = 0;
+                    }
+                },
+                new Row("wifi", "wifi")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.wifi = true;
+                    }
+                },
+                new Row("airplane", "airplane")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.airplane = true;
+                    }
+                },
+                new Row("sim not ready", "sim")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.simState = 1;
+                    }
+                },
+                new Row("dual sim", "sim")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.activeSimCount = 2;
+                    }
+                },
+                new Row("first failing filter wins", "accuracy")
+                {
+                    void apply(CoverageSample sample)
+                    {
+                        sample.accuracy = 100;
+                        sample.wifi = true;
+                        sample.simState = 0;
+                    }
+                }
+        };
+
+        for (Row row : rows)
+        {
+            SamplePipeline pipeline = createPipeline(0);
+            CoverageSample sample = baseline();
+            row.apply(sample);
+
+            SamplePipeline.Stage rejection = pipeline.process(sample);
+
+            assertEquals(row.label, row.rejectedBy, rejection != null ? rejection.getName() : null);
+            assertEquals(row.label, legacyAdmits(sample), rejection == null);
+        }
+    }
+
+    @Test
+    public void networkAgeFilterRejectsWhenEnabled() throws Exception
+    {
+        SampleStages.NetworkAgeFilter filter = new SampleStages.NetworkAgeFilter();
+        CoverageSample sample = baseline();
+
+        sample.networkAgeMs = 10000;
+        assertTrue(filter.accept(sample));
+
+        filter.setThreshold(500);
+        sample.networkAgeMs = 500;
+        assertTrue(filter.accept(sample));
+        sample.networkAgeMs = 501;
+        assertFalse(filter.accept(sample));
+
+        filter.setThreshold(-1);
+        assertTrue(filter.accept(sample));
+    }
+
+    @Test
+    public void eachRewriterAppliesItsRule() throws Exception
+    {
+        Object[][] table = new Object[][]{
+                // mode, accessId, access, callState, voiceId, operatorNetMnc, emergencyOnly -> mode, accessId, access
+                {"WIFI", 13, "4G", 0, 0, false, false, "WWAN", 13, "4G"},
+                {"WWAN", 13, "4G", 0, 0, false, false, "WWAN", 13, "4G"},
+                {"WWAN", 0, "-", 0, 16, false, false, "WWAN", 4, "2G"},
+                {"WWAN", 0, "-", 0, 0, true, false, "WWAN", 4, "2G"},
+                {"WWAN", 0, "-", 0, 0, false, false, "WWAN", 0, "-"},
+                {"WWAN", 0, "-", 1, 0, false, false, "WWAN", 4, "2G"},
+                {"WWAN", 0, "-", 2, 16, false, false, "WWAN", 0, "-"},
+                {"WWAN", 13, "4G", 1, 16, true, false, "WWAN", 13, "4G"},
+                {"WWAN", 0, "-", 0, 16, false, true, "WWAN", 0, UNKNOWN},
+                {"WWAN", 0, "-", 1, 0, false, true, "WWAN", 0, UNKNOWN},
+                {"WWAN", 13, "4G", 0, 0, false, true, "WWAN", 0, UNKNOWN},
+        };
+
+        for (int i = 0; i < table.length; i++)
+        {
+            Object[] row = table[i];
+
+            CoverageSample sample = baseline();
+            sample.mode = (String) row[0];
+            sample.accessId = (Integer) row[1];
+            sample.access = (String) row[2];
+            sample.callState = (Integer) row[3];
+            sample.voiceId = (Integer) row[4];
+            sample.hasOperatorNetMnc = (Boolean) row[5];
+            sample.emergencyOnly = (Boolean) row[6];
+
+            CoverageSample legacy = sample.copy();
+            legacyRewrite(legacy);
+
+            assertNull("row " + i, createPipeline(0).process(sample));
+
+            assertEquals("row " + i, row[7], sample.mode);
+            assertEquals("row " + i, row[8], sample.accessId);
+            assertEquals("row " + i, row[9], sample.access);
+
+            assertEquals("row " + i, legacy.mode, sample.mode);
+            assertEquals("row " + i, legacy.accessId, sample.accessId);
+            assertEquals("row " + i, legacy.access, sample.access);
+        }
+    }
+
+    /**
+     * Runs the cross product of all gate inputs through the pipeline and the former inline gate
+     */
+    @Test
+    public void admitsAndRewritesLikeTheInlineGate() throws Exception
+    {
+        boolean[] flags = {false, true};
+        double[] accuracies = {10, ACCURACY_THRESHOLD, ACCURACY_THRESHOLD + 1};
+        int[] accessIds = {0, 13, 18};
+        long[] locationAges = {0, LOCATION_AGE_THRESHOLD * 1000000L, LOCATION_AGE_THRESHOLD * 1000000L + 1};
+        double[] distances = {0, MIN_DISTANCE, MIN_DISTANCE + 10};
+        int[] simStates = {1, 5};
+        int[] simCounts = {1, 2};
+        int[] callStates = {0, 1, 2};
+        int[] voiceIds = {0, 16};
+        String[] modes = {"WIFI", "WWAN"};
+
+        SamplePipeline pipeline = createPipeline(0);
+        long cases = 0;
+        long admitted = 0;
+
+        for (boolean wifi : flags)
+            for (boolean airplane : flags)
+                for (int simState : simStates)
+                    for (int simCount : simCounts)
+                        for (boolean hasPrevious : flags)
+                            for (double distance : distances)
+                                for (double accuracy : accuracies)
+                                    for (int accessId : accessIds)
+                                        for (long locationAge : locationAges)
+                                            for (int callState : callStates)
+                                                for (int voiceId : voiceIds)
+                                                    for (boolean operatorNetMnc : flags)
+                                                        for (boolean emergencyOnly : flags)
+                                                            for (String mode : modes)
+                                                            {
+                                                                CoverageSample sample = baseline();
+                                                                sample.wifi = wifi;
+                                                                sample.airplane = airplane;
+                                                                sample.simState = simState;
+                                                                sample.activeSimCount = simCount;
+                                                                sample.hasPrevious = hasPrevious;
+                                                                sample.distance = distance;
+                                                                sample.accuracy = accuracy;
+                                                                sample.accessId = accessId;
+                                                                sample.access = accessId == 0 ? "-" : "4G";
+                                                                sample.locationAgeNs = locationAge;
+                                                                sample.callState = callState;
+                                                                sample.voiceId = voiceId;
+                                                                sample.hasOperatorNetMnc = operatorNetMnc;
+                                                                sample.emergencyOnly = emergencyOnly;
+                                                                sample.mode = mode;
+
+                                                                CoverageSample legacy = sample.copy();
+                                                                boolean expected = legacyAdmits(legacy);
+                                                                if (expected)
+                                                                    legacyRewrite(legacy);
+
+                                                                boolean actual = pipeline.process(sample) == null;
+
+                                                                String label = describe(legacy);
+                                                                assertEquals(label, expected, actual);
+
+                                                                if (expected)
+                                                                {
+                                                                    assertEquals(label, legacy.mode, sample.mode);
+                                                                    assertEquals(label, legacy.accessId, sample.accessId);
+                                                                    assertEquals(label, legacy.access, sample.access);
+                                                                    admitted++;
+                                                                }
+
+                                                                cases++;
+                                                            }
+
+        assertTrue(admitted > 0);
+        assertTrue(admitted < cases);
+        assertEquals(cases, pipeline.getProcessed());
+        assertEquals(admitted, pipeline.getAccepted());
+    }
+
+    @Test
+    public void stagesCountPassedAndRejected() throws Exception
+    {
+        SamplePipeline pipeline = createPipeline(0);
+
+        CoverageSample admitted = baseline();
+        CoverageSample wifi = baseline();
+        wifi.wifi = true;
+        CoverageSample inaccurate = baseline();
+        inaccurate.accuracy = 500;
+
+        assertNull(pipeline.process(admitted));
+        assertEquals("wifi", pipeline.process(wifi).getName());
+        assertEquals("accuracy", pipeline.process(inaccurate).getName());
+
+        assertEquals(3, pipeline.getProcessed());
+        assertEquals(1, pipeline.getAccepted());
+
+        List<String> names = new ArrayList<>();
+        for (SamplePipeline.Stage stage : pipeline.getStages())
+        {
+            names.add(stage.getName());
+        }
+
+        String[] order = {"access_id", "accuracy", "location_age", "network_age", "distance", "wifi", "airplane", "sim", "mode", "circuit_switched", "emergency"};
+        long[] passed = {3, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1};
+        long[] rejected = {0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0};
+
+        assertEquals(order.length, names.size());
+
+        JSONObject stages = pipeline.toJSON().getJSONObject("stages");
+
+        for (int i = 0; i < order.length; i++)
+        {
+            SamplePipeline.Stage stage = pipeline.getStages().get(i);
+
+            assertEquals(order[i], stage.getName());
+            assertEquals(order[i], passed[i], stage.getPassed());
+            assertEquals(order[i], rejected[i], stage.getRejected());
+            assertTrue(order[i], stage.getNanos() >= 0);
+
+            assertEquals(order[i], passed[i], stages.getJSONObject(order[i]).getLong("passed"));
+            assertEquals(order[i], rejected[i], stages.getJSONObject(order[i]).getLong("rejected"));
+        }
+
+        JSONObject json = pipeline.toJSON();
+        assertEquals(3, json.getLong("processed"));
+        assertEquals(1, json.getLong("accepted"));
+    }
+
+    @Test
+    public void hostFilterRunsAfterBuiltInFilters() throws Exception
+    {
+        final List<CoverageSample> seen = new ArrayList<>();
+
+        SamplePipeline pipeline = createPipeline(0);
+        pipeline.addFilter(new SampleFilter()
+        {
+            @Override
+            public String getName()
+            {
+                return "host";
+            }
+
+            @Override
+            public boolean accept(CoverageSample sample)
+            {
+                seen.add(sample);
+                return sample.accuracy < 20;
+            }
+        });
+
+        CoverageSample accurate = baseline();
+        accurate.accuracy = 10;
+        CoverageSample coarse = baseline();
+        coarse.accuracy = 30;
+        CoverageSample airplane = baseline();
+        airplane.airplane = true;
+
+        assertNull(pipeline.process(accurate));
+        assertEquals("host", pipeline.process(coarse).getName());
+        assertEquals("airplane", pipeline.process(airplane).getName());
+
+        assertEquals(2, seen.size());
+        assertTrue(seen.contains(accurate));
+        assertTrue(seen.contains(coarse));
+
+        List<SamplePipeline.Stage> stages = pipeline.getStages();
+        SamplePipeline.Stage host = null;
+        int hostIndex = -1;
+        for (int i = 0; i < stages.size(); i++)
+        {
+            if ("host".equals(stages.get(i).getName()))
+            {
+                host = stages.get(i);
+                hostIndex = i;
+            }
+        }
+
+        assertEquals("sim", stages.get(hostIndex - 1).getName());
+        assertEquals("mode", stages.get(hostIndex + 1).getName());
+        assertEquals(1, host.getPassed());
+        assertEquals(1, host.getRejected());
+        assertEquals(1, pipeline.toJSON().getJSONObject("stages").getJSONObject("host").getLong("rejected"));
+    }
+
+    @Test
+    public void hostRewriterRunsAfterBuiltInRewritersOnAdmittedSamples() throws Exception
+    {
+        final List<String> seenAccess = new ArrayList<>();
+
+        SamplePipeline pipeline = createPipeline(0);
+        pipeline.addRewriter(new SampleRewriter()
+        {
+            @Override
+            public String getName()
+            {
+                return "host";
+            }
+
+            @Override
+            public void rewrite(CoverageSample sample)
+            {
+                seenAccess.add(sample.access);
+                sample.access = "host-" + sample.access;
+            }
+        });
+
+        CoverageSample circuitSwitched = baseline();
+        circuitSwitched.accessId = 0;
+        circuitSwitched.access = "-";
+        circuitSwitched.callState = 1;
+
+        CoverageSample rejected = baseline();
+        rejected.wifi = true;
+
+        assertNull(pipeline.process(circuitSwitched));
+        assertEquals("wifi", pipeline.process(rejected).getName());
+
+        assertEquals(1, seenAccess.size());
+        assertEquals("2G", seenAccess.get(0));
+        assertEquals("host-2G", circuitSwitched.access);
+        assertEquals(4, circuitSwitched.accessId);
+
+        List<SamplePipeline.Stage> stages = pipeline.getStages();
+        SamplePipeline.Stage last = stages.get(stages.size() - 1);
+        assertEquals("host", last.getName());
+        assertEquals(1, last.getPassed());
+        assertEquals(0, last.getRejected());
+    }
+
+
+    private static SamplePipeline createPipeline(long networkAgeThresholdMs)
+    {
+        SampleStages.DistanceFilter distanceFilter = new SampleStages.DistanceFilter();
+        distanceFilter.setMinDistance(MIN_DISTANCE);
+
+        SampleStages.NetworkAgeFilter networkAgeFilter = new SampleStages.NetworkAgeFilter();
+        networkAgeFilter.setThreshold(networkAgeThresholdMs);
+
+        return SampleStages.createDefault(distanceFilter, networkAgeFilter, ACCURACY_THRESHOLD, LOCATION_AGE_THRESHOLD, UNKNOWN);
+    }
+
+    /**
+     * Sample every stage admits and no rewriter changes
+     */
+    private static CoverageSample baseline()
+    {
+        CoverageSample sample = CoverageSample.obtain();
+        sample.latitude = 48.1;
+        sample.longitude = 11.5;
+        sample.accuracy = 10;
+        sample.locationAgeNs = 200 * 1000000L;
+        sample.networkAgeMs = 100;
+        sample.hasPrevious = true;
+        sample.distance = MIN_DISTANCE + 10;
+        sample.wifi = false;
+        sample.airplane = false;
+        sample.simState = 5;
+        sample.activeSimCount = 1;
+        sample.accessId = 13;
+        sample.access = "4G";
+        sample.mode = "WWAN";
+        sample.voiceId = 0;
+        sample.callState = 0;
+        sample.emergencyOnly = false;
+        sample.hasOperatorNetMnc = false;
+
+        return sample;
+    }
+
+    /**
+     * Admission checks of the geo callback before the pipeline was extracted, in their original order
+     */
+    private static boolean legacyAdmits(CoverageSample sample)
+    {
+        if (sample.wifi)
+            return false;
+
+        if (sample.airplane)
+            return false;
+
+        if (sample.simState != 5)
+            return false;
+
+        if (sample.activeSimCount != 1)
+            return false;
+
+        if (sample.distance < MIN_DISTANCE && sample.hasPrevious)
+            return false;
+
+        if (sample.accuracy > ACCURACY_THRESHOLD)
+            return false;
+
+        if (sample.accessId == 18)
+            return false;
+
+        if (sample.locationAgeNs / 1e6 > LOCATION_AGE_THRESHOLD)
+            return false;
+
+        return true;
+    }
+
+    /**
+     * Rewrite rules of the geo callback before the pipeline was extracted
+     */
+    private static void legacyRewrite(CoverageSample sample)
+    {
+        if ("WIFI".equals(sample.mode))
+            sample.mode = "WWAN";
+
+        int networkAccessId = sample.accessId;
+
+        if (sample.callState == 0 && networkAccessId == 0 && (sample.voiceId == 16 || sample.hasOperatorNetMnc) && !sample.emergencyOnly)
+        {
+            sample.accessId = 4;
+            sample.access = "2G";
+        }
+
+        if (sample.callState == 1 && networkAccessId == 0)
+        {
+            sample.accessId = 4;
+            sample.access = "2G";
+        }
+
+        if (sample.emergencyOnly)
+        {
+            sample.accessId = 0;
+            sample.access = UNKNOWN;
+        }
+    }
+
+    private static String describe(CoverageSample sample)
+    {
+        return "wifi=" + sample.wifi + " airplane=" + sample.airplane + " sim=" + sample.simState + "/" + sample.activeSimCount
+                + " previous=" + sample.hasPrevious + " distance=" + sample.distance + " accuracy=" + sample.accuracy
+                + " accessId=" + sample.accessId + " ageNs=" + sample.locationAgeNs + " call=" + sample.callState
+                + " voice=" + sample.voiceId + " mnc=" + sample.hasOperatorNetMnc + " emergency=" + sample.emergencyOnly + " mode=" + sample.mode;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceReplayerTest
+{
+    private static final int EVENTS = 500;
+
+    private File mFile;
+    private File mCopy;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mFile = File.createTempFile("session", TraceRecorder.TRACE_SUFFIX);
+        mCopy = File.createTempFile("crashed", TraceRecorder.TRACE_SUFFIX);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mFile.delete();
+        mCopy.delete();
+    }
+
+    @Test
+    public void replaysClosedTrace() throws Exception
+    {
+        TraceRecorder recorder = record(new TraceRecorder(mFile));
+        recorder.close();
+
+        TraceReplayer.Result result = new TraceReplayer(mFile, false).replay(null);
+
+        assertEquals(EVENTS + 1, result.getEvents());
+        assertEquals(0, result.getErrors());
+        assertFalse(result.isTruncated());
+    }
+
+    @Test
+    public void replaysTraceOfCrashedSession() throws Exception
+    {
+        TraceRecorder recorder = record(new TraceRecorder(mFile, 0));
+
+        // the recorder is never closed, the file holds what a killed process leaves behind
+        long length = mFile.length();
+        copy(mFile, mCopy, length);
+        recorder.close();
+
+        TraceReplayer.Result result = new TraceReplayer(mCopy, false).replay(null);
+
+        assertEquals(EVENTS + 1, result.getEvents());
+        assertEquals(0, result.getErrors());
+        assertTrue(result.isTruncated());
+    }
+
+    @Test
+    public void replaysPrefixOfTruncatedTrace() throws Exception
+    {
+        record(new TraceRecorder(mFile, 0)).close();
+
+        Random random = new Random(7);
+        long length = mFile.length();
+        long previous = 0;
+
+        for (int i = 0; i <= 50; i++)
+        {
+            long cut = i == 50 ? length - 1 : (long) (length * (i + random.nextDouble()) / 50);
+            copy(mFile, mCopy, cut);
+
+            TraceReplayer.Result result = new TraceReplayer(mCopy, false).replay(null);
+
+            assertTrue(result.isTruncated());
+            assertEquals(0, result.getErrors());
+            assertTrue(result.getEvents() >= previous);
+            assertTrue(result.getEvents() <= EVENTS + 1);
+
+            previous = result.getEvents();
+        }
+
+        assertTrue(previous >= EVENTS);
+    }
+
+    private static TraceRecorder record(TraceRecorder recorder) throws Exception
+    {
+        TrackHeader header = new TrackHeader("track", "Android", "14", "Google", "id", "Pixel", "1.0", "1.0", 3600);
+
+        recorder.recordHeader(header, 1700000000000L, 50, 1000, 0, false, "unknown", new CoverageIngest.CategoryResolver()
+        {
+            @Override
+            public String getCategory(int accessId)
+            {
+                return accessId == 13 ? "4G" : null;
+            }
+        });
+
+        for (int i = 0; i < EVENTS; i++)
+        {
+            recorder.recordDeviceState(new DeviceState(i % 2 == 0, false, 5, 1, i));
+        }
+
+        return recorder;
+    }
+
+    private static void copy(File source, File target, long length) throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(source, "r");
+        RandomAccessFile output = new RandomAccessFile(target, "rw");
+
+        try
+        {
+            byte[] bytes = new byte[(int) length];
+            input.readFully(bytes);
+
+            output.setLength(0);
+            output.write(bytes);
+        } finally
+        {
+            input.close();
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackEncoderTest
+{
+    private static final List<String> COLUMNS = Arrays.asList("timestamp", "app_latitude", "app_longitude", "app_accuracy", "app_geo_timestamp", "app_manufacturer", "app_operator_net", "app_access", "app_cellid", "app_rssi", "app_comment");
+
+    private static final int LATITUDE = 1;
+    private static final int LONGITUDE = 2;
+
+    private static final String[] ACCESS = {"GSM", "UMTS", "LTE", "NR"};
+    private static final String[] IRREGULAR = {"007", "-0", "+5", "1e3", "12.50", "-", "", "9223372036854775807", "-9223372036854775808", "NaN", "Wien äöü 東京 📡", null};
+
+
+    @Test
+    public void roundTripRestoresTrack() throws IOException
+    {
+        List<String[]> rows = createTrack(1000, new Random(13));
+
+        byte[] encoded = encode("track", rows);
+        TrackDecoder decoder = new TrackDecoder(new ByteArrayInputStream(encoded));
+
+        assertEquals("track", decoder.getTrackId());
+        assertEquals(COLUMNS, decoder.getColumns());
+
+        for (String[] expected : rows)
+        {
+            String[] actual = decoder.readRow();
+
+            for (int i = 0; i < COLUMNS.size(); i++)
+            {
+                if (i == LATITUDE || i == LONGITUDE)
+                    assertEquals(Double.parseDouble(expected[i]), Double.parseDouble(actual[i]), 0.5 / TrackEncoder.FIXED_POINT_SCALE);
+                else
+                    assertEquals(COLUMNS.get(i), expected[i], actual[i]);
+            }
+        }
+
+        assertNull(decoder.readRow());
+        assertNull(decoder.readRow());
+        assertEquals(rows.size(), decoder.getRows());
+
+        // constant and slowly changing columns cost a few bits per row
+        assertTrue(encoded.length < rows.size() * 24);
+    }
+
+    @Test
+    public void irregularValuesAreRestoredExactly() throws IOException
+    {
+        List<String[]> rows = new ArrayList<>();
+
+        for (String value : IRREGULAR)
+        {
+            String[] row = new String[COLUMNS.size()];
+            Arrays.fill(row, value);
+            rows.add(row);
+        }
+
+        // coordinates out of range or not a number fall back to strings
+        rows.add(row("200.5", "-180.0000001"));
+        rows.add(row("48.2", "16.37"));
+        rows.add(row("1E-7", "-0.0"));
+
+        List<String[]> decoded = decode(encode("ä", rows));
+
+        for (int r = 0; r < IRREGULAR.length; r++)
+        {
+            for (int i = 0; i < COLUMNS.size(); i++)
+            {
+                if ((i == LATITUDE || i == LONGITUDE) && isNumber(IRREGULAR[r]))
+                    assertEquals(Double.parseDouble(IRREGULAR[r]), Double.parseDouble(decoded.get(r)[i]), 0.0);
+                else
+                    assertEquals(IRREGULAR[r], decoded.get(r)[i]);
+            }
+        }
+
+        assertEquals("200.5", decoded.get(IRREGULAR.length)[LATITUDE]);
+        assertEquals("-180.0000001", decoded.get(IRREGULAR.length)[LONGITUDE]);
+        assertEquals(48.2, Double.parseDouble(decoded.get(IRREGULAR.length + 1)[LATITUDE]), 0.0);
+        assertEquals(1e-7, Double.parseDouble(decoded.get(IRREGULAR.length + 2)[LATITUDE]), 0.0);
+    }
+
+    @Test
+    public void fullDictionaryWritesLiterals() throws IOException
+    {
+        List<String[]> rows = new ArrayList<>();
+
+        for (int i = 0; i < TrackEncoder.MAX_DICTIONARY_SIZE + 1000; i++)
+        {
+            String[] row = new String[COLUMNS.size()];
+            row[COLUMNS.size() - 1] = "comment " + i;
+            row[5] = "manufacturer " + (i % 3);
+            rows.add(row);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TrackEncoder encoder = new TrackEncoder(output, "track", COLUMNS);
+
+        for (String[] row : rows)
+        {
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+
+        assertEquals(TrackEncoder.MAX_DICTIONARY_SIZE, encoder.getDictionarySize());
+
+        List<String[]> decoded = decode(output.toByteArray());
+
+        assertEquals(rows.size(), decoded.size());
+        for (int i = 0; i < rows.size(); i++)
+        {
+            assertArrayEquals(rows.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void zigzagCoversLongRange()
+    {
+        long[] values = {0, 1, -1, 63, -64, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        for (long value : values)
+        {
+            assertEquals(value, TrackEncoder.unzigzag(TrackEncoder.zigzag(value)));
+        }
+
+        assertEquals(1, TrackEncoder.zigzag(-1));
+        assertEquals(2, TrackEncoder.zigzag(1));
+    }
+
+    @Test
+    public void corruptInputIsRejected() throws IOException
+    {
+        byte[] encoded = encode("track", createTrack(50, new Random(5)));
+
+        byte[] magic = encoded.clone();
+        magic[0] = 'X';
+
+        try
+        {
+            new TrackDecoder(new ByteArrayInputStream(magic));
+            fail();
+        } catch (IOException ex)
+        {
+            assertTrue(ex.getMessage().contains("Not a coverage track"));
+        }
+
+        try
+        {
+            decode(Arrays.copyOf(encoded, encoded.length - 1));
+            fail();
+        } catch (EOFException ex)
+        {
+            // expected, the end marker is missing
+        }
+    }
+
+    /**
+     * A drive with constant device fields, drifting position and RSSI and a cell change every 50 rows
+     */
+    private static List<String[]> createTrack(int count, Random random)
+    {
+        List<String[]> rows = new ArrayList<>(count);
+
+        double latitude = 48.2;
+        double longitude = 16.37;
+        long timestamp = 1700000000000L;
+
+        for (int i = 0; i < count; i++)
+        {
+            latitude += random.nextDouble() * 2e-4;
+            longitude += (random.nextDouble() - 0.5) * 2e-4;
+            timestamp += 1000 + random.nextInt(50);
+
+            rows.add(new String[]{
+                    "1700000000000",
+                    Double.toString(latitude),
+                    Double.toString(longitude),
+                    Double.toString(3.0 + random.nextInt(20) / 2.0),
+                    Long.toString(timestamp),
+                    "Google",
+                    "232-01",
+                    ACCESS[i / 50 % ACCESS.length],
+                    Integer.toString(1000000 + i / 50),
+                    Integer.toString(-70 - random.nextInt(40)),
+                    i % 100 == 0 ? "handover" : null});
+        }
+
+        return rows;
+    }
+
+    private static String[] row(String latitude, String longitude)
+    {
+        String[] row = new String[COLUMNS.size()];
+        row[LATITUDE] = latitude;
+        row[LONGITUDE] = longitude;
+
+        return row;
+    }
+
+    private static boolean isNumber(String value)
+    {
+        try
+        {
+            return value != null && Math.abs(Double.parseDouble(value)) <= 180.0;
+        } catch (NumberFormatException ex)
+        {
+            return false;
+        }
+    }
+
+    private static byte[] encode(String trackId, List<String[]> rows) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TrackEncoder encoder = new TrackEncoder(output, trackId, COLUMNS);
+
+        for (String[] row : rows)
+        {
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+
+        assertEquals(rows.size(), encoder.getRows());
+
+        return output.toByteArray();
+    }
+
+    private static List<String[]> decode(byte[] encoded) throws IOException
+    {
+        TrackDecoder decoder = new TrackDecoder(new ByteArrayInputStream(encoded));
+        List<String[]> rows = new ArrayList<>();
+
+        for (String[] row = decoder.readRow(); row != null; row = decoder.readRow())
+        {
+            rows.add(row.clone());
+        }
+
+        return rows;
+    }
+}
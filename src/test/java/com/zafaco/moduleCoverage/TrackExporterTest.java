@@ -0,0 +1,348 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class TrackExporterTest
+{
+    private static final int HEAP_TEST_ROWS = 1000000;
+    private static final int HEAP_CEILING_MB = 128;
+
+    private Context ctx;
+    private SQLiteDatabase mSQLiteDatabase;
+
+
+    @Before
+    public void setUp()
+    {
+        ctx = RuntimeEnvironment.getApplication();
+        mSQLiteDatabase = CoverageDatabase.open(ctx);
+        createTable(mSQLiteDatabase);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mSQLiteDatabase.close();
+    }
+
+    @Test
+    public void lineHasAllPositions() throws Exception
+    {
+        insert("a", 3);
+
+        JSONObject geometry = exportLine("a").getJSONObject("geometry");
+
+        assertEquals("LineString", geometry.getString("type"));
+
+        JSONArray coordinates = geometry.getJSONArray("coordinates");
+        assertEquals(3, coordinates.length());
+        assertEquals(longitude(2), coordinates.getJSONArray(2).getDouble(0), 1e-9);
+        assertEquals(latitude(2), coordinates.getJSONArray(2).getDouble(1), 1e-9);
+    }
+
+    @Test
+    public void singlePositionIsPoint() throws Exception
+    {
+        insert("a", 1);
+
+        JSONObject feature = exportLine("a");
+        JSONObject geometry = feature.getJSONObject("geometry");
+
+        assertEquals("Point", geometry.getString("type"));
+        assertEquals(longitude(0), geometry.getJSONArray("coordinates").getDouble(0), 1e-9);
+        assertEquals(latitude(0), geometry.getJSONArray("coordinates").getDouble(1), 1e-9);
+        assertEquals(1, feature.getJSONObject("properties").getLong("points"));
+    }
+
+    @Test
+    public void trackWithoutPositionsHasNoGeometry() throws Exception
+    {
+        mSQLiteDatabase.execSQL("INSERT INTO " + CoverageDatabase.TABLE_COVERAGE + " (track_id, app_geo_timestamp) VALUES ('a', 1)");
+
+        JSONObject feature = exportLine("a");
+
+        assertTrue(feature.isNull("geometry"));
+        assertEquals(0, feature.getJSONObject("properties").getLong("points"));
+    }
+
+    @Test
+    public void gzipExportIsComplete() throws Exception
+    {
+        insert("a", 1000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = new TrackExporter(ctx).export("a", TrackExporter.Format.GEOJSON_POINTS, true, out);
+
+        GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0)
+        {
+            json.write(buffer, 0, read);
+        }
+
+        assertEquals(1000, rows);
+        assertEquals(1000, new JSONObject(json.toString("UTF-8")).getJSONArray("features").length());
+    }
+
+    @Test
+    public void failedGzipExportReportsTheWriteError() throws Exception
+    {
+        insert("a", 5000);
+
+        FailingOutputStream out = new FailingOutputStream(4096);
+
+        try
+        {
+            new TrackExporter(ctx).export("a", TrackExporter.Format.GEOJSON_POINTS, true, out);
+            fail();
+        } catch (IOException ex)
+        {
+            assertEquals("disk full", ex.getMessage());
+        }
+
+        // the caller's stream is not closed, the next export to another stream works
+        assertFalse(out.closed);
+        assertEquals(5000, new TrackExporter(ctx).export("a", TrackExporter.Format.CSV, true, new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Exports a track of one million rows in a child JVM whose heap is smaller than the output, so an export that buffers the
+     * track fails with an OutOfMemoryError
+     * <p>
+     * Runs with -Pbenchmark=true only
+     */
+    @Test
+    public void exportStaysBelowHeapCeiling() throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("coverage.benchmark"));
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.add("-Xmx" + HEAP_CEILING_MB + "m");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+
+        for (String name : System.getProperties().stringPropertyNames())
+        {
+            if (name.startsWith("robolectric."))
+                command.add("-D" + name + "=" + System.getProperty(name));
+        }
+
+        command.add("-D" + HeapCeilingExport.ENABLED + "=true");
+        command.add(JUnitCore.class.getName());
+        command.add(HeapCeilingExport.class.getName());
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        StringBuilder output = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                output.append(line).append('\n');
+            }
+        } finally
+        {
+            reader.close();
+        }
+
+        int exit = process.waitFor();
+
+        System.out.print(output);
+
+        assertEquals(output.toString(), 0, exit);
+        assertTrue(output.toString(), output.indexOf("TrackExporter: rows[" + HEAP_TEST_ROWS + "]") >= 0);
+    }
+
+    /**
+     * Export of {@link #exportStaysBelowHeapCeiling}, only runs inside the child JVM
+     */
+    @RunWith(RobolectricTestRunner.class)
+    @Config(sdk = 33)
+    public static class HeapCeilingExport
+    {
+        static final String ENABLED = "coverage.heap.child";
+
+        @Test
+        public void export() throws Exception
+        {
+            Assume.assumeTrue(Boolean.getBoolean(ENABLED));
+
+            Context ctx = RuntimeEnvironment.getApplication();
+            SQLiteDatabase database = CoverageDatabase.open(ctx);
+            try
+            {
+                createTable(database);
+                insert(database, "large", HEAP_TEST_ROWS);
+            } finally
+            {
+                database.close();
+            }
+
+            CountingOutputStream out = new CountingOutputStream();
+            long rows = new TrackExporter(ctx).export("large", TrackExporter.Format.GEOJSON_POINTS, false, out);
+
+            long maxHeap = Runtime.getRuntime().maxMemory();
+
+            System.out.println("TrackExporter: rows[" + rows + "] - bytes[" + out.count + "] - max heap[" + maxHeap + "]");
+
+            assertEquals(HEAP_TEST_ROWS, rows);
+            assertTrue(out.count > maxHeap);
+        }
+    }
+
+    private JSONObject exportLine(String trackId) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TrackExporter(ctx).export(trackId, TrackExporter.Format.GEOJSON_LINE, false, out);
+
+        return new JSONObject(out.toString("UTF-8"));
+    }
+
+    private void insert(String trackId, int count)
+    {
+        insert(mSQLiteDatabase, trackId, count);
+    }
+
+    private static void createTable(SQLiteDatabase database)
+    {
+        database.execSQL("CREATE TABLE " + CoverageDatabase.TABLE_COVERAGE + " (track_id TEXT, app_geo_timestamp INTEGER, app_latitude TEXT, app_longitude TEXT, app_accuracy TEXT)");
+    }
+
+    private static void insert(SQLiteDatabase database, String trackId, int count)
+    {
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " + CoverageDatabase.TABLE_COVERAGE + " VALUES (?, ?, ?, ?, ?)");
+
+        database.beginTransaction();
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                statement.bindString(1, trackId);
+                statement.bindLong(2, 1700000000000L + i * 1000L);
+                statement.bindString(3, Double.toString(latitude(i)));
+                statement.bindString(4, Double.toString(longitude(i)));
+                statement.bindString(5, "5.0");
+                statement.executeInsert();
+            }
+
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+            statement.close();
+        }
+    }
+
+    private static double latitude(int i)
+    {
+        return 48.2 + i * 1e-6;
+    }
+
+    private static double longitude(int i)
+    {
+        return 16.3 + i * 1e-6;
+    }
+
+    private static final class FailingOutputStream extends OutputStream
+    {
+        private final long limit;
+        private long count = 0;
+        private boolean closed = false;
+
+
+        FailingOutputStream(long limit)
+        {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            count += len;
+            if (count > limit)
+                throw new IOException("disk full");
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream
+    {
+        private volatile long count = 0;
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrackSimplifierTest
+{
+    private static final double METERS_PER_DEGREE = 111195.0;
+
+    /**
+     * Difference of the ellipsoid in GeoMath to the sphere of the simplifier
+     */
+    private static final double MODEL_ERROR = 0.01;
+
+    private static final class Fix
+    {
+        final int index;
+        final double latitude;
+        final double longitude;
+        final String category;
+        final String cellId;
+        final String lac;
+        final int rssi;
+
+
+        Fix(int index, double latitude, double longitude, String category, String cellId, String lac, int rssi)
+        {
+            this.index = index;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.category = category;
+            this.cellId = cellId;
+            this.lac = lac;
+            this.rssi = rssi;
+        }
+    }
+
+    private final List<Fix> kept = new ArrayList<>();
+    private final List<Fix> dropped = new ArrayList<>();
+
+
+    @Test
+    public void droppedPointsStayWithinTolerance()
+    {
+        double previousRatio = 1.0;
+
+        for (double tolerance : new double[]{1.0, 5.0, 20.0})
+        {
+            kept.clear();
+            dropped.clear();
+
+            List<Fix> track = drive(20000, new Random(24), false);
+            TrackSimplifier<Fix> simplifier = simplify(track, tolerance);
+
+            assertEquals(track.size(), kept.size() + dropped.size());
+            assertTrue(simplifier.getMaxError() <= tolerance);
+            assertTrue(simplifier.getRatio() < previousRatio);
+            previousRatio = simplifier.getRatio();
+
+            // with 2 m GPS noise the default tolerance keeps less than a fifth of the points
+            if (tolerance == TrackSimplifier.DEFAULT_TOLERANCE)
+                assertTrue(simplifier.getRatio() < 0.2);
+
+            double maxError = 0.0;
+            int next = 0;
+
+            for (int k = 1; k < kept.size(); k++)
+            {
+                Fix start = kept.get(k - 1);
+                Fix end = kept.get(k);
+
+                for (; next < dropped.size() && dropped.get(next).index < end.index; next++)
+                {
+                    Fix point = dropped.get(next);
+
+                    assertTrue(point.index > start.index);
+                    maxError = Math.max(maxError, distanceToSegment(start, end, point));
+                }
+            }
+
+            assertEquals(dropped.size(), next);
+            assertTrue("tolerance " + tolerance + " error " + maxError, maxError <= tolerance * (1 + MODEL_ERROR));
+            assertEquals(simplifier.getMaxError(), maxError, tolerance * MODEL_ERROR);
+        }
+    }
+
+    @Test
+    public void stateChangesAreKeptWithPredecessor()
+    {
+        List<Fix> track = drive(20000, new Random(3), true);
+        simplify(track, 20.0);
+
+        boolean[] isKept = new boolean[track.size()];
+        for (Fix fix : kept)
+        {
+            isKept[fix.index] = true;
+        }
+
+        int changes = 0;
+
+        for (int i = 1; i < track.size(); i++)
+        {
+            Fix previous = track.get(i - 1);
+            Fix fix = track.get(i);
+
+            boolean change = !fix.category.equals(previous.category) || !fix.cellId.equals(previous.cellId) || !fix.lac.equals(previous.lac) || bucket(fix.rssi) != bucket(previous.rssi);
+
+            if (change)
+            {
+                changes++;
+
+                assertTrue("change at " + i, isKept[i]);
+                assertTrue("before change at " + i, isKept[i - 1]);
+            }
+        }
+
+        assertTrue(changes > 100);
+        assertTrue(isKept[0]);
+        assertTrue(isKept[track.size() - 1]);
+    }
+
+    @Test
+    public void rssiWithinBucketIsNoChange()
+    {
+        TrackSimplifier<Fix> simplifier = new TrackSimplifier<>(5.0, 10, listener());
+
+        int[] rssi = {-71, -79, -75, -72, -80, -80, TrackSimplifier.NO_RSSI, TrackSimplifier.NO_RSSI, -81, -89, -90};
+        for (int i = 0; i < rssi.length; i++)
+        {
+            simplifier.add(new Fix(i, 48.2 + i * 1e-4, 16.37, "4G", "1", "2", rssi[i]), 48.2 + i * 1e-4, 16.37, "4G", "1", "2", rssi[i]);
+        }
+        simplifier.finish();
+
+        // buckets of 10 dB are aligned to multiples of 10, -80 to -71 is one bucket
+        int[] expected = {0, 5, 6, 7, 8, 10};
+
+        assertEquals(expected.length, simplifier.getKept());
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], kept.get(i).index);
+        }
+    }
+
+    @Test
+    public void straightTrackKeepsWindowBounds()
+    {
+        TrackSimplifier<Fix> simplifier = new TrackSimplifier<>(5.0, 10, listener());
+
+        int points = 1000;
+        for (int i = 0; i < points; i++)
+        {
+            double latitude = 48.2 + i * 10 / METERS_PER_DEGREE;
+            simplifier.add(new Fix(i, latitude, 16.37, "4G", "1", "2", -80), latitude, 16.37, "4G", "1", "2", -80);
+        }
+
+        assertEquals(points, simplifier.getInput());
+        simplifier.finish();
+
+        assertEquals(points - 1, kept.get(kept.size() - 1).index);
+        assertTrue(simplifier.getKept() <= points / 256 + 2);
+        assertEquals(0.0, simplifier.getMaxError(), 1e-6);
+        assertEquals((double) simplifier.getKept() / points, simplifier.getRatio(), 1e-12);
+    }
+
+    @Test
+    public void parsesRssi()
+    {
+        assertEquals(-81, TrackSimplifier.parseRssi("-81"));
+        assertEquals(-81, TrackSimplifier.parseRssi("-80.6"));
+        assertEquals(TrackSimplifier.NO_RSSI, TrackSimplifier.parseRssi(null));
+        assertEquals(TrackSimplifier.NO_RSSI, TrackSimplifier.parseRssi("unknown"));
+    }
+
+    private TrackSimplifier<Fix> simplify(List<Fix> track, double tolerance)
+    {
+        TrackSimplifier<Fix> simplifier = new TrackSimplifier<>(tolerance, TrackSimplifier.DEFAULT_RSSI_BUCKET, listener());
+
+        for (Fix fix : track)
+        {
+            simplifier.add(fix, fix.latitude, fix.longitude, fix.category, fix.cellId, fix.lac, fix.rssi);
+        }
+        simplifier.finish();
+
+        assertEquals(track.size(), simplifier.getInput());
+        assertEquals(kept.size(), simplifier.getKept());
+
+        return simplifier;
+    }
+
+    private TrackSimplifier.Listener<Fix> listener()
+    {
+        return new TrackSimplifier.Listener<Fix>()
+        {
+            @Override
+            public void onKept(Fix item)
+            {
+                assertTrue(kept.isEmpty() || kept.get(kept.size() - 1).index < item.index);
+                kept.add(item);
+            }
+
+            @Override
+            public void onDropped(Fix item)
+            {
+                dropped.add(item);
+            }
+        };
+    }
+
+    /**
+     * Fixes about 15 m apart on a winding road with GPS noise, the state changes at random if requested
+     */
+    private static List<Fix> drive(int count, Random random, boolean changes)
+    {
+        List<Fix> track = new ArrayList<>(count);
+
+        double latitude = 48.2;
+        double longitude = 16.37;
+        double bearing = 0.0;
+
+        String category = "4G";
+        int cell = 1000;
+        int lac = 40;
+        int rssi = -85;
+
+        for (int i = 0; i < count; i++)
+        {
+            bearing += (random.nextDouble() - 0.5) * 0.2;
+
+            latitude += Math.cos(bearing) * 15 / METERS_PER_DEGREE + random.nextGaussian() * 2 / METERS_PER_DEGREE;
+            longitude += (Math.sin(bearing) * 15 + random.nextGaussian() * 2) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+
+            if (changes)
+            {
+                int change = random.nextInt(200);
+
+                if (change == 0)
+                    category = category.equals("4G") ? "5G" : "4G";
+                else if (change == 1)
+                    cell++;
+                else if (change == 2)
+                    lac++;
+                else if (change < 6)
+                    rssi = -70 - random.nextInt(40);
+            }
+
+            track.add(new Fix(i, latitude, longitude, category, Integer.toString(cell), Integer.toString(lac), rssi));
+        }
+
+        return track;
+    }
+
+    private static int bucket(int rssi)
+    {
+        return (int) Math.floor((double) rssi / TrackSimplifier.DEFAULT_RSSI_BUCKET);
+    }
+
+    /**
+     * Ellipsoidal distance of the point to the closest point of the segment, found by ternary search along the segment
+     */
+    private static double distanceToSegment(Fix start, Fix end, Fix point)
+    {
+        double low = 0.0;
+        double high = 1.0;
+
+        for (int i = 0; i < 60; i++)
+        {
+            double a = low + (high - low) / 3;
+            double b = high - (high - low) / 3;
+
+            if (distanceAt(start, end, point, a) <= distanceAt(start, end, point, b))
+                high = b;
+            else
+                low = a;
+        }
+
+        return distanceAt(start, end, point, (low + high) / 2);
+    }
+
+    private static double distanceAt(Fix start, Fix end, Fix point, double t)
+    {
+        return GeoMath.distance(start.latitude + (end.latitude - start.latitude) * t, start.longitude + (end.longitude - start.longitude) * t, point.latitude, point.longitude);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *     Copyright (C) 2016-2025 zafaco GmbH
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License version 3
+ *     as published by the Free Software Foundation.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.zafaco.moduleCoverage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class TrackStatisticsTest
+{
+    private static final double DELTA = 1e-9;
+
+    private static final TrackHeader HEADER = new TrackHeader("track", "Android", "14", "Google", "id", "Pixel", "1.0", "1.0", 3600);
+
+
+    @Test
+    public void momentsMatchTwoPassComputation() throws Exception
+    {
+        Random random = new Random(1);
+
+        // a large offset loses the variance in a naive sum of squares
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = 1e9 + random.nextGaussian() * 3.0;
+        }
+
+        TrackStatistics.Moments moments = new TrackStatistics.Moments();
+        for (double value : values)
+        {
+            moments.add(value);
+        }
+
+        double sum = 0.0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (double value : values)
+        {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double mean = sum / values.length;
+
+        double squares = 0.0;
+        for (double value : values)
+        {
+            squares += (value - mean) * (value - mean);
+        }
+        double variance = squares / (values.length - 1);
+
+        assertEquals(values.length, moments.getCount());
+        assertEquals(mean, moments.getMean(), 1e-6);
+        assertEquals(variance, moments.getVariance(), variance * 1e-6);
+        assertEquals(Math.sqrt(variance), moments.getStandardDeviation(), 1e-6);
+        assertEquals(min, moments.getMin(), 0.0);
+        assertEquals(max, moments.getMax(), 0.0);
+    }
+
+    @Test
+    public void momentsOfEmptyAndSingleValue() throws Exception
+    {
+        TrackStatistics.Moments moments = new TrackStatistics.Moments();
+
+        assertTrue(Double.isNaN(moments.getMean()));
+        assertEquals(0.0, moments.getVariance(), 0.0);
+        assertTrue(Double.isNaN(moments.getMin()));
+        assertEquals(1, moments.toJSON().length());
+
+        moments.add(-85.0);
+
+        assertEquals(-85.0, moments.getMean(), 0.0);
+        assertEquals(0.0, moments.getVariance(), 0.0);
+        assertEquals(-85.0, moments.getMin(), 0.0);
+        assertEquals(-85.0, moments.getMax(), 0.0);
+    }
+
+    @Test
+    public void rssiBucketEdges()
+    {
+        int overflow = TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 1;
+
+        assertEquals(0, TrackStatistics.getBucket(-140.5));
+        assertEquals(1, TrackStatistics.getBucket(-140));
+        assertEquals(1, TrackStatistics.getBucket(-130.01));
+        assertEquals(2, TrackStatistics.getBucket(-130));
+        assertEquals(TrackStatistics.RSSI_HISTOGRAM_BUCKETS, TrackStatistics.getBucket(-40.01));
+
+        // the upper bound itself is not part of the last regular bucket
+        assertEquals(overflow, TrackStatistics.getBucket(-40));
+        assertEquals(overflow, TrackStatistics.getBucket(0));
+    }
+
+    @Test
+    public void histogramsAreKeptPerCategory() throws Exception
+    {
+        TrackStatistics statistics = new TrackStatistics("track", new CoverageCounter());
+
+        statistics.add(AccessCategory.G4, sample(10.0, 200, -85));
+        statistics.add(AccessCategory.G4, sample(20.0, 210, -95));
+        statistics.add(AccessCategory.G5, sample(30.0, 220, -40));
+        statistics.add(AccessCategory.G2, sample(-1.0, Double.NaN, Double.NaN));
+
+        TrackStatistics.Snapshot snapshot = statistics.snapshot();
+
+        long[] g4 = new long[TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 2];
+        g4[TrackStatistics.getBucket(-85)]++;
+        g4[TrackStatistics.getBucket(-95)]++;
+
+        long[] g5 = new long[TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 2];
+        g5[TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 1]++;
+
+        long[] all = g4.clone();
+        all[TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 1]++;
+
+        assertArrayEquals(g4, snapshot.getRssiHistogram(AccessCategory.G4));
+        assertArrayEquals(g5, snapshot.getRssiHistogram(AccessCategory.G5));
+        assertArrayEquals(new long[TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 2], snapshot.getRssiHistogram(AccessCategory.G2));
+        assertArrayEquals(all, snapshot.getRssiHistogram());
+
+        assertEquals(3, snapshot.getVelocity().getCount());
+        assertEquals(20.0, snapshot.getVelocity().getMean(), DELTA);
+        assertEquals(3, snapshot.getAltitude().getCount());
+        assertEquals(3, snapshot.getRssi().getCount());
+        assertEquals(-40.0, snapshot.getRssi().getMax(), 0.0);
+
+        // later samples do not change the snapshot
+        statistics.add(AccessCategory.G4, sample(40.0, 230, -85));
+        assertArrayEquals(g4, snapshot.getRssiHistogram(AccessCategory.G4));
+        assertEquals(3, snapshot.getVelocity().getCount());
+    }
+
+    @Test
+    public void persistsSnapshotIntoMetaRow() throws Exception
+    {
+        CoverageCounter counter = new CoverageCounter();
+        TrackStatistics statistics = new TrackStatistics("track", counter);
+
+        counter.add(AccessCategory.G4, 1000, 0);
+        statistics.add(AccessCategory.G4, sample(10.0, 200, -85));
+        counter.add(AccessCategory.G3, 3000, 25);
+        statistics.add(AccessCategory.G3, sample(14.0, 204, -40));
+
+        SQLiteDatabase database = CoverageDatabase.open(RuntimeEnvironment.getApplication());
+        try
+        {
+            database.execSQL("CREATE TABLE " + CoverageDatabase.TABLE_META + " (fkey TEXT, " + TrackStatistics.META_COLUMN + " TEXT)");
+            database.execSQL("INSERT INTO " + CoverageDatabase.TABLE_META + " (fkey) VALUES ('track'), ('other')");
+
+            TrackStatistics.persist(database, statistics.snapshot());
+
+            assertNull(readStatistics(database, "other"));
+
+            JSONObject json = new JSONObject(readStatistics(database, "track"));
+
+            assertEquals("track", json.getString("track_id"));
+            assertEquals(2, json.getJSONObject("categories").getLong("all"));
+            assertEquals(2000, json.getJSONObject("categories").getJSONObject("4G").getLong("time_ms"));
+            assertEquals(25.0, json.getJSONObject("categories").getJSONObject("4G").getDouble("distance"), DELTA);
+
+            JSONObject velocity = json.getJSONObject("velocity");
+            assertEquals(2, velocity.getLong("count"));
+            assertEquals(12.0, velocity.getDouble("mean"), DELTA);
+            assertEquals(Math.sqrt(8.0), velocity.getDouble("stddev"), DELTA);
+            assertEquals(10.0, velocity.getDouble("min"), DELTA);
+            assertEquals(14.0, velocity.getDouble("max"), DELTA);
+
+            JSONObject histogram = json.getJSONObject("rssi_histogram");
+            assertEquals(TrackStatistics.RSSI_HISTOGRAM_MIN, histogram.getInt("min"));
+            assertEquals(TrackStatistics.RSSI_HISTOGRAM_WIDTH, histogram.getInt("width"));
+            assertArrayEquals(statistics.snapshot().getRssiHistogram(), toArray(histogram.getJSONArray("counts")));
+            assertArrayEquals(statistics.snapshot().getRssiHistogram(AccessCategory.G3), toArray(histogram.getJSONObject("categories").getJSONArray("3G")));
+            assertEquals(1, toArray(histogram.getJSONObject("categories").getJSONArray("3G"))[TrackStatistics.RSSI_HISTOGRAM_BUCKETS + 1]);
+        } finally
+        {
+            database.close();
+        }
+    }
+
+    private static CoverageSample sample(double velocity, double altitude, double rssi) throws Exception
+    {
+        JSONObject geo = new JSONObject();
+        geo.put("app_latitude", 48.2);
+        geo.put("app_longitude", 16.4);
+        geo.put("app_accuracy", 5.0);
+        geo.put("app_velocity", velocity);
+        geo.put("app_location_age_ns", 0);
+
+        if (!Double.isNaN(altitude))
+            geo.put("app_altitude", altitude);
+
+        JSONObject network = new JSONObject();
+        network.put("app_access_id", 13);
+
+        if (!Double.isNaN(rssi))
+            network.put("app_rssi", rssi);
+
+        CoverageSample sample = CoverageSample.obtain();
+        sample.fill(HEADER, geo, network, new JSONObject());
+
+        return sample;
+    }
+
+    private static String readStatistics(SQLiteDatabase database, String trackId)
+    {
+        Cursor cursor = database.rawQuery("SELECT " + TrackStatistics.META_COLUMN + " FROM " + CoverageDatabase.TABLE_META + " WHERE fkey = ?", new String[]{trackId});
+        try
+        {
+            assertTrue(cursor.moveToNext());
+
+            return cursor.getString(0);
+        } finally
+        {
+            cursor.close();
+        }
+    }
+
+    private static long[] toArray(JSONArray json) throws Exception
+    {
+        long[] values = new long[json.length()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = json.getLong(i);
+        }
+
+        return values;
+    }
+}